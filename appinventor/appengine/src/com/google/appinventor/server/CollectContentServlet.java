@@ -0,0 +1,36 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2014 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server;
+
+import com.google.appinventor.server.storage.StorageIo;
+import com.google.appinventor.server.storage.StorageIoInstanceHolder;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet that garbage collects asset content that no project file uses any
+ * more. It is run by App Engine cron (see cron.xml), and only admins may
+ * request it.
+ *
+ */
+public class CollectContentServlet extends OdeServlet {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(CollectContentServlet.class.getName());
+
+  private final transient StorageIo storageIo = StorageIoInstanceHolder.INSTANCE;
+
+  @Override
+  public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+    int collected = storageIo.collectOrphanedContent();
+    LOG.info("Collected " + collected + " orphaned contents");
+    resp.setStatus(HttpServletResponse.SC_OK);
+  }
+}
@@ -12,7 +12,6 @@ import com.google.appinventor.server.storage.StorageIoInstanceHolder;
 import com.google.appinventor.server.util.CacheHeaders;
 import com.google.appinventor.server.util.CacheHeadersImpl;
 import com.google.appinventor.shared.rpc.ServerLayout;
-import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
 import com.google.appinventor.shared.storage.StorageUtil;
 
@@ -20,6 +19,7 @@ import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.NoSuchElementException;
 import java.util.logging.Logger;
 
@@ -34,7 +34,7 @@ public class DownloadServlet extends OdeServlet {
    *    /<baseurl>/download/project-output/<projectId>/{<target>}
    *    /<baseurl>/download/project-source/<projectId>/{<title>}
    *    /<baseurl>/download/user-project-source/<projectIdOrName>/<userIdOrEmail>
-   *    /<baseurl>/download/all-projects-source
+   *    /<baseurl>/download/all-projects-source/{<afterProjectId>}
    *    /<baseurl>/download/file/<projectId>/<file-path>
    *    /<baseurl>/download/userfile/<file-path>
    */
@@ -65,6 +65,14 @@ public class DownloadServlet extends OdeServlet {
   private static final int USER_PROJECT_USERID_INDEX = 5;
   private static final int SPLIT_LIMIT_USER_PROJECT_SOURCE = 6;
 
+  // Constants used when download kind is "all-projects-source".
+  private static final int AFTER_PROJECT_ID_INDEX = 4;
+  private static final int SPLIT_LIMIT_ALL_PROJECTS_SOURCE = 5;
+
+  // How long a download of all projects may spend on projects before it stops and says where to
+  // download the rest. App Engine ends a request after 60 seconds.
+  private static final long ALL_PROJECTS_TIME_LIMIT_MS = 45 * 1000;
+
   // Constants used when download kind is "file".
   // Since the file path may contain slashes, it must be the last component in the URI.
   // PROJECT_ID_INDEX = 4 (declared above)
@@ -122,9 +130,10 @@ public class DownloadServlet extends OdeServlet {
         final boolean includeProjectHistory = true;
         String zipName = (projectTitle == null) ? null :
             StringUtils.normalizeForFilename(projectTitle) + ".aia";
-        ProjectSourceZip zipFile = fileExporter.exportProjectSourceZip(userId,
-            projectId, includeProjectHistory, false, zipName);
-        downloadableFile = zipFile.getRawFile();
+        // The zip is written to the response as the project's files are read.
+        fileExporter.streamProjectSourceZip(userId, projectId, includeProjectHistory, false,
+            zipName, attachment(resp));
+        return;
 
       } else if (downloadKind.equals(ServerLayout.DOWNLOAD_USER_PROJECT_SOURCE)) {
         // Download project source files for the specified user project as a zip.
@@ -173,15 +182,24 @@ public class DownloadServlet extends OdeServlet {
         } else {
           zipName = "u" + projectUserId + "_p" + projectId + ".aia";
         }
-        ProjectSourceZip zipFile = fileExporter.exportProjectSourceZip(projectUserId,
-            projectId, /* include history*/ true, /* include keystore */ true, zipName);
-        downloadableFile = zipFile.getRawFile();
+        fileExporter.streamProjectSourceZip(projectUserId, projectId,
+            /* include history*/ true, /* include keystore */ true, zipName, attachment(resp));
+        return;
         
       } else if (downloadKind.equals(ServerLayout.DOWNLOAD_ALL_PROJECTS_SOURCE)) {
-        // Download all project source files as a zip of zips.
-        ProjectSourceZip zipFile = fileExporter.exportAllProjectsSourceZip(
-            userId, "all-projects.zip");
-        downloadableFile = zipFile.getRawFile();
+        // Download all project source files as a zip of zips, starting after the given project if
+        // an earlier part of the download stopped there.
+        uriComponents = uri.split("/", SPLIT_LIMIT_ALL_PROJECTS_SOURCE);
+        long afterProjectId = (uriComponents.length > AFTER_PROJECT_ID_INDEX) ?
+            Long.parseLong(uriComponents[AFTER_PROJECT_ID_INDEX]) : 0;
+        String zipName = (afterProjectId == 0) ? "all-projects.zip" :
+            "all-projects-" + afterProjectId + ".zip";
+        fileExporter.streamAllProjectsSourceZip(userId, afterProjectId,
+            System.currentTimeMillis() + ALL_PROJECTS_TIME_LIMIT_MS,
+            Server.urlFromPath(req, ServerLayout.DOWNLOAD_SERVLET_BASE +
+                ServerLayout.DOWNLOAD_ALL_PROJECTS_SOURCE),
+            zipName, attachment(resp));
+        return;
 
       } else if (downloadKind.equals(ServerLayout.DOWNLOAD_FILE)) {
         // Download a specific file.
@@ -222,4 +240,21 @@ public class DownloadServlet extends OdeServlet {
     out.write(content);
     out.close();
   }
+
+  /*
+   * Returns a destination that writes a download, whose length isn't known up front, to the
+   * response. The response headers are only set once the download is known to go ahead, so an
+   * error found before then is still reported as an error rather than as the download.
+   */
+  private static FileExporter.Destination attachment(final HttpServletResponse resp) {
+    return new FileExporter.Destination() {
+      @Override
+      public OutputStream open(String fileName) throws IOException {
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setHeader("content-disposition", "attachment; filename=\"" + fileName + "\"");
+        resp.setContentType(StorageUtil.getContentTypeForFilePath(fileName));
+        return resp.getOutputStream();
+      }
+    };
+  }
 }
@@ -10,6 +10,7 @@ import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
 
 import java.io.IOException;
+import java.io.OutputStream;
 
 import javax.annotation.Nullable;
 
@@ -21,6 +22,20 @@ public interface FileExporter {
 
   public static final String REMIX_INFORMATION_FILE_PATH = "youngandroidproject/remix_history";
 
+  /**
+   * Where a streamed export is written to.
+   */
+  interface Destination {
+    /**
+     * Returns the stream to write the exported file to. It is only called
+     * once the export is known to succeed as far as it can be checked up
+     * front, so that the caller can still report an error until then.
+     *
+     * @param fileName the name of the exported file
+     */
+    OutputStream open(String fileName) throws IOException;
+  }
+
   /**
    * Exports a project output file.
    *
@@ -55,16 +70,52 @@ public interface FileExporter {
       throws IOException;
 
   /**
-   * Exports all of the user's projects' source files as a zip of zips.
+   * Exports the project source files as a zip, writing it to a stream as the
+   * files are read rather than building it in memory.
+   *
+   * @param userId the userId
+   * @param projectId the project id belonging to the userId
+   * @param includeProjectHistory indicates whether to include a file
+   *        containing the project's history in the zip
+   * @param includeAndroidKeystore indicates whether to include the user's android.keystore file
+   * @param zipName the desired name for the zip, or null for a name to be generated
+   * @param destination where to write the zip
+   * @return the number of files in the zip
+   * @throws IllegalArgumentException if download request cannot be fulfilled
+   *         (no source files)
+   * @throws IOException if files cannot be written
+   */
+  int streamProjectSourceZip(String userId, long projectId, boolean includeProjectHistory,
+                             boolean includeAndroidKeystore, @Nullable String zipName,
+                             Destination destination) throws IOException;
+
+  /**
+   * Exports the source files of the user's projects as a zip of zips, writing
+   * it to a stream as the projects are read. The projects are taken in order
+   * of their ids, several at a time. If the deadline passes before all of them
+   * are written, the zip ends with a file that says where to download the
+   * rest, which is done by calling this method again with the id of the last
+   * project that was taken. Projects created or deleted in between therefore
+   * don't shift the rest.
    *
    * @param userId the userId
+   * @param afterProjectId only projects with greater ids are exported, 0 to
+   *        export them all
+   * @param deadlineMillis the time, as from {@link System#currentTimeMillis},
+   *        after which no more projects are started
+   * @param moreProjectsUrl the absolute URL of the download of all projects,
+   *        to which the id of the last project taken is appended to give the
+   *        download of the rest
    * @param zipName the desired name for the zip
-   * @return the name, contents, and number of files in the zip
+   * @param destination where to write the zip
+   * @return the number of files in the zip
    * @throws IllegalArgumentException if download request cannot be fulfilled
    *         (no projects)
    * @throws IOException if files cannot be written
    */
-  ProjectSourceZip exportAllProjectsSourceZip(String userId, String zipName) throws IOException;
+  int streamAllProjectsSourceZip(String userId, long afterProjectId, long deadlineMillis,
+                                 String moreProjectsUrl, String zipName,
+                                 Destination destination) throws IOException;
 
   /**
    * Exports a specific project file.
@@ -6,19 +6,33 @@
 
 package com.google.appinventor.server;
 
-import com.google.common.base.Strings;
+import com.google.appengine.api.ThreadManager;
 import com.google.appinventor.server.storage.ObjectifyStorageIo;
 import com.google.appinventor.server.storage.StorageIo;
 import com.google.appinventor.server.storage.StorageIoInstanceHolder;
 import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.RawFile;
 import com.google.appinventor.shared.storage.StorageUtil;
+import com.google.common.base.Throwables;
+import com.google.common.io.OutputSupplier;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipOutputStream;
 
 import javax.annotation.Nullable;
@@ -29,6 +43,27 @@ import javax.annotation.Nullable;
  */
 public final class FileExporterImpl implements FileExporter {
 
+  private static final Logger LOG = Logger.getLogger(FileExporterImpl.class.getName());
+
+  // The number of projects whose zips streamAllProjectsSourceZip() builds at the same time.
+  // Each of them reads several files at once too, on threads that count towards the request's
+  // limit.
+  private static final int MAX_CONCURRENT_PROJECTS = 4;
+
+  // The entry that a zip of all projects ends with when it stops early, and its content.
+  static final String MORE_PROJECTS_FILE_NAME = "more-projects.txt";
+  private static final String MORE_PROJECTS_MESSAGE =
+      "This download stopped before the last %d of your projects so that it would finish\n" +
+      "in time. You can download the rest of your projects from\n%s\n";
+
+  /**
+   * The source zip of one project, built by streamAllProjectsSourceZip().
+   */
+  private static class ExportedProject {
+    String fileName;
+    final ByteArrayOutputStream content = new ByteArrayOutputStream();
+  }
+
   private final StorageIo storageIo = StorageIoInstanceHolder.INSTANCE;
 
   @Override
@@ -72,72 +107,154 @@ public final class FileExporterImpl implements FileExporter {
   }
 
   @Override
-  public ProjectSourceZip exportAllProjectsSourceZip(String userId,
-      String zipName) throws IOException {
-    // Create a zip file for each project's sources.
-    List<Long> projectIds = storageIo.getProjects(userId);
-    if (projectIds.size() == 0) {
+  public int streamProjectSourceZip(final String userId, final long projectId,
+                                    boolean includeProjectHistory,
+                                    boolean includeAndroidKeystore,
+                                    @Nullable final String zipName,
+                                    final Destination destination) throws IOException {
+    return storageIo.streamProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, new OutputSupplier<OutputStream>() {
+          @Override
+          public OutputStream getOutput() throws IOException {
+            return destination.open((zipName == null)
+                ? storageIo.getProjectName(userId, projectId) + ".aia"
+                : zipName);
+          }
+        });
+  }
+
+  @Override
+  public int streamAllProjectsSourceZip(String userId, long afterProjectId, long deadlineMillis,
+                                        String moreProjectsUrl, String zipName,
+                                        Destination destination) throws IOException {
+    // Take the projects in order of their ids, so that each part of the download starts after the
+    // last project of the previous one.
+    List<Long> projectIds = new ArrayList<Long>();
+    for (long projectId : storageIo.getProjects(userId)) {
+      if (projectId > afterProjectId) {
+        projectIds.add(projectId);
+      }
+    }
+    if (projectIds.isEmpty()) {
       throw new IllegalArgumentException("No projects to download");
     }
+    Collections.sort(projectIds);
 
-    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
-    ZipOutputStream out = new ZipOutputStream(zipFile);
+    // Each project's zip is built in memory, a few projects ahead of the one being written, and
+    // then copied into the outer zip.
+    ExecutorService executor = Executors.newFixedThreadPool(MAX_CONCURRENT_PROJECTS,
+        ThreadManager.currentRequestThreadFactory());
+    ZipOutputStream out = null;
     int count = 0;
-    String metadata = "";
-    for (Long projectId : projectIds) {
-      try {
-        ProjectSourceZip projectSourceZip =
-            exportProjectSourceZip(userId, projectId, false, false, null);
-        byte[] data = projectSourceZip.getContent();
-        String name = projectSourceZip.getFileName();
+    int nextProject = 0;
+    try {
+      Deque<Future<ExportedProject>> exports = new ArrayDeque<Future<ExportedProject>>();
+      int nextToExport = 0;
+      while (true) {
+        // Once the deadline has passed, no more projects are started, unless none has been
+        // written yet, and the rest are left for the next part. The projects already started are
+        // still written.
+        while (exports.size() < MAX_CONCURRENT_PROJECTS && nextToExport < projectIds.size()
+            && (System.currentTimeMillis() < deadlineMillis
+                || (count == 0 && exports.isEmpty()))) {
+          exports.add(executor.submit(exportProject(userId, projectIds.get(nextToExport++))));
+        }
+        if (exports.isEmpty()) {
+          break;
+        }
+        long projectId = projectIds.get(nextProject++);
+        ExportedProject project;
+        try {
+          project = exports.remove().get();
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof IllegalArgumentException) {
+            LOG.warning("No files found for userid: " + userId +
+                " for projectid: " + projectId);
+            continue;
+          } else if (cause instanceof IOException) {
+            LOG.warning("IOException while reading files found for userid: " +
+                userId + " for projectid: " + projectId + ": " + cause.getMessage());
+            continue;
+          }
+          throw Throwables.propagate(cause);
+        }
 
+        if (out == null) {
+          out = new ZipOutputStream(destination.open(zipName));
+        }
         // If necessary, rename duplicate projects
+        String name = project.fileName;
         while (true) {
           try {
             out.putNextEntry(new ZipEntry(name));
             break;
-          } catch (IOException e) {
+          } catch (ZipException e) {
             name = "duplicate-" + name;
           }
         }
-        metadata += projectSourceZip.getMetadata() + "\n";
-
-        out.write(data, 0, data.length);
+        project.content.writeTo(out);
         out.closeEntry();
         count++;
-      } catch (IllegalArgumentException e) {
-        System.err.println("No files found for userid: " + userId +
-            " for projectid: " + projectId);
-        continue;
-      } catch (IOException e) {
-        System.err.println("IOException while reading files found for userid: " +
-            userId + " for projectid: " + projectId);
-        continue;
       }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while exporting the projects of userid: " +
+          userId);
+    } finally {
+      executor.shutdownNow();
     }
     if (count == 0) {
       throw new IllegalArgumentException("No files to download");
     }
 
-    List<String> userFiles = storageIo.getUserFiles(userId);
-    if (userFiles.contains(StorageUtil.ANDROID_KEYSTORE_FILENAME)) {
-      byte[] androidKeystoreBytes =
-          storageIo.downloadRawUserFile(userId, StorageUtil.ANDROID_KEYSTORE_FILENAME);
-      if (androidKeystoreBytes.length > 0) {
-        out.putNextEntry(new ZipEntry(StorageUtil.ANDROID_KEYSTORE_FILENAME));
-        out.write(androidKeystoreBytes, 0, androidKeystoreBytes.length);
-        out.closeEntry();
-        count++;
+    if (afterProjectId == 0) {
+      List<String> userFiles = storageIo.getUserFiles(userId);
+      if (userFiles.contains(StorageUtil.ANDROID_KEYSTORE_FILENAME)) {
+        byte[] androidKeystoreBytes =
+            storageIo.downloadRawUserFile(userId, StorageUtil.ANDROID_KEYSTORE_FILENAME);
+        if (androidKeystoreBytes.length > 0) {
+          out.putNextEntry(new ZipEntry(StorageUtil.ANDROID_KEYSTORE_FILENAME));
+          out.write(androidKeystoreBytes, 0, androidKeystoreBytes.length);
+          out.closeEntry();
+          count++;
+        }
       }
     }
 
+    if (nextProject < projectIds.size()) {
+      long lastProjectId = projectIds.get(nextProject - 1);
+      byte[] moreProjects = String.format(MORE_PROJECTS_MESSAGE, projectIds.size() - nextProject,
+          moreProjectsUrl + "/" + lastProjectId)
+          .getBytes(StorageUtil.DEFAULT_CHARSET);
+      out.putNextEntry(new ZipEntry(MORE_PROJECTS_FILE_NAME));
+      out.write(moreProjects, 0, moreProjects.length);
+      out.closeEntry();
+      count++;
+    }
+
     out.close();
+    return count;
+  }
 
-    // Package the big zip file up as a ProjectSourceZip and return it.
-    byte[] content = zipFile.toByteArray();
-    ProjectSourceZip projectSourceZip = new ProjectSourceZip(zipName, content, count);
-    projectSourceZip.setMetadata(metadata);
-    return projectSourceZip;
+  /*
+   * Returns a task that builds the source zip of one project in memory.
+   */
+  private Callable<ExportedProject> exportProject(final String userId, final long projectId) {
+    return new Callable<ExportedProject>() {
+      @Override
+      public ExportedProject call() throws IOException {
+        final ExportedProject project = new ExportedProject();
+        streamProjectSourceZip(userId, projectId, false, false, null, new Destination() {
+          @Override
+          public OutputStream open(String fileName) {
+            project.fileName = fileName;
+            return project.content;
+          }
+        });
+        return project;
+      }
+    };
   }
 
   @Override
@@ -29,6 +29,7 @@ import com.google.appinventor.shared.rpc.project.UserProject;
 import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidProjectNode;
 import com.google.appinventor.shared.util.Base64Util;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
@@ -40,7 +41,9 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.channels.Channels;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -238,12 +241,7 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
   @Override
   public List<UserProject> getProjectInfos() {
     String userId = userInfoProvider.getUserId();
-    List<Long> projectIds = storageIo.getProjects(userId);
-    List<UserProject> projectInfos = Lists.newArrayListWithExpectedSize(projectIds.size());
-    for (Long projectId : projectIds) {
-      projectInfos.add(makeUserProject(userId, projectId));
-    }
-    return projectInfos;
+    return storageIo.getUserProjects(userId);
   }
 
   /**
@@ -402,14 +400,27 @@ public class ProjectServiceImpl extends OdeRemoteServiceServlet implements Proje
    */
   @Override
   public List<FileDescriptorWithContent> load(List<FileDescriptor> files) {
-    List<FileDescriptorWithContent> result = Lists.newArrayList();
     final String userId = userInfoProvider.getUserId();
+    // The files of each project are loaded together, with one batch read.
+    Map<Long, List<String>> fileIdsByProject = Maps.newLinkedHashMap();
+    for (FileDescriptor file : files) {
+      List<String> fileIds = fileIdsByProject.get(file.getProjectId());
+      if (fileIds == null) {
+        fileIds = Lists.newArrayList();
+        fileIdsByProject.put(file.getProjectId(), fileIds);
+      }
+      fileIds.add(file.getFileId());
+    }
+    Map<Long, Iterator<String>> contentsByProject = Maps.newHashMap();
+    for (Map.Entry<Long, List<String>> entry : fileIdsByProject.entrySet()) {
+      long projectId = entry.getKey();
+      contentsByProject.put(projectId, getProjectRpcImpl(userId, projectId)
+          .load(userId, projectId, entry.getValue()).iterator());
+    }
+    List<FileDescriptorWithContent> result = Lists.newArrayList();
     for (FileDescriptor file : files) {
-      long projectId = file.getProjectId();
-      String fileId = file.getFileId();
-      result.add(new FileDescriptorWithContent(
-          projectId, fileId,
-          getProjectRpcImpl(userId, projectId).load(userId, projectId, fileId)));
+      result.add(new FileDescriptorWithContent(file.getProjectId(), file.getFileId(),
+          contentsByProject.get(file.getProjectId()).next()));
     }
     return result;
   }
@@ -6,6 +6,7 @@
 
 package com.google.appinventor.server.project;
 
+import com.google.appinventor.server.CrashReport;
 import com.google.appinventor.server.storage.StorageIo;
 import com.google.appinventor.shared.rpc.BlocksTruncatedException;
 import com.google.appinventor.shared.rpc.RpcResult;
@@ -17,7 +18,10 @@ import com.google.appinventor.shared.rpc.user.User;
 import com.google.appinventor.shared.storage.StorageUtil;
 import com.google.appinventor.shared.util.Base64Util;
 
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.logging.Logger;
 
 /**
  * The base class for classes that provide project services for a specific
@@ -26,6 +30,8 @@ import java.util.List;
  * @author lizlooney@google.com (Liz Looney)
  */
 public abstract class CommonProjectService {
+  private static final Logger LOG = Logger.getLogger(CommonProjectService.class.getName());
+
   protected final String projectType;
   protected final StorageIo storageIo;
 
@@ -160,6 +166,28 @@ public abstract class CommonProjectService {
     return storageIo.downloadFile(userId, projectId, fileId, StorageUtil.DEFAULT_CHARSET);
   }
 
+  /**
+   * Loads the file information associated with several nodes in the project
+   * tree at once, as {@link #load(String, long, String)} does for each of them.
+   *
+   * @param userId the user id
+   * @param projectId  project root node ID
+   * @param fileIds  project nodes whose source should be loaded
+   *
+   * @return  implementation dependent, in the same order as {@code fileIds}
+   */
+  public List<String> load(String userId, long projectId, List<String> fileIds) {
+    List<String> contents = new ArrayList<String>(fileIds.size());
+    for (byte[] content : storageIo.downloadRawFiles(userId, projectId, fileIds)) {
+      try {
+        contents.add(new String(content, StorageUtil.DEFAULT_CHARSET));
+      } catch (UnsupportedEncodingException e) {
+        throw CrashReport.createAndLogError(LOG, null, "Unsupported file content encoding", e);
+      }
+    }
+    return contents;
+  }
+
   /**
    * Loads the file information associated with a node in the project tree. The
    * actual return value depends on the file kind. Source (text) files should
@@ -0,0 +1,470 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2014 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.project.youngandroid;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appinventor.common.utils.StringUtils;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.CharStreams;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A pool of build servers, which chooses the server each build is sent to.
+ *
+ * <p>The pool polls the {@code /vars} page of each server, at most once every
+ * {@link #POLL_INTERVAL_MS}, to learn whether it is up, which version it is, and how many builds
+ * it is running and has queued. The servers that are due are polled all at once, with a short
+ * timeout, so that a server that is down delays a build by no more than that timeout. Builds are
+ * sent to the least loaded server that runs the same version as this App Inventor instance.
+ * Servers that are full are only tried after the others.</p>
+ *
+ * <p>Each server has a circuit breaker: after {@link #FAILURE_THRESHOLD} failures in a row (a
+ * request that couldn't be sent, or a failed poll), the server isn't used for
+ * {@link #CIRCUIT_OPEN_MS}. After that the circuit is half open: a single build or poll is let
+ * through as a trial, and the circuit closes if it succeeds. Until then, the server isn't used
+ * for another {@link #CIRCUIT_OPEN_MS}.</p>
+ *
+ * <p>The server each build was sent to is kept in memcache, so that any App Engine instance can
+ * ask the right server for the build's progress.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ */
+class BuildServerPool {
+
+  // How often each server's status is polled.
+  static final long POLL_INTERVAL_MS = 10 * 1000;
+  // The number of failures in a row after which a server isn't used for a while.
+  static final int FAILURE_THRESHOLD = 3;
+  // How long a server isn't used for after FAILURE_THRESHOLD failures in a row.
+  static final long CIRCUIT_OPEN_MS = 60 * 1000;
+  // The number of builds whose server this instance remembers, in case memcache loses them.
+  private static final int MAX_REMEMBERED_BUILDS = 1000;
+  // How long memcache keeps the server of a build.
+  private static final int BUILD_SERVER_EXPIRATION_SECONDS = 24 * 60 * 60;
+  // Prepended to the build keys in memcache, so that they don't collide with other users of it.
+  private static final String BUILD_SERVER_KEY_PREFIX = "BuildServerPool|";
+  // The connect and read timeouts of a poll.
+  private static final int POLL_TIMEOUT_MS = 1000;
+
+  // The variables on the build server's /vars page, which look like "<b>name</b> value<br>".
+  private static final Pattern VARIABLE_PATTERN = Pattern.compile("<b>([^<]*)</b> ([^<]*)<br>");
+
+  private static final Logger LOG = Logger.getLogger(BuildServerPool.class.getName());
+
+  /**
+   * What the pool knows about one build server.
+   */
+  static final class ServerState {
+    private final String host;
+    private long lastPolledMs = -1;
+    private boolean healthy = true;
+    private String version;
+    private int activeBuilds;
+    // 0 if the server allows any number of builds.
+    private int maxActiveBuilds;
+    private int queuedBuilds;
+    // 0 if the server doesn't queue builds, or queues any number of them.
+    private int maxQueuedBuilds;
+    private int consecutiveFailures;
+    private long circuitOpenUntilMs;
+
+    private ServerState(String host) {
+      this.host = host;
+    }
+
+    String getHost() {
+      return host;
+    }
+
+    synchronized boolean isHealthy() {
+      return healthy;
+    }
+
+    synchronized String getVersion() {
+      return version;
+    }
+
+    /*
+     * Returns whether a build or poll may be sent to the server. When the circuit is half open,
+     * this is true only for the first request, which is the trial; the circuit is open again for
+     * the others until the trial succeeds. A trial that fails, or whose result is never recorded,
+     * leaves the circuit open for CIRCUIT_OPEN_MS.
+     */
+    synchronized boolean allowRequest(long nowMs) {
+      if (consecutiveFailures < FAILURE_THRESHOLD) {
+        return true;
+      }
+      if (nowMs < circuitOpenUntilMs) {
+        return false;
+      }
+      circuitOpenUntilMs = nowMs + CIRCUIT_OPEN_MS;
+      return true;
+    }
+
+    synchronized boolean isFull() {
+      return maxActiveBuilds > 0 && activeBuilds >= maxActiveBuilds
+          && (maxQueuedBuilds == 0 || queuedBuilds >= maxQueuedBuilds);
+    }
+
+    /*
+     * Returns the builds the server has per build it can run at once. A server that allows any
+     * number of builds is treated as if it could run one more than it is running.
+     */
+    synchronized double getLoad() {
+      int capacity = (maxActiveBuilds > 0) ? maxActiveBuilds : activeBuilds + 1;
+      return (double) (activeBuilds + queuedBuilds) / capacity;
+    }
+
+    private synchronized void recordFailure(long nowMs) {
+      consecutiveFailures++;
+      if (consecutiveFailures >= FAILURE_THRESHOLD) {
+        circuitOpenUntilMs = nowMs + CIRCUIT_OPEN_MS;
+      }
+    }
+
+    private synchronized void recordSuccess() {
+      consecutiveFailures = 0;
+      healthy = true;
+    }
+
+    private synchronized void recordBuild() {
+      recordSuccess();
+      // Count the build until the next poll, so that builds sent in between are spread out.
+      queuedBuilds++;
+    }
+
+    private synchronized void recordFull() {
+      if (maxActiveBuilds == 0) {
+        maxActiveBuilds = Math.max(activeBuilds, 1);
+      }
+      activeBuilds = Math.max(activeBuilds, maxActiveBuilds);
+      queuedBuilds = Math.max(queuedBuilds, maxQueuedBuilds);
+    }
+
+    private synchronized void recordIncompatible(String expectedVersion) {
+      // The version is unknown until the next poll; assume it isn't the one we need.
+      version = "not " + expectedVersion;
+    }
+
+    private synchronized void update(Map<String, String> variables) {
+      healthy = true;
+      version = variables.get("buildserver-version");
+      activeBuilds = parseInt(variables.get("active-build-tasks"));
+      maxActiveBuilds = parseInt(variables.get("maximum-simultaneous-build-tasks-allowed"));
+      queuedBuilds = parseInt(variables.get("queued-builds"));
+      maxQueuedBuilds = parseInt(variables.get("maximum-queued-builds-allowed"));
+    }
+
+    private static int parseInt(String value) {
+      try {
+        return (value == null) ? 0 : Integer.parseInt(value.trim());
+      } catch (NumberFormatException e) {
+        // For example, "unlimited".
+        return 0;
+      }
+    }
+  }
+
+  private final List<ServerState> servers;
+  private final MemcacheService memcache;
+
+  // The server that each recent build sent by this instance was sent to, by build key.
+  private final Map<String, String> buildServers =
+      new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+          return size() > MAX_REMEMBERED_BUILDS;
+        }
+      };
+
+  /**
+   * Creates a pool of the given build servers.
+   *
+   * @param hosts  a comma separated list of host[:port]
+   * @param memcache  where the server of each build is kept
+   */
+  BuildServerPool(String hosts, MemcacheService memcache) {
+    this.memcache = memcache;
+    List<ServerState> servers = Lists.newArrayList();
+    for (String host : hosts.split(",")) {
+      host = host.trim();
+      if (!host.isEmpty()) {
+        servers.add(new ServerState(host));
+      }
+    }
+    this.servers = ImmutableList.copyOf(servers);
+  }
+
+  /**
+   * Returns the servers, as host[:port], that a build should be tried on, in order. Servers whose
+   * circuit is open, or that run a different version, are left out. The server that the previous
+   * build of the same project was sent to comes first, if it is up, so that it can join or cancel
+   * that build.
+   *
+   * @param version  the version the server must run, or {@code null} if any will do
+   * @param buildKey  identifies the build, as for {@link #recordBuild}
+   */
+  List<String> getServersForBuild(String version, String buildKey) {
+    long nowMs = currentTimeMillis();
+    List<ServerState> staleServers = Lists.newArrayList();
+    for (ServerState server : servers) {
+      // A server whose circuit is half open is polled as the trial.
+      if (isStale(server, nowMs) && server.allowRequest(nowMs)) {
+        staleServers.add(server);
+      }
+    }
+    poll(staleServers, nowMs);
+    List<ServerState> candidates = Lists.newArrayList();
+    for (ServerState server : servers) {
+      String serverVersion = server.getVersion();
+      if ((version != null && serverVersion != null && !version.equals(serverVersion))
+          || !server.allowRequest(nowMs)) {
+        continue;
+      }
+      candidates.add(server);
+    }
+    Collections.sort(candidates, new Comparator<ServerState>() {
+      @Override
+      public int compare(ServerState a, ServerState b) {
+        int tierA = getTier(a);
+        int tierB = getTier(b);
+        if (tierA != tierB) {
+          return tierA - tierB;
+        }
+        return Double.compare(a.getLoad(), b.getLoad());
+      }
+    });
+    List<String> hosts = Lists.newArrayList();
+    for (ServerState server : candidates) {
+      hosts.add(server.getHost());
+    }
+    String previousHost = getRememberedServerOfBuild(buildKey);
+    ServerState previousServer = getServer(previousHost);
+    if (previousServer != null && previousServer.isHealthy() && hosts.remove(previousHost)) {
+      hosts.add(0, previousHost);
+    }
+    return hosts;
+  }
+
+  // Healthy servers with room come first, then full ones, then ones whose last poll failed.
+  private static int getTier(ServerState server) {
+    if (!server.isHealthy()) {
+      return 2;
+    }
+    return server.isFull() ? 1 : 0;
+  }
+
+  /**
+   * Records that a build was accepted by the given server.
+   *
+   * @param host  the server
+   * @param buildKey  identifies the build, for {@link #getServerOfBuild}
+   */
+  void recordBuild(String host, String buildKey) {
+    ServerState server = getServer(host);
+    if (server != null) {
+      server.recordBuild();
+    }
+    synchronized (buildServers) {
+      buildServers.put(buildKey, host);
+    }
+    memcache.put(BUILD_SERVER_KEY_PREFIX + buildKey, host,
+        Expiration.byDeltaSeconds(BUILD_SERVER_EXPIRATION_SECONDS));
+  }
+
+  /**
+   * Records that the given server couldn't be reached or failed.
+   */
+  void recordFailure(String host) {
+    ServerState server = getServer(host);
+    if (server != null) {
+      server.recordFailure(currentTimeMillis());
+    }
+  }
+
+  /**
+   * Records that the given server turned a build away because it is too busy.
+   */
+  void recordFull(String host) {
+    ServerState server = getServer(host);
+    if (server != null) {
+      server.recordFull();
+    }
+  }
+
+  /**
+   * Records that the given server turned a build away because it runs a different version.
+   */
+  void recordIncompatible(String host, String version) {
+    ServerState server = getServer(host);
+    if (server != null) {
+      server.recordIncompatible(version);
+    }
+  }
+
+  /**
+   * Returns the server that the given build was sent to, by this or any other App Engine
+   * instance, or the first server if it isn't known.
+   */
+  String getServerOfBuild(String buildKey) {
+    String host = getRememberedServerOfBuild(buildKey);
+    if (host != null) {
+      return host;
+    }
+    return servers.isEmpty() ? null : servers.get(0).getHost();
+  }
+
+  /*
+   * Returns the server that the given build was sent to, or null if it isn't known. Memcache has
+   * the latest build of a project sent by any instance. This instance's own builds are a fallback
+   * in case memcache is unavailable or has evicted the entry.
+   */
+  private String getRememberedServerOfBuild(String buildKey) {
+    String host = (String) memcache.get(BUILD_SERVER_KEY_PREFIX + buildKey);
+    if (host != null) {
+      return host;
+    }
+    synchronized (buildServers) {
+      return buildServers.get(buildKey);
+    }
+  }
+
+  private ServerState getServer(String host) {
+    for (ServerState server : servers) {
+      if (server.getHost().equals(host)) {
+        return server;
+      }
+    }
+    return null;
+  }
+
+  /*
+   * Returns whether the server is due to be polled, in which case the caller must poll it. A
+   * server is only due for one caller at a time.
+   */
+  private static boolean isStale(ServerState server, long nowMs) {
+    synchronized (server) {
+      if (server.lastPolledMs >= 0 && nowMs - server.lastPolledMs < POLL_INTERVAL_MS) {
+        return false;
+      }
+      server.lastPolledMs = nowMs;
+      return true;
+    }
+  }
+
+  /*
+   * Polls the given servers in parallel, and returns when all of them have answered or timed out.
+   */
+  private void poll(List<ServerState> staleServers, final long nowMs) {
+    if (staleServers.size() == 1) {
+      poll(staleServers.get(0), nowMs);
+      return;
+    }
+    if (staleServers.isEmpty()) {
+      return;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(staleServers.size(),
+        getPollThreadFactory());
+    try {
+      List<Future<?>> polls = Lists.newArrayList();
+      for (final ServerState server : staleServers) {
+        polls.add(executor.submit(new Runnable() {
+          @Override
+          public void run() {
+            poll(server, nowMs);
+          }
+        }));
+      }
+      for (Future<?> poll : polls) {
+        poll.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private void poll(ServerState server, long nowMs) {
+    try {
+      // The build server answers /vars only if it is up, so there's no need to ask /health too.
+      URL varsUrl = new URL("http://" + server.getHost() + "/buildserver/vars");
+      Map<String, String> variables = parseVariables(fetch(varsUrl));
+      server.update(variables);
+      server.recordSuccess();
+    } catch (IOException e) {
+      LOG.warning("Unable to poll build server " + server.getHost() + ": " + e.getMessage());
+      synchronized (server) {
+        server.healthy = false;
+      }
+      server.recordFailure(nowMs);
+    }
+  }
+
+  static Map<String, String> parseVariables(String varsPage) {
+    Map<String, String> variables = new LinkedHashMap<String, String>();
+    Matcher matcher = VARIABLE_PATTERN.matcher(varsPage);
+    while (matcher.find()) {
+      // The build server escapes the names and values for HTML.
+      variables.put(StringUtils.unescape(matcher.group(1)), StringUtils.unescape(matcher.group(2)));
+    }
+    return variables;
+  }
+
+  /**
+   * Returns the content of the given page of a build server.
+   */
+  String fetch(URL url) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setConnectTimeout(POLL_TIMEOUT_MS);
+    connection.setReadTimeout(POLL_TIMEOUT_MS);
+    int responseCode = connection.getResponseCode();
+    if (responseCode != HttpURLConnection.HTTP_OK) {
+      throw new IOException(url + " responded with response code " + responseCode);
+    }
+    Reader reader = new InputStreamReader(connection.getInputStream(), "UTF-8");
+    try {
+      return CharStreams.toString(reader);
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Returns the factory of the threads that poll the servers.
+   */
+  ThreadFactory getPollThreadFactory() {
+    return ThreadManager.currentRequestThreadFactory();
+  }
+
+  long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+}
@@ -6,6 +6,7 @@
 
 package com.google.appinventor.server.project.youngandroid;
 
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.google.appengine.api.utils.SystemProperty;
 import com.google.apphosting.api.ApiProxy;
 import com.google.appinventor.common.utils.StringUtils;
@@ -29,7 +30,6 @@ import com.google.appinventor.shared.rpc.project.Project;
 import com.google.appinventor.shared.rpc.project.ProjectNode;
 import com.google.appinventor.shared.rpc.project.ProjectRootNode;
 import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
-import com.google.appinventor.shared.rpc.project.RawFile;
 import com.google.appinventor.shared.rpc.project.TextFile;
 import com.google.appinventor.shared.rpc.project.youngandroid.NewYoungAndroidProjectParameters;
 import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidAssetNode;
@@ -47,18 +47,21 @@ import com.google.appinventor.shared.settings.SettingsConstants;
 import com.google.appinventor.shared.storage.StorageUtil;
 import com.google.appinventor.shared.youngandroid.YoungAndroidSourceAnalyzer;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
 import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
 import com.google.common.io.CharStreams;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
@@ -69,6 +72,7 @@ import java.text.DecimalFormat;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 /**
@@ -111,10 +115,16 @@ public final class YoungAndroidProjectService extends CommonProjectService {
 
   public static final String PROJECT_KEYSTORE_LOCATION = "android.keystore";
 
-  // host[:port] to use for connecting to the build server
+  // Comma separated list of host[:port] to use for connecting to the build servers
   private static final Flag<String> buildServerHost =
       Flag.createFlag("build.server.host", "localhost:9990");
 
+  // The build servers, created from buildServerHost when first needed.
+  private static BuildServerPool buildServerPool;
+
+  // The size of the chunks the project source zip is sent to a build server in.
+  private static final int BUILD_REQUEST_CHUNK_SIZE = 64 * 1024;
+
   public YoungAndroidProjectService(StorageIo storageIo) {
     super(YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE, storageIo);
   }
@@ -313,6 +323,9 @@ public final class YoungAndroidProjectService extends CommonProjectService {
     newProject.setProjectHistory(oldProjectHistory);
 
     // Get the old project's source files and add them to new project, modifying where necessary.
+    // Files whose contents don't change are copied by the storage layer once the new project
+    // exists, which doesn't copy the contents of assets.
+    Map<String, String> copiedFileNames = Maps.newHashMap();
     for (String oldSourceFileName : storageIo.getProjectSourceFiles(userId, oldProjectId)) {
       String newSourceFileName;
 
@@ -340,15 +353,22 @@ public final class YoungAndroidProjectService extends CommonProjectService {
         newProject.addTextFile(new TextFile(newSourceFileName, newContents));
       } else {
         // If we get here, we know that the contents of the file can just be copied from the old
-        // project. Since it might be a binary file, we copy it as a raw file (that works for both
-        // text and binary files).
-        byte[] contents = storageIo.downloadRawFile(userId, oldProjectId, oldSourceFileName);
-        newProject.addRawFile(new RawFile(newSourceFileName, contents));
+        // project.
+        copiedFileNames.put(oldSourceFileName, newSourceFileName);
       }
     }
 
     // Create the new project and return the new project's id.
-    return storageIo.createProject(userId, newProject, getProjectSettings(icon, vcode, vname, useslocation));
+    long newProjectId = storageIo.createProject(userId, newProject,
+        getProjectSettings(icon, vcode, vname, useslocation));
+    try {
+      storageIo.copySourceFiles(userId, oldProjectId, newProjectId, copiedFileNames);
+    } catch (RuntimeException e) {
+      // Don't leave a partial copy behind.
+      storageIo.deleteProject(userId, newProjectId);
+      throw e;
+    }
+    return newProjectId;
   }
 
   @Override
@@ -518,61 +538,64 @@ public final class YoungAndroidProjectService extends CommonProjectService {
       storageIo.deleteFile(userId, projectId, buildOutputFile);
     }
     URL buildServerUrl = null;
-    ProjectSourceZip zipFile = null;
+    // The length of the project source zip, once it has been sent, for the error messages.
+    AtomicLong zipLength = new AtomicLong(0);
     try {
-      buildServerUrl = new URL(getBuildServerUrlStr(
-          user.getUserEmail(),
-          userId,
-          projectId,
-          outputFileDir));
-      HttpURLConnection connection = (HttpURLConnection) buildServerUrl.openConnection();
-      connection.setDoOutput(true);
-      connection.setRequestMethod("POST");
-
-      BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(connection.getOutputStream());
-      FileExporter fileExporter = new FileExporterImpl();
-      zipFile = fileExporter.exportProjectSourceZip(userId, projectId, false,
-          /* includeAndroidKeystore */ true,
-          projectName + ".aia");
-      bufferedOutputStream.write(zipFile.getContent());
-      bufferedOutputStream.flush();
-      bufferedOutputStream.close();
-
-      int responseCode = 0;
-      responseCode = connection.getResponseCode();
-      if (responseCode != HttpURLConnection.HTTP_OK) {
-        // Put the HTTP response code into the RpcResult so the client code in BuildCommand.java
-        // can provide an appropriate error message to the user.
-        // NOTE(lizlooney) - There is some weird bug/problem with HttpURLConnection. When the
-        // responseCode is 503, connection.getResponseMessage() returns "OK", but it should return
-        // "Service Unavailable". If I make the request with curl and look at the headers, they
-        // have the expected error message.
-        // For now, the moral of the story is: don't use connection.getResponseMessage().
-        String error = "Build server responded with response code " + responseCode + ".";
+      // Try the build servers, least loaded first, until one accepts the build. The build is only
+      // sent to the next server if it couldn't be sent to this one, or this one turned it away.
+      BuildServerPool pool = getBuildServerPool();
+      String version = sendGitVersion.get() ? GitBuildId.getVersion() : null;
+      String buildKey = getBuildKey(userId, projectId, outputFileDir);
+      List<String> hosts = pool.getServersForBuild(version, buildKey);
+      if (hosts.isEmpty()) {
+        return new RpcResult(HttpURLConnection.HTTP_UNAVAILABLE, "",
+            StringUtils.escape("No build server is available."));
+      }
+      RpcResult rejection = null;
+      IOException failure = null;
+      for (String host : hosts) {
+        buildServerUrl = new URL(getBuildServerUrlStr(host,
+            user.getUserEmail(),
+            userId,
+            projectId,
+            outputFileDir));
         try {
-          String content = readContent(connection.getInputStream());
-          if (content != null && !content.isEmpty()) {
-            error += "\n" + content;
-          }
+          rejection = sendBuildRequest(buildServerUrl, userId, projectId, projectName + ".aia",
+              zipLength);
+        } catch (RequestNotSentException e) {
+          LOG.warning("Unable to send build to " + host + ": " + e.getMessage());
+          pool.recordFailure(host);
+          failure = e;
+          continue;
         } catch (IOException e) {
-          // No content. That's ok.
+          // The server has the zip and may be building it, so sending it to another server could
+          // build the project twice. Its progress is asked of this server.
+          LOG.warning("No response to build sent to " + host + ": " + e.getMessage());
+          pool.recordFailure(host);
+          pool.recordBuild(host, buildKey);
+          throw e;
         }
-        try {
-          String errorContent = readContent(connection.getErrorStream());
-          if (errorContent != null && !errorContent.isEmpty()) {
-            error += "\n" + errorContent;
-          }
-        } catch (IOException e) {
-          // No error content. That's ok.
+        if (rejection == null) {
+          pool.recordBuild(host, buildKey);
+          return new RpcResult(true, "Building " + projectName, "");
         }
-        if (responseCode == HttpURLConnection.HTTP_CONFLICT) {
-          // The build server is not compatible with this App Inventor instance. Log this as severe
-          // so the owner of the app engine instance will know about it.
-          LOG.severe(error);
+        failure = null;
+        int responseCode = rejection.getResult();
+        if (responseCode == HttpURLConnection.HTTP_UNAVAILABLE) {
+          pool.recordFull(host);
+        } else if (responseCode == HttpURLConnection.HTTP_CONFLICT) {
+          pool.recordIncompatible(host, GitBuildId.getVersion());
+        } else if (responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+          pool.recordFailure(host);
+        } else {
+          // The request itself was bad; another server would turn it away too.
+          break;
         }
-
-        return new RpcResult(responseCode, "", StringUtils.escape(error));
       }
+      if (failure != null) {
+        throw failure;
+      }
+      return rejection;
     } catch (MalformedURLException e) {
       CrashReport.createAndLogError(LOG, null,
           buildErrorMsg("MalformedURLException", buildServerUrl, userId, projectId), e);
@@ -580,7 +603,7 @@ public final class YoungAndroidProjectService extends CommonProjectService {
     } catch (IOException e) {
       // As of App Engine 1.9.0 we get these when UrlFetch is asked to send too much data
       Throwable wrappedException = e;
-      int zipFileLength = zipFile.getContent().length;
+      long zipFileLength = zipLength.get();
       if (zipFileLength >= (5 * 1024 * 1024) /* 5 MB */) {
         String lengthMbs = format((zipFileLength * 1.0)/(1024*1024));
         wrappedException = new IllegalArgumentException(
@@ -598,8 +621,8 @@ public final class YoungAndroidProjectService extends CommonProjectService {
       // In particular, we often see RequestTooLargeException (if the zip is too
       // big) and ApiProxyException. There may be others.
       Throwable wrappedException = e;
-      if (e instanceof ApiProxy.RequestTooLargeException && zipFile != null) {
-        int zipFileLength = zipFile.getContent().length;
+      if (e instanceof ApiProxy.RequestTooLargeException) {
+        long zipFileLength = zipLength.get();
         if (zipFileLength >= (5 * 1024 * 1024) /* 5 MB */) {
           String lengthMbs = format((zipFileLength * 1.0)/(1024*1024));
           wrappedException = new IllegalArgumentException(
@@ -614,27 +637,136 @@ public final class YoungAndroidProjectService extends CommonProjectService {
           buildErrorMsg("RuntimeException", buildServerUrl, userId, projectId), wrappedException);
       return new RpcResult(false, "", wrappedException.getMessage());
     }
-    return new RpcResult(true, "Building " + projectName, "");
+  }
+
+  /**
+   * Thrown when a build request couldn't be sent to a build server, which therefore never saw it.
+   */
+  private static class RequestNotSentException extends IOException {
+    RequestNotSentException(IOException cause) {
+      super(cause.getMessage(), cause);
+    }
+  }
+
+  /*
+   * Posts the project source zip to the build server, and sets zipLength to its length. Returns
+   * null if the build was accepted, or the RpcResult to give the client if it was turned away.
+   * Throws RequestNotSentException if the zip couldn't be sent, and any other IOException if the
+   * server's response couldn't be read.
+   *
+   * The zip is written to the connection in chunks as the project's files are read from storage,
+   * rather than being built in memory first.
+   */
+  private RpcResult sendBuildRequest(URL buildServerUrl, String userId, long projectId,
+      String zipName, final AtomicLong zipLength) throws IOException {
+    final HttpURLConnection connection = (HttpURLConnection) buildServerUrl.openConnection();
+    connection.setDoOutput(true);
+    connection.setRequestMethod("POST");
+    connection.setChunkedStreamingMode(BUILD_REQUEST_CHUNK_SIZE);
+    zipLength.set(0);
+    try {
+      new FileExporterImpl().streamProjectSourceZip(userId, projectId, false,
+          /* includeAndroidKeystore */ true, zipName, new FileExporter.Destination() {
+            @Override
+            public OutputStream open(String fileName) throws IOException {
+              return new FilterOutputStream(connection.getOutputStream()) {
+                @Override
+                public void write(int b) throws IOException {
+                  out.write(b);
+                  zipLength.incrementAndGet();
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                  out.write(b, off, len);
+                  zipLength.addAndGet(len);
+                }
+              };
+            }
+          });
+    } catch (IOException e) {
+      // The server has at most part of the zip, which it won't build.
+      connection.disconnect();
+      throw new RequestNotSentException(e);
+    }
+
+    int responseCode = connection.getResponseCode();
+    if (responseCode == HttpURLConnection.HTTP_OK) {
+      return null;
+    }
+    // Put the HTTP response code into the RpcResult so the client code in BuildCommand.java
+    // can provide an appropriate error message to the user.
+    // NOTE(lizlooney) - There is some weird bug/problem with HttpURLConnection. When the
+    // responseCode is 503, connection.getResponseMessage() returns "OK", but it should return
+    // "Service Unavailable". If I make the request with curl and look at the headers, they
+    // have the expected error message.
+    // For now, the moral of the story is: don't use connection.getResponseMessage().
+    String error = "Build server responded with response code " + responseCode + ".";
+    try {
+      String responseContent = readContent(connection.getInputStream());
+      if (responseContent != null && !responseContent.isEmpty()) {
+        error += "\n" + responseContent;
+      }
+    } catch (IOException e) {
+      // No content. That's ok.
+    }
+    try {
+      String errorContent = readContent(connection.getErrorStream());
+      if (errorContent != null && !errorContent.isEmpty()) {
+        error += "\n" + errorContent;
+      }
+    } catch (IOException e) {
+      // No error content. That's ok.
+    }
+    if (responseCode == HttpURLConnection.HTTP_CONFLICT) {
+      // The build server is not compatible with this App Inventor instance. Log this as severe
+      // so the owner of the app engine instance will know about it.
+      LOG.severe(error);
+    }
+    return new RpcResult(responseCode, "", StringUtils.escape(error));
+  }
+
+  private static synchronized BuildServerPool getBuildServerPool() {
+    if (buildServerPool == null) {
+      buildServerPool = new BuildServerPool(buildServerHost.get(),
+          MemcacheServiceFactory.getMemcacheService());
+    }
+    return buildServerPool;
+  }
+
+  private static String getBuildKey(String userId, long projectId, String fileName) {
+    return userId + "/" + projectId + "/" + fileName;
+  }
+
+  /*
+   * Returns the key that the build server uses to find earlier builds of the same project and
+   * target, so that a repeated build joins the one in progress and a newer one replaces it. It is
+   * a hash, so that the build server learns nothing about the user.
+   */
+  private static String getProjectKey(String userId, long projectId, String fileName) {
+    return Hashing.sha1().hashString(getBuildKey(userId, projectId, fileName), Charsets.UTF_8)
+        .toString();
   }
 
   private String buildErrorMsg(String exceptionName, URL buildURL, String userId, long projectId) {
     return "Request to build failed with " + exceptionName + ", user=" + userId
         + ", project=" + projectId + ", build URL is " + buildURL
-        + " [" + buildURL.toString().length() + "]";
+        + ((buildURL == null) ? "" : " [" + buildURL.toString().length() + "]");
   }
 
   // Note that this is a function rather than just a constant because we assume it will get
   // a little more complicated when we want to get the URL from an App Engine config file or
   // command line argument.
-  private String getBuildServerUrlStr(String userName, String userId,
+  private String getBuildServerUrlStr(String host, String userName, String userId,
                                       long projectId, String fileName)
       throws UnsupportedEncodingException, EncryptionException {
-    return "http://" + buildServerHost.get() + "/buildserver/build-all-from-zip-async"
+    return "http://" + host + "/buildserver/build-all-from-zip-async"
            + "?uname=" + URLEncoder.encode(userName, "UTF-8")
            + (sendGitVersion.get()
                ? "&gitBuildVersion="
                  + URLEncoder.encode(GitBuildId.getVersion(), "UTF-8")
                : "")
+           + "&projectKey=" + getProjectKey(userId, projectId, fileName)
            + "&callback="
            + URLEncoder.encode("http://" + getCurrentHost() + ServerLayout.ODE_BASEURL_NOAUTH
                                + ServerLayout.RECEIVE_BUILD_SERVLET + "/"
@@ -722,7 +854,10 @@ public final class YoungAndroidProjectService extends CommonProjectService {
       URL buildServerUrl = null;
       ProjectSourceZip zipFile = null;
 
-      buildServerUrl = new URL(getBuildServerUrlStr(user.getUserEmail(),
+      // Ask the build server that the build was sent to.
+      String host = getBuildServerPool().getServerOfBuild(
+          getBuildKey(userId, projectId, outputFileDir));
+      buildServerUrl = new URL(getBuildServerUrlStr(host, user.getUserEmail(),
         userId, projectId, outputFileDir));
       HttpURLConnection connection = (HttpURLConnection) buildServerUrl.openConnection();
       connection.setDoOutput(true);
@@ -0,0 +1,250 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2014 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.storage;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * A cache of user and project metadata, in front of the datastore.
+ *
+ * <p>Entries are kept in two tiers: a small least recently used map in this
+ * App Engine instance, and memcache. Each user has a version counter in
+ * memcache, and each entry is stored under the version of its user. Every
+ * change to a user or to their projects bumps the version, which makes all
+ * the entries stored under the old one unreachable on every instance at once.
+ * A lookup therefore costs one memcache round trip to read the version, plus
+ * one more if the entry isn't in this instance.</p>
+ *
+ * <p>Entries also expire after {@link #EXPIRATION_SECONDS}, which bounds how
+ * stale an entry can be if a version couldn't be bumped because memcache
+ * was unavailable.</p>
+ *
+ * <p>Cached values are shared between the callers on this instance, so they
+ * must not be changed once they are put in the cache.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ */
+final class MetadataCache {
+
+  // The version returned by getVersion() when memcache is unavailable. Nothing is cached under it.
+  static final long NO_VERSION = -1;
+
+  // How long an entry is kept, in either tier.
+  static final int EXPIRATION_SECONDS = 60;
+
+  // How often the hit and miss counts are logged, in lookups.
+  private static final long STATS_LOG_INTERVAL = 10000;
+
+  // Prepended to every memcache key, so that they don't collide with other users of memcache.
+  // The version number changes whenever the format of the cached values does.
+  private static final String KEY_PREFIX = "metadata-cache-v1:";
+
+  private static final Logger LOG = Logger.getLogger(MetadataCache.class.getName());
+
+  /**
+   * An entry of the local tier.
+   */
+  private static final class LocalEntry {
+    private final Object value;
+    private final long expiresAtMs;
+
+    private LocalEntry(Object value, long expiresAtMs) {
+      this.value = value;
+      this.expiresAtMs = expiresAtMs;
+    }
+  }
+
+  private final MemcacheService memcache;
+  private final Map<String, LocalEntry> localEntries;
+
+  private final AtomicLong localHits = new AtomicLong();
+  private final AtomicLong memcacheHits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /**
+   * Creates a cache.
+   *
+   * @param memcache  the memcache service of the second tier
+   * @param maxLocalEntries  the number of entries kept in this instance
+   */
+  MetadataCache(MemcacheService memcache, final int maxLocalEntries) {
+    this.memcache = memcache;
+    localEntries = new LinkedHashMap<String, LocalEntry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, LocalEntry> eldest) {
+        return size() > maxLocalEntries;
+      }
+    };
+  }
+
+  /**
+   * Returns the current version of the given user's entries, or
+   * {@link #NO_VERSION} if memcache is unavailable. The version must be read
+   * before the datastore, so that an entry built from data that changed in
+   * between is stored under a version that has already been bumped.
+   */
+  long getVersion(String userId) {
+    // A counter that memcache evicted starts again from the current time, scaled so that it is
+    // above every version the user had before unless they made over 1000 changes a millisecond.
+    Long version = memcache.increment(versionKey(userId), 0, currentTimeMillis() * 1000);
+    return (version == null) ? NO_VERSION : version;
+  }
+
+  /**
+   * Makes every entry of the given user stale. It is called after each change
+   * to the user or to their projects has been committed.
+   */
+  void invalidate(String userId) {
+    if (memcache.increment(versionKey(userId), 1, currentTimeMillis() * 1000) == null) {
+      LOG.warning("Unable to invalidate the cached metadata of user " + userId);
+    }
+  }
+
+  /**
+   * Returns the given entry of a user, or {@code null} if it isn't cached.
+   *
+   * @param userId  the user
+   * @param version  the version of the user's entries, from {@link #getVersion}
+   * @param name  the name of the entry
+   * @param type  the type of the value of the entry
+   */
+  <T extends Serializable> T get(String userId, long version, String name, Class<T> type) {
+    Map<String, T> values = getAll(userId, version, Lists.newArrayList(name), type);
+    return values.get(name);
+  }
+
+  /**
+   * Returns the given entries of a user that are cached, by name. Those that
+   * aren't in this instance are read from memcache in one round trip.
+   *
+   * @param userId  the user
+   * @param version  the version of the user's entries, from {@link #getVersion}
+   * @param names  the names of the entries
+   * @param type  the type of the values of the entries
+   */
+  <T extends Serializable> Map<String, T> getAll(String userId, long version,
+      Collection<String> names, Class<T> type) {
+    Map<String, T> values = Maps.newHashMap();
+    if (version == NO_VERSION) {
+      recordLookups(0, 0, names.size());
+      return values;
+    }
+    long nowMs = currentTimeMillis();
+    // The names of the entries to read from memcache, by key.
+    Map<String, String> remoteNames = Maps.newHashMap();
+    synchronized (localEntries) {
+      for (String name : names) {
+        String key = entryKey(userId, version, name);
+        LocalEntry entry = localEntries.get(key);
+        if (entry != null && nowMs < entry.expiresAtMs) {
+          values.put(name, type.cast(entry.value));
+        } else {
+          remoteNames.put(key, name);
+        }
+      }
+    }
+    int localHitCount = values.size();
+    if (!remoteNames.isEmpty()) {
+      Map<String, Object> remoteValues = memcache.getAll(remoteNames.keySet());
+      synchronized (localEntries) {
+        for (Map.Entry<String, Object> remoteValue : remoteValues.entrySet()) {
+          String key = remoteValue.getKey();
+          localEntries.put(key, new LocalEntry(remoteValue.getValue(),
+              nowMs + EXPIRATION_SECONDS * 1000L));
+          values.put(remoteNames.get(key), type.cast(remoteValue.getValue()));
+        }
+      }
+    }
+    recordLookups(localHitCount, values.size() - localHitCount, names.size() - values.size());
+    return values;
+  }
+
+  /**
+   * Caches an entry of a user.
+   *
+   * @param userId  the user
+   * @param version  the version of the user's entries that was read before
+   *        the value, from {@link #getVersion}
+   * @param name  the name of the entry
+   * @param value  the value of the entry, which must not be changed afterwards
+   */
+  void put(String userId, long version, String name, Serializable value) {
+    Map<String, Serializable> values = Maps.newHashMap();
+    values.put(name, value);
+    putAll(userId, version, values);
+  }
+
+  /**
+   * Caches entries of a user, writing them to memcache in one round trip.
+   *
+   * @param userId  the user
+   * @param version  the version of the user's entries that was read before
+   *        the values, from {@link #getVersion}
+   * @param values  the values of the entries, by name, which must not be
+   *        changed afterwards
+   */
+  void putAll(String userId, long version, Map<String, ? extends Serializable> values) {
+    if (version == NO_VERSION || values.isEmpty()) {
+      return;
+    }
+    long expiresAtMs = currentTimeMillis() + EXPIRATION_SECONDS * 1000L;
+    Map<String, Serializable> remoteValues = Maps.newHashMap();
+    synchronized (localEntries) {
+      for (Map.Entry<String, ? extends Serializable> value : values.entrySet()) {
+        String key = entryKey(userId, version, value.getKey());
+        localEntries.put(key, new LocalEntry(value.getValue(), expiresAtMs));
+        remoteValues.put(key, value.getValue());
+      }
+    }
+    memcache.putAll(remoteValues, Expiration.byDeltaSeconds(EXPIRATION_SECONDS));
+  }
+
+  long getLocalHits() {
+    return localHits.get();
+  }
+
+  long getMemcacheHits() {
+    return memcacheHits.get();
+  }
+
+  long getMisses() {
+    return misses.get();
+  }
+
+  private void recordLookups(int localHitCount, int memcacheHitCount, int missCount) {
+    long before = localHits.get() + memcacheHits.get() + misses.get();
+    localHits.addAndGet(localHitCount);
+    memcacheHits.addAndGet(memcacheHitCount);
+    misses.addAndGet(missCount);
+    long after = before + localHitCount + memcacheHitCount + missCount;
+    if (before / STATS_LOG_INTERVAL != after / STATS_LOG_INTERVAL) {
+      LOG.info("Metadata cache: " + localHits.get() + " local hits, " + memcacheHits.get()
+          + " memcache hits, " + misses.get() + " misses");
+    }
+  }
+
+  private static String versionKey(String userId) {
+    return KEY_PREFIX + "version|" + userId;
+  }
+
+  private static String entryKey(String userId, long version, String name) {
+    return KEY_PREFIX + "entry|" + userId + "|" + version + "|" + name;
+  }
+
+  long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+}
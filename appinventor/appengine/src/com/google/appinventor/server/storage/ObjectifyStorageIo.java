@@ -6,6 +6,7 @@
 
 package com.google.appinventor.server.storage;
 
+import com.google.appengine.api.ThreadManager;
 import com.google.appengine.api.blobstore.BlobKey;
 import com.google.appengine.api.blobstore.BlobstoreInputStream;
 import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
@@ -16,10 +17,10 @@ import com.google.appengine.api.files.FileWriteChannel;
 import com.google.appengine.api.memcache.ErrorHandlers;
 import com.google.appengine.api.memcache.MemcacheService;
 import com.google.appengine.api.memcache.MemcacheServiceFactory;
-import com.google.appengine.api.memcache.Expiration;
 import com.google.appinventor.server.CrashReport;
 import com.google.appinventor.server.FileExporter;
 import com.google.appinventor.server.flags.Flag;
+import com.google.appinventor.server.storage.StoredData.ContentData;
 import com.google.appinventor.server.storage.StoredData.CorruptionRecord;
 import com.google.appinventor.server.storage.StoredData.FeedbackData;
 import com.google.appinventor.server.storage.StoredData.FileData;
@@ -30,6 +31,7 @@ import com.google.appinventor.server.storage.StoredData.UserData;
 import com.google.appinventor.server.storage.StoredData.UserFileData;
 import com.google.appinventor.server.storage.StoredData.UserProjectData;
 import com.google.appinventor.server.storage.StoredData.RendezvousData;
+import com.google.appinventor.server.storage.StoredData.SharedContentData;
 import com.google.appinventor.server.storage.StoredData.WhiteListData;
 import com.google.appinventor.shared.rpc.BlocksTruncatedException;
 import com.google.appinventor.shared.rpc.Motd;
@@ -45,7 +47,11 @@ import com.google.appinventor.shared.storage.StorageUtil;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
+import com.google.common.hash.Hashing;
 import com.google.common.io.ByteStreams;
+import com.google.common.io.OutputSupplier;
+import com.google.common.util.concurrent.Futures;
 
 import com.googlecode.objectify.Key;
 import com.googlecode.objectify.Objectify;
@@ -67,13 +73,25 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.nio.channels.Channels;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.ConcurrentModificationException;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
@@ -103,6 +121,17 @@ public class ObjectifyStorageIo implements  StorageIo {
 
   private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService();
 
+  // The number of user and project metadata entries cached in this instance, in front of memcache.
+  private static final int MAX_LOCAL_METADATA_ENTRIES = 10000;
+
+  // The names of the entries of the metadata cache.
+  private static final String USER_CACHE_ENTRY = "user";
+  private static final String PROJECTS_CACHE_ENTRY = "projects";
+  private static final String PROJECT_CACHE_ENTRY_PREFIX = "project|";
+
+  private final MetadataCache metadataCache =
+      new MetadataCache(memcache, MAX_LOCAL_METADATA_ENTRIES);
+
   private final GcsService gcsService =
     GcsServiceFactory.createGcsService(RetryParams.getDefaultInstance());
 
@@ -112,6 +141,19 @@ public class ObjectifyStorageIo implements  StorageIo {
 
   private final boolean useGcs = Flag.createFlag("use.gcs", false).get();
 
+  // The most files that downloadRawFiles() reads from GCS or the blobstore at the same time.
+  private static final int MAX_CONCURRENT_READS = 10;
+
+  // How long content in the content store that no file points at is kept before it is collected.
+  @VisibleForTesting
+  static final long ORPHANED_CONTENT_GRACE_MS = TWENTYFOURHOURS;
+
+  // The most orphaned contents that collectOrphanedContent() deletes per call.
+  private static final int MAX_COLLECTED_CONTENTS = 500;
+
+  // The prefix of the shared content ID of a file whose content is in the content store.
+  private static final String CONTENT_HASH_PREFIX = "sha256:";
+
 
   // Use this class to define the work of a job that can be retried. The
   // "datastore" argument to run() is the Objectify object for this job
@@ -136,6 +178,36 @@ public class ObjectifyStorageIo implements  StorageIo {
     T t;
   }
 
+  /**
+   * The metadata of a project, as kept in the metadata cache.
+   */
+  private static final class ProjectMetadata implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String name;
+    private final String type;
+    private final String settings;
+    private final long dateCreated;
+    private final long dateModified;
+    private final long galleryId;
+    private final long attributionId;
+
+    private ProjectMetadata(ProjectData pd) {
+      name = pd.name;
+      type = pd.type;
+      settings = pd.settings;
+      dateCreated = pd.dateCreated;
+      dateModified = pd.dateModified;
+      galleryId = pd.galleryId;
+      attributionId = pd.attributionId;
+    }
+
+    private UserProject toUserProject(long projectId) {
+      return new UserProject(projectId, name, type, dateCreated, dateModified, galleryId,
+          attributionId);
+    }
+  }
+
   private FileService fileService;
 
   static {
@@ -151,6 +223,8 @@ public class ObjectifyStorageIo implements  StorageIo {
     ObjectifyService.register(FeedbackData.class);
     ObjectifyService.register(NonceData.class);
     ObjectifyService.register(CorruptionRecord.class);
+    ObjectifyService.register(SharedContentData.class);
+    ObjectifyService.register(ContentData.class);
   }
 
   ObjectifyStorageIo() {
@@ -177,8 +251,12 @@ public class ObjectifyStorageIo implements  StorageIo {
    */
   @Override
   public User getUser(final String userId, final String email) {
-    String cachekey = User.usercachekey + "|" + userId;
-    User tuser = (User) memcache.get(cachekey);
+    long cacheVersion = metadataCache.getVersion(userId);
+    User tuser = metadataCache.get(userId, cacheVersion, USER_CACHE_ENTRY, User.class);
+    if (tuser != null) {
+      // The cached copy is shared, and callers may change the one they are given.
+      tuser = tuser.copy();
+    }
     if (tuser != null && tuser.getUserTosAccepted() && ((email == null) || (tuser.getUserEmail().equals(email)))) {
       if (tuser.getUserName()==null) {
         setUserName(userId,tuser.getDefaultName());
@@ -212,13 +290,10 @@ public class ObjectifyStorageIo implements  StorageIo {
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
     }
-    memcache.put(cachekey, user, Expiration.byDeltaSeconds(60)); // Remember for one minute
-    // The choice of one minute here is arbitrary. getUser() is called on every authenticated
-    // RPC call to the system (out of OdeAuthFilter), so using memcache will save a significant
-    // number of calls to the datastore. If someone is idle for more then a minute, it isn't
-    // unreasonable to hit the datastore again. By pruning memcache ourselves, we have a
-    // bit more control (maybe) of how things are flushed from memcache. Otherwise we are
-    // at the whim of whatever algorithm App Engine employs now or in the future.
+    metadataCache.put(userId, cacheVersion, USER_CACHE_ENTRY, user.copy());
+    // getUser() is called on every authenticated RPC call to the system (out of OdeAuthFilter), so
+    // caching the user saves a significant number of calls to the datastore. The cached copy is
+    // dropped whenever the user changes, and otherwise kept for MetadataCache.EXPIRATION_SECONDS.
     return user;
   }
 
@@ -251,6 +326,7 @@ public class ObjectifyStorageIo implements  StorageIo {
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
     }
+    metadataCache.invalidate(userId);
   }
 
   @Override
@@ -269,6 +345,7 @@ public class ObjectifyStorageIo implements  StorageIo {
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
     }
+    metadataCache.invalidate(userId);
   }
 
   @Override
@@ -282,17 +359,12 @@ public class ObjectifyStorageIo implements  StorageIo {
             userData.name = name;
             datastore.put(userData);
           }
-          // we need to change the memcache version of user
-          User user = new User(userData.id,userData.email,name, userData.link, userData.tosAccepted,
-              false, userData.type, userData.sessionid);
-          String cachekey = User.usercachekey + "|" + userId;
-          memcache.put(cachekey, user, Expiration.byDeltaSeconds(60)); // Remember for one minute
         }
       });
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
     }
-
+    metadataCache.invalidate(userId);  // Flush cached copy because it changed
   }
 
   @Override
@@ -306,21 +378,16 @@ public class ObjectifyStorageIo implements  StorageIo {
             userData.link = link;
             datastore.put(userData);
           }
-          // we need to change the memcache version of user
-          User user = new User(userData.id,userData.email,userData.name,link,userData.tosAccepted,
-              false, userData.type, userData.sessionid);
-          String cachekey = User.usercachekey + "|" + userId;
-          memcache.put(cachekey, user, Expiration.byDeltaSeconds(60)); // Remember for one minute
         }
       });
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
     }
+    metadataCache.invalidate(userId);  // Flush cached copy because it changed
   }
 
   @Override
   public void setUserSessionId(final String userId, final String sessionId) {
-    String cachekey = User.usercachekey + "|" + userId;
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
@@ -335,7 +402,7 @@ public class ObjectifyStorageIo implements  StorageIo {
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
     }
-    memcache.delete(cachekey);  // Flush cached copy because it changed
+    metadataCache.invalidate(userId);  // Flush cached copy because it changed
   }
 
   @Override
@@ -427,8 +494,29 @@ public class ObjectifyStorageIo implements  StorageIo {
     final Result<Long> projectId = new Result<Long>();
     final List<String> blobsToDelete = new ArrayList<String>();
     final List<FileData> addedFiles = new ArrayList<FileData>();
+    final Map<String, ContentData> storedContents = new HashMap<String, ContentData>();
+    boolean projectCreated = false;
 
     try {
+      // Assets are added to the content store first, because that is done in jobs of its own.
+      for (RawFile file : project.getRawSourceFiles()) {
+        if (useContentStoreForFile(file.getFileName(), file.getContent().length)) {
+          try {
+            storedContents.put(file.getFileName(),
+                storeContent(file.getContent(), file.getFileName()));
+          } catch (BlobWriteException e) {
+            throw CrashReport.createAndLogError(LOG, null,
+                collectUserErrorInfo(userId, file.getFileName()), e);
+          } catch (IOException e) {
+            throw CrashReport.createAndLogError(LOG, null,
+                collectUserErrorInfo(userId, file.getFileName()), e);
+          } catch (ObjectifyException e) {
+            throw CrashReport.createAndLogError(LOG, null,
+                collectUserErrorInfo(userId, file.getFileName()), e);
+          }
+        }
+      }
+
       // first job is on the project entity, creating the ProjectData object
       // and the associated files.
       runJobWithRetries(new JobRetryHelper() {
@@ -459,7 +547,7 @@ public class ObjectifyStorageIo implements  StorageIo {
           for (TextFile file : project.getSourceFiles()) {
             try {
               addedFiles.add(createRawFile(projectKey, FileData.RoleEnum.SOURCE,
-                  file.getFileName(), file.getContent().getBytes(DEFAULT_ENCODING)));
+                  file.getFileName(), file.getContent().getBytes(DEFAULT_ENCODING), null));
             } catch (BlobWriteException e) {
               rememberBlobsToDelete();
               // Note that this makes the BlobWriteException fatal. The job will
@@ -474,7 +562,7 @@ public class ObjectifyStorageIo implements  StorageIo {
           for (RawFile file : project.getRawSourceFiles()) {
             try {
               addedFiles.add(createRawFile(projectKey, FileData.RoleEnum.SOURCE, file.getFileName(),
-                  file.getContent()));
+                  file.getContent(), storedContents.get(file.getFileName())));
             } catch (BlobWriteException e) {
               rememberBlobsToDelete();
               // Note that this makes the BlobWriteException fatal. The job will
@@ -496,7 +584,9 @@ public class ObjectifyStorageIo implements  StorageIo {
 
         private void rememberBlobsToDelete() {
           for (FileData addedFile : addedFiles) {
-            if (addedFile.isBlob && addedFile.blobstorePath != null) {
+            // Content in the content store is kept for the next try.
+            if (addedFile.isBlob && addedFile.blobstorePath != null
+                && addedFile.contentHash == null) {
               blobsToDelete.add(addedFile.blobstorePath);
             }
           }
@@ -505,6 +595,8 @@ public class ObjectifyStorageIo implements  StorageIo {
         }
       });
 
+      projectCreated = true;
+
       // second job is on the user entity
       runJobWithRetries(new JobRetryHelper() {
         @Override
@@ -519,7 +611,7 @@ public class ObjectifyStorageIo implements  StorageIo {
       });
     } catch (ObjectifyException e) {
       for (FileData addedFile : addedFiles) {
-        if (addedFile.isBlob && addedFile.blobstorePath != null) {
+        if (addedFile.isBlob && addedFile.blobstorePath != null && addedFile.contentHash == null) {
           blobsToDelete.add(addedFile.blobstorePath);
         }
       }
@@ -534,6 +626,12 @@ public class ObjectifyStorageIo implements  StorageIo {
       for (String blobToDelete: blobsToDelete) {
         deleteBlobstoreFile(blobToDelete);
       }
+      if (!projectCreated) {
+        for (ContentData storedContent : storedContents.values()) {
+          releaseContent(CONTENT_HASH_PREFIX + storedContent.contentHash);
+        }
+      }
+      metadataCache.invalidate(userId);
     }
     return projectId.t;
   }
@@ -541,15 +639,19 @@ public class ObjectifyStorageIo implements  StorageIo {
   /*
    *  Creates and returns a new FileData object with the specified fields.
    *  Does not check for the existence of the object and does not update
-   *  the database.
+   *  the database. If storedContent isn't null, the file points at it
+   *  rather than at a copy of the content of its own.
    */
   private FileData createRawFile(Key<ProjectData> projectKey, FileData.RoleEnum role,
-    String fileName, byte[] content) throws BlobWriteException, ObjectifyException, IOException {
+    String fileName, byte[] content, ContentData storedContent)
+    throws BlobWriteException, ObjectifyException, IOException {
     FileData file = new FileData();
     file.fileName = fileName;
     file.projectKey = projectKey;
     file.role = role;
-    if (useGCSforFile(fileName, content.length)) {
+    if (storedContent != null) {
+      pointAtContent(file, storedContent);
+    } else if (useGCSforFile(fileName, content.length)) {
       file.isGCS = true;
       file.gcsName = makeGCSfileName(fileName, projectKey.getId());
       if (content.length > 0) { // If there is actual content
@@ -572,6 +674,7 @@ public class ObjectifyStorageIo implements  StorageIo {
     // blobs associated with the project
     final List<String> blobPaths = new ArrayList<String>();
     final List<String> gcsPaths = new ArrayList<String>();
+    final List<String> sharedContent = new ArrayList<String>();
     try {
       // first job deletes the UserProjectData in the user's entity group
       runJobWithRetries(new JobRetryHelper() {
@@ -583,6 +686,8 @@ public class ObjectifyStorageIo implements  StorageIo {
           // delete any FileData objects associated with this project
         }
       });
+      // the project is gone for the user even if deleting the rest of it fails
+      metadataCache.invalidate(userId);
       // second job deletes the project files and ProjectData in the project's
       // entity group
       runJobWithRetries(new JobRetryHelper() {
@@ -590,8 +695,13 @@ public class ObjectifyStorageIo implements  StorageIo {
         public void run(Objectify datastore) {
           Key<ProjectData> projectKey = projectKey(projectId);
           Query<FileData> fdq = datastore.query(FileData.class).ancestor(projectKey);
+          blobPaths.clear();
+          gcsPaths.clear();
+          sharedContent.clear();
           for (FileData fd: fdq) {
-            if (fd.isGCS) {
+            if (hasSharedContent(fd)) {
+              sharedContent.add(sharedContentId(fd));
+            } else if (fd.isGCS) {
               gcsPaths.add(fd.gcsName);
             } else if (fd.isBlob) {
               blobPaths.add(fd.blobstorePath);
@@ -614,6 +724,9 @@ public class ObjectifyStorageIo implements  StorageIo {
           LOG.log(Level.WARNING, "Unable to delete " + gcsName + " from GCS while deleting project", e);
         }
       }
+      for (String contentId : sharedContent) {
+        releaseContent(contentId);
+      }
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
           collectUserProjectErrorInfo(userId, projectId), e);
@@ -637,6 +750,7 @@ public class ObjectifyStorageIo implements  StorageIo {
     } catch (ObjectifyException e) {
        throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
     }
+    metadataCache.invalidate(userId);
   }
   @Override
   public void setProjectAttributionId(final String userId, final long projectId,final long attributionId) {
@@ -654,15 +768,35 @@ public class ObjectifyStorageIo implements  StorageIo {
     } catch (ObjectifyException e) {
        throw CrashReport.createAndLogError(LOG, null,"error in setProjectAttributionId",  e);
     }
+    metadataCache.invalidate(userId);
   }
 
   @Override
   public List<Long> getProjects(final String userId) {
+    return getProjects(userId, metadataCache.getVersion(userId));
+  }
+
+  /*
+   * Returns the IDs of the user's projects, reading them from the metadata cache under the given
+   * version if they are there.
+   */
+  private List<Long> getProjects(final String userId, long cacheVersion) {
+    long[] cachedProjects =
+        metadataCache.get(userId, cacheVersion, PROJECTS_CACHE_ENTRY, long[].class);
+    if (cachedProjects != null) {
+      List<Long> projects = new ArrayList<Long>(cachedProjects.length);
+      for (long projectId : cachedProjects) {
+        projects.add(projectId);
+      }
+      return projects;
+    }
+
     final List<Long> projects = new ArrayList<Long>();
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
+          projects.clear();
           Key<UserData> userKey = userKey(userId);
           for (UserProjectData upd : datastore.query(UserProjectData.class).ancestor(userKey)) {
             projects.add(upd.projectId);
@@ -673,34 +807,95 @@ public class ObjectifyStorageIo implements  StorageIo {
       throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
     }
 
+    cachedProjects = new long[projects.size()];
+    for (int i = 0; i < cachedProjects.length; i++) {
+      cachedProjects[i] = projects.get(i);
+    }
+    metadataCache.put(userId, cacheVersion, PROJECTS_CACHE_ENTRY, cachedProjects);
     return projects;
   }
 
   @Override
-  public String loadProjectSettings(final String userId, final long projectId) {
-    if (!getProjects(userId).contains(projectId)) {
-      throw CrashReport.createAndLogError(LOG, null,
-          collectUserProjectErrorInfo(userId, projectId),
-          new UnauthorizedAccessException(userId, projectId, null));
+  public List<UserProject> getUserProjects(final String userId) {
+    long cacheVersion = metadataCache.getVersion(userId);
+    List<Long> projectIds = getProjects(userId, cacheVersion);
+    List<String> entryNames = new ArrayList<String>(projectIds.size());
+    for (long projectId : projectIds) {
+      entryNames.add(PROJECT_CACHE_ENTRY_PREFIX + projectId);
+    }
+    Map<String, ProjectMetadata> metadata =
+        metadataCache.getAll(userId, cacheVersion, entryNames, ProjectMetadata.class);
+
+    List<Key<ProjectData>> missingKeys = new ArrayList<Key<ProjectData>>();
+    for (long projectId : projectIds) {
+      if (!metadata.containsKey(PROJECT_CACHE_ENTRY_PREFIX + projectId)) {
+        missingKeys.add(projectKey(projectId));
+      }
     }
-    final Result<String> settings = new Result<String>();
+    if (!missingKeys.isEmpty()) {
+      // Each project is in an entity group of its own, so they are read in one batch outside of
+      // a transaction.
+      Map<Key<ProjectData>, ProjectData> projectData = ObjectifyService.begin().get(missingKeys);
+      Map<String, ProjectMetadata> loadedMetadata = new HashMap<String, ProjectMetadata>();
+      for (ProjectData pd : projectData.values()) {
+        loadedMetadata.put(PROJECT_CACHE_ENTRY_PREFIX + pd.id, new ProjectMetadata(pd));
+      }
+      metadataCache.putAll(userId, cacheVersion, loadedMetadata);
+      metadata.putAll(loadedMetadata);
+    }
+
+    List<UserProject> userProjects = new ArrayList<UserProject>(projectIds.size());
+    for (long projectId : projectIds) {
+      ProjectMetadata projectMetadata = metadata.get(PROJECT_CACHE_ENTRY_PREFIX + projectId);
+      if (projectMetadata != null) {
+        userProjects.add(projectMetadata.toUserProject(projectId));
+      }
+    }
+    return userProjects;
+  }
+
+  /*
+   * Returns the metadata of a project, or null if the project doesn't exist. The metadata is
+   * cached for the given user, whose changes to the project invalidate it.
+   */
+  private ProjectMetadata getProjectMetadata(final String userId, final long projectId) {
+    long cacheVersion = metadataCache.getVersion(userId);
+    String entryName = PROJECT_CACHE_ENTRY_PREFIX + projectId;
+    ProjectMetadata metadata =
+        metadataCache.get(userId, cacheVersion, entryName, ProjectMetadata.class);
+    if (metadata != null) {
+      return metadata;
+    }
+
+    final Result<ProjectData> projectData = new Result<ProjectData>();
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
-          ProjectData pd = datastore.find(projectKey(projectId));
-          if (pd != null) {
-            settings.t = pd.settings;
-          } else {
-            settings.t = "";
-          }
+          projectData.t = datastore.find(projectKey(projectId));
         }
       });
     } catch (ObjectifyException e) {
       throw CrashReport.createAndLogError(LOG, null,
           collectUserProjectErrorInfo(userId, projectId), e);
     }
-    return settings.t;
+    if (projectData.t == null) {
+      return null;
+    }
+    metadata = new ProjectMetadata(projectData.t);
+    metadataCache.put(userId, cacheVersion, entryName, metadata);
+    return metadata;
+  }
+
+  @Override
+  public String loadProjectSettings(final String userId, final long projectId) {
+    if (!getProjects(userId).contains(projectId)) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, projectId),
+          new UnauthorizedAccessException(userId, projectId, null));
+    }
+    ProjectMetadata metadata = getProjectMetadata(userId, projectId);
+    return (metadata != null) ? metadata.settings : "";
   }
 
   @Override
@@ -721,6 +916,7 @@ public class ObjectifyStorageIo implements  StorageIo {
       throw CrashReport.createAndLogError(LOG, null,
           collectUserProjectErrorInfo(userId, projectId), e);
     }
+    metadataCache.invalidate(userId);
   }
 
   @Override
@@ -748,75 +944,20 @@ public class ObjectifyStorageIo implements  StorageIo {
 
   @Override
   public UserProject getUserProject(final String userId, final long projectId) {
-    final Result<ProjectData> projectData = new Result<ProjectData>();
-    try {
-      runJobWithRetries(new JobRetryHelper() {
-        @Override
-        public void run(Objectify datastore) {
-          ProjectData pd = datastore.find(projectKey(projectId));
-          if (pd != null) {
-            projectData.t = pd;
-          } else {
-            projectData.t = null;
-          }
-        }
-      });
-    } catch (ObjectifyException e) {
-      throw CrashReport.createAndLogError(LOG, null,
-          collectUserProjectErrorInfo(userId, projectId), e);
-    }
-    if (projectData == null) {
-      return null;
-    } else {
-      return new UserProject(projectId, projectData.t.name,
-          projectData.t.type, projectData.t.dateCreated,
-          projectData.t.dateModified, projectData.t.galleryId,
-          projectData.t.attributionId);
-    }
+    ProjectMetadata metadata = getProjectMetadata(userId, projectId);
+    return (metadata != null) ? metadata.toUserProject(projectId) : null;
   }
 
   @Override
   public String getProjectName(final String userId, final long projectId) {
-    final Result<String> projectName = new Result<String>();
-    try {
-      runJobWithRetries(new JobRetryHelper() {
-        @Override
-        public void run(Objectify datastore) {
-          ProjectData pd = datastore.find(projectKey(projectId));
-          if (pd != null) {
-            projectName.t = pd.name;
-          } else {
-            projectName.t = "";
-          }
-        }
-      });
-    } catch (ObjectifyException e) {
-      throw CrashReport.createAndLogError(LOG, null,
-          collectUserProjectErrorInfo(userId, projectId), e);
-    }
-    return projectName.t;
+    ProjectMetadata metadata = getProjectMetadata(userId, projectId);
+    return (metadata != null) ? metadata.name : "";
   }
 
   @Override
   public long getProjectDateModified(final String userId, final long projectId) {
-    final Result<Long> modDate = new Result<Long>();
-    try {
-      runJobWithRetries(new JobRetryHelper() {
-        @Override
-        public void run(Objectify datastore) {
-          ProjectData pd = datastore.find(projectKey(projectId));
-          if (pd != null) {
-            modDate.t = pd.dateModified;
-          } else {
-            modDate.t = Long.valueOf(0);
-          }
-        }
-      });
-    } catch (ObjectifyException e) {
-      throw CrashReport.createAndLogError(LOG, null,
-          collectUserProjectErrorInfo(userId, projectId), e);
-    }
-    return modDate.t;
+    ProjectMetadata metadata = getProjectMetadata(userId, projectId);
+    return (metadata != null) ? metadata.dateModified : 0;
   }
 
   @Override
@@ -850,24 +991,8 @@ public class ObjectifyStorageIo implements  StorageIo {
 
   @Override
   public long getProjectDateCreated(final String userId, final long projectId) {
-    final Result<Long> dateCreated = new Result<Long>();
-    try {
-      runJobWithRetries(new JobRetryHelper() {
-        @Override
-        public void run(Objectify datastore) {
-          ProjectData pd = datastore.find(projectKey(projectId));
-          if (pd != null) {
-            dateCreated.t = pd.dateCreated;
-          } else {
-            dateCreated.t = Long.valueOf(0);
-          }
-        }
-      });
-    } catch (ObjectifyException e) {
-      throw CrashReport.createAndLogError(LOG, null,
-          collectUserProjectErrorInfo(userId, projectId), e);
-    }
-    return dateCreated.t;
+    ProjectMetadata metadata = getProjectMetadata(userId, projectId);
+    return (metadata != null) ? metadata.dateCreated : 0;
   }
 
   @Override
@@ -1089,6 +1214,415 @@ public class ObjectifyStorageIo implements  StorageIo {
     return 5 * 1024 * 1024;
   }
 
+  @Override
+  public long copySourceFiles(final String userId, final long fromProjectId,
+      final long toProjectId, final Map<String, String> fileNames) {
+    List<Long> projects = getProjects(userId);
+    for (long projectId : new long[] { fromProjectId, toProjectId }) {
+      if (!projects.contains(projectId)) {
+        throw CrashReport.createAndLogError(LOG, null,
+            collectUserProjectErrorInfo(userId, projectId),
+            new UnauthorizedAccessException(userId, projectId, null));
+      }
+    }
+    final Result<Map<Key<FileData>, FileData>> fromFiles =
+        new Result<Map<Key<FileData>, FileData>>();
+    final Map<String, FileData> sharedFiles = new HashMap<String, FileData>();
+    final Map<String, ContentData> storedContents = new HashMap<String, ContentData>();
+    final Result<Long> modTime = new Result<Long>();
+    boolean copied = false;
+    try {
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          List<Key<FileData>> fileKeys = new ArrayList<Key<FileData>>();
+          for (String fileName : fileNames.keySet()) {
+            fileKeys.add(projectFileKey(projectKey(fromProjectId), fileName));
+          }
+          fromFiles.t = datastore.get(fileKeys);
+        }
+      });
+      for (String fileName : fileNames.keySet()) {
+        if (!fromFiles.t.containsKey(projectFileKey(projectKey(fromProjectId), fileName))) {
+          throw CrashReport.createAndLogError(LOG, null,
+              collectProjectErrorInfo(userId, fromProjectId, fileName),
+              new FileNotFoundException("No data for " + fileName));
+        }
+      }
+
+      // Each content gets its new reference before any file is marked as sharing it, so it is
+      // never deleted while a file still points at it.
+      final List<String> referencedContent = new ArrayList<String>();
+      for (FileData fd : fromFiles.t.values()) {
+        if (fd.isGCS || fd.isBlob) {
+          addContentReference(sharedContentId(fd));
+          referencedContent.add(sharedContentId(fd));
+        }
+      }
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          sharedFiles.clear();
+          List<String> unusedReferences = new ArrayList<String>(referencedContent);
+          for (String fileName : fileNames.keySet()) {
+            FileData fd = datastore.find(projectFileKey(projectKey(fromProjectId), fileName));
+            // A file whose content changed since it was read has its content copied below.
+            if (fd != null && (fd.isGCS || fd.isBlob)
+                && unusedReferences.remove(sharedContentId(fd))) {
+              if (fd.contentHash == null) {
+                fd.isShared = true;
+              }
+              sharedFiles.put(fileName, fd);
+            }
+          }
+          datastore.put(sharedFiles.values());  // batch put
+        }
+      });
+      List<String> unusedReferences = new ArrayList<String>(referencedContent);
+      for (FileData fd : sharedFiles.values()) {
+        unusedReferences.remove(sharedContentId(fd));
+      }
+      for (String contentId : unusedReferences) {
+        releaseContent(contentId);
+      }
+
+      // The content of files that can't share it has to be read, and added to the content
+      // store, outside of the job.
+      final Map<String, byte[]> copiedContents = new HashMap<String, byte[]>();
+      for (String fileName : fileNames.keySet()) {
+        FileData fd = fromFiles.t.get(projectFileKey(projectKey(fromProjectId), fileName));
+        if ((fd.isGCS || fd.isBlob) && !sharedFiles.containsKey(fileName)) {
+          byte[] content = downloadRawFile(userId, fromProjectId, fileName);
+          copiedContents.put(fileName, content);
+          String newFileName = fileNames.get(fileName);
+          if (useContentStoreForFile(newFileName, content.length)) {
+            try {
+              storedContents.put(fileName, storeContent(content, newFileName));
+            } catch (BlobWriteException e) {
+              throw CrashReport.createAndLogError(LOG, null,
+                  collectProjectErrorInfo(userId, toProjectId, newFileName), e);
+            } catch (IOException e) {
+              throw CrashReport.createAndLogError(LOG, null,
+                  collectProjectErrorInfo(userId, toProjectId, newFileName), e);
+            }
+          }
+        }
+      }
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) throws ObjectifyException {
+          Key<ProjectData> projectKey = projectKey(toProjectId);
+          List<FileData> addedFiles = new ArrayList<FileData>();
+          for (Map.Entry<String, String> entry : fileNames.entrySet()) {
+            String newFileName = entry.getValue();
+            FileData copy;
+            if (copiedContents.containsKey(entry.getKey())) {
+              try {
+                copy = createRawFile(projectKey, FileData.RoleEnum.SOURCE, newFileName,
+                    copiedContents.get(entry.getKey()), storedContents.get(entry.getKey()));
+              } catch (BlobWriteException e) {
+                throw CrashReport.createAndLogError(LOG, null,
+                    collectProjectErrorInfo(userId, toProjectId, newFileName), e);
+              } catch (IOException e) {
+                throw CrashReport.createAndLogError(LOG, null,
+                    collectProjectErrorInfo(userId, toProjectId, newFileName), e);
+              }
+            } else {
+              FileData fd = sharedFiles.containsKey(entry.getKey())
+                  ? sharedFiles.get(entry.getKey())
+                  : fromFiles.t.get(projectFileKey(projectKey(fromProjectId), entry.getKey()));
+              copy = new FileData();
+              copy.fileName = newFileName;
+              copy.projectKey = projectKey;
+              copy.role = FileData.RoleEnum.SOURCE;
+              copy.content = fd.content;
+              copy.isBlob = fd.isBlob;
+              copy.blobstorePath = fd.blobstorePath;
+              copy.isGCS = fd.isGCS;
+              copy.gcsName = fd.gcsName;
+              copy.isShared = fd.isShared;
+              copy.contentHash = fd.contentHash;
+            }
+            addedFiles.add(copy);
+          }
+          datastore.put(addedFiles);  // batch put
+          modTime.t = updateProjectModDate(datastore, toProjectId);
+        }
+      });
+      copied = true;
+      metadataCache.invalidate(userId);
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, toProjectId), e);
+    } finally {
+      if (!copied) {
+        for (ContentData storedContent : storedContents.values()) {
+          releaseContent(CONTENT_HASH_PREFIX + storedContent.contentHash);
+        }
+      }
+    }
+    return modTime.t;
+  }
+
+  /*
+   * Returns the ID of the Blobstore or GCS content of a file: its hash if the content is in the
+   * content store, or the ID of its SharedContentData otherwise.
+   */
+  private static String sharedContentId(FileData fd) {
+    if (fd.contentHash != null) {
+      return CONTENT_HASH_PREFIX + fd.contentHash;
+    }
+    return fd.isGCS ? "gcs:" + fd.gcsName : "blob:" + fd.blobstorePath;
+  }
+
+  /*
+   * Returns whether the Blobstore or GCS content of a file may belong to other files too, in which
+   * case it is released with releaseContent rather than changed or deleted in place.
+   */
+  private static boolean hasSharedContent(FileData fd) {
+    return fd.contentHash != null || (fd.isShared && (fd.isGCS || fd.isBlob));
+  }
+
+  /*
+   * Records that one more file points at the given content.
+   */
+  private void addContentReference(final String contentId) throws ObjectifyException {
+    runJobWithRetries(new JobRetryHelper() {
+      @Override
+      public void run(Objectify datastore) {
+        if (contentId.startsWith(CONTENT_HASH_PREFIX)) {
+          String contentHash = contentId.substring(CONTENT_HASH_PREFIX.length());
+          ContentData storedContent = datastore.find(ContentData.class, contentHash);
+          if (storedContent == null) {
+            throw new IllegalStateException("No stored content " + contentHash);
+          }
+          storedContent.references++;
+          storedContent.orphanedSince = 0;
+          datastore.put(storedContent);
+          return;
+        }
+        SharedContentData sharedContent = datastore.find(SharedContentData.class, contentId);
+        if (sharedContent == null) {
+          // The content belonged to one file until now.
+          sharedContent = new SharedContentData();
+          sharedContent.contentId = contentId;
+          sharedContent.references = 1;
+        }
+        sharedContent.references++;
+        datastore.put(sharedContent);
+      }
+    });
+  }
+
+  /*
+   * Records that one file no longer points at the given content, and deletes the content if no
+   * file does. This must be called outside of any transaction.
+   */
+  private void releaseContent(final String contentId) {
+    if (contentId.startsWith(CONTENT_HASH_PREFIX)) {
+      releaseStoredContent(contentId.substring(CONTENT_HASH_PREFIX.length()));
+      return;
+    }
+    final Result<Boolean> lastReference = new Result<Boolean>();
+    try {
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          SharedContentData sharedContent = datastore.find(SharedContentData.class, contentId);
+          lastReference.t = (sharedContent == null);
+          if (sharedContent == null) {
+            return;
+          }
+          sharedContent.references--;
+          if (sharedContent.references <= 1) {
+            // The one file left owns the content.
+            datastore.delete(sharedContent);
+          } else {
+            datastore.put(sharedContent);
+          }
+        }
+      });
+    } catch (ObjectifyException e) {
+      // The content is kept.
+      LOG.log(Level.WARNING, "Unable to release shared content " + contentId, e);
+      return;
+    }
+    if (lastReference.t) {
+      if (contentId.startsWith("gcs:")) {
+        String gcsName = contentId.substring("gcs:".length());
+        try {
+          gcsService.delete(new GcsFilename(GCS_BUCKET_NAME, gcsName));
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Unable to delete " + gcsName + " from GCS.", e);
+        }
+      } else {
+        deleteBlobstoreFile(contentId.substring("blob:".length()));
+      }
+    }
+  }
+
+  /*
+   * Adds the given content to the content store, unless it is there already, and takes a
+   * reference to it for one more file. The reference must be released with releaseContent if no
+   * file ends up pointing at the content. This must be called outside of any transaction.
+   */
+  private ContentData storeContent(byte[] content, String fileName)
+      throws BlobWriteException, ObjectifyException, IOException {
+    final String contentHash = Hashing.sha256().hashBytes(content).toString();
+    final Result<ContentData> storedContent = new Result<ContentData>();
+    runJobWithRetries(new JobRetryHelper() {
+      @Override
+      public void run(Objectify datastore) {
+        storedContent.t = datastore.find(ContentData.class, contentHash);
+        if (storedContent.t != null) {
+          storedContent.t.references++;
+          storedContent.t.orphanedSince = 0;
+          datastore.put(storedContent.t);
+        }
+      }
+    });
+    if (storedContent.t != null) {
+      return storedContent.t;
+    }
+
+    // The content is new to the store. It is written under a name of its own, so that it can't
+    // replace content that another request is writing or that is being collected.
+    final ContentData newContent = new ContentData();
+    newContent.contentHash = contentHash;
+    newContent.references = 1;
+    if (useGcs) {
+      newContent.isGCS = true;
+      newContent.gcsName = "content/" + contentHash + "/" + UUID.randomUUID();
+      if (content.length > 0) { // If there is actual content
+        GcsOutputChannel outputChannel =
+          gcsService.createOrReplace(new GcsFilename(GCS_BUCKET_NAME, newContent.gcsName),
+              GcsFileOptions.getDefaultInstance());
+        outputChannel.write(ByteBuffer.wrap(content));
+        outputChannel.close();
+      }
+    } else {
+      newContent.isBlob = true;
+      newContent.blobstorePath = uploadToBlobstore(content, "content/" + contentHash);
+    }
+    boolean isStored = false;
+    try {
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          storedContent.t = datastore.find(ContentData.class, contentHash);
+          if (storedContent.t == null) {
+            storedContent.t = newContent;
+          } else {
+            // Another request stored the same content in the meantime.
+            storedContent.t.references++;
+            storedContent.t.orphanedSince = 0;
+          }
+          datastore.put(storedContent.t);
+        }
+      });
+      isStored = (storedContent.t == newContent);
+    } finally {
+      if (!isStored) {
+        deleteContent(newContent);
+      }
+    }
+    LOG.info("Added " + fileName + " to the content store as " + contentHash);
+    return storedContent.t;
+  }
+
+  /*
+   * Records that one file no longer points at the given content of the content store. Content
+   * that no file points at is kept until collectOrphanedContent deletes it.
+   */
+  private void releaseStoredContent(final String contentHash) {
+    try {
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          ContentData storedContent = datastore.find(ContentData.class, contentHash);
+          if (storedContent == null) {
+            LOG.warning("No stored content " + contentHash + " to release");
+            return;
+          }
+          storedContent.references--;
+          if (storedContent.references <= 0) {
+            storedContent.references = 0;
+            storedContent.orphanedSince = System.currentTimeMillis();
+          }
+          datastore.put(storedContent);
+        }
+      });
+    } catch (ObjectifyException e) {
+      // The content is kept.
+      LOG.log(Level.WARNING, "Unable to release stored content " + contentHash, e);
+    }
+  }
+
+  @Override
+  public int collectOrphanedContent() {
+    final long orphanedBefore = System.currentTimeMillis() - ORPHANED_CONTENT_GRACE_MS;
+    Objectify datastore = ObjectifyService.begin();
+    int collected = 0;
+    for (final Key<ContentData> contentKey : datastore.query(ContentData.class)
+        .filter("orphanedSince >", 0L).filter("orphanedSince <", orphanedBefore)
+        .limit(MAX_COLLECTED_CONTENTS).fetchKeys()) {
+      final Result<ContentData> orphanedContent = new Result<ContentData>();
+      try {
+        runJobWithRetries(new JobRetryHelper() {
+          @Override
+          public void run(Objectify datastore) {
+            // A file may have started pointing at the content since the query.
+            orphanedContent.t = datastore.find(contentKey);
+            if (orphanedContent.t != null && (orphanedContent.t.references > 0
+                || orphanedContent.t.orphanedSince == 0
+                || orphanedContent.t.orphanedSince >= orphanedBefore)) {
+              orphanedContent.t = null;
+            }
+            if (orphanedContent.t != null) {
+              datastore.delete(contentKey);
+            }
+          }
+        });
+      } catch (ObjectifyException e) {
+        LOG.log(Level.WARNING, "Unable to collect stored content " + contentKey.getName(), e);
+        continue;
+      }
+      if (orphanedContent.t != null) {
+        deleteContent(orphanedContent.t);
+        collected++;
+      }
+    }
+    return collected;
+  }
+
+  /*
+   * Deletes the Blobstore or GCS content of a ContentData. This must be called outside of any
+   * transaction.
+   */
+  private void deleteContent(ContentData storedContent) {
+    if (storedContent.isGCS) {
+      try {
+        gcsService.delete(new GcsFilename(GCS_BUCKET_NAME, storedContent.gcsName));
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Unable to delete " + storedContent.gcsName + " from GCS.", e);
+      }
+    } else if (storedContent.isBlob) {
+      deleteBlobstoreFile(storedContent.blobstorePath);
+    }
+  }
+
+  /*
+   * Makes a file point at content of the content store.
+   */
+  private static void pointAtContent(FileData fd, ContentData storedContent) {
+    fd.contentHash = storedContent.contentHash;
+    fd.isGCS = storedContent.isGCS;
+    fd.gcsName = storedContent.gcsName;
+    fd.isBlob = storedContent.isBlob;
+    fd.blobstorePath = storedContent.blobstorePath;
+    fd.content = null;
+  }
+
   @Override
   public void addSourceFilesToProject(final String userId, final long projectId,
       final boolean changeModDate, final String... fileNames) {
@@ -1108,6 +1642,9 @@ public class ObjectifyStorageIo implements  StorageIo {
       throw CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(userId, projectId, fileNames[0]), e);
     }
+    if (changeModDate) {
+      metadataCache.invalidate(userId);
+    }
   }
 
   @Override
@@ -1178,6 +1715,9 @@ public class ObjectifyStorageIo implements  StorageIo {
       throw CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(userId, projectId, fileNames[0]), e);
     }
+    if (changeModDate) {
+      metadataCache.invalidate(userId);
+    }
   }
 
   @Override
@@ -1327,11 +1867,32 @@ public class ObjectifyStorageIo implements  StorageIo {
     final boolean useBlobstore = useBlobstoreForFile(fileName, content.length);
     final boolean useGCS = useGCSforFile(fileName, content.length);
     final Result<String> oldBlobstorePath = new Result<String>();
+    final Result<String> oldgcsName = new Result<String>();
+    final Result<String> oldSharedContent = new Result<String>();
     final boolean considerBackup = (useGcs?((fileName.contains("src/") && fileName.endsWith(".blk")) // AI1 Blocks Files
         || (fileName.contains("src/") && fileName.endsWith(".bky")) // Blockly files
         || (fileName.contains("src/") && fileName.endsWith(".scm"))) // Form Definitions
       :false);
 
+    final ContentData storedContent;
+    if (useContentStoreForFile(fileName, content.length)) {
+      try {
+        storedContent = storeContent(content, fileName);
+      } catch (BlobWriteException e) {
+        throw CrashReport.createAndLogError(LOG, null,
+            collectProjectErrorInfo(userId, projectId, fileName), e);
+      } catch (IOException e) {
+        throw CrashReport.createAndLogError(LOG, null,
+            collectProjectErrorInfo(userId, projectId, fileName), e);
+      } catch (ObjectifyException e) {
+        throw CrashReport.createAndLogError(LOG, null,
+            collectProjectErrorInfo(userId, projectId, fileName), e);
+      }
+    } else {
+      storedContent = null;
+    }
+
+    boolean uploaded = false;
     try {
       runJobWithRetries(new JobRetryHelper() {
         FileData fd;
@@ -1354,13 +1915,29 @@ public class ObjectifyStorageIo implements  StorageIo {
             }
           }
 
-          if (fd.isBlob) {
+          // Content shared with other files is released, rather than changed or deleted, once
+          // the file points at its new content.
+          oldSharedContent.t = hasSharedContent(fd) ? sharedContentId(fd) : null;
+          if (fd.isBlob && !hasSharedContent(fd)) {
             // mark the old blobstore blob for deletion
            oldBlobstorePath.t = fd.blobstorePath;
           }
-          if (useGCS) {
+          oldgcsName.t = null;
+          if (storedContent != null) {
+            if (fd.isGCS && !hasSharedContent(fd)) {
+              // mark the old GCS file for deletion
+              oldgcsName.t = fd.gcsName;
+            }
+            pointAtContent(fd, storedContent);
+          } else if (useGCS) {
+            String gcsName = makeGCSfileName(fileName, projectId);
+            if (fd.isGCS && fd.gcsName != null && !hasSharedContent(fd)) {
+              gcsName = fd.gcsName;
+            } else if (hasSharedContent(fd) && gcsName.equals(fd.gcsName)) {
+              gcsName = makeGCSfileName(fileName + "." + formattedTime(), projectId);
+            }
             fd.isGCS = true;
-            fd.gcsName = makeGCSfileName(fileName, projectId);
+            fd.gcsName = gcsName;
             try {
               if (content.length > 0) { // If there is actual content
                 GcsOutputChannel outputChannel =
@@ -1391,24 +1968,28 @@ public class ObjectifyStorageIo implements  StorageIo {
             fd.gcsName = null;
             fd.content = null;
           } else {
-            if (fd.isGCS) {     // Was a GCS file, must have gotten smaller
+            if (fd.isGCS && !hasSharedContent(fd)) { // Was a GCS file, must have gotten smaller
               try {             // and is now stored in the data store
                 gcsService.delete(new GcsFilename(GCS_BUCKET_NAME, fd.gcsName));
               } catch (IOException e) {
                 throw CrashReport.createAndLogError(LOG, null,
                   collectProjectErrorInfo(userId, projectId, fileName), e);
               }
-              fd.isGCS = false;
-              fd.gcsName = null;
             }
             // Note, Don't have to do anything if the file was in the
             // Blobstore and shrank because the code above (3 lines
             // into the function) already handles removing the old
             // contents from the Blobstore.
+            fd.isGCS = false;
+            fd.gcsName = null;
             fd.isBlob = false;
             fd.blobstorePath = null;
             fd.content = content;
           }
+          fd.isShared = false;
+          if (storedContent == null) {
+            fd.contentHash = null;
+          }
           if (considerBackup) {
             if ((fd.lastBackup + TWENTYFOURHOURS) < System.currentTimeMillis()) {
               try {
@@ -1430,11 +2011,13 @@ public class ObjectifyStorageIo implements  StorageIo {
 
         @Override
         public void onNonFatalError() {
-          if (fd != null && fd.blobstorePath != null) {
+          if (fd != null && fd.blobstorePath != null && !hasSharedContent(fd)) {
             oldBlobstorePath.t = fd.blobstorePath;
           }
         }
       });
+      uploaded = true;
+      metadataCache.invalidate(userId);
       // It would have been convenient to delete the old blobstore file within the run() method
       // above but that caused an exception where the app engine datastore claimed to be doing
       // operations on multiple entity groups within the same transaction.  Apparently the blobstore
@@ -1442,12 +2025,26 @@ public class ObjectifyStorageIo implements  StorageIo {
       if (oldBlobstorePath.t != null) {
         deleteBlobstoreFile(oldBlobstorePath.t);
       }
+      if (oldgcsName.t != null) {
+        try {
+          gcsService.delete(new GcsFilename(GCS_BUCKET_NAME, oldgcsName.t));
+        } catch (IOException e) {
+          LOG.log(Level.WARNING, "Unable to delete " + oldgcsName.t + " from GCS.", e);
+        }
+      }
+      if (oldSharedContent.t != null) {
+        releaseContent(oldSharedContent.t);
+      }
     } catch (ObjectifyException e) {
       if (e.getMessage().startsWith("Blocks")) { // Convert Exception
         throw new BlocksTruncatedException();
       }
       throw CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(userId, projectId, fileName), e);
+    } finally {
+      if (!uploaded && storedContent != null) {
+        releaseContent(CONTENT_HASH_PREFIX + storedContent.contentHash);
+      }
     }
     return modTime.t;
   }
@@ -1522,6 +2119,14 @@ public class ObjectifyStorageIo implements  StorageIo {
     return false;
   }
 
+  // Assets that are kept in the Blobstore or GCS are kept in the content store, so that content
+  // that many projects have, such as the media of tutorials, is only kept once.
+  @VisibleForTesting
+  boolean useContentStoreForFile(String fileName, int length) {
+    return fileName.contains("assets/")
+        && (useGCSforFile(fileName, length) || useBlobstoreForFile(fileName, length));
+  }
+
   // Make a GCS file name
   String makeGCSfileName(String fileName, long projectId) {
     return (projectId + "/" + fileName);
@@ -1537,13 +2142,16 @@ public class ObjectifyStorageIo implements  StorageIo {
     final Result<Long> modTime = new Result<Long>();
     final Result<String> oldBlobstorePath = new Result<String>();
     final Result<String> oldgcsName = new Result<String>();
+    final Result<String> oldSharedContent = new Result<String>();
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
           Key<FileData> fileKey = projectFileKey(projectKey(projectId), fileName);
           FileData fileData = datastore.find(fileKey);
-          if (fileData != null) {
+          if (fileData != null && hasSharedContent(fileData)) {
+            oldSharedContent.t = sharedContentId(fileData);
+          } else if (fileData != null) {
             oldBlobstorePath.t = fileData.blobstorePath;
             if (fileData.isGCS) {
               oldgcsName.t = fileData.gcsName;
@@ -1557,6 +2165,7 @@ public class ObjectifyStorageIo implements  StorageIo {
       throw CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(userId, projectId, fileName), e);
     }
+    metadataCache.invalidate(userId);
     if (oldBlobstorePath.t != null) {
       deleteBlobstoreFile(oldBlobstorePath.t);
     }
@@ -1567,6 +2176,9 @@ public class ObjectifyStorageIo implements  StorageIo {
         LOG.log(Level.WARNING, "Unable to delete " + oldgcsName + " from GCS.", e);
       }
     }
+    if (oldSharedContent.t != null) {
+      releaseContent(oldSharedContent.t);
+    }
     return (modTime.t == null) ? 0 : modTime.t;
   }
 
@@ -1613,7 +2225,6 @@ public class ObjectifyStorageIo implements  StorageIo {
           collectUserProjectErrorInfo(userId, projectId),
           new UnauthorizedAccessException(userId, projectId, null));
     }
-    final Result<byte[]> result = new Result<byte[]>();
     final Result<FileData> fd = new Result<FileData>();
     try {
       runJobWithRetries(new JobRetryHelper() {
@@ -1628,7 +2239,92 @@ public class ObjectifyStorageIo implements  StorageIo {
           collectProjectErrorInfo(userId, projectId, fileName), e);
     }
     // read the blob/GCS File outside of the job
-    FileData fileData = fd.t;
+    return getFileContent(userId, projectId, fileName, fd.t);
+  }
+
+  @Override
+  public List<byte[]> downloadRawFiles(final String userId, final long projectId,
+      final List<String> fileNames) {
+    if (!getProjects(userId).contains(projectId)) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, projectId),
+          new UnauthorizedAccessException(userId, projectId, null));
+    }
+    long start = System.currentTimeMillis();
+    final Result<Map<Key<FileData>, FileData>> fds = new Result<Map<Key<FileData>, FileData>>();
+    final List<Key<FileData>> fileKeys = new ArrayList<Key<FileData>>();
+    for (String fileName : fileNames) {
+      fileKeys.add(projectFileKey(projectKey(projectId), fileName));
+    }
+    try {
+      runJobWithRetries(new JobRetryHelper() {
+        @Override
+        public void run(Objectify datastore) {
+          // One batch get for all the files, rather than one get for each of them.
+          fds.t = datastore.get(fileKeys);
+        }
+      });
+    } catch (ObjectifyException e) {
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, projectId), e);
+    }
+
+    // read the blob/GCS Files outside of the job, at the same time
+    List<byte[]> contents = new ArrayList<byte[]>(fileNames.size());
+    List<Future<byte[]>> reads = new ArrayList<Future<byte[]>>(fileNames.size());
+    ExecutorService executor = null;
+    try {
+      for (int i = 0; i < fileNames.size(); i++) {
+        final String fileName = fileNames.get(i);
+        final FileData fileData = fds.t.get(fileKeys.get(i));
+        if (fileData == null || !(fileData.isGCS || fileData.isBlob)) {
+          // The content is already here, or there is none.
+          reads.add(null);
+          contents.add(getFileContent(userId, projectId, fileName, fileData));
+          continue;
+        }
+        if (executor == null) {
+          executor = Executors.newFixedThreadPool(MAX_CONCURRENT_READS,
+              ThreadManager.currentRequestThreadFactory());
+        }
+        reads.add(executor.submit(new Callable<byte[]>() {
+          @Override
+          public byte[] call() {
+            return getFileContent(userId, projectId, fileName, fileData);
+          }
+        }));
+        contents.add(null);
+      }
+      for (int i = 0; i < reads.size(); i++) {
+        if (reads.get(i) != null) {
+          contents.set(i, reads.get(i).get());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw CrashReport.createAndLogError(LOG, null,
+          collectUserProjectErrorInfo(userId, projectId), e);
+    } catch (ExecutionException e) {
+      // getFileContent() has already logged the error.
+      Throwables.propagateIfPossible(e.getCause());
+      throw new RuntimeException(e.getCause());
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+    }
+    LOG.info("Loaded " + fileNames.size() + " files of project " + projectId + " in "
+        + (System.currentTimeMillis() - start) + " ms");
+    return contents;
+  }
+
+  /*
+   * Returns the content of a project file, reading it from GCS or the blobstore if it is stored
+   * there. This must be called outside of any transaction.
+   */
+  private byte[] getFileContent(String userId, long projectId, String fileName,
+      FileData fileData) {
+    final Result<byte[]> result = new Result<byte[]>();
     if (fileData != null) {
       if (fileData.isGCS) {     // It's in the Cloud Store
         try {
@@ -1707,26 +2403,61 @@ public class ObjectifyStorageIo implements  StorageIo {
                                                  final boolean includeProjectHistory,
                                                  final boolean includeAndroidKeystore,
                                                  @Nullable String zipName) throws IOException {
-    final Result<Integer> fileCount = new Result<Integer>();
-    fileCount.t = 0;
+    final ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
+    Result<String> projectName = new Result<String>();
+    int fileCount = writeProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, new OutputSupplier<OutputStream>() {
+          @Override
+          public OutputStream getOutput() {
+            return zipFile;
+          }
+        }, projectName);
+
+    if (zipName == null) {
+      zipName = projectName.t + ".aia";
+    }
+    ProjectSourceZip projectSourceZip =
+        new ProjectSourceZip(zipName, zipFile.toByteArray(), fileCount);
+    projectSourceZip.setMetadata(projectName.t);
+    return projectSourceZip;
+  }
+
+  @Override
+  public int streamProjectSourceZip(String userId, long projectId, boolean includeProjectHistory,
+      boolean includeAndroidKeystore, OutputSupplier<? extends OutputStream> output)
+      throws IOException {
+    return writeProjectSourceZip(userId, projectId, includeProjectHistory,
+        includeAndroidKeystore, output, new Result<String>());
+  }
+
+  /*
+   * Writes the zip of a project's source files to the stream supplied by output, and returns the
+   * number of files in it. The content of files in GCS or the blobstore is read ahead of the file
+   * being written, up to MAX_CONCURRENT_READS files at a time, so that only those files are in
+   * memory at once. The stream is only asked for once the project is known to have files. Sets
+   * projectName.t to the name of the project.
+   */
+  private int writeProjectSourceZip(final String userId, final long projectId,
+      final boolean includeProjectHistory, final boolean includeAndroidKeystore,
+      OutputSupplier<? extends OutputStream> output, final Result<String> projectName)
+      throws IOException {
+    int fileCount = 0;
     final Result<String> projectHistory = new Result<String>();
     projectHistory.t = null;
+    final Result<byte[]> androidKeystore = new Result<byte[]>();
     // We collect up all the file data for the project in a transaction but
     // then we read the data and write the zip file outside of the transaction
     // to avoid problems reading blobs in a transaction with the wrong
     // entity group.
     final List<FileData> fileData = new ArrayList<FileData>();
-    final Result<String> projectName = new Result<String>();
     projectName.t = null;
     String fileName = null;
 
-    ByteArrayOutputStream zipFile = new ByteArrayOutputStream();
-    final ZipOutputStream out = new ZipOutputStream(zipFile);
-
     try {
       runJobWithRetries(new JobRetryHelper() {
         @Override
         public void run(Objectify datastore) {
+          fileData.clear();
           Key<ProjectData> projectKey = projectKey(projectId);
           boolean foundFiles = false;
           for (FileData fd : datastore.query(FileData.class).ancestor(projectKey)) {
@@ -1749,113 +2480,107 @@ public class ObjectifyStorageIo implements  StorageIo {
           }
         }
       });
+    } catch (ObjectifyException e) {
+      CrashReport.createAndLogError(LOG, null,
+          collectProjectErrorInfo(userId, projectId, fileName), e);
+      throw new IOException("Reflecting exception for userid " + userId +
+          " projectId " + projectId + ", original exception " + e.getMessage());
+    }
 
-      // Process the file contents outside of the job since we can't read
-      // blobs in the job.
-      for (FileData fd : fileData) {
-        fileName = fd.fileName;
-        byte[] data;
-        if (fd.isBlob) {
-          try {
-            data = getBlobstoreBytes(fd.blobstorePath);
-          } catch (BlobReadException e) {
-            throw CrashReport.createAndLogError(LOG, null,
-                collectProjectErrorInfo(userId, projectId, fileName), e);
-          }
-        } else if (fd.isGCS) {
-          try {
-            GcsFilename gcsFileName = new GcsFilename(GCS_BUCKET_NAME, fd.gcsName);
-            int bytesRead = 0;
-            int fileSize = (int) gcsService.getMetadata(gcsFileName).getLength();
-            ByteBuffer resultBuffer = ByteBuffer.allocate(fileSize);
-            GcsInputChannel readChannel = gcsService.openReadChannel(gcsFileName, 0);
-            try {
-              while (bytesRead < fileSize) {
-                bytesRead += readChannel.read(resultBuffer);
-                if (bytesRead < fileSize) {
-                  LOG.log(Level.INFO, "readChannel: bytesRead = " + bytesRead + " fileSize = " + fileSize);
+    if (fileData.isEmpty()) {
+      // can't close out since will get a ZipException due to the lack of files
+      throw new IllegalArgumentException("No files to download");
+    }
+
+    if (includeAndroidKeystore) {
+      try {
+        runJobWithRetries(new JobRetryHelper() {
+            @Override
+            public void run(Objectify datastore) {
+              Key<UserData> userKey = userKey(userId);
+              for (UserFileData ufd : datastore.query(UserFileData.class).ancestor(userKey)) {
+                if (ufd.fileName.equals(StorageUtil.ANDROID_KEYSTORE_FILENAME) &&
+                    (ufd.content.length > 0)) {
+                  androidKeystore.t = ufd.content;
                 }
               }
-            } finally {
-              readChannel.close();
             }
-            data = resultBuffer.array();
-          } catch (IOException e) {
-            throw CrashReport.createAndLogError(LOG, null,
-              collectProjectErrorInfo(userId, projectId, fileName), e);
+          });
+      } catch (ObjectifyException e) {
+        throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
+      }
+    }
+
+    ZipOutputStream out = new ZipOutputStream(output.getOutput());
+    // Process the file contents outside of the job since we can't read
+    // blobs in the job.
+    ExecutorService executor = null;
+    try {
+      Deque<Future<byte[]>> reads = new ArrayDeque<Future<byte[]>>();
+      Iterator<FileData> filesToRead = fileData.iterator();
+      for (FileData fd : fileData) {
+        while (reads.size() < MAX_CONCURRENT_READS && filesToRead.hasNext()) {
+          final FileData fileToRead = filesToRead.next();
+          if (!(fileToRead.isGCS || fileToRead.isBlob)) {
+            // The content is already here.
+            reads.add(Futures.immediateFuture(
+                getFileContent(userId, projectId, fileToRead.fileName, fileToRead)));
+            continue;
           }
-        } else {
-          data = fd.content;
-        }
-        if (data == null) {     // This happens if file creation is interrupted
-          data = new byte[0];
+          if (executor == null) {
+            executor = Executors.newFixedThreadPool(MAX_CONCURRENT_READS,
+                ThreadManager.currentRequestThreadFactory());
+          }
+          reads.add(executor.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+              return getFileContent(userId, projectId, fileToRead.fileName, fileToRead);
+            }
+          }));
         }
+        fileName = fd.fileName;
+        byte[] data = reads.remove().get();
         out.putNextEntry(new ZipEntry(fileName));
         out.write(data, 0, data.length);
         out.closeEntry();
-        fileCount.t++;
+        fileCount++;
       }
       if (projectHistory.t != null) {
         byte[] data = projectHistory.t.getBytes(StorageUtil.DEFAULT_CHARSET);
         out.putNextEntry(new ZipEntry(FileExporter.REMIX_INFORMATION_FILE_PATH));
         out.write(data, 0, data.length);
         out.closeEntry();
-        fileCount.t++;
+        fileCount++;
       }
-    } catch (ObjectifyException e) {
+      if (androidKeystore.t != null) {
+        out.putNextEntry(new ZipEntry(StorageUtil.ANDROID_KEYSTORE_FILENAME));
+        out.write(androidKeystore.t, 0, androidKeystore.t.length);
+        out.closeEntry();
+        fileCount++;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
       CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(userId, projectId, fileName), e);
       throw new IOException("Reflecting exception for userid " + userId +
           " projectId " + projectId + ", original exception " + e.getMessage());
+    } catch (ExecutionException e) {
+      // getFileContent() has already logged the error.
+      throw new IOException("Reflecting exception for userid " + userId +
+          " projectId " + projectId + ", original exception " + e.getCause().getMessage());
     } catch (RuntimeException e) {
       CrashReport.createAndLogError(LOG, null,
           collectProjectErrorInfo(userId, projectId, fileName), e);
       throw new IOException("Reflecting exception for userid " + userId +
           " projectId " + projectId + ", original exception " + e.getMessage());
-    }
-
-    if (fileCount.t == 0) {
-      // can't close out since will get a ZipException due to the lack of files
-      throw new IllegalArgumentException("No files to download");
-    }
-
-    if (includeAndroidKeystore) {
-      try {
-        runJobWithRetries(new JobRetryHelper() {
-            @Override
-            public void run(Objectify datastore) {
-              try {
-                Key<UserData> userKey = userKey(userId);
-                for (UserFileData ufd : datastore.query(UserFileData.class).ancestor(userKey)) {
-                  if (ufd.fileName.equals(StorageUtil.ANDROID_KEYSTORE_FILENAME) &&
-                      (ufd.content.length > 0)) {
-                    out.putNextEntry(new ZipEntry(StorageUtil.ANDROID_KEYSTORE_FILENAME));
-                    out.write(ufd.content, 0, ufd.content.length);
-                    out.closeEntry();
-                    fileCount.t++;
-                  }
-                }
-              } catch (IOException e) {
-                throw CrashReport.createAndLogError(LOG, null,
-                    collectProjectErrorInfo(userId, projectId,
-                        StorageUtil.ANDROID_KEYSTORE_FILENAME), e);
-              }
-            }
-          });
-      } catch (ObjectifyException e) {
-        throw CrashReport.createAndLogError(LOG, null, collectUserErrorInfo(userId), e);
+    } finally {
+      if (executor != null) {
+        executor.shutdownNow();
       }
     }
 
     out.close();
-
-    if (zipName == null) {
-      zipName = projectName.t + ".aia";
-    }
-    ProjectSourceZip projectSourceZip =
-        new ProjectSourceZip(zipName, zipFile.toByteArray(), fileCount.t);
-    projectSourceZip.setMetadata(projectName.t);
-    return projectSourceZip;
+    return fileCount;
   }
 
   @Override
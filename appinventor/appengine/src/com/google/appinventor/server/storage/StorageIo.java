@@ -13,10 +13,13 @@ import com.google.appinventor.shared.rpc.project.Project;
 import com.google.appinventor.shared.rpc.project.ProjectSourceZip;
 import com.google.appinventor.shared.rpc.project.UserProject;
 import com.google.appinventor.shared.rpc.user.User;
+import com.google.common.io.OutputSupplier;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 import javax.annotation.Nullable;
@@ -156,6 +159,15 @@ public interface StorageIo {
    */
   List<Long> getProjects(String userId);
 
+  /**
+   * Returns the metadata of all of the user's projects. It is read together,
+   * rather than a project at a time as with {@link #getUserProject}.
+   *
+   * @param userId  user ID
+   * @return  list of projects
+   */
+  List<UserProject> getUserProjects(String userId);
+
   /**
    * sets a projects gallery id when it is published
    * @param userId a user Id (the request is made on behalf of this user)*
@@ -325,6 +337,21 @@ public interface StorageIo {
    */
   int getMaxJobSizeBytes();
 
+  /**
+   * Copies source files from one project to another. The content of files
+   * stored in Blobstore or GCS isn't copied: the files share it until either of
+   * them is changed, so copying a project costs the same however big its
+   * assets are.
+   * @param userId a user Id (the request is made on behalf of this user)
+   * @param fromProjectId  project ID of the project to copy the files from
+   * @param toProjectId  project ID of the project to copy the files to
+   * @param fileIds  the ID of each file to copy, mapped to its ID in the
+   *                 project it is copied to
+   * @return modification date for the project the files are copied to
+   */
+  long copySourceFiles(String userId, long fromProjectId, long toProjectId,
+      Map<String, String> fileIds);
+
   /**
    * Adds file IDs to the project's list of source files, updating the
    * modification date of the project if requested.  Note that no
@@ -485,6 +512,16 @@ public interface StorageIo {
    */
   byte[] downloadRawFile(String userId, long projectId, String fileId);
 
+  /**
+   * Downloads the raw data of several files of a project at once.
+   * @param userId a user Id (the request is made on behalf of this user)
+   * @param projectId  project ID
+   * @param fileIds  file IDs
+   *
+   * @return  the content of each file, in the same order as {@code fileIds}
+   */
+  List<byte[]> downloadRawFiles(String userId, long projectId, List<String> fileIds);
+
   // MOTD management
 
   /**
@@ -509,6 +546,22 @@ public interface StorageIo {
                                           boolean includeAndroidKeystore,
                                           @Nullable String zipName) throws IOException;
 
+  /**
+   *  Exports project files as a zip archive, writing it to a stream as the
+   *  content of the files is read, rather than building it in memory.
+   * @param userId a user Id (the request is made on behalf of this user)
+   * @param projectId  project ID
+   * @param includeProjectHistory  whether or not to include the project history
+   * @param includeAndroidKeystore  whether or not to include the Android keystore
+   * @param output  supplies the stream to write the zip file to. It is only
+   *                asked for once the project is known to have files to export.
+   *
+   * @return  the number of files in the zip file
+   */
+  int streamProjectSourceZip(String userId, long projectId, boolean includeProjectHistory,
+                             boolean includeAndroidKeystore,
+                             OutputSupplier<? extends OutputStream> output) throws IOException;
+
   /**
    * Find a user's id given their email address. Note that this query is case
    * sensitive!
@@ -556,4 +609,15 @@ public interface StorageIo {
   // Cleanup expired nonces
   void cleanupNonces();
 
+  /**
+   * Deletes asset content that no project file has pointed at for a while.
+   * Asset content is kept once however many files have it, and is deleted
+   * here rather than when its last file is deleted or changed, so that it
+   * can be used again by files added in the meantime. Only a limited amount
+   * of content is deleted per call.
+   *
+   * @return the number of contents deleted
+   */
+  int collectOrphanedContent();
+
 }
@@ -178,6 +178,48 @@ public class StoredData {
 
     // DateTime of last backup only used if GCS is enabled
     long lastBackup;
+
+    // Is the Blobstore or GCS content of this file shared with a copy of it in another project. If
+    // it is, the content must not be changed or deleted in place. See SharedContentData.
+    boolean isShared;
+
+    // The SHA-256 of the content of an asset, as a hex string, if the content is kept in the
+    // content store. If it is, the Blobstore or GCS content belongs to the ContentData with this
+    // hash and must not be changed or deleted in place.
+    String contentHash;
+  }
+
+  // The number of project files that point at the same Blobstore or GCS content, for content that
+  // was shared when a project was copied. Content without a SharedContentData belongs to one file.
+  // Each SharedContentData is an entity root of its own.
+  @Unindexed
+  static final class SharedContentData {
+    // "blob:" followed by the Blobstore path, or "gcs:" followed by the GCS file name
+    @Id String contentId;
+
+    // The number of files that point at the content, always more than one
+    int references;
+  }
+
+  // The content store: asset content that is kept once, however many project files have it. Each
+  // ContentData is an entity root of its own. Content that no file points at any more is kept for
+  // a while, so that it can be used again, before it is garbage collected.
+  @Unindexed
+  static final class ContentData {
+    // The SHA-256 of the content, as a hex string
+    @Id String contentHash;
+
+    // Where the content is kept, as in FileData
+    boolean isBlob;
+    String blobstorePath;
+    boolean isGCS;
+    String gcsName;
+
+    // The number of files that point at the content
+    int references;
+
+    // When the last file that pointed at the content stopped doing so, or 0 while any file does
+    @Indexed long orphanedSince;
   }
 
   // MOTD data.
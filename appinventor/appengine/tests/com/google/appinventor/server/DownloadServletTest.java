@@ -13,16 +13,22 @@ import com.riq.MockHttpServletResponse;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
 import org.powermock.api.easymock.PowerMock;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.List;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.fail;
+import static org.easymock.EasyMock.anyLong;
+import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.isA;
 
 /**
  * Tests for {@link DownloadServlet}. Mocks out FileExporter. Mainly tests
@@ -66,6 +72,25 @@ public class DownloadServletTest {
     dummyFile = new RawFile(DUMMY_FILENAME, new byte[] {});
   }
 
+  /*
+   * Answers a call to one of the FileExporter.stream* methods by writing the content of the given
+   * zip to its destination.
+   */
+  private static IAnswer<Integer> streamZip(final ProjectSourceZip zip) {
+    return new IAnswer<Integer>() {
+      @Override
+      public Integer answer() throws IOException {
+        Object[] arguments = EasyMock.getCurrentArguments();
+        FileExporter.Destination destination =
+            (FileExporter.Destination) arguments[arguments.length - 1];
+        OutputStream out = destination.open(zip.getFileName());
+        out.write(zip.getContent());
+        out.close();
+        return zip.getFileCount();
+      }
+    };
+  }
+
   private void checkResponseHeader(MockHttpServletResponse response, String header) {
     List cd = (List) response.getHeader("content-disposition");
     assertEquals(header, cd.get(0));
@@ -76,8 +101,9 @@ public class DownloadServletTest {
   public void testDownloadProjectSourceZipWithoutTitle() throws Exception {
     MockHttpServletRequest request = new MockHttpServletRequest(DOWNLOAD_URL +
         "project-source/1234");
-    expect(exporterMock.exportProjectSourceZip(USER_ID, PROJECT_ID, true, false, null))
-        .andReturn(dummyZip);
+    expect(exporterMock.streamProjectSourceZip(eq(USER_ID), eq(PROJECT_ID), eq(true), eq(false),
+        EasyMock.<String>isNull(), isA(FileExporter.Destination.class)))
+        .andAnswer(streamZip(dummyZip));
     PowerMock.replayAll();
     DownloadServlet download = new DownloadServlet();
     MockHttpServletResponse response = new MockHttpServletResponse();
@@ -91,9 +117,9 @@ public class DownloadServletTest {
   public void testDownloadProjectSourceZipWithTitle() throws IOException {
     MockHttpServletRequest request = new MockHttpServletRequest(DOWNLOAD_URL +
         "project-source/1234/My Project Title 123");
-    expect(exporterMock.exportProjectSourceZip(USER_ID, PROJECT_ID, true, false,
-                                               "MyProjectTitle123.aia"))
-        .andReturn(dummyZipWithTitle);
+    expect(exporterMock.streamProjectSourceZip(eq(USER_ID), eq(PROJECT_ID), eq(true), eq(false),
+        eq("MyProjectTitle123.aia"), isA(FileExporter.Destination.class)))
+        .andAnswer(streamZip(dummyZipWithTitle));
     PowerMock.replayAll();
     DownloadServlet download = new DownloadServlet();
     MockHttpServletResponse response = new MockHttpServletResponse();
@@ -108,7 +134,8 @@ public class DownloadServletTest {
     IllegalArgumentException expectedException = new IllegalArgumentException();
     MockHttpServletRequest request = new MockHttpServletRequest(DOWNLOAD_URL +
         "project-source/12345");
-    expect(exporterMock.exportProjectSourceZip(USER_ID, 12345L, true, false, null))
+    expect(exporterMock.streamProjectSourceZip(eq(USER_ID), eq(12345L), eq(true), eq(false),
+        EasyMock.<String>isNull(), isA(FileExporter.Destination.class)))
         .andThrow(expectedException);
     PowerMock.replayAll();
     DownloadServlet download = new DownloadServlet();
@@ -241,6 +268,34 @@ public class DownloadServletTest {
     PowerMock.verifyAll();
     }
 
-  // TODO(user): Add testDownloadAllProjectsSource* to test
-  // downloading all projects.
+  @Test
+  public void testDownloadAllProjectsSource() throws IOException {
+    MockHttpServletRequest request = new MockHttpServletRequest(DOWNLOAD_URL +
+        "all-projects-source");
+    expect(exporterMock.streamAllProjectsSourceZip(eq(USER_ID), eq(0L), anyLong(),
+        eq("http://localhost:80/ode/download/all-projects-source"), eq("all-projects.zip"), isA(FileExporter.Destination.class)))
+        .andAnswer(streamZip(new ProjectSourceZip("all-projects.zip", new byte[] {}, 2)));
+    PowerMock.replayAll();
+    DownloadServlet download = new DownloadServlet();
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    download.doGet(request, response);
+    checkResponseHeader(response, "attachment; filename=\"all-projects.zip\"");
+    assertEquals("application/zip; charset=utf-8", response.getContentType());
+    PowerMock.verifyAll();
+  }
+
+  @Test
+  public void testDownloadAllProjectsSourceFromProject() throws IOException {
+    MockHttpServletRequest request = new MockHttpServletRequest(DOWNLOAD_URL +
+        "all-projects-source/40");
+    expect(exporterMock.streamAllProjectsSourceZip(eq(USER_ID), eq(40L), anyLong(),
+        eq("http://localhost:80/ode/download/all-projects-source"), eq("all-projects-40.zip"), isA(FileExporter.Destination.class)))
+        .andAnswer(streamZip(new ProjectSourceZip("all-projects-40.zip", new byte[] {}, 2)));
+    PowerMock.replayAll();
+    DownloadServlet download = new DownloadServlet();
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    download.doGet(request, response);
+    checkResponseHeader(response, "attachment; filename=\"all-projects-40.zip\"");
+    PowerMock.verifyAll();
+  }
 }
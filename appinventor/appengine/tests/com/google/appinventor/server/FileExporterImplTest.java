@@ -20,6 +20,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
@@ -125,6 +126,39 @@ public class FileExporterImplTest extends LocalDatastoreTestCase {
         StorageUtil.DEFAULT_CHARSET));
   }
 
+  public void testStreamProjectSourceZip() throws IOException {
+    final ByteArrayOutputStream zip = new ByteArrayOutputStream();
+    final String[] zipName = new String[1];
+    int fileCount = exporter.streamProjectSourceZip(USER_ID, projectId, true, false, null,
+        new FileExporter.Destination() {
+          @Override
+          public OutputStream open(String fileName) {
+            zipName[0] = fileName;
+            return zip;
+          }
+        });
+    assertEquals(PROJECT_NAME + ".aia", zipName[0]);
+    Map<String, byte[]> content = testExportProjectSourceZipHelper(
+        new ProjectSourceZip(zipName[0], zip.toByteArray(), fileCount));
+    assertEquals(3, content.size());
+  }
+
+  public void testStreamProjectSourceZipWithNonExistingProject() throws IOException {
+    try {
+      exporter.streamProjectSourceZip(USER_ID, projectId + 1, false, false, null,
+          new FileExporter.Destination() {
+            @Override
+            public OutputStream open(String fileName) {
+              fail();
+              return null;
+            }
+          });
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
   public void testExportProjectSourceZipWithNonExistingProject() throws IOException {
     try {
       exporter.exportProjectSourceZip(USER_ID, projectId + 1, false, false, null);
@@ -167,5 +201,63 @@ public class FileExporterImplTest extends LocalDatastoreTestCase {
     }
   }
 
-  // TODO(user): Add test of exportAllProjectsSourceZip().
+  private static Map<String, byte[]> streamAllProjectsSourceZipHelper(FileExporterImpl exporter,
+      long afterProjectId, long deadlineMillis) throws IOException {
+    final ByteArrayOutputStream zip = new ByteArrayOutputStream();
+    int fileCount = exporter.streamAllProjectsSourceZip(USER_ID, afterProjectId, deadlineMillis,
+        "http://localhost/ode/download/all-projects-source", "all-projects.zip",
+        new FileExporter.Destination() {
+          @Override
+          public OutputStream open(String fileName) {
+            return zip;
+          }
+        });
+    ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zip.toByteArray()));
+    Map<String, byte[]> content = new HashMap<String, byte[]>();
+    ZipEntry zipEntry;
+    while ((zipEntry = zis.getNextEntry()) != null) {
+      content.put(zipEntry.getName(), ByteStreams.toByteArray(zis));
+    }
+    assertEquals(content.size(), fileCount);
+    return content;
+  }
+
+  public void testStreamAllProjectsSourceZip() throws IOException {
+    Map<String, byte[]> content = streamAllProjectsSourceZipHelper(exporter, 0, Long.MAX_VALUE);
+    assertEquals(1, content.size());
+    testExportProjectSourceZipHelper(new ProjectSourceZip(PROJECT_NAME + ".aia",
+        content.get(PROJECT_NAME + ".aia"), 2));
+  }
+
+  public void testStreamAllProjectsSourceZipInParts() throws IOException {
+    Project project = new Project("Project2");
+    project.setProjectType(FAKE_PROJECT_TYPE);
+    project.addTextFile(new TextFile(FORM1_QUALIFIED_NAME, FORM1_CONTENT));
+    long project2Id = storageIo.createProject(USER_ID, project, SETTINGS);
+
+    // Once the deadline has passed, only the project already started is written.
+    Map<String, byte[]> content = streamAllProjectsSourceZipHelper(exporter, 0, 0);
+    assertEquals(2, content.size());
+    assertTrue(content.containsKey(PROJECT_NAME + ".aia"));
+    String moreProjects = new String(content.get(FileExporterImpl.MORE_PROJECTS_FILE_NAME),
+        StorageUtil.DEFAULT_CHARSET);
+    assertTrue(moreProjects.contains(
+        "\nhttp://localhost/ode/download/all-projects-source/" + projectId + "\n"));
+
+    // A project deleted before the next part is downloaded doesn't make it skip the others.
+    storageIo.deleteProject(USER_ID, projectId);
+    content = streamAllProjectsSourceZipHelper(exporter, projectId, 0);
+    assertEquals(1, content.size());
+    assertTrue(content.containsKey("Project2.aia"));
+    assertTrue(project2Id > projectId);
+  }
+
+  public void testStreamAllProjectsSourceZipWithNoMoreProjects() throws IOException {
+    try {
+      streamAllProjectsSourceZipHelper(exporter, projectId, Long.MAX_VALUE);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
 }
@@ -0,0 +1,301 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2014 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.server.project.youngandroid;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link BuildServerPool}.
+ *
+ */
+public class BuildServerPoolTest extends TestCase {
+
+  private long nowMs;
+  // The /vars page of each host, or null if the host is down.
+  private final Map<String, String> varsPages = Maps.newHashMap();
+  private final AtomicInteger polls = new AtomicInteger();
+  // The contents of memcache, shared by all the pools of a test.
+  private final Map<Object, Object> memcacheValues = Maps.newHashMap();
+
+  private BuildServerPool pool;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    nowMs = 1000000;
+    pool = newPool();
+  }
+
+  private BuildServerPool newPool() {
+    return new BuildServerPool("a:9990, b:9990,c:9990", newMemcache()) {
+      @Override
+      String fetch(URL url) throws IOException {
+        polls.incrementAndGet();
+        String host = url.getHost() + ":" + url.getPort();
+        String varsPage = varsPages.get(host);
+        if (varsPage == null) {
+          throw new IOException("Connection refused");
+        }
+        return varsPage;
+      }
+
+      @Override
+      ThreadFactory getPollThreadFactory() {
+        return Executors.defaultThreadFactory();
+      }
+
+      @Override
+      long currentTimeMillis() {
+        return nowMs;
+      }
+    };
+  }
+
+  /*
+   * Returns a memcache that keeps values in memcacheValues. Only get and put are supported.
+   */
+  private MemcacheService newMemcache() {
+    return (MemcacheService) Proxy.newProxyInstance(MemcacheService.class.getClassLoader(),
+        new Class<?>[] { MemcacheService.class }, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("get")) {
+              return memcacheValues.get(args[0]);
+            } else if (method.getName().equals("put")) {
+              memcacheValues.put(args[0], args[1]);
+              return null;
+            }
+            throw new UnsupportedOperationException(method.getName());
+          }
+        });
+  }
+
+  private static String vars(String version, int active, int max, int queued, int maxQueued) {
+    return "<html><body><tt>"
+        + "<b>buildserver-version</b> " + version + "<br>"
+        + "<b>maximum-simultaneous-build-tasks-allowed</b> " + max + "<br>"
+        + "<b>active-build-tasks</b> " + active + "<br>"
+        + "<b>maximum-queued-builds-allowed</b> " + maxQueued + "<br>"
+        + "<b>queued-builds</b> " + queued + "<br>"
+        + "</tt></body></html>";
+  }
+
+  public void testLeastLoadedServerFirst() {
+    varsPages.put("a:9990", vars("v1", 8, 10, 2, 10));
+    varsPages.put("b:9990", vars("v1", 1, 10, 0, 10));
+    varsPages.put("c:9990", vars("v1", 5, 10, 0, 10));
+    assertEquals(ImmutableList.of("b:9990", "c:9990", "a:9990"),
+        pool.getServersForBuild("v1", "build1"));
+  }
+
+  public void testFullServerLast() {
+    varsPages.put("a:9990", vars("v1", 2, 2, 4, 4));
+    varsPages.put("b:9990", vars("v1", 9, 10, 9, 10));
+    varsPages.put("c:9990", null);
+    assertEquals(ImmutableList.of("b:9990", "a:9990", "c:9990"),
+        pool.getServersForBuild("v1", "build1"));
+  }
+
+  public void testIncompatibleServersAreSkipped() {
+    varsPages.put("a:9990", vars("v2", 0, 10, 0, 10));
+    varsPages.put("b:9990", vars("v1", 5, 10, 0, 10));
+    varsPages.put("c:9990", vars("v1", 6, 10, 0, 10));
+    assertEquals(ImmutableList.of("b:9990", "c:9990"),
+        pool.getServersForBuild("v1", "build1"));
+    assertEquals(ImmutableList.of("a:9990", "b:9990", "c:9990"),
+        pool.getServersForBuild(null, "build1"));
+
+    // A server that turns a build away as incompatible isn't used until it is polled again.
+    pool.recordIncompatible("b:9990", "v1");
+    assertEquals(ImmutableList.of("c:9990"),
+        pool.getServersForBuild("v1", "build1"));
+    nowMs += BuildServerPool.POLL_INTERVAL_MS;
+    assertEquals(ImmutableList.of("b:9990", "c:9990"),
+        pool.getServersForBuild("v1", "build1"));
+  }
+
+  public void testStatusIsPolledAtMostOncePerInterval() {
+    varsPages.put("a:9990", vars("v1", 0, 10, 0, 10));
+    varsPages.put("b:9990", vars("v1", 0, 10, 0, 10));
+    varsPages.put("c:9990", vars("v1", 0, 10, 0, 10));
+    pool.getServersForBuild("v1", "build1");
+    assertEquals(3, polls.get());
+    pool.getServersForBuild("v1", "build1");
+    assertEquals(3, polls.get());
+    nowMs += BuildServerPool.POLL_INTERVAL_MS;
+    pool.getServersForBuild("v1", "build1");
+    assertEquals(6, polls.get());
+  }
+
+  public void testServersArePolledInParallel() throws Exception {
+    final CountDownLatch allPolling = new CountDownLatch(3);
+    BuildServerPool slowPool = new BuildServerPool("a:9990,b:9990,c:9990", newMemcache()) {
+      @Override
+      String fetch(URL url) throws IOException {
+        // Each poll waits until all three are in progress, which only happens if they run at once.
+        allPolling.countDown();
+        try {
+          if (!allPolling.await(10, TimeUnit.SECONDS)) {
+            throw new IOException("Timed out");
+          }
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        return vars("v1", 0, 10, 0, 10);
+      }
+
+      @Override
+      ThreadFactory getPollThreadFactory() {
+        return Executors.defaultThreadFactory();
+      }
+    };
+    assertEquals(3, slowPool.getServersForBuild("v1", "build1").size());
+  }
+
+  public void testBuildsAreSpreadBetweenPolls() {
+    varsPages.put("a:9990", vars("v1", 0, 2, 0, 10));
+    varsPages.put("b:9990", vars("v1", 1, 2, 0, 10));
+    varsPages.put("c:9990", vars("v1", 1, 2, 0, 10));
+    assertEquals("a:9990", pool.getServersForBuild("v1", "build1").get(0));
+    pool.recordBuild("a:9990", "build2");
+    pool.recordBuild("a:9990", "build3");
+    assertEquals("b:9990", pool.getServersForBuild("v1", "build1").get(0));
+  }
+
+  public void testCircuitBreaker() {
+    varsPages.put("a:9990", vars("v1", 0, 10, 0, 10));
+    varsPages.put("b:9990", vars("v1", 5, 10, 0, 10));
+    varsPages.put("c:9990", vars("v1", 6, 10, 0, 10));
+    assertEquals("a:9990", pool.getServersForBuild("v1", "build1").get(0));
+    for (int i = 0; i < BuildServerPool.FAILURE_THRESHOLD; i++) {
+      pool.recordFailure("a:9990");
+    }
+    assertEquals(ImmutableList.of("b:9990", "c:9990"),
+        pool.getServersForBuild("v1", "build1"));
+
+    // Once the circuit has been open for a while, the server is polled again and used if it's up.
+    nowMs += BuildServerPool.CIRCUIT_OPEN_MS;
+    assertEquals("a:9990", pool.getServersForBuild("v1", "build1").get(0));
+
+    // If it's still down, it's left out again.
+    for (int i = 0; i < BuildServerPool.FAILURE_THRESHOLD; i++) {
+      pool.recordFailure("a:9990");
+    }
+    nowMs += BuildServerPool.CIRCUIT_OPEN_MS;
+    varsPages.put("a:9990", null);
+    assertEquals(ImmutableList.of("b:9990", "c:9990"),
+        pool.getServersForBuild("v1", "build1"));
+  }
+
+  public void testHalfOpenCircuitLetsOneTrialThrough() {
+    varsPages.put("b:9990", vars("v1", 5, 10, 0, 10));
+    varsPages.put("c:9990", vars("v1", 6, 10, 0, 10));
+    pool.getServersForBuild("v1", "build1");
+    for (int i = 1; i < BuildServerPool.FAILURE_THRESHOLD; i++) {
+      pool.recordFailure("a:9990");
+    }
+
+    // Once the circuit has been open for a while, a single poll of the server is let through.
+    // It fails, so the circuit opens again and no other request is let through.
+    nowMs += BuildServerPool.CIRCUIT_OPEN_MS;
+    int pollsBefore = polls.get();
+    assertEquals(ImmutableList.of("b:9990", "c:9990"),
+        pool.getServersForBuild("v1", "build1"));
+    assertEquals(pollsBefore + 3, polls.get());
+    varsPages.put("a:9990", vars("v1", 0, 10, 0, 10));
+    assertEquals(ImmutableList.of("b:9990", "c:9990"),
+        pool.getServersForBuild("v1", "build1"));
+    nowMs += BuildServerPool.POLL_INTERVAL_MS;
+    assertEquals(ImmutableList.of("b:9990", "c:9990"),
+        pool.getServersForBuild("v1", "build1"));
+    assertEquals(pollsBefore + 5, polls.get());
+
+    // The next trial succeeds, which closes the circuit.
+    nowMs += BuildServerPool.CIRCUIT_OPEN_MS;
+    assertEquals(ImmutableList.of("a:9990", "b:9990", "c:9990"),
+        pool.getServersForBuild("v1", "build1"));
+    assertEquals(ImmutableList.of("a:9990", "b:9990", "c:9990"),
+        pool.getServersForBuild("v1", "build1"));
+  }
+
+  public void testFailedPollsOpenCircuit() {
+    varsPages.put("b:9990", vars("v1", 0, 10, 0, 10));
+    varsPages.put("c:9990", vars("v1", 0, 10, 0, 10));
+    // A server whose poll failed is still tried, after the others, until the circuit opens.
+    for (int i = 0; i < BuildServerPool.FAILURE_THRESHOLD - 1; i++) {
+      assertEquals("a:9990", pool.getServersForBuild("v1", "build1").get(2));
+      nowMs += BuildServerPool.POLL_INTERVAL_MS;
+    }
+    assertFalse(pool.getServersForBuild("v1", "build1").contains("a:9990"));
+  }
+
+  public void testPreviousServerOfBuildFirst() {
+    varsPages.put("a:9990", vars("v1", 0, 10, 0, 10));
+    varsPages.put("b:9990", vars("v1", 5, 10, 0, 10));
+    varsPages.put("c:9990", vars("v1", 6, 10, 0, 10));
+    pool.recordBuild("c:9990", "build2");
+    assertEquals(ImmutableList.of("a:9990", "b:9990", "c:9990"),
+        pool.getServersForBuild("v1", "build1"));
+    assertEquals(ImmutableList.of("c:9990", "a:9990", "b:9990"),
+        pool.getServersForBuild("v1", "build2"));
+  }
+
+  public void testServerOfBuild() {
+    assertEquals("a:9990", pool.getServerOfBuild("build1"));
+    pool.recordBuild("c:9990", "build1");
+    assertEquals("c:9990", pool.getServerOfBuild("build1"));
+  }
+
+  public void testServerOfBuildIsSharedBetweenInstances() {
+    pool.recordBuild("b:9990", "build1");
+    BuildServerPool otherInstance = newPool();
+    assertEquals("b:9990", otherInstance.getServerOfBuild("build1"));
+
+    // The latest build of a project, from any instance, wins.
+    otherInstance.recordBuild("c:9990", "build1");
+    assertEquals("c:9990", pool.getServerOfBuild("build1"));
+
+    // An instance still knows the builds it sent if memcache loses them.
+    memcacheValues.clear();
+    assertEquals("b:9990", pool.getServerOfBuild("build1"));
+  }
+
+  public void testParseVariables() {
+    String varsPage = vars("v1", 3, 0, 1, 0).replace("</b> 0<", "</b> unlimited<");
+    Map<String, String> variables = BuildServerPool.parseVariables(varsPage);
+    assertEquals("v1", variables.get("buildserver-version"));
+    assertEquals("3", variables.get("active-build-tasks"));
+    assertEquals("unlimited", variables.get("maximum-simultaneous-build-tasks-allowed"));
+  }
+
+  public void testParseVariablesUnescapesHtml() {
+    String varsPage = "<html><body><tt>"
+        + "<b>build-time-histogram</b> &lt;=100ms: 2, &gt;100ms: 1<br>"
+        + "<b>a&amp;b</b> &quot;c&quot;<br>"
+        + "<b>active-build-tasks</b> 3<br>"
+        + "</tt></body></html>";
+    Map<String, String> variables = BuildServerPool.parseVariables(varsPage);
+    assertEquals("<=100ms: 2, >100ms: 1", variables.get("build-time-histogram"));
+    assertEquals("\"c\"", variables.get("a&b"));
+    assertEquals("3", variables.get("active-build-tasks"));
+  }
+}
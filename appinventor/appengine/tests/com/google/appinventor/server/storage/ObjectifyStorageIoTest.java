@@ -19,6 +19,7 @@ import com.google.appengine.api.files.LockException;
 import com.google.appengine.api.files.RecordReadChannel;
 import com.google.appengine.api.files.RecordWriteChannel;
 import com.google.appinventor.server.LocalDatastoreTestCase;
+import com.google.appinventor.server.storage.StoredData.ContentData;
 import com.google.appinventor.server.storage.StoredData.ProjectData;
 import com.google.appinventor.shared.rpc.BlocksTruncatedException;
 import com.google.appinventor.shared.rpc.project.Project;
@@ -28,6 +29,8 @@ import com.google.appinventor.shared.rpc.project.UserProject;
 import com.google.appinventor.shared.rpc.project.youngandroid.YoungAndroidProjectNode;
 import com.google.appinventor.shared.rpc.user.User;
 import com.google.appinventor.shared.storage.StorageUtil;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.ObjectifyService;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -35,7 +38,9 @@ import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.ConcurrentModificationException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Tests for {@link ObjectifyStorageIo}.
@@ -64,6 +69,8 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
   private static final String FORM_QUALIFIED_NAME = "com.yourdomain." + FORM_NAME;
   private static final String ASSET_FILE_NAME1 = "assets/kitty.jpg";
   private static final byte[] ASSET_FILE_CONTENT1 = { (byte) 0, (byte) 1, (byte) 32, (byte) 255};
+  private static final String ASSET_FILE_NAME2 = "assets/puppy.jpg";
+  private static final byte[] ASSET_FILE_CONTENT2 = { (byte) 255, (byte) 32, (byte) 1, (byte) 0};
   private static final String APK_FILE_NAME1 = "/ode/build/Android/HelloPurr.apk";
   private static final byte[] APK_FILE_CONTENT = { (byte) 0, (byte) 1, (byte) 32, (byte) 255};
   private static final String BLOCK_FILE_NAME = "src/blocks.blk";
@@ -492,6 +499,178 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
     // TODO(sharon): should test large blob files (e.g., >2MB (chunk size), >4MB (row size));
   }
 
+  public void testDownloadRawFiles() throws BlocksTruncatedException {
+    final String USER_ID = "1320";
+    storage.getUser(USER_ID);
+    long projectId = createProject(
+        USER_ID, PROJECT_NAME, YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE,
+        FORM_QUALIFIED_NAME);
+    storage.addSourceFilesToProject(USER_ID, projectId, false, ASSET_FILE_NAME1);
+    storage.uploadRawFile(projectId, ASSET_FILE_NAME1, USER_ID, true, ASSET_FILE_CONTENT1);
+    storage.addSourceFilesToProject(USER_ID, projectId, false, BLOCK_FILE_NAME);
+    storage.uploadRawFile(projectId, BLOCK_FILE_NAME, USER_ID, true, BLOCK_FILE_CONTENT);
+
+    List<byte[]> contents = storage.downloadRawFiles(USER_ID, projectId,
+        Arrays.asList(BLOCK_FILE_NAME, ASSET_FILE_NAME1, BLOCK_FILE_NAME));
+    assertEquals(3, contents.size());
+    assertTrue(Arrays.equals(BLOCK_FILE_CONTENT, contents.get(0)));
+    assertTrue(Arrays.equals(ASSET_FILE_CONTENT1, contents.get(1)));
+    assertTrue(Arrays.equals(BLOCK_FILE_CONTENT, contents.get(2)));
+
+    try {
+      storage.downloadRawFiles(USER_ID, projectId, Arrays.asList(BLOCK_FILE_NAME, "src/none"));
+      fail();
+    } catch (RuntimeException e) {
+      assertTrue(e.getCause() instanceof FileNotFoundException);
+    }
+  }
+
+  public void testCopySourceFilesSharesContentUntilChanged() throws BlocksTruncatedException {
+    final String USER_ID = "1330";
+    final byte[] NEW_CONTENT = { (byte) 9, (byte) 8, (byte) 7 };
+    storage.getUser(USER_ID);
+    long projectId1 = createProject(
+        USER_ID, PROJECT_NAME, YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE,
+        FORM_QUALIFIED_NAME);
+    storage.addSourceFilesToProject(USER_ID, projectId1, false, ASSET_FILE_NAME1);
+    storage.uploadRawFile(projectId1, ASSET_FILE_NAME1, USER_ID, true, ASSET_FILE_CONTENT1);
+    storage.addSourceFilesToProject(USER_ID, projectId1, false, BLOCK_FILE_NAME);
+    storage.uploadRawFile(projectId1, BLOCK_FILE_NAME, USER_ID, true, BLOCK_FILE_CONTENT);
+    long projectId2 = createProject(
+        USER_ID, "Project2", YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE,
+        FORM_QUALIFIED_NAME);
+    Map<String, String> fileNames = new HashMap<String, String>();
+    fileNames.put(ASSET_FILE_NAME1, ASSET_FILE_NAME1);
+    fileNames.put(BLOCK_FILE_NAME, "src/copy.blk");
+
+    storage.copySourceFiles(USER_ID, projectId1, projectId2, fileNames);
+
+    assertTrue(storage.getProjectSourceFiles(USER_ID, projectId2).contains("src/copy.blk"));
+    assertTrue(Arrays.equals(ASSET_FILE_CONTENT1,
+        storage.downloadRawFile(USER_ID, projectId2, ASSET_FILE_NAME1)));
+    assertTrue(Arrays.equals(BLOCK_FILE_CONTENT,
+        storage.downloadRawFile(USER_ID, projectId2, "src/copy.blk")));
+    assertTrue(storage.isBlobFile(projectId2, ASSET_FILE_NAME1));
+
+    // Changing the original leaves the copy as it was.
+    storage.uploadRawFile(projectId1, ASSET_FILE_NAME1, USER_ID, true, NEW_CONTENT);
+    assertTrue(Arrays.equals(NEW_CONTENT,
+        storage.downloadRawFile(USER_ID, projectId1, ASSET_FILE_NAME1)));
+    assertTrue(Arrays.equals(ASSET_FILE_CONTENT1,
+        storage.downloadRawFile(USER_ID, projectId2, ASSET_FILE_NAME1)));
+
+    // Deleting the original leaves the copy readable.
+    storage.deleteProject(USER_ID, projectId1);
+    assertTrue(Arrays.equals(ASSET_FILE_CONTENT1,
+        storage.downloadRawFile(USER_ID, projectId2, ASSET_FILE_NAME1)));
+  }
+
+  public void testContentStoreKeepsAssetsOnce() throws BlocksTruncatedException {
+    final String USER_ID = "1340";
+    // no blob creation fails, but we want to count created blobs
+    FailingBlobFileService countingFileService = new FailingBlobFileService(0);
+    ObjectifyStorageIo storageIo = new ObjectifyStorageIo(countingFileService);
+    storageIo.getUser(USER_ID);
+    long projectId1 = createProject(
+        USER_ID, PROJECT_NAME, YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE,
+        FORM_QUALIFIED_NAME, storageIo);
+    long projectId2 = createProject(
+        USER_ID, "Project2", YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE,
+        FORM_QUALIFIED_NAME, storageIo);
+    storageIo.addSourceFilesToProject(USER_ID, projectId1, false, ASSET_FILE_NAME1);
+    storageIo.uploadRawFile(projectId1, ASSET_FILE_NAME1, USER_ID, true, ASSET_FILE_CONTENT1);
+    storageIo.addSourceFilesToProject(USER_ID, projectId2, false, "assets/cat.jpg");
+    storageIo.uploadRawFile(projectId2, "assets/cat.jpg", USER_ID, true, ASSET_FILE_CONTENT1);
+    assertEquals(1, countingFileService.numBlobsCreated());
+
+    // Deleting one of the files leaves the content of the other.
+    storageIo.deleteProject(USER_ID, projectId1);
+    assertTrue(Arrays.equals(ASSET_FILE_CONTENT1,
+        storageIo.downloadRawFile(USER_ID, projectId2, "assets/cat.jpg")));
+
+    // Content that no file has is kept for a while, and used again if the same asset is added.
+    storageIo.deleteFile(USER_ID, projectId2, "assets/cat.jpg");
+    assertEquals(0, storageIo.collectOrphanedContent());
+    Project project = new Project("Project3");
+    project.setProjectType(YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE);
+    project.addRawFile(new RawFile(ASSET_FILE_NAME1, ASSET_FILE_CONTENT1));
+    long projectId3 = storageIo.createProject(USER_ID, project, SETTINGS);
+    assertTrue(Arrays.equals(ASSET_FILE_CONTENT1,
+        storageIo.downloadRawFile(USER_ID, projectId3, ASSET_FILE_NAME1)));
+    assertEquals(1, countingFileService.numBlobsCreated());
+  }
+
+  public void testOrphanedContentIsCollectedAfterGracePeriod() throws BlocksTruncatedException {
+    final String USER_ID = "1345";
+    BlobDeletionCountingObjectifyStorageIo storageIo =
+        new BlobDeletionCountingObjectifyStorageIo();
+    storageIo.getUser(USER_ID);
+    long projectId1 = createProject(
+        USER_ID, PROJECT_NAME, YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE,
+        FORM_QUALIFIED_NAME, storageIo);
+    long projectId2 = createProject(
+        USER_ID, "Project2", YoungAndroidProjectNode.YOUNG_ANDROID_PROJECT_TYPE,
+        FORM_QUALIFIED_NAME, storageIo);
+    storageIo.addSourceFilesToProject(USER_ID, projectId1, false,
+        ASSET_FILE_NAME1, ASSET_FILE_NAME2);
+    storageIo.uploadRawFile(projectId1, ASSET_FILE_NAME1, USER_ID, true, ASSET_FILE_CONTENT1);
+    storageIo.uploadRawFile(projectId1, ASSET_FILE_NAME2, USER_ID, true, ASSET_FILE_CONTENT2);
+
+    // Both contents are orphaned, and then one of them is used again within the grace period.
+    storageIo.deleteProject(USER_ID, projectId1);
+    storageIo.addSourceFilesToProject(USER_ID, projectId2, false, ASSET_FILE_NAME2);
+    storageIo.uploadRawFile(projectId2, ASSET_FILE_NAME2, USER_ID, true, ASSET_FILE_CONTENT2);
+    assertEquals(0, storageIo.collectOrphanedContent());
+    assertEquals(2, ObjectifyService.begin().query(ContentData.class).count());
+
+    // Once the grace period has passed, only the content that is still orphaned is collected,
+    // along with its blob.
+    String orphanedBlob = null;
+    Objectify datastore = ObjectifyService.begin();
+    for (ContentData content : datastore.query(ContentData.class)) {
+      if (content.orphanedSince > 0) {
+        content.orphanedSince -= ObjectifyStorageIo.ORPHANED_CONTENT_GRACE_MS + 1;
+        datastore.put(content);
+        orphanedBlob = content.blobstorePath;
+      }
+    }
+    assertNotNull(orphanedBlob);
+    int blobsDeleted = storageIo.deletedBlobs.size();
+    assertEquals(1, storageIo.collectOrphanedContent());
+    assertEquals(blobsDeleted + 1, storageIo.deletedBlobs.size());
+    assertTrue(storageIo.deletedBlobs.contains(orphanedBlob));
+    List<ContentData> remaining = ObjectifyService.begin().query(ContentData.class).list();
+    assertEquals(1, remaining.size());
+    assertEquals(1, remaining.get(0).references);
+    assertTrue(Arrays.equals(ASSET_FILE_CONTENT2,
+        storageIo.downloadRawFile(USER_ID, projectId2, ASSET_FILE_NAME2)));
+    assertEquals(0, storageIo.collectOrphanedContent());
+  }
+
+  public void testCachedMetadataIsInvalidatedAcrossInstances() throws BlocksTruncatedException {
+    final String USER_ID = "1350";
+    // Another App Engine instance, with a local cache of its own.
+    ObjectifyStorageIo otherStorage = new ObjectifyStorageIo();
+    storage.getUser(USER_ID);
+    long projectId = createProject(USER_ID, PROJECT_NAME, FAKE_PROJECT_TYPE, FORM_QUALIFIED_NAME);
+    assertEquals(PROJECT_NAME, otherStorage.getProjectName(USER_ID, projectId));
+    storage.getProjectDateModified(USER_ID, projectId);
+    assertEquals(1, storage.getUserProjects(USER_ID).size());
+
+    long modDate = otherStorage.uploadFile(projectId, FORM_QUALIFIED_NAME, USER_ID,
+        FILE_CONTENT1, StorageUtil.DEFAULT_CHARSET);
+    assertEquals(modDate, storage.getProjectDateModified(USER_ID, projectId));
+    assertEquals(modDate, storage.getUserProjects(USER_ID).get(0).getDateModified());
+
+    otherStorage.setUserName(USER_ID, "Renamed");
+    assertEquals("Renamed", storage.getUser(USER_ID).getUserName());
+
+    otherStorage.deleteProject(USER_ID, projectId);
+    assertTrue(storage.getProjects(USER_ID).isEmpty());
+    assertTrue(storage.getUserProjects(USER_ID).isEmpty());
+    assertEquals("", storage.getProjectName(USER_ID, projectId));
+  }
+
   public void testOldBlockFilesInDatastoreStillWork() throws BlocksTruncatedException {
     // Create new storage object that forces storage in the datastore
     ObjectifyStorageIo oldStyleStorage = new ObjectifyStorageIo() {
@@ -596,12 +775,31 @@ public class ObjectifyStorageIoTest extends LocalDatastoreTestCase {
       super.deleteBlobstoreFile(blobstorePath);
       numDeletedBlobs++;
     }
+
+    // Each asset gets a blob of its own, so that the blobs of a project can be counted.
+    @Override
+    boolean useContentStoreForFile(String fileName, int length) {
+      return false;
+    }
     
     int numBlobsDeleted() {
       return numDeletedBlobs;
     }
   }
   
+  /*
+   * Records the blobs that are deleted.
+   */
+  private static class BlobDeletionCountingObjectifyStorageIo extends ObjectifyStorageIo {
+    final List<String> deletedBlobs = new ArrayList<String>();
+
+    @Override
+    protected void deleteBlobstoreFile(String blobstorePath) {
+      super.deleteBlobstoreFile(blobstorePath);
+      deletedBlobs.add(blobstorePath);
+    }
+  }
+
   /* 
    * Fail on Nth blob create, where N is the value of the failingBlobNum
    * argument to the constructor. Also allows counting attempted blob creations.
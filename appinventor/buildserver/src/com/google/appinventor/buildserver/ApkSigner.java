@@ -0,0 +1,326 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2014 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.bouncycastle.util.encoders.Base64;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Signs and aligns APKs in-process, replacing jarsigner and zipalign.
+ *
+ * <p>The APK is signed with the key in the project keystore the way jarsigner signs jars (a
+ * META-INF/MANIFEST.MF with the SHA-1 digest of every entry, a .SF file with the digests of the
+ * manifest and its sections, and a PKCS#7 signature of the .SF file). SHA-1 is the only digest
+ * that every Android version accepts.</p>
+ *
+ * <p>The signed APK is written in one pass. The data of every stored (uncompressed) entry starts
+ * at a multiple of 4 bytes from the start of the file, like zipalign makes it, so that Android can
+ * mmap it. The padding is put in an extra field of the local header, using the same extra field
+ * ID as the Android build tools, so that the APK stays readable by strict zip readers.</p>
+ */
+final class ApkSigner {
+
+  static final int ALIGNMENT = 4;
+
+  private static final String MANIFEST_NAME = "META-INF/MANIFEST.MF";
+  private static final String SIGNATURE_NAME = "META-INF/CERT.SF";
+  private static final String SIGNATURE_BLOCK_NAME_PREFIX = "META-INF/CERT.";
+  private static final String DIGEST_ALGORITHM = "SHA1";
+  private static final String DIGEST_ATTRIBUTE = "SHA1-Digest";
+  private static final String CREATED_BY = "1.0 (App Inventor)";
+
+  // The ID of the extra field used to pad the local headers of stored entries.
+  static final int ALIGNMENT_EXTRA_FIELD_ID = 0xd935;
+  // The size of the fixed part of a local file header.
+  private static final int LOCAL_HEADER_SIZE = 30;
+  // The size of the fixed part of the alignment extra field: ID, data size and alignment.
+  private static final int ALIGNMENT_EXTRA_FIELD_SIZE = 6;
+
+  // Manifest lines are at most 72 bytes long, not counting the line break.
+  private static final int MAX_LINE_LENGTH = 72;
+  private static final byte[] LINE_BREAK = { '\r', '\n' };
+
+  private ApkSigner() {
+  }
+
+  /**
+   * Writes a signed and aligned copy of {@code unsignedApk} to {@code signedApk}.
+   *
+   * @param unsignedApk  the APK made by ApkBuilder
+   * @param keyStoreFile  the project keystore, as made by {@link KeyStoreGenerator}
+   * @param signedApk  the APK to write
+   * @throws IOException if the APK can't be read or written, or the keystore can't be used
+   */
+  static void signAndAlign(File unsignedApk, File keyStoreFile, File signedApk)
+      throws IOException {
+    PrivateKey privateKey;
+    X509Certificate certificate;
+    try {
+      KeyStore keyStore = KeyStore.getInstance(KeyStoreGenerator.KEYSTORE_TYPE);
+      InputStream in = new FileInputStream(keyStoreFile);
+      try {
+        keyStore.load(in, KeyStoreGenerator.PASSWORD);
+      } finally {
+        in.close();
+      }
+      privateKey = (PrivateKey) keyStore.getKey(KeyStoreGenerator.KEY_ALIAS,
+          KeyStoreGenerator.PASSWORD);
+      certificate = (X509Certificate) keyStore.getCertificate(KeyStoreGenerator.KEY_ALIAS);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Unable to load keystore " + keyStoreFile, e);
+    }
+    if (privateKey == null || certificate == null) {
+      throw new IOException("No " + KeyStoreGenerator.KEY_ALIAS + " key in " + keyStoreFile);
+    }
+
+    ZipFile zipFile = new ZipFile(unsignedApk);
+    try {
+      List<ZipEntry> entries = getEntriesToSign(zipFile);
+      Map<String, byte[]> manifestSections = createManifestSections(zipFile, entries);
+      byte[] manifest = createManifest(manifestSections);
+      byte[] signatureFile = createSignatureFile(manifest, manifestSections);
+      byte[] signatureBlock = createSignatureBlock(signatureFile, privateKey, certificate);
+
+      CountingOutputStream counter =
+          new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(signedApk)));
+      ZipOutputStream out = new ZipOutputStream(counter);
+      try {
+        writeEntry(out, MANIFEST_NAME, manifest);
+        writeEntry(out, SIGNATURE_NAME, signatureFile);
+        writeEntry(out, SIGNATURE_BLOCK_NAME_PREFIX + privateKey.getAlgorithm(), signatureBlock);
+        for (ZipEntry entry : entries) {
+          copyEntry(zipFile, entry, out, counter.getCount());
+        }
+      } finally {
+        out.close();
+      }
+    } finally {
+      zipFile.close();
+    }
+  }
+
+  /*
+   * Returns the entries of the APK, in order, without directories and any existing signature.
+   */
+  private static List<ZipEntry> getEntriesToSign(ZipFile zipFile) {
+    List<ZipEntry> entries = Lists.newArrayList();
+    Enumeration<? extends ZipEntry> enumeration = zipFile.entries();
+    while (enumeration.hasMoreElements()) {
+      ZipEntry entry = enumeration.nextElement();
+      if (!entry.isDirectory() && !isSignatureEntry(entry.getName())) {
+        entries.add(entry);
+      }
+    }
+    return entries;
+  }
+
+  private static boolean isSignatureEntry(String name) {
+    if (!name.startsWith("META-INF/") || name.indexOf('/', "META-INF/".length()) != -1) {
+      return false;
+    }
+    String upperCaseName = name.toUpperCase();
+    return upperCaseName.equals(MANIFEST_NAME) || upperCaseName.endsWith(".SF")
+        || upperCaseName.endsWith(".RSA") || upperCaseName.endsWith(".DSA")
+        || upperCaseName.endsWith(".EC");
+  }
+
+  /*
+   * Returns the manifest section of every entry, which holds the digest of its contents, by name.
+   */
+  private static Map<String, byte[]> createManifestSections(ZipFile zipFile,
+      List<ZipEntry> entries) throws IOException {
+    Map<String, byte[]> sections = new LinkedHashMap<String, byte[]>();
+    MessageDigest digest = newDigest();
+    for (ZipEntry entry : entries) {
+      InputStream in = new DigestInputStream(zipFile.getInputStream(entry), digest);
+      try {
+        ByteStreams.copy(in, ByteStreams.nullOutputStream());
+      } finally {
+        in.close();
+      }
+      ByteArrayOutputStream section = new ByteArrayOutputStream();
+      writeHeader(section, "Name", entry.getName());
+      writeHeader(section, DIGEST_ATTRIBUTE, Base64.toBase64String(digest.digest()));
+      section.write(LINE_BREAK);
+      sections.put(entry.getName(), section.toByteArray());
+    }
+    return sections;
+  }
+
+  private static byte[] createManifest(Map<String, byte[]> sections) throws IOException {
+    ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+    writeHeader(manifest, "Manifest-Version", "1.0");
+    writeHeader(manifest, "Created-By", CREATED_BY);
+    manifest.write(LINE_BREAK);
+    for (byte[] section : sections.values()) {
+      manifest.write(section);
+    }
+    return manifest.toByteArray();
+  }
+
+  private static byte[] createSignatureFile(byte[] manifest, Map<String, byte[]> sections)
+      throws IOException {
+    MessageDigest digest = newDigest();
+    ByteArrayOutputStream signatureFile = new ByteArrayOutputStream();
+    writeHeader(signatureFile, "Signature-Version", "1.0");
+    writeHeader(signatureFile, "Created-By", CREATED_BY);
+    writeHeader(signatureFile, DIGEST_ATTRIBUTE + "-Manifest",
+        Base64.toBase64String(digest.digest(manifest)));
+    signatureFile.write(LINE_BREAK);
+    for (Map.Entry<String, byte[]> section : sections.entrySet()) {
+      writeHeader(signatureFile, "Name", section.getKey());
+      writeHeader(signatureFile, DIGEST_ATTRIBUTE,
+          Base64.toBase64String(digest.digest(section.getValue())));
+      signatureFile.write(LINE_BREAK);
+    }
+    return signatureFile.toByteArray();
+  }
+
+  /*
+   * Returns the PKCS#7 signature of the .SF file, without the .SF file itself, as jarsigner
+   * writes it.
+   */
+  private static byte[] createSignatureBlock(byte[] signatureFile, PrivateKey privateKey,
+      X509Certificate certificate) throws IOException {
+    try {
+      ContentSigner signer =
+          new JcaContentSignerBuilder(DIGEST_ALGORITHM + "with" + privateKey.getAlgorithm())
+              .build(privateKey);
+      CMSSignedDataGenerator generator = new CMSSignedDataGenerator();
+      generator.addSignerInfoGenerator(
+          new JcaSignerInfoGeneratorBuilder(new JcaDigestCalculatorProviderBuilder().build())
+              .setDirectSignature(true)
+              .build(signer, certificate));
+      generator.addCertificates(new JcaCertStore(Collections.singletonList(certificate)));
+      CMSSignedData signedData =
+          generator.generate(new CMSProcessableByteArray(signatureFile), false);
+      return signedData.toASN1Structure().getEncoded(ASN1Encoding.DER);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Unable to sign APK", e);
+    } catch (OperatorCreationException e) {
+      throw new IOException("Unable to sign APK", e);
+    } catch (CMSException e) {
+      throw new IOException("Unable to sign APK", e);
+    }
+  }
+
+  /*
+   * Writes a manifest header, breaking it into lines of at most 72 bytes.
+   */
+  private static void writeHeader(ByteArrayOutputStream out, String name, String value) {
+    byte[] line = (name + ": " + value).getBytes(Charsets.UTF_8);
+    int start = 0;
+    int maxLength = MAX_LINE_LENGTH;
+    while (line.length - start > maxLength) {
+      int end = start + maxLength;
+      // Don't split a multi-byte character.
+      while ((line[end] & 0xC0) == 0x80) {
+        end--;
+      }
+      out.write(line, start, end - start);
+      out.write(LINE_BREAK, 0, LINE_BREAK.length);
+      // Continuation lines start with a space.
+      out.write(' ');
+      start = end;
+      maxLength = MAX_LINE_LENGTH - 1;
+    }
+    out.write(line, start, line.length - start);
+    out.write(LINE_BREAK, 0, LINE_BREAK.length);
+  }
+
+  private static void writeEntry(ZipOutputStream out, String name, byte[] contents)
+      throws IOException {
+    ZipEntry entry = new ZipEntry(name);
+    entry.setTime(CacheUtil.FIXED_ENTRY_TIME);
+    out.putNextEntry(entry);
+    out.write(contents);
+    out.closeEntry();
+  }
+
+  /*
+   * Copies an entry, keeping its compression method. Stored entries are padded so that their
+   * data is aligned.
+   */
+  private static void copyEntry(ZipFile zipFile, ZipEntry entry, ZipOutputStream out,
+      long offset) throws IOException {
+    ZipEntry newEntry = new ZipEntry(entry.getName());
+    newEntry.setTime(entry.getTime());
+    if (entry.getMethod() == ZipEntry.STORED) {
+      newEntry.setMethod(ZipEntry.STORED);
+      newEntry.setSize(entry.getSize());
+      newEntry.setCompressedSize(entry.getSize());
+      newEntry.setCrc(entry.getCrc());
+      long dataOffset = offset + LOCAL_HEADER_SIZE
+          + entry.getName().getBytes(Charsets.UTF_8).length + ALIGNMENT_EXTRA_FIELD_SIZE;
+      int padding = (int) ((ALIGNMENT - dataOffset % ALIGNMENT) % ALIGNMENT);
+      newEntry.setExtra(createAlignmentExtraField(padding));
+    }
+    out.putNextEntry(newEntry);
+    InputStream in = zipFile.getInputStream(entry);
+    try {
+      ByteStreams.copy(in, out);
+    } finally {
+      in.close();
+    }
+    out.closeEntry();
+  }
+
+  private static byte[] createAlignmentExtraField(int padding) {
+    byte[] extra = new byte[ALIGNMENT_EXTRA_FIELD_SIZE + padding];
+    int dataSize = extra.length - 4;
+    extra[0] = (byte) ALIGNMENT_EXTRA_FIELD_ID;
+    extra[1] = (byte) (ALIGNMENT_EXTRA_FIELD_ID >> 8);
+    extra[2] = (byte) dataSize;
+    extra[3] = (byte) (dataSize >> 8);
+    extra[4] = (byte) ALIGNMENT;
+    extra[5] = (byte) (ALIGNMENT >> 8);
+    return extra;
+  }
+
+  private static MessageDigest newDigest() throws IOException {
+    try {
+      return MessageDigest.getInstance(DIGEST_ALGORITHM);
+    } catch (GeneralSecurityException e) {
+      throw new IOException(e);
+    }
+  }
+}
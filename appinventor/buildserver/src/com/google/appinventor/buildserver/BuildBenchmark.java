@@ -0,0 +1,432 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2014 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+
+package com.google.appinventor.buildserver;
+
+import com.google.appinventor.common.version.GitBuildId;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.kohsuke.args4j.spi.StringArrayOptionHandler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Measures the throughput of the build server by building a corpus of projects with
+ * {@link ProjectBuilder}, and writes a JSON report that can be compared between releases.
+ *
+ * <p>The corpus is made of project source zips (such as the test projects of the appengine
+ * module) and of the Blockly editor's test fixtures: directories with a {@code Screen1.scm}, a
+ * {@code Screen1.bky} and a {@code *Expected.yail}, which are packaged as projects of one
+ * screen.</p>
+ *
+ * <p>The report has the builds per minute, the 50th, 95th and 99th percentiles of the build time
+ * and of the time of each stage (see {@link BuildTrace}), and the CPU time and peak resident set
+ * size of each build.</p>
+ *
+ * @see #main
+ */
+public final class BuildBenchmark {
+
+  static class CommandLineOptions {
+    @Option(name = "--corpus", required = true,
+            usage = "the project zips, Blockly test fixture directories, or directories of either, to build",
+            handler = StringArrayOptionHandler.class)
+    String[] corpus;
+
+    @Option(name = "--concurrency",
+            usage = "the number of builds to run at the same time")
+    int concurrency = 1;
+
+    @Option(name = "--iterations",
+            usage = "the number of times each project is built and measured")
+    int iterations = 3;
+
+    @Option(name = "--warmupIterations",
+            usage = "the number of times each project is built, one at a time, before measuring")
+    int warmupIterations = 1;
+
+    @Option(name = "--childProcessRamMb",
+            usage = "Maximum ram that can be used by a child processes, in MB.")
+    int childProcessRamMb = 2048;
+
+    @Option(name = "--dexCacheDir",
+            usage = "the directory to cache the pre-dexed libraries, compiled forms and AAPT packages")
+    String dexCacheDir = null;
+
+    @Option(name = "--output",
+            usage = "the file to write the JSON report to, instead of standard output")
+    File output = null;
+  }
+
+  /**
+   * The measurements of one build.
+   */
+  static final class BuildSample {
+    final String projectName;
+    final boolean succeeded;
+    final long buildTimeMs;
+    final Map<String, Long> stageTimesMs;
+    final long cpuTimeMs;
+    final long peakRssBytes;
+
+    BuildSample(String projectName, boolean succeeded, long buildTimeMs,
+        Map<String, Long> stageTimesMs, long cpuTimeMs, long peakRssBytes) {
+      this.projectName = projectName;
+      this.succeeded = succeeded;
+      this.buildTimeMs = buildTimeMs;
+      this.stageTimesMs = stageTimesMs;
+      this.cpuTimeMs = cpuTimeMs;
+      this.peakRssBytes = peakRssBytes;
+    }
+  }
+
+  private static final String USER_NAME = "benchmark";
+  private static final String FIXTURE_FORM_FILE = "Screen1.scm";
+  private static final String FIXTURE_BLOCKS_FILE = "Screen1.bky";
+  private static final String FIXTURE_YAIL_SUFFIX = "Expected.yail";
+  // The package name that the Blockly fixtures' YAIL was generated with.
+  private static final String FIXTURE_PACKAGE_NAME = "fakepackagename";
+  private static final String PROJECT_PROPERTIES = "youngandroidproject/project.properties";
+
+  private static final CommandLineOptions commandLineOptions = new CommandLineOptions();
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildBenchmark.class.getName());
+
+  private BuildBenchmark() {
+  }
+
+  /**
+   * Main entry point.
+   *
+   * @param args  command line arguments
+   */
+  public static void main(String[] args) throws Exception {
+    CmdLineParser cmdLineParser = new CmdLineParser(commandLineOptions);
+    try {
+      cmdLineParser.parseArgument(args);
+    } catch (CmdLineException e) {
+      System.err.println(e.getMessage());
+      cmdLineParser.printUsage(System.err);
+      System.exit(1);
+    }
+
+    File workDir = Files.createTempDir();
+    try {
+      List<File> projects = Lists.newArrayList();
+      for (String path : commandLineOptions.corpus) {
+        addToCorpus(new File(path), workDir, projects);
+      }
+      if (projects.isEmpty()) {
+        System.err.println("No projects found in " + Arrays.toString(commandLineOptions.corpus));
+        System.exit(1);
+      }
+      LOG.info("Benchmarking " + projects.size() + " projects");
+
+      for (int i = 0; i < commandLineOptions.warmupIterations; i++) {
+        for (File project : projects) {
+          build(project);
+        }
+      }
+
+      List<File> builds = Lists.newArrayList();
+      for (int i = 0; i < commandLineOptions.iterations; i++) {
+        builds.addAll(projects);
+      }
+      long startMs = System.currentTimeMillis();
+      List<BuildSample> samples = buildAll(builds, commandLineOptions.concurrency);
+      long wallTimeMs = System.currentTimeMillis() - startMs;
+
+      JSONObject report = createReport(samples, commandLineOptions.concurrency, wallTimeMs);
+      String reportJson = report.toString(2) + "\n";
+      if (commandLineOptions.output != null) {
+        Files.write(reportJson, commandLineOptions.output, Charsets.UTF_8);
+      } else {
+        System.out.print(reportJson);
+      }
+    } finally {
+      FileUtils.deleteDirectory(workDir);
+    }
+    System.exit(0);
+  }
+
+  /*
+   * Adds the project zips and Blockly fixtures at or under the given path to the corpus. Fixtures
+   * are packaged as project zips in workDir. Zips that aren't App Inventor projects are skipped.
+   */
+  static void addToCorpus(File path, File workDir, List<File> projects) throws IOException {
+    if (path.isDirectory()) {
+      if (new File(path, FIXTURE_FORM_FILE).exists()) {
+        File zip = new File(workDir, path.getName() + ".aia");
+        if (createFixtureProject(path, zip)) {
+          projects.add(zip);
+        }
+        return;
+      }
+      File[] children = path.listFiles();
+      Arrays.sort(children);
+      for (File child : children) {
+        addToCorpus(child, workDir, projects);
+      }
+    } else if ((path.getName().endsWith(".zip") || path.getName().endsWith(".aia"))
+        && isProject(path)) {
+      projects.add(path);
+    }
+  }
+
+  private static boolean isProject(File file) {
+    try {
+      ZipFile zipFile = new ZipFile(file);
+      try {
+        return zipFile.getEntry(PROJECT_PROPERTIES) != null;
+      } finally {
+        zipFile.close();
+      }
+    } catch (IOException e) {
+      LOG.info("Skipping " + file + ", which is not a zip: " + e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * Packages a Blockly test fixture as a project of one screen, named after its directory. The
+   * fixture's expected YAIL is used as the screen's YAIL, so that none needs to be generated.
+   *
+   * @return  {@code true} if the project was created, {@code false} if the fixture has no YAIL
+   */
+  static boolean createFixtureProject(File fixtureDir, File zip) throws IOException {
+    File yailFile = null;
+    for (File file : fixtureDir.listFiles()) {
+      if (file.getName().endsWith(FIXTURE_YAIL_SUFFIX)) {
+        yailFile = file;
+      }
+    }
+    if (yailFile == null) {
+      LOG.info("Skipping " + fixtureDir + ", which has no " + FIXTURE_YAIL_SUFFIX);
+      return false;
+    }
+
+    String projectName = fixtureDir.getName();
+    String packageName = "appinventor.benchmark." + projectName;
+    String sourceDir = "src/" + packageName.replace('.', '/') + "/";
+    String yail = Files.toString(yailFile, Charsets.UTF_8).replace(
+        "(define-form " + FIXTURE_PACKAGE_NAME + " ",
+        "(define-form " + packageName + ".Screen1 ");
+
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip));
+    try {
+      addEntry(out, PROJECT_PROPERTIES, "main=" + packageName + ".Screen1\n"
+          + "name=" + projectName + "\n"
+          + "assets=../assets\n"
+          + "source=../src\n"
+          + "build=../build\n");
+      addEntry(out, sourceDir + FIXTURE_FORM_FILE,
+          Files.toString(new File(fixtureDir, FIXTURE_FORM_FILE), Charsets.UTF_8));
+      File blocksFile = new File(fixtureDir, FIXTURE_BLOCKS_FILE);
+      if (blocksFile.exists()) {
+        addEntry(out, sourceDir + FIXTURE_BLOCKS_FILE, Files.toString(blocksFile, Charsets.UTF_8));
+      }
+      addEntry(out, sourceDir + "Screen1.yail", yail);
+    } finally {
+      out.close();
+    }
+    return true;
+  }
+
+  private static void addEntry(ZipOutputStream out, String name, String contents)
+      throws IOException {
+    out.putNextEntry(new ZipEntry(name));
+    out.write(contents.getBytes(Charsets.UTF_8));
+    out.closeEntry();
+  }
+
+  /*
+   * Builds the given projects, concurrency at a time, and returns their measurements in the order
+   * the projects were given.
+   */
+  private static List<BuildSample> buildAll(List<File> projects, int concurrency)
+      throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+    try {
+      List<Future<BuildSample>> futures = Lists.newArrayList();
+      for (final File project : projects) {
+        futures.add(executor.submit(new Callable<BuildSample>() {
+          @Override
+          public BuildSample call() throws Exception {
+            return build(project);
+          }
+        }));
+      }
+      List<BuildSample> samples = Lists.newArrayList();
+      for (Future<BuildSample> future : futures) {
+        samples.add(future.get());
+      }
+      return samples;
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /*
+   * Builds one project on the current thread. The CPU time of the build is that of the current
+   * thread plus that of the child processes and compiler worker jobs that the build ran.
+   */
+  private static BuildSample build(File project) throws IOException {
+    ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    BuildContext context = new BuildContext(USER_NAME, false,
+        commandLineOptions.childProcessRamMb, commandLineOptions.dexCacheDir, null);
+    File outputDir = Files.createTempDir();
+    context.setOutputDir(outputDir);
+    ZipFile zip = new ZipFile(project);
+    Result result;
+    long threadCpuTimeNs;
+    try {
+      long threadCpuTimeNsAtStart = threadBean.getCurrentThreadCpuTime();
+      context.started();
+      try {
+        result = new ProjectBuilder().build(zip, context);
+      } finally {
+        context.finished();
+      }
+      threadCpuTimeNs = threadBean.getCurrentThreadCpuTime() - threadCpuTimeNsAtStart;
+    } finally {
+      zip.close();
+      FileUtils.deleteDirectory(outputDir);
+    }
+
+    String projectName = project.getName().replaceFirst("\\.(zip|aia)$", "");
+    if (result.failed()) {
+      LOG.warning("Build of " + projectName + " failed: " + result.getError());
+    }
+    BuildTrace trace = context.getTrace();
+    long cpuTimeMs = threadCpuTimeNs / 1000000 + Math.max(trace.getChildCpuTimeMs(), 0);
+    return new BuildSample(projectName, result.succeeded(), context.getBuildTimeMs(),
+        trace.getStageTimesMs(), cpuTimeMs, trace.getChildPeakRssBytes());
+  }
+
+  /**
+   * Returns the report of a benchmark run.
+   *
+   * @param samples  the measurements of every build
+   * @param concurrency  the number of builds that were run at the same time
+   * @param wallTimeMs  how long it took to run all of the builds
+   */
+  static JSONObject createReport(List<BuildSample> samples, int concurrency, long wallTimeMs)
+      throws JSONException {
+    List<Long> buildTimesMs = Lists.newArrayList();
+    List<Long> cpuTimesMs = Lists.newArrayList();
+    List<Long> peakRssBytes = Lists.newArrayList();
+    SortedMap<String, List<Long>> stageTimesMs = new TreeMap<String, List<Long>>();
+    SortedMap<String, List<Long>> projectBuildTimesMs = new TreeMap<String, List<Long>>();
+    int failures = 0;
+    for (BuildSample sample : samples) {
+      if (!sample.succeeded) {
+        failures++;
+      }
+      buildTimesMs.add(sample.buildTimeMs);
+      cpuTimesMs.add(sample.cpuTimeMs);
+      if (sample.peakRssBytes >= 0) {
+        peakRssBytes.add(sample.peakRssBytes);
+      }
+      for (Map.Entry<String, Long> stage : sample.stageTimesMs.entrySet()) {
+        getList(stageTimesMs, stage.getKey()).add(stage.getValue());
+      }
+      getList(projectBuildTimesMs, sample.projectName).add(sample.buildTimeMs);
+    }
+
+    JSONObject report = new JSONObject();
+    report.put("version", GitBuildId.getVersion());
+    report.put("concurrency", concurrency);
+    report.put("builds", samples.size());
+    report.put("failures", failures);
+    report.put("wallTimeMs", wallTimeMs);
+    report.put("buildsPerMinute",
+        (wallTimeMs == 0) ? 0 : samples.size() * 60000.0 / wallTimeMs);
+    report.put("buildTimeMs", summarize(buildTimesMs));
+    report.put("cpuTimeMs", summarize(cpuTimesMs));
+    report.put("peakRssBytes", summarize(peakRssBytes));
+    JSONObject stages = new JSONObject();
+    for (Map.Entry<String, List<Long>> stage : stageTimesMs.entrySet()) {
+      stages.put(stage.getKey(), summarize(stage.getValue()));
+    }
+    report.put("stageTimesMs", stages);
+    JSONObject projects = new JSONObject();
+    for (Map.Entry<String, List<Long>> project : projectBuildTimesMs.entrySet()) {
+      projects.put(project.getKey(), summarize(project.getValue()));
+    }
+    report.put("projectBuildTimesMs", projects);
+    return report;
+  }
+
+  private static List<Long> getList(Map<String, List<Long>> lists, String key) {
+    List<Long> list = lists.get(key);
+    if (list == null) {
+      list = Lists.newArrayList();
+      lists.put(key, list);
+    }
+    return list;
+  }
+
+  /*
+   * Returns the count, mean, 50th, 95th and 99th percentiles, and maximum of the given values.
+   */
+  private static JSONObject summarize(List<Long> values) throws JSONException {
+    List<Long> sorted = Lists.newArrayList(values);
+    Collections.sort(sorted);
+    long total = 0;
+    for (long value : sorted) {
+      total += value;
+    }
+    JSONObject summary = new JSONObject();
+    summary.put("count", sorted.size());
+    summary.put("mean", sorted.isEmpty() ? 0 : total / sorted.size());
+    summary.put("p50", percentile(sorted, 0.50));
+    summary.put("p95", percentile(sorted, 0.95));
+    summary.put("p99", percentile(sorted, 0.99));
+    summary.put("max", sorted.isEmpty() ? 0 : sorted.get(sorted.size() - 1));
+    return summary;
+  }
+
+  /**
+   * Returns the given percentile of sorted values, by the nearest-rank method, or 0 if there are
+   * no values.
+   *
+   * @param sorted  the values, in ascending order
+   * @param fraction  the percentile, such as 0.95
+   */
+  static long percentile(List<Long> sorted, double fraction) {
+    if (sorted.isEmpty()) {
+      return 0;
+    }
+    int rank = (int) Math.ceil(fraction * sorted.size());
+    return sorted.get(Math.max(rank, 1) - 1);
+  }
+}
@@ -0,0 +1,385 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2014 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * The state of a single build: its parameters, the files it reads and writes, its progress and
+ * how long its stages took.
+ *
+ * <p>A BuildContext is created for each build request and passed through
+ * {@link ProjectBuilder#build} and {@link Compiler#compile}, so that nothing about one build is
+ * kept in fields shared with other builds running at the same time.</p>
+ *
+ * <p>While a build is waiting or running, its context is registered so that its progress can be
+ * looked up by build id, or by the callback URL of the request that started it.</p>
+ *
+ * <p>A build may be registered as the latest build of a project (see {@link #registerForProject}),
+ * in which case a newer build of the same project cancels it once the newer build has been
+ * queued: if it is still waiting it is taken out of the queue, otherwise the child processes it is
+ * running are killed, it starts no more, and its results are not sent back.</p>
+ */
+public final class BuildContext {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildContext.class.getName());
+
+  private static final AtomicLong nextBuildId = new AtomicLong(1);
+
+  // The builds that are waiting or running, by build id.
+  private static final ConcurrentMap<String, BuildContext> activeBuilds =
+      new ConcurrentHashMap<String, BuildContext>();
+
+  // The latest waiting or running build of each project, by project key. Guarded by itself.
+  private static final Map<String, BuildContext> projectBuilds =
+      new HashMap<String, BuildContext>();
+
+  private final String buildId;
+  private final String userName;
+  private final boolean isForCompanion;
+  // Maximum ram that can be used by a child processes, in MB.
+  private final int childProcessRamMb;
+  private final String dexCacheDir;
+  private final String callbackUrl;
+
+  // The input zip file.
+  private volatile File inputZip;
+  // The temp directory that we're building in.
+  private volatile File outputDir;
+  // The built APK file, if any.
+  private volatile File outputApk;
+  // The android.keystore file generated by this build, if necessary.
+  private volatile File outputKeystore;
+
+  private volatile int progress = 0;
+
+  // Identifies the project and build target, and the project sources, for registerForProject.
+  private volatile String projectKey;
+  private volatile String sourceHash;
+  // The build this one replaced as the latest build of its project, until cancelReplacedBuild.
+  private volatile BuildContext replacedBuild;
+
+  // The queue the build waits in and its task there, so that cancelling it can take it out.
+  private volatile BuildQueue queue;
+  private volatile Runnable queuedTask;
+
+  private volatile boolean cancelled;
+  // The child processes the build is running, which are killed if it is cancelled.
+  private final Set<Process> childProcesses =
+      Collections.newSetFromMap(new ConcurrentHashMap<Process, Boolean>());
+
+  private final long createdAt = System.currentTimeMillis();
+  private volatile long startedAt;
+  private volatile long finishedAt;
+  private final BuildTrace trace;
+
+  /**
+   * Creates a BuildContext.
+   *
+   * @param userName  the user name used in the CN entry of a generated keystore
+   * @param isForCompanion  whether the companion app is being built
+   * @param childProcessRamMb  maximum ram that can be used by a child process, in MB
+   * @param dexCacheDir  the directory to cache pre-dexed libraries in, or {@code null}
+   * @param callbackUrl  the URL the build results are sent to, or {@code null}
+   */
+  public BuildContext(String userName, boolean isForCompanion, int childProcessRamMb,
+      String dexCacheDir, String callbackUrl) {
+    this.buildId = Long.toString(nextBuildId.getAndIncrement());
+    this.userName = userName;
+    this.isForCompanion = isForCompanion;
+    this.childProcessRamMb = childProcessRamMb;
+    this.dexCacheDir = dexCacheDir;
+    this.callbackUrl = callbackUrl;
+    this.trace = new BuildTrace(buildId);
+  }
+
+  /**
+   * Makes this build's progress available through {@link #getActiveBuild} and
+   * {@link #getActiveBuildForCallback} until {@link #unregister} is called.
+   */
+  void register() {
+    activeBuilds.put(buildId, this);
+  }
+
+  /**
+   * Undoes {@link #register}, or {@link #registerForProject}. If this build hasn't cancelled the
+   * build it replaced, that build becomes the latest build of the project again.
+   */
+  void unregister() {
+    activeBuilds.remove(buildId);
+    if (projectKey != null) {
+      synchronized (projectBuilds) {
+        if (projectBuilds.get(projectKey) == this) {
+          BuildContext olderBuild = replacedBuild;
+          if (olderBuild != null && activeBuilds.containsKey(olderBuild.buildId)) {
+            projectBuilds.put(projectKey, olderBuild);
+          } else {
+            projectBuilds.remove(projectKey);
+          }
+        }
+        replacedBuild = null;
+      }
+    }
+  }
+
+  /**
+   * Registers this build, as {@link #register} does, and as the latest build of its project. If a
+   * build of the same project and sources is already waiting or running, this build isn't
+   * registered and that build is returned, so the caller can wait for it instead. Otherwise any
+   * other build of the project is to be cancelled by {@link #cancelReplacedBuild}, since its
+   * results would be replaced by this one's. That is left until this build has been accepted by
+   * the build queue, so that a rejected build doesn't cost the project both builds.
+   *
+   * @param projectKey  identifies the project and build target
+   * @param sourceHash  identifies the project sources, as
+   *     {@link BuildResultCache#computeSourceHash} computes it
+   * @return  the build of the same sources, or {@code null} if this build was registered
+   */
+  BuildContext registerForProject(String projectKey, String sourceHash) {
+    this.projectKey = projectKey;
+    this.sourceHash = sourceHash;
+    BuildContext olderBuild;
+    synchronized (projectBuilds) {
+      olderBuild = projectBuilds.get(projectKey);
+      if (olderBuild != null && !olderBuild.isCancelled()
+          && sourceHash.equals(olderBuild.sourceHash)) {
+        return olderBuild;
+      }
+      projectBuilds.put(projectKey, this);
+      replacedBuild = olderBuild;
+      register();
+    }
+    return null;
+  }
+
+  /**
+   * Cancels the build that this one replaced as the latest build of its project, if any.
+   */
+  void cancelReplacedBuild() {
+    BuildContext olderBuild;
+    synchronized (projectBuilds) {
+      olderBuild = replacedBuild;
+      replacedBuild = null;
+    }
+    if (olderBuild != null) {
+      LOG.info("Build " + buildId + " replaces build " + olderBuild.getBuildId());
+      olderBuild.cancel();
+    }
+  }
+
+  /**
+   * Returns the build that the current thread is working on, or {@code null} if there isn't one.
+   */
+  static BuildContext getCurrentBuild() {
+    return getActiveBuild(BuildTrace.getCurrentBuildId());
+  }
+
+  /**
+   * Returns the waiting or running build with the given id, or {@code null} if there isn't one.
+   */
+  static BuildContext getActiveBuild(String buildId) {
+    return (buildId == null) ? null : activeBuilds.get(buildId);
+  }
+
+  /**
+   * Returns the most recent waiting or running build whose results are sent to the given URL, or
+   * {@code null} if there isn't one.
+   */
+  static BuildContext getActiveBuildForCallback(String callbackUrl) {
+    BuildContext latest = null;
+    for (BuildContext context : activeBuilds.values()) {
+      if (callbackUrl != null && callbackUrl.equals(context.callbackUrl) &&
+          (latest == null || context.createdAt > latest.createdAt)) {
+        latest = context;
+      }
+    }
+    return latest;
+  }
+
+  static int getActiveBuildCount() {
+    return activeBuilds.size();
+  }
+
+  public String getBuildId() {
+    return buildId;
+  }
+
+  public String getUserName() {
+    return userName;
+  }
+
+  public boolean isForCompanion() {
+    return isForCompanion;
+  }
+
+  public int getChildProcessRamMb() {
+    return childProcessRamMb;
+  }
+
+  public String getDexCacheDir() {
+    return dexCacheDir;
+  }
+
+  public String getCallbackUrl() {
+    return callbackUrl;
+  }
+
+  public File getInputZip() {
+    return inputZip;
+  }
+
+  public void setInputZip(File inputZip) {
+    this.inputZip = inputZip;
+  }
+
+  public File getOutputDir() {
+    return outputDir;
+  }
+
+  public void setOutputDir(File outputDir) {
+    this.outputDir = outputDir;
+  }
+
+  public File getOutputApk() {
+    return outputApk;
+  }
+
+  public void setOutputApk(File outputApk) {
+    this.outputApk = outputApk;
+  }
+
+  public File getOutputKeystore() {
+    return outputKeystore;
+  }
+
+  public void setOutputKeystore(File outputKeystore) {
+    this.outputKeystore = outputKeystore;
+  }
+
+  /**
+   * Returns the progress of the build, as a percentage.
+   */
+  public int getProgress() {
+    return progress;
+  }
+
+  /**
+   * Records the queue the build waits in and its task there, so that {@link #cancel} can take it
+   * out of the queue. It must be called before the task is submitted.
+   */
+  void setQueuedTask(BuildQueue queue, Runnable task) {
+    this.queue = queue;
+    this.queuedTask = task;
+  }
+
+  /**
+   * Cancels the build. If it is still waiting in its queue, it is taken out and its task is run
+   * right away, on the calling thread, to clean up after it without building. Otherwise the child
+   * processes it is running are killed and it starts no more.
+   */
+  void cancel() {
+    cancelled = true;
+    BuildQueue queue = this.queue;
+    Runnable task = queuedTask;
+    if (queue != null && queue.remove(task)) {
+      task.run();
+    }
+    for (Process process : childProcesses) {
+      process.destroy();
+    }
+  }
+
+  /**
+   * Indicates whether the build has been cancelled, in which case its results are to be thrown
+   * away.
+   */
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  /**
+   * Records a child process that the build is running, so that it can be killed if the build is
+   * cancelled. If the build has already been cancelled, the process is killed straight away.
+   */
+  void addChildProcess(Process process) {
+    childProcesses.add(process);
+    if (cancelled) {
+      process.destroy();
+    }
+  }
+
+  void removeChildProcess(Process process) {
+    childProcesses.remove(process);
+  }
+
+  public void setProgress(int progress) {
+    this.progress = progress;
+    LOG.info("Build " + buildId + ": the current progress is " + progress + "%");
+  }
+
+  /**
+   * Records that the build has left the queue and started.
+   */
+  void started() {
+    startedAt = System.currentTimeMillis();
+  }
+
+  /**
+   * Records that the build has finished.
+   */
+  void finished() {
+    finishedAt = System.currentTimeMillis();
+  }
+
+  /**
+   * Returns how long the build waited before it started, in milliseconds.
+   */
+  public long getQueueTimeMs() {
+    return (startedAt == 0) ? 0 : startedAt - createdAt;
+  }
+
+  /**
+   * Returns how long the build ran, in milliseconds, or has been running if it hasn't finished.
+   */
+  public long getBuildTimeMs() {
+    if (startedAt == 0) {
+      return 0;
+    }
+    return ((finishedAt == 0) ? System.currentTimeMillis() : finishedAt) - startedAt;
+  }
+
+  /**
+   * Starts timing a stage of the build on the current thread.
+   *
+   * @param stage  the name of the stage, such as "kawa"
+   * @return  the span of the stage, which must be ended on the same thread
+   */
+  BuildTrace.Span startStage(String stage) {
+    return trace.startSpan(stage);
+  }
+
+  /**
+   * Returns the trace of the stages of the build.
+   */
+  BuildTrace getTrace() {
+    return trace;
+  }
+
+  /**
+   * Returns how long each stage of the build took, in milliseconds, in the order the stages ran.
+   */
+  public Map<String, Long> getStageTimesMs() {
+    return trace.getStageTimesMs();
+  }
+}
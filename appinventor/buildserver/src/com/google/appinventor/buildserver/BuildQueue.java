@@ -0,0 +1,333 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2014 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded queue of builds in front of a fixed pool of build threads.
+ *
+ * <p>When all build threads are busy, new builds wait in the queue rather than being rejected.
+ * A build is only rejected when the queue is full, or when its user already has as many builds
+ * running or waiting as one user is allowed.</p>
+ *
+ * <p>Builds for the companion are taken before all others. Other builds are taken from each
+ * user's builds in turn, so that many builds submitted by one user (or one classroom sharing an
+ * account) don't hold up everyone else.</p>
+ */
+final class BuildQueue {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildQueue.class.getName());
+
+  // How long a build thread waits for a build before it exits, if the number of build threads is
+  // unlimited. With a limit, build threads wait forever.
+  private static final long IDLE_THREAD_TIMEOUT_MS = 60000;
+
+  /*
+   * A build waiting in the queue.
+   */
+  private static class QueuedBuild {
+    private final String userName;
+    private final Runnable build;
+    private final long queuedAt;
+
+    QueuedBuild(String userName, Runnable build) {
+      this.userName = userName;
+      this.build = build;
+      this.queuedAt = System.currentTimeMillis();
+    }
+  }
+
+  // The maximum number of builds running at once. 0 means unlimited.
+  private final int maxActiveBuilds;
+  // The maximum number of builds waiting to run.
+  private final int maxQueuedBuilds;
+  // The maximum number of builds, running or waiting, for one user. 0 means unlimited.
+  private final int maxBuildsPerUser;
+
+  // Companion builds, in the order they were submitted.
+  private final LinkedList<QueuedBuild> priorityBuilds = new LinkedList<QueuedBuild>();
+  // Other builds, by user, with the user whose turn it is next first.
+  private final LinkedHashMap<String, LinkedList<QueuedBuild>> buildsByUser =
+      new LinkedHashMap<String, LinkedList<QueuedBuild>>();
+  // The number of builds, running or waiting, for each user that has any.
+  private final Map<String, Integer> buildCountByUser = new HashMap<String, Integer>();
+
+  private int queuedBuilds = 0;
+  private int activeBuilds = 0;
+  private int threads = 0;
+  private int idleThreads = 0;
+
+  private int maxQueuedBuildsOccurred = 0;
+  private int maxActiveBuildsOccurred = 0;
+  private long completedBuilds = 0;
+  private long rejectedBuilds = 0;
+  private long rejectedBuildsForUser = 0;
+
+  private final Histogram queueWait = new Histogram();
+
+  /**
+   * Creates a BuildQueue.
+   *
+   * @param maxActiveBuilds the maximum number of builds running at once, 0 means unlimited
+   * @param maxQueuedBuilds the maximum number of builds waiting to run
+   * @param maxBuildsPerUser the maximum number of builds, running or waiting, for one user, 0
+   *     means unlimited
+   */
+  BuildQueue(int maxActiveBuilds, int maxQueuedBuilds, int maxBuildsPerUser) {
+    this.maxActiveBuilds = maxActiveBuilds;
+    this.maxQueuedBuilds = maxQueuedBuilds;
+    this.maxBuildsPerUser = maxBuildsPerUser;
+  }
+
+  /**
+   * Adds a build to the queue.
+   *
+   * @param userName the user the build is for
+   * @param isForCompanion whether the build is for the companion, in which case it runs before
+   *     all other waiting builds
+   * @param build the build
+   * @return 0 if the build starts right away, otherwise its position in the queue: 1 plus the
+   *     number of waiting builds that will start before it
+   * @throws RejectedExecutionException if the queue is full or the user has too many builds
+   */
+  synchronized int submit(String userName, boolean isForCompanion, Runnable build) {
+    if (userName == null) {
+      userName = "";
+    }
+    Integer userBuildCount = buildCountByUser.get(userName);
+    if (userBuildCount == null) {
+      userBuildCount = 0;
+    }
+    if (maxBuildsPerUser != 0 && userBuildCount >= maxBuildsPerUser) {
+      rejectedBuildsForUser++;
+      throw new RejectedExecutionException("You already have " + userBuildCount +
+          " builds in progress on this build server.");
+    }
+    // Builds that have been submitted but not yet taken by a build thread might be about to start
+    // rather than waiting for a free build thread. Only the latter count as queued.
+    int freeThreads = (maxActiveBuilds == 0) ? Integer.MAX_VALUE : maxActiveBuilds - activeBuilds;
+    if (queuedBuilds - freeThreads >= maxQueuedBuilds) {
+      rejectedBuilds++;
+      throw new RejectedExecutionException("The build server is currently at maximum capacity.");
+    }
+
+    QueuedBuild queuedBuild = new QueuedBuild(userName, build);
+    int buildsAhead;
+    if (isForCompanion) {
+      priorityBuilds.addLast(queuedBuild);
+      buildsAhead = priorityBuilds.size() - 1;
+    } else {
+      LinkedList<QueuedBuild> userBuilds = buildsByUser.get(userName);
+      if (userBuilds == null) {
+        userBuilds = new LinkedList<QueuedBuild>();
+        buildsByUser.put(userName, userBuilds);
+      }
+      userBuilds.addLast(queuedBuild);
+      buildsAhead = priorityBuilds.size() + getTurnsAhead(userName, userBuilds.size());
+    }
+    buildCountByUser.put(userName, userBuildCount + 1);
+    queuedBuilds++;
+    maxQueuedBuildsOccurred = Math.max(maxQueuedBuildsOccurred, queuedBuilds);
+
+    if (queuedBuilds > idleThreads && (maxActiveBuilds == 0 || threads < maxActiveBuilds)) {
+      startThread();
+    } else {
+      notify();
+    }
+    return (buildsAhead < freeThreads) ? 0 : buildsAhead - freeThreads + 1;
+  }
+
+  /*
+   * Returns the number of builds of other users that will be taken before the n-th waiting build
+   * of the given user, when builds are taken from each user in turn.
+   */
+  private int getTurnsAhead(String userName, int n) {
+    int turnsAhead = n - 1;
+    boolean beforeUser = true;
+    for (Map.Entry<String, LinkedList<QueuedBuild>> entry : buildsByUser.entrySet()) {
+      if (entry.getKey().equals(userName)) {
+        beforeUser = false;
+      } else {
+        // Users before this one in the rotation get n turns before this build, users after it
+        // get n - 1.
+        turnsAhead += Math.min(entry.getValue().size(), beforeUser ? n : n - 1);
+      }
+    }
+    return turnsAhead;
+  }
+
+  private void startThread() {
+    threads++;
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        QueuedBuild queuedBuild;
+        while ((queuedBuild = take()) != null) {
+          try {
+            queuedBuild.build.run();
+          } catch (RuntimeException e) {
+            LOG.log(Level.SEVERE, "Build for " + queuedBuild.userName + " failed", e);
+          } finally {
+            finished(queuedBuild);
+          }
+        }
+      }
+    }, "build-" + threads);
+    thread.start();
+  }
+
+  /*
+   * Waits for the next build and returns it, or returns null if the calling thread should exit.
+   */
+  private synchronized QueuedBuild take() {
+    while (queuedBuilds == 0) {
+      idleThreads++;
+      try {
+        if (maxActiveBuilds == 0) {
+          wait(IDLE_THREAD_TIMEOUT_MS);
+        } else {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        idleThreads--;
+      }
+      if (queuedBuilds == 0 && (maxActiveBuilds == 0 || Thread.currentThread().isInterrupted())) {
+        threads--;
+        return null;
+      }
+    }
+
+    QueuedBuild queuedBuild;
+    if (!priorityBuilds.isEmpty()) {
+      queuedBuild = priorityBuilds.removeFirst();
+    } else {
+      // Take the first build of the user whose turn it is, and move that user to the back.
+      Iterator<Map.Entry<String, LinkedList<QueuedBuild>>> iterator =
+          buildsByUser.entrySet().iterator();
+      Map.Entry<String, LinkedList<QueuedBuild>> entry = iterator.next();
+      iterator.remove();
+      queuedBuild = entry.getValue().removeFirst();
+      if (!entry.getValue().isEmpty()) {
+        buildsByUser.put(entry.getKey(), entry.getValue());
+      }
+    }
+    queuedBuilds--;
+    activeBuilds++;
+    maxActiveBuildsOccurred = Math.max(maxActiveBuildsOccurred, activeBuilds);
+    queueWait.record(System.currentTimeMillis() - queuedBuild.queuedAt);
+    return queuedBuild;
+  }
+
+  private synchronized void finished(QueuedBuild queuedBuild) {
+    activeBuilds--;
+    completedBuilds++;
+    releaseUserBuild(queuedBuild.userName);
+  }
+
+  /**
+   * Takes a build out of the queue if no build thread has taken it yet, so that it no longer
+   * counts against the queue size or its user's limit.
+   *
+   * @param build the build, as it was passed to {@link #submit}
+   * @return whether the build was waiting and was removed, in which case it won't be run
+   */
+  synchronized boolean remove(Runnable build) {
+    if (removeFrom(priorityBuilds, build)) {
+      return true;
+    }
+    Iterator<LinkedList<QueuedBuild>> iterator = buildsByUser.values().iterator();
+    while (iterator.hasNext()) {
+      LinkedList<QueuedBuild> userBuilds = iterator.next();
+      if (removeFrom(userBuilds, build)) {
+        if (userBuilds.isEmpty()) {
+          iterator.remove();
+        }
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean removeFrom(LinkedList<QueuedBuild> queuedBuildList, Runnable build) {
+    Iterator<QueuedBuild> iterator = queuedBuildList.iterator();
+    while (iterator.hasNext()) {
+      QueuedBuild queuedBuild = iterator.next();
+      if (queuedBuild.build == build) {
+        iterator.remove();
+        queuedBuilds--;
+        releaseUserBuild(queuedBuild.userName);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void releaseUserBuild(String userName) {
+    int userBuildCount = buildCountByUser.get(userName) - 1;
+    if (userBuildCount == 0) {
+      buildCountByUser.remove(userName);
+    } else {
+      buildCountByUser.put(userName, userBuildCount);
+    }
+  }
+
+  int getMaxActiveBuilds() {
+    return maxActiveBuilds;
+  }
+
+  int getMaxQueuedBuilds() {
+    return maxQueuedBuilds;
+  }
+
+  int getMaxBuildsPerUser() {
+    return maxBuildsPerUser;
+  }
+
+  synchronized int getActiveBuildCount() {
+    return activeBuilds;
+  }
+
+  synchronized int getQueuedBuildCount() {
+    return queuedBuilds;
+  }
+
+  synchronized int getMaxActiveBuildCountOccurred() {
+    return maxActiveBuildsOccurred;
+  }
+
+  synchronized int getMaxQueuedBuildCountOccurred() {
+    return maxQueuedBuildsOccurred;
+  }
+
+  synchronized long getCompletedBuildCount() {
+    return completedBuilds;
+  }
+
+  synchronized long getRejectedBuildCount() {
+    return rejectedBuilds;
+  }
+
+  synchronized long getRejectedBuildForUserCount() {
+    return rejectedBuildsForUser;
+  }
+
+  /**
+   * Returns the histogram of the time builds spent waiting in the queue.
+   */
+  Histogram getQueueWaitHistogram() {
+    return queueWait;
+  }
+}
@@ -0,0 +1,228 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2014 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.appinventor.common.version.GitBuildId;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A content-addressed cache of built APKs.
+ *
+ * <p>Many builds are of byte-identical projects (for example, a whole class building the same
+ * tutorial). The cache maps a hash of the project's sources, assets and keystore, the build type
+ * and the build server version to the APK that was built from them, so a repeated build can be
+ * answered without running the compiler at all. Only projects that come with their own keystore
+ * are cached, since otherwise every build signs with a newly generated key.</p>
+ *
+ * <p>Each entry is a directory named by its key, holding the APK and the build output. The cache
+ * is bounded in size; when it grows too large, the least recently used entries are evicted.</p>
+ */
+final class BuildResultCache {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(BuildResultCache.class.getName());
+
+  private static final String OUTPUT_FILE_NAME = "build.output";
+
+  private final File cacheDir;
+  private final long maxBytes;
+
+  private final AtomicLong hits = new AtomicLong(0);
+  private final AtomicLong misses = new AtomicLong(0);
+  private final AtomicLong evictions = new AtomicLong(0);
+
+  /**
+   * A build result found in the cache.
+   */
+  static class Entry {
+    private final File apk;
+    private final String output;
+
+    private Entry(File apk, String output) {
+      this.apk = apk;
+      this.output = output;
+    }
+
+    /**
+     * Returns the copy of the cached APK, which belongs to the caller.
+     */
+    File getApk() {
+      return apk;
+    }
+
+    /**
+     * Returns the compiler messages of the build that produced the APK.
+     */
+    String getOutput() {
+      return output;
+    }
+  }
+
+  /**
+   * Creates a BuildResultCache.
+   *
+   * @param cacheDir the directory that holds the cache entries
+   * @param maxBytes the maximum total size of the cache entries
+   */
+  BuildResultCache(File cacheDir, long maxBytes) {
+    this.cacheDir = cacheDir;
+    this.maxBytes = maxBytes;
+    cacheDir.mkdirs();
+  }
+
+  /**
+   * Returns the cache key for building the given project zip, or {@code null} if the result of
+   * building it must not be cached.
+   *
+   * <p>The key is the {@linkplain #computeSourceHash source hash} of the zip. The component set of
+   * the project is determined by its sources and by the build server version, both of which are
+   * part of the key.</p>
+   */
+  static String computeKey(ZipFile inputZip, boolean isForCompanion) throws IOException {
+    if (inputZip.getEntry(YoungAndroidConstants.PROJECT_KEYSTORE_LOCATION) == null) {
+      // A new keystore will be generated, and the APK signed with it, so the result is unique.
+      return null;
+    }
+    return computeSourceHash(inputZip, isForCompanion);
+  }
+
+  /**
+   * Returns a hash of the name and contents of every file in the given project zip, taken in name
+   * order so that the order and timestamps of the zip entries don't matter, and of the build
+   * server version and whether the companion is being built.
+   */
+  static String computeSourceHash(ZipFile inputZip, boolean isForCompanion) throws IOException {
+    SortedMap<String, ZipEntry> entries = new TreeMap<String, ZipEntry>();
+    Enumeration<? extends ZipEntry> zipEntries = inputZip.entries();
+    while (zipEntries.hasMoreElements()) {
+      ZipEntry zipEntry = zipEntries.nextElement();
+      if (!zipEntry.isDirectory()) {
+        entries.put(zipEntry.getName(), zipEntry);
+      }
+    }
+
+    Hasher hasher = Hashing.sha1().newHasher();
+    hasher.putString(GitBuildId.getVersion(), Charsets.UTF_8).putByte((byte) 0);
+    hasher.putBoolean(isForCompanion);
+    byte[] buffer = new byte[8192];
+    for (ZipEntry zipEntry : entries.values()) {
+      hasher.putString(zipEntry.getName(), Charsets.UTF_8).putByte((byte) 0);
+      Hasher contentHasher = Hashing.sha1().newHasher();
+      InputStream inputStream = inputZip.getInputStream(zipEntry);
+      try {
+        int length;
+        while ((length = inputStream.read(buffer)) != -1) {
+          contentHasher.putBytes(buffer, 0, length);
+        }
+      } finally {
+        inputStream.close();
+      }
+      hasher.putBytes(contentHasher.hash().asBytes());
+    }
+    return hasher.hash().toString();
+  }
+
+  /**
+   * Copies the cached result for the given key into the given directory and returns it, or
+   * returns {@code null} if there isn't one.
+   *
+   * <p>The APK is copied while holding the lock that eviction takes, so that the entry can't be
+   * deleted while it is being copied. If the copy fails, the lookup is a miss.</p>
+   */
+  synchronized Entry lookup(String key, File outputDir) {
+    File entryDir = new File(cacheDir, key);
+    File[] files = entryDir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.getName().endsWith(".apk")) {
+          File outputApk = new File(outputDir, file.getName());
+          try {
+            String output = Files.toString(new File(entryDir, OUTPUT_FILE_NAME), Charsets.UTF_8);
+            Files.copy(file, outputApk);
+            // Record the use, so that this entry is evicted last.
+            entryDir.setLastModified(System.currentTimeMillis());
+            hits.incrementAndGet();
+            return new Entry(outputApk, output);
+          } catch (IOException e) {
+            LOG.log(Level.WARNING, "Unable to copy cached build result " + key, e);
+            outputApk.delete();
+            break;
+          }
+        }
+      }
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Adds the result of a successful build to the cache.
+   *
+   * @param key the cache key, as returned by {@link #computeKey}
+   * @param apk the built APK
+   * @param output the compiler messages of the build
+   */
+  void store(String key, File apk, String output) {
+    File entryDir = new File(cacheDir, key);
+    if (entryDir.exists()) {
+      return;
+    }
+    // Fill in the entry under a name of its own, then rename it, so that lookup never sees a
+    // partially written entry.
+    File tempDir = new File(cacheDir, key + "." + Thread.currentThread().getId() + ".tmp");
+    try {
+      FileUtils.deleteDirectory(tempDir);
+      if (!tempDir.mkdirs()) {
+        throw new IOException("Unable to create " + tempDir);
+      }
+      Files.copy(apk, new File(tempDir, apk.getName()));
+      Files.write(output, new File(tempDir, OUTPUT_FILE_NAME), Charsets.UTF_8);
+      if (!tempDir.renameTo(entryDir)) {
+        // Another build stored the same result first.
+        FileUtils.deleteDirectory(tempDir);
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to add build result to cache", e);
+      FileUtils.deleteQuietly(tempDir);
+    }
+    evictIfNecessary();
+  }
+
+  /*
+   * Deletes least recently used entries until the cache is no larger than maxBytes.
+   */
+  private synchronized void evictIfNecessary() {
+    evictions.addAndGet(CacheUtil.evictLeastRecentlyUsed(cacheDir, maxBytes));
+  }
+
+  long getHitCount() {
+    return hits.get();
+  }
+
+  long getMissCount() {
+    return misses.get();
+  }
+
+  long getEvictionCount() {
+    return evictions.get();
+  }
+}
@@ -5,9 +5,11 @@
 // http://www.apache.org/licenses/LICENSE-2.0
 package com.google.appinventor.buildserver;
 
+import com.google.appinventor.common.utils.StringUtils;
 import com.google.appinventor.common.version.GitBuildId;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
 import com.google.common.io.Files;
 
 import com.sun.grizzly.http.SelectorThread;
@@ -20,18 +22,16 @@ import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
 import org.kohsuke.args4j.spi.StringArrayOptionHandler;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
 import java.lang.management.OperatingSystemMXBean;
 import java.lang.management.RuntimeMXBean;
-import java.lang.Math;
 import java.net.HttpURLConnection;
 import java.net.InetAddress;
 import java.net.URL;
@@ -39,6 +39,8 @@ import java.text.DateFormat;
 import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
@@ -53,6 +55,7 @@ import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
 /**
  * Top level class for exposing the building of App Inventor APK files as a RESTful web service.
@@ -64,7 +67,9 @@ import javax.ws.rs.core.Response;
 // The Java class will be hosted at the URI path "/buildserver"
 @Path("/buildserver")
 public class BuildServer {
-  private ProjectBuilder projectBuilder = new ProjectBuilder();
+  // ProjectBuilder keeps no state between builds; everything about a build is in its
+  // BuildContext.
+  private final ProjectBuilder projectBuilder = new ProjectBuilder();
 
   static class CommandLineOptions {
     @Option(name = "--childProcessRamMb",
@@ -75,6 +80,50 @@ public class BuildServer {
       usage = "Maximum number of builds that can run in parallel. O means unlimited.")
     int maxSimultaneousBuilds = 0;  // The default is unlimited.
 
+    @Option(name = "--maxQueuedBuilds",
+      usage = "Maximum number of builds that can wait for one of the parallel builds to finish.")
+    int maxQueuedBuilds = 50;
+
+    @Option(name = "--maxBuildsPerUser",
+      usage = "Maximum number of builds, running or waiting, for one user. O means unlimited.")
+    int maxBuildsPerUser = 0;  // The default is unlimited.
+
+    @Option(name = "--maxSimultaneousKawaCompiles",
+      usage = "Maximum number of builds that can run the Kawa compiler in parallel. 0 means the number of processors, or fewer if their child processes don't fit in memory.")
+    int maxSimultaneousKawaCompiles = 0;
+
+    @Option(name = "--maxSimultaneousDxRuns",
+      usage = "Maximum number of builds that can run DX in parallel. 0 means the number of processors, or fewer if their child processes don't fit in memory.")
+    int maxSimultaneousDxRuns = 0;
+
+    @Option(name = "--maxSimultaneousPreDexJobs",
+      usage = "Maximum number of libraries pre-dexed in parallel, by all builds. 0 means the number of processors, or fewer if their child processes don't fit in memory.")
+    int maxSimultaneousPreDexJobs = 0;
+
+    @Option(name = "--shrinkRuntime",
+      usage = "Remove the classes of components a project doesn't use from its APK. Needs --dexCacheDir.")
+    boolean shrinkRuntime = false;
+
+    @Option(name = "--compilerWorkers",
+      usage = "Number of long-lived JVMs kept warm to run the Kawa compiler and DX. 0 means start a new JVM for every compile.")
+    int compilerWorkers = 0;
+
+    @Option(name = "--compilerWorkerMaxJobs",
+      usage = "Number of compiles after which a compiler worker JVM is replaced.")
+    int compilerWorkerMaxJobs = 50;
+
+    @Option(name = "--compilerWorkerJobTimeoutSec",
+      usage = "Number of seconds after which a compile in a compiler worker JVM is stopped and fails.")
+    int compilerWorkerJobTimeoutSec = 600;
+
+    @Option(name = "--keyPairPoolSize",
+      usage = "Number of RSA key pairs kept ready for the keystores of projects built for the first time. 0 means generate each key pair when it's needed.")
+    int keyPairPoolSize = 4;
+
+    @Option(name = "--memorySampleIntervalMs",
+      usage = "How often memory usage is sampled for the vars page, in milliseconds.")
+    int memorySampleIntervalMs = 5000;
+
     @Option(name = "--port",
       usage = "The port number to bind to on the local machine.")
     int port = 9990;
@@ -88,9 +137,29 @@ public class BuildServer {
       usage = "Turn on debugging, which enables the non-async calls of the buildserver.")
     boolean debug = false;
     @Option(name = "--dexCacheDir",
-            usage = "the directory to cache the pre-dexed libraries")
+            usage = "the directory to cache the pre-dexed libraries, the precompiled YAIL runtime, compiled forms and AAPT packages in")
     String dexCacheDir = null;
 
+    @Option(name = "--formCacheMaxMb",
+            usage = "Maximum size of the compiled forms cached in the dex cache directory, in MB.")
+    int formCacheMaxMb = 256;
+
+    @Option(name = "--aaptCacheMaxMb",
+            usage = "Maximum size of the AAPT packages cached in the dex cache directory, in MB.")
+    int aaptCacheMaxMb = 512;
+
+    @Option(name = "--buildCacheDir",
+            usage = "the directory to cache built APKs in, so that identical projects are not rebuilt")
+    String buildCacheDir = null;
+
+    @Option(name = "--buildCacheMaxMb",
+            usage = "Maximum size of the build cache, in MB.")
+    int buildCacheMaxMb = 1024;
+
+    @Option(name = "--traceDir",
+            usage = "the directory to write a JSON trace of the stages of each build to")
+    String traceDir = null;
+
   }
 
   private static final CommandLineOptions commandLineOptions = new CommandLineOptions();
@@ -119,29 +188,39 @@ public class BuildServer {
   //The number of failed build requests for this server run
   private static final AtomicInteger failedBuildRequests = new AtomicInteger(0);
 
-  //The number of failed build requests for this server run
-  private static int maximumActiveBuildTasks = 0;
+  // The number of times sending build results to a callback URL was retried for this server run
+  private static final AtomicInteger callbackRetries = new AtomicInteger(0);
 
-  // The build executor used to limit the number of simultaneous builds.
-  // NOTE(lizlooney) - the buildExecutor must be created after the command line options are
-  // processed in main(). If it is created here, the number of simultaneous builds will always be
-  // the default value, even if the --maxSimultaneousBuilds option is on the command line.
-  private static NonQueuingExecutor buildExecutor;
+  // The number of builds whose results could not be sent to the callback URL for this server run
+  private static final AtomicInteger failedCallbacks = new AtomicInteger(0);
 
-  // The input zip file. It will be deleted in cleanUp.
-  private File inputZip;
+  // The number of build requests that joined a build of the same sources for this server run
+  private static final AtomicInteger coalescedBuildRequests = new AtomicInteger(0);
 
-  // The built APK file for this build request, if any.
-  private File outputApk;
+  // The number of builds cancelled by a newer build of the same project for this server run
+  private static final AtomicInteger cancelledBuilds = new AtomicInteger(0);
 
-  // The temp directory that we're building in.
-  private File outputDir;
+  // How many times we try to send the build results to the callback URL.
+  private static final int MAX_CALLBACK_ATTEMPTS = 4;
 
-  // The android.keystore file generated by this build request, if necessary.
-  private File outputKeystore;
+  // How long we wait before the first retry. The wait is doubled after each failed attempt.
+  private static final long INITIAL_CALLBACK_RETRY_DELAY_MS = 1000;
 
-  // The zip file where we put all the build results for this request.
-  private File outputZip;
+  // The size of the chunks the build results are sent to the callback URL in.
+  private static final int CALLBACK_CHUNK_SIZE = 64 * 1024;
+
+  // The build queue used to limit the number of simultaneous builds.
+  // NOTE(lizlooney) - the buildQueue must be created after the command line options are
+  // processed in main(). If it is created here, the number of simultaneous builds will always be
+  // the default value, even if the --maxSimultaneousBuilds option is on the command line.
+  private static BuildQueue buildQueue;
+
+  // The cache of previously built APKs, or null if there is no --buildCacheDir.
+  private static BuildResultCache buildResultCache;
+
+  // Sends the results of builds that were found in the build result cache. These don't wait for
+  // a slot in the build queue.
+  private static final ExecutorService cachedResultSender = Executors.newCachedThreadPool();
 
   @GET
   @Path("health")
@@ -186,34 +265,123 @@ public class BuildServer {
     variables.put("used-heap", memoryBean.getHeapMemoryUsage().getUsed() + "");
     variables.put("used-non-heap", memoryBean.getNonHeapMemoryUsage().getUsed() + "");
 
+    // Memory telemetry, sampled in the background
+    MemoryTelemetry memoryTelemetry = MemoryTelemetry.getInstance();
+    variables.put("memory-samples", memoryTelemetry.getSampleCount() + "");
+    variables.put("sampled-used-heap", memoryTelemetry.getHeapUsed() + "");
+    variables.put("sampled-committed-heap", memoryTelemetry.getHeapCommitted() + "");
+    variables.put("sampled-used-non-heap", memoryTelemetry.getNonHeapUsed() + "");
+    variables.put("maximum-sampled-used-heap", memoryTelemetry.getMaxHeapUsed() + "");
+    variables.put("child-processes", memoryTelemetry.getChildProcessCount() + "");
+    variables.put("child-process-rss", memoryTelemetry.getChildProcessRss() + "");
+    variables.put("maximum-child-process-rss", memoryTelemetry.getMaxChildProcessRss() + "");
+    long measuredBuilds = memoryTelemetry.getBuildCount();
+    variables.put("build-allocated-bytes-mean", (measuredBuilds == 0) ? "0"
+      : (memoryTelemetry.getTotalBuildAllocatedBytes() / measuredBuilds) + "");
+    variables.put("build-allocated-bytes-max", memoryTelemetry.getMaxBuildAllocatedBytes() + "");
+
     // Build requests
     variables.put("count-async-build-requests", asyncBuildRequests.get() + "");
     variables.put("rejected-async-build-requests", rejectedAsyncBuildRequests.get() + "");
     variables.put("successful-async-build-requests", successfulBuildRequests.get() + "");
     variables.put("failed-async-build-requests", failedBuildRequests.get() + "");
+    variables.put("callback-retries", callbackRetries.get() + "");
+    variables.put("failed-callbacks", failedCallbacks.get() + "");
+    variables.put("coalesced-build-requests", coalescedBuildRequests.get() + "");
+    variables.put("cancelled-builds", cancelledBuilds.get() + "");
 
     // Build tasks
-    int max = buildExecutor.getMaxActiveTasks();
+    int max = buildQueue.getMaxActiveBuilds();
     if (max == 0) {
       variables.put("maximum-simultaneous-build-tasks-allowed", "unlimited");
     } else {
       variables.put("maximum-simultaneous-build-tasks-allowed", max + "");
     }
-    variables.put("completed-build-tasks", buildExecutor.getCompletedTaskCount() + "");
-    maximumActiveBuildTasks = Math.max(maximumActiveBuildTasks, buildExecutor.getActiveTaskCount());
-    variables.put("maximum-simultaneous-build-tasks-occurred", maximumActiveBuildTasks + "");
-    variables.put("active-build-tasks", buildExecutor.getActiveTaskCount() + "");
+    variables.put("completed-build-tasks", buildQueue.getCompletedBuildCount() + "");
+    variables.put("maximum-simultaneous-build-tasks-occurred",
+      buildQueue.getMaxActiveBuildCountOccurred() + "");
+    variables.put("active-build-tasks", buildQueue.getActiveBuildCount() + "");
+
+    // Build queue
+    variables.put("maximum-queued-builds-allowed", buildQueue.getMaxQueuedBuilds() + "");
+    int maxPerUser = buildQueue.getMaxBuildsPerUser();
+    variables.put("maximum-builds-per-user-allowed",
+      (maxPerUser == 0) ? "unlimited" : maxPerUser + "");
+    variables.put("queued-builds", buildQueue.getQueuedBuildCount() + "");
+    variables.put("registered-builds", BuildContext.getActiveBuildCount() + "");
+    variables.put("maximum-queued-builds-occurred",
+      buildQueue.getMaxQueuedBuildCountOccurred() + "");
+    variables.put("rejected-builds-queue-full", buildQueue.getRejectedBuildCount() + "");
+    variables.put("rejected-builds-user-limit", buildQueue.getRejectedBuildForUserCount() + "");
+    addHistogramVariables(variables, "queue-wait", buildQueue.getQueueWaitHistogram());
+
+    // Build stages
+    addStageVariables(variables, Compiler.getKawaLimiter());
+    addStageVariables(variables, Compiler.getDxLimiter());
+    variables.put("maximum-simultaneous-pre-dex-jobs-allowed", DexExecTask.getMaxPreDexJobs() + "");
+    for (Map.Entry<String, Histogram> stage : BuildTrace.getStageHistograms().entrySet()) {
+      addHistogramVariables(variables, "stage-" + stage.getKey(), stage.getValue());
+    }
+
+    // Build result cache
+    if (buildResultCache != null) {
+      variables.put("build-cache-hits", buildResultCache.getHitCount() + "");
+      variables.put("build-cache-misses", buildResultCache.getMissCount() + "");
+      variables.put("build-cache-evictions", buildResultCache.getEvictionCount() + "");
+    }
+
+    // Keystore key pairs
+    variables.put("pooled-key-pairs", KeyStoreGenerator.getPooledKeyPairCount() + "");
+    variables.put("pooled-key-pairs-used", KeyStoreGenerator.getPooledKeyPairsUsed() + "");
+    variables.put("key-pairs-generated-on-demand",
+      KeyStoreGenerator.getKeyPairsGeneratedOnDemand() + "");
+
+    // Compiler workers
+    CompilerWorkerPool workerPool = CompilerWorkerPool.getInstance();
+    if (workerPool != null) {
+      variables.put("compiler-workers-allowed", workerPool.getMaxWorkers() + "");
+      variables.put("compiler-workers-live", workerPool.getLiveWorkerCount() + "");
+      variables.put("compiler-workers-idle", workerPool.getIdleWorkerCount() + "");
+      variables.put("compiler-workers-started", workerPool.getWorkersStarted() + "");
+      variables.put("compiler-workers-retired", workerPool.getWorkersRetired() + "");
+      variables.put("compiler-worker-jobs", workerPool.getJobsRun() + "");
+      variables.put("compiler-worker-jobs-fallen-back", workerPool.getJobsFallenBack() + "");
+      variables.put("compiler-worker-jobs-timed-out", workerPool.getJobsTimedOut() + "");
+    }
 
     StringBuilder html = new StringBuilder();
     html.append("<html><body><tt>");
     for (Map.Entry<String, String> variable : variables.entrySet()) {
-      html.append("<b>").append(variable.getKey()).append("</b> ")
-        .append(variable.getValue()).append("<br>");
+      // Values such as the histogram buckets contain '<'. The ODE server unescapes them.
+      html.append("<b>").append(StringUtils.escape(variable.getKey())).append("</b> ")
+        .append(StringUtils.escape(variable.getValue())).append("<br>");
     }
     html.append("</tt></body></html>");
     return Response.ok(html.toString(), MediaType.TEXT_HTML_TYPE).build();
   }
 
+  private static void addHistogramVariables(Map<String, String> variables, String name,
+    Histogram histogram) {
+    variables.put(name + "-count", histogram.getCount() + "");
+    variables.put(name + "-mean-ms", histogram.getMeanMs() + "");
+    variables.put(name + "-p50-ms", histogram.getPercentileMs(0.5) + "");
+    variables.put(name + "-p90-ms", histogram.getPercentileMs(0.9) + "");
+    variables.put(name + "-p99-ms", histogram.getPercentileMs(0.99) + "");
+    variables.put(name + "-max-ms", histogram.getMaxMs() + "");
+    variables.put(name + "-histogram", histogram.toString());
+  }
+
+  private static void addStageVariables(Map<String, String> variables, StageLimiter stage) {
+    String prefix = stage.getName() + "-";
+    int max = stage.getMaxActive();
+    variables.put(prefix + "maximum-simultaneous-builds-allowed",
+      (max == 0) ? "unlimited" : max + "");
+    variables.put(prefix + "active-builds", stage.getActiveCount() + "");
+    variables.put(prefix + "queue-depth", stage.getQueueDepth() + "");
+    variables.put(prefix + "maximum-queue-depth-occurred", stage.getMaxQueueDepthOccurred() + "");
+    variables.put(prefix + "completed-builds", stage.getCompletedCount() + "");
+  }
+
   /**
    * Build an APK file from the input zip file. The zip file needs to be a variant of the same
    * App Inventor source zip that's generated by the Download Source command.  The differences are
@@ -230,25 +398,28 @@ public class BuildServer {
   @Produces("application/vnd.android.package-archive;charset=utf-8")
   public Response buildFromZipFile(@QueryParam("uname") String userName, File zipFile)
     throws IOException {
-    // Set the inputZip field so we can delete the input zip file later in cleanUp.
-    inputZip = zipFile;
-    inputZip.deleteOnExit();  // In case build server is killed before cleanUp executes.
+    BuildContext context = new BuildContext(userName, false,
+      commandLineOptions.childProcessRamMb, commandLineOptions.dexCacheDir, null);
+    // Set the input zip so we can delete it later in cleanUp.
+    context.setInputZip(zipFile);
+    zipFile.deleteOnExit();  // In case build server is killed before cleanUp executes.
 
     if(!commandLineOptions.debug)
       return Response.status(Response.Status.FORBIDDEN).type(MediaType.TEXT_PLAIN_TYPE)
         .entity("Entry point unavailable unless debugging.").build();
 
     try {
-      build(userName, zipFile);
+      build(context);
+      File outputApk = context.getOutputApk();
       String attachedFilename = outputApk.getName();
       FileInputStream outputApkDeleteOnClose = new DeleteFileOnCloseFileInputStream(outputApk);
-      // Set the outputApk field to null so that it won't be deleted in cleanUp().
-      outputApk = null;
+      // Set the output APK to null so that it won't be deleted in cleanUp().
+      context.setOutputApk(null);
       return Response.ok(outputApkDeleteOnClose)
         .header("Content-Disposition", "attachment; filename=\"" + attachedFilename + "\"")
         .build();
     } finally {
-      cleanUp();
+      cleanUp(context);
     }
   }
 
@@ -272,26 +443,43 @@ public class BuildServer {
   @Path("build-all-from-zip")
   @Produces("application/zip;charset=utf-8")
   public Response buildAllFromZipFile(@QueryParam("uname") String userName, File inputZipFile)
-    throws IOException, JSONException {
-    // Set the inputZip field so we can delete the input zip file later in cleanUp.
-    inputZip = inputZipFile;
-    inputZip.deleteOnExit();  // In case build server is killed before cleanUp executes.
+    throws IOException {
+    final BuildContext context = new BuildContext(userName, false,
+      commandLineOptions.childProcessRamMb, commandLineOptions.dexCacheDir, null);
+    // Set the input zip so we can delete it later in cleanUp.
+    context.setInputZip(inputZipFile);
+    inputZipFile.deleteOnExit();  // In case build server is killed before cleanUp executes.
 
     if(!commandLineOptions.debug)
       return Response.status(Response.Status.FORBIDDEN).type(MediaType.TEXT_PLAIN_TYPE)
         .entity("Entry point unavailable unless debugging.").build();
 
+    boolean streaming = false;
     try {
-      buildAndCreateZip(userName, inputZipFile);
-      String attachedFilename = outputZip.getName();
-      FileInputStream outputZipDeleteOnClose = new DeleteFileOnCloseFileInputStream(outputZip);
-      // Set the outputZip field to null so that it won't be deleted in cleanUp().
-      outputZip = null;
-      return Response.ok(outputZipDeleteOnClose)
+      final Result buildResult = buildAndRecordResult(context);
+      String attachedFilename = inputZipFile.getName() + ".zip";
+      // The zip is written straight to the response, and the build's files are deleted once it
+      // has been written.
+      StreamingOutput outputZip = new StreamingOutput() {
+        @Override
+        public void write(OutputStream out) throws IOException {
+          try {
+            writeBuildResultZip(context, buildResult, out);
+          } catch (JSONException e) {
+            throw new IOException(e);
+          } finally {
+            cleanUp(context);
+          }
+        }
+      };
+      streaming = true;
+      return Response.ok(outputZip)
         .header("Content-Disposition", "attachment; filename=\"" + attachedFilename + "\"")
         .build();
     } finally {
-      cleanUp();
+      if (!streaming) {
+        cleanUp(context);
+      }
     }
   }
 
@@ -304,7 +492,8 @@ public class BuildServer {
    *
    * We'll use the callbackUrlStr to post back a zip file containing the build.out and build.err
    * files as well as the APK file if the build succeeded and the android.keystore file if it was
-   * not provided in the input zip
+   * not provided in the input zip. The zip is streamed to the callbackUrlStr as it's written. If
+   * sending it fails, it is sent again, up to MAX_CALLBACK_ATTEMPTS times.
    *
    * Before building the app, we'll check that the gitBuildVersion parameter (if present) equals
    * GitBuildId.getVersion(). If the values are different, we won't even try to build
@@ -315,10 +504,25 @@ public class BuildServer {
    * The status code returned here will be seen by the server in YoungAndroidProjectService.build
    * as connection.getResponseCode().
    *
+   * If the result of the build is in the build result cache, it is sent without waiting in the
+   * build queue. Otherwise, if the build can't start right away, it waits in the build queue. The number of builds ahead
+   * of it is returned in the X-Build-Queue-Position header, and the id of the build, which can be
+   * passed to the progress entry point, in the X-Build-Id header.
+   *
+   * If the input zip file is empty, this is a request for the progress of the most recent build
+   * that was started with the same callbackUrlStr.
+   *
+   * If a projectKey is given, a request to build the same sources as a build of the same project
+   * that is waiting or running joins that build: no new build is started, and the id of the
+   * running build is returned. A request to build different sources cancels the older build of
+   * the project, whose results would only be overwritten, once the new build has been queued.
+   *
    * @param userName  The user name to be used in making the CN entry in the generated keystore.
    * @param gitBuildVersion  The value of GitBuildId.getVersion() sent from
    *     YoungAndroidProjectService.build.
+   * @param isForCompanion  Whether to build the companion app, which is done before other builds.
    * @param callbackUrlStr An url to send the build results back to.
+   * @param projectKey  Identifies the project and build target, or null.
    * @param inputZipFile  The zip file representing the App Inventor source code.
    * @return a status response, typically OK (200) or SERVICE_UNAVAILABLE (503).
    */
@@ -329,149 +533,348 @@ public class BuildServer {
     @QueryParam("uname") final String userName,
     @QueryParam("callback") final String callbackUrlStr,
     @QueryParam("gitBuildVersion") final String gitBuildVersion,
+    @QueryParam("isForCompanion") final boolean isForCompanion,
+    @QueryParam("projectKey") final String projectKey,
     final File inputZipFile) throws IOException {
-    // Set the inputZip field so we can delete the input zip file later in
-    // cleanUp.
-    inputZip = inputZipFile;
-    inputZip.deleteOnExit(); // In case build server is killed before cleanUp executes.
+    final BuildContext context = new BuildContext(userName, isForCompanion,
+      commandLineOptions.childProcessRamMb, commandLineOptions.dexCacheDir, callbackUrlStr);
+    // Set the input zip so we can delete it later in cleanUp.
+    context.setInputZip(inputZipFile);
+    inputZipFile.deleteOnExit(); // In case build server is killed before cleanUp executes.
     String requesting_host = (new URL(callbackUrlStr)).getHost();
 
     //for the request for update part, the file should be empty
-    if (inputZip.length() == 0L) {
-      cleanUp();
-    } else {
-      if (commandLineOptions.requiredHosts != null) {
-        boolean oktoproceed = false;
-        for (String host : commandLineOptions.requiredHosts) {
-          if (host.equals(requesting_host)) {
-            oktoproceed = true;
-            break;}
-        }
+    if (inputZipFile.length() == 0L) {
+      cleanUp(context);
+      BuildContext activeBuild = BuildContext.getActiveBuildForCallback(callbackUrlStr);
+      int progress = (activeBuild == null) ? 0 : activeBuild.getProgress();
+      return Response.ok().type(MediaType.TEXT_PLAIN_TYPE).entity("" + progress).build();
+    }
 
-        if (oktoproceed) {
-          LOG.info("requesting host (" + requesting_host + ") is in the allowed host list request will be honored.");
-        } else {
-          // Return an error
-          LOG.info("requesting host (" + requesting_host + ") is NOT in the allowed host list request will be rejected.");
-          return Response.status(Response.Status.FORBIDDEN).type(MediaType.TEXT_PLAIN_TYPE).entity("You are not permitted to use this build server.").build();
-        }
+    int queuePosition = 0;
+    if (commandLineOptions.requiredHosts != null) {
+      boolean oktoproceed = false;
+      for (String host : commandLineOptions.requiredHosts) {
+        if (host.equals(requesting_host)) {
+          oktoproceed = true;
+          break;}
+      }
+
+      if (oktoproceed) {
+        LOG.info("requesting host (" + requesting_host + ") is in the allowed host list request will be honored.");
       } else {
-        LOG.info("requiredHosts is not set, no restriction on callback url.");
+        // Return an error
+        LOG.info("requesting host (" + requesting_host + ") is NOT in the allowed host list request will be rejected.");
+        return Response.status(Response.Status.FORBIDDEN).type(MediaType.TEXT_PLAIN_TYPE).entity("You are not permitted to use this build server.").build();
+      }
+    } else {
+      LOG.info("requiredHosts is not set, no restriction on callback url.");
+    }
+
+    asyncBuildRequests.incrementAndGet();
+
+    if (gitBuildVersion != null && !gitBuildVersion.isEmpty()) {
+      if (!gitBuildVersion.equals(GitBuildId.getVersion())) {
+        // This build server is not compatible with the App Inventor instance. Log this as severe
+        // so the owner of the build server will know about it.
+        String errorMessage = "Build server version " + GitBuildId.getVersion() +
+          " is not compatible with App Inventor version " + gitBuildVersion + ".";
+        LOG.severe(errorMessage);
+        // This request was rejected because the gitBuildVersion parameter did not equal the
+        // expected value.
+        rejectedAsyncBuildRequests.incrementAndGet();
+        cleanUp(context);
+        // Here, we use CONFLICT (response code 409), which means (according to rfc2616, section
+        // 10) "The request could not be completed due to a conflict with the current state of the
+        // resource."
+        return Response.status(Response.Status.CONFLICT).type(MediaType.TEXT_PLAIN_TYPE).entity(errorMessage).build();
       }
+    }
 
-      asyncBuildRequests.incrementAndGet();
-
-      if (gitBuildVersion != null && !gitBuildVersion.isEmpty()) {
-        if (!gitBuildVersion.equals(GitBuildId.getVersion())) {
-          // This build server is not compatible with the App Inventor instance. Log this as severe
-          // so the owner of the build server will know about it.
-          String errorMessage = "Build server version " + GitBuildId.getVersion() +
-            " is not compatible with App Inventor version " + gitBuildVersion + ".";
-          LOG.severe(errorMessage);
-          // This request was rejected because the gitBuildVersion parameter did not equal the
-          // expected value.
-          rejectedAsyncBuildRequests.incrementAndGet();
-          cleanUp();
-          // Here, we use CONFLICT (response code 409), which means (according to rfc2616, section
-          // 10) "The request could not be completed due to a conflict with the current state of the
-          // resource."
-          return Response.status(Response.Status.CONFLICT).type(MediaType.TEXT_PLAIN_TYPE).entity(errorMessage).build();
+    String sourceHash = null;
+    String cacheKey = null;
+    boolean hasProjectKey = projectKey != null && !projectKey.isEmpty();
+    if (hasProjectKey || buildResultCache != null) {
+      try {
+        ZipFile zipFile = new ZipFile(inputZipFile);
+        try {
+          if (buildResultCache != null) {
+            cacheKey = BuildResultCache.computeKey(zipFile, isForCompanion);
+          }
+          if (hasProjectKey) {
+            // The cache key, when there is one, is the source hash.
+            sourceHash = (cacheKey != null)
+              ? cacheKey : BuildResultCache.computeSourceHash(zipFile, isForCompanion);
+          }
+        } finally {
+          zipFile.close();
         }
+      } catch (IOException e) {
+        // The build will fail and report the bad zip; there's nothing to join or cancel.
+        LOG.warning("Unable to hash the sources of build " + context.getBuildId() + ": " + e);
       }
+    }
+    // The cache is looked in before the build is queued, so that a build whose result is cached
+    // doesn't wait for, or take, a slot in the build queue.
+    final String buildCacheKey = cacheKey;
+    final Result cachedResult = buildFromCache(context, cacheKey);
 
-      Runnable buildTask = new Runnable() {
-          @Override
-          public void run() {
-            int count = buildCount.incrementAndGet();
+    Runnable buildTask = new Runnable() {
+        @Override
+        public void run() {
+          if (context.isCancelled()) {
+            LOG.info("Build " + context.getBuildId() + " was cancelled before it started");
+            context.unregister();
+            cleanUp(context);
+            return;
+          }
+          int count = buildCount.incrementAndGet();
+          long allocatedBytesAtStart = MemoryTelemetry.getCurrentThreadAllocatedBytes();
+          context.started();
+          try {
+            LOG.info("START NEW BUILD " + count + " (build id " + context.getBuildId() + ")");
+            Result buildResult = recordResult(context,
+              (cachedResult != null) ? cachedResult : build(context, buildCacheKey));
+            if (context.isCancelled()) {
+              // A newer build of the project will send its results instead.
+              LOG.info("Build " + context.getBuildId() + " was cancelled");
+              return;
+            }
+            // Send zip back to the callbackUrl
+            LOG.info("CallbackURL: " + callbackUrlStr);
+            BuildTrace.Span span = context.getTrace().startSpan("callback");
             try {
-              LOG.info("START NEW BUILD " + count);
-              checkMemory();
-              buildAndCreateZip(userName, inputZipFile);
-              // Send zip back to the callbackUrl
-              LOG.info("CallbackURL: " + callbackUrlStr);
-              URL callbackUrl = new URL(callbackUrlStr);
-              HttpURLConnection connection = (HttpURLConnection) callbackUrl.openConnection();
-              connection.setDoOutput(true);
-              connection.setRequestMethod("POST");
-              // Make sure we aren't misinterpreted as
-              // form-url-encoded
-              connection.addRequestProperty("Content-Type","application/zip; charset=utf-8");
-              connection.setConnectTimeout(60000);
-              connection.setReadTimeout(60000);
-              BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(connection.getOutputStream());
-              try {
-                BufferedInputStream bufferedInputStream = new BufferedInputStream(
-                  new FileInputStream(outputZip));
-                try {
-                  ByteStreams.copy(bufferedInputStream,bufferedOutputStream);
-                  checkMemory();
-                  bufferedOutputStream.flush();
-                } finally {
-                  bufferedInputStream.close();
-                }
-              } finally {
-                bufferedOutputStream.close();
-              }
-              if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {LOG.severe("Bad Response Code!: "+ connection.getResponseCode());
-                // TODO(user) Maybe do some retries
-              }
-            } catch (Exception e) {
-              // TODO(user): Maybe send a failure callback
-              LOG.severe("Exception: " + e.getMessage()+ " and the length is of inputZip is "+ inputZip.length());
+              sendBuildResult(context, buildResult);
             } finally {
-              cleanUp();
-              checkMemory();
-              LOG.info("BUILD " + count + " FINISHED");
+              span.end();
             }
+          } catch (Exception e) {
+            // TODO(user): Maybe send a failure callback
+            LOG.severe("Exception: " + e.getMessage()+ " and the length is of inputZip is "+ inputZipFile.length());
+          } finally {
+            context.finished();
+            context.unregister();
+            cleanUp(context);
+            logMemoryUsage(count, allocatedBytesAtStart);
+            LOG.info("BUILD " + count + " FINISHED in " + context.getBuildTimeMs() + " ms "
+              + context.getStageTimesMs());
+            writeTrace(context);
           }
-        };
-      try {
-        buildExecutor.execute(buildTask);
-      } catch (RejectedExecutionException e) {
-        // This request was rejected because all threads in the build
-        // executor are busy.
-        rejectedAsyncBuildRequests.incrementAndGet();
-        cleanUp();
-        // Here, we use SERVICE_UNAVAILABLE (response code 503), which
-        // means (according to rfc2616, section 10) "The server is
-        // currently unable to handle the request due to a temporary
-        // overloading or maintenance of the server. The implication
-        // is that this is a temporary condition which will be
-        // alleviated after some delay."
-        return Response.status(Response.Status.SERVICE_UNAVAILABLE).type(MediaType.TEXT_PLAIN_TYPE).entity("The build server is currently at maximum capacity.").build();
+        }
+      };
+    // Register the build before it's queued, so that its progress can be polled while it waits.
+    if (sourceHash != null) {
+      BuildContext runningBuild = context.registerForProject(projectKey, sourceHash);
+      if (runningBuild != null) {
+        // The same sources are already being built for this project; wait for that build.
+        LOG.info("Build request joined build " + runningBuild.getBuildId());
+        coalescedBuildRequests.incrementAndGet();
+        cleanUp(context);
+        return Response.ok().type(MediaType.TEXT_PLAIN_TYPE)
+          .header("X-Build-Id", runningBuild.getBuildId())
+          .header("X-Build-Coalesced", "true")
+          .entity("" + runningBuild.getProgress()).build();
       }
+    } else {
+      context.register();
     }
+    try {
+      if (cachedResult != null) {
+        cachedResultSender.execute(buildTask);
+      } else {
+        context.setQueuedTask(buildQueue, buildTask);
+        queuePosition = buildQueue.submit(userName, isForCompanion, buildTask);
+      }
+      // Only now that this build is sure to run does it cancel the build it replaces.
+      context.cancelReplacedBuild();
+      if (queuePosition > 0) {
+        LOG.info("Build queued behind " + queuePosition + " other builds");
+      }
+    } catch (RejectedExecutionException e) {
+      // This request was rejected because the build queue is full or
+      // the user already has too many builds in it.
+      rejectedAsyncBuildRequests.incrementAndGet();
+      context.unregister();
+      cleanUp(context);
+      // Here, we use SERVICE_UNAVAILABLE (response code 503), which
+      // means (according to rfc2616, section 10) "The server is
+      // currently unable to handle the request due to a temporary
+      // overloading or maintenance of the server. The implication
+      // is that this is a temporary condition which will be
+      // alleviated after some delay."
+      return Response.status(Response.Status.SERVICE_UNAVAILABLE).type(MediaType.TEXT_PLAIN_TYPE).entity(e.getMessage()).build();
+    }
+    // The body must remain just the progress, which YoungAndroidProjectService parses as a number.
     return Response.ok().type(MediaType.TEXT_PLAIN_TYPE)
-      .entity("" + projectBuilder.getProgress()).build();
+      .header("X-Build-Id", context.getBuildId())
+      .header("X-Build-Queue-Position", queuePosition)
+      .entity("" + context.getProgress()).build();
+  }
+
+  /**
+   * Returns the progress of a build started with build-all-from-zip-async, as a percentage.
+   *
+   * @param buildId  The build id returned in the X-Build-Id header.
+   * @return the progress, or NOT_FOUND (404) if the build has finished or was never started.
+   */
+  @GET
+  @Path("progress")
+  @Produces(MediaType.TEXT_PLAIN)
+  public Response progress(@QueryParam("buildId") String buildId) {
+    BuildContext context = BuildContext.getActiveBuild(buildId);
+    if (context == null) {
+      return Response.status(Response.Status.NOT_FOUND).type(MediaType.TEXT_PLAIN_TYPE)
+        .entity("No build " + buildId + " is in progress.").build();
+    }
+    return Response.ok("" + context.getProgress(), MediaType.TEXT_PLAIN_TYPE).build();
+  }
+
+  private Result buildAndRecordResult(BuildContext context) throws IOException {
+    return recordResult(context, build(context));
+  }
+
+  private Result recordResult(BuildContext context, Result buildResult) {
+    if (context.isCancelled()) {
+      cancelledBuilds.getAndIncrement();
+    } else if (buildResult.succeeded()) {
+      successfulBuildRequests.getAndIncrement();
+    } else {
+      LOG.severe("Build " + buildCount.get() + " Failed: " + buildResult.getResult() + " " + buildResult.getError());
+      failedBuildRequests.getAndIncrement();
+    }
+    // The trace is taken now, so that it is the same each time the result zip is written.
+    try {
+      buildResult.setTrace(context.getTrace().toJson().toString());
+    } catch (JSONException e) {
+      LOG.warning("Unable to record the trace of build " + context.getBuildId() + ": " + e);
+    }
+    return buildResult;
+  }
+
+  /*
+   * Writes the trace of the build to the --traceDir directory, if there is one.
+   */
+  private static void writeTrace(BuildContext context) {
+    if (commandLineOptions.traceDir == null) {
+      return;
+    }
+    try {
+      context.getTrace().writeTo(new File(commandLineOptions.traceDir));
+    } catch (IOException e) {
+      LOG.warning("Unable to write the trace of build " + context.getBuildId() + ": " + e);
+    }
   }
 
-  private void buildAndCreateZip(String userName, File inputZipFile)
+  /*
+   * Writes the zip of the build results to the given stream. The APK and keystore are copied
+   * straight from the build's output directory, so the zip is never held in memory or written to
+   * a temp file. The stream is not closed.
+   */
+  private void writeBuildResultZip(BuildContext context, Result buildResult, OutputStream out)
     throws IOException, JSONException {
-    Result buildResult = build(userName, inputZipFile);
-    boolean buildSucceeded = buildResult.succeeded();
-    outputZip = File.createTempFile(inputZipFile.getName(), ".zip");
-    outputZip.deleteOnExit();  // In case build server is killed before cleanUp executes.
-    ZipOutputStream zipOutputStream =
-      new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(outputZip)));
-    if (buildSucceeded) {
+    ZipOutputStream zipOutputStream = new ZipOutputStream(out);
+    if (buildResult.succeeded()) {
+      File outputKeystore = context.getOutputKeystore();
       if (outputKeystore != null) {
         zipOutputStream.putNextEntry(new ZipEntry(outputKeystore.getName()));
         Files.copy(outputKeystore, zipOutputStream);
       }
+      File outputApk = context.getOutputApk();
       zipOutputStream.putNextEntry(new ZipEntry(outputApk.getName()));
       Files.copy(outputApk, zipOutputStream);
-      successfulBuildRequests.getAndIncrement();
-    } else {
-      LOG.severe("Build " + buildCount.get() + " Failed: " + buildResult.getResult() + " " + buildResult.getError());
-      failedBuildRequests.getAndIncrement();
     }
     zipOutputStream.putNextEntry(new ZipEntry("build.out"));
     String buildOutputJson = genBuildOutput(buildResult);
     PrintStream zipPrintStream = new PrintStream(zipOutputStream);
     zipPrintStream.print(buildOutputJson);
     zipPrintStream.flush();
+    zipOutputStream.finish();
     zipOutputStream.flush();
-    zipOutputStream.close();
+  }
+
+  /*
+   * Sends the build results to the build's callback URL. If the connection fails, or the server
+   * responds with an error that may be temporary, the results are sent again after a delay that
+   * doubles each time. Every attempt sends the whole zip; ReceiveBuildServlet reads the entries as
+   * they arrive and overwrites any files stored by an earlier, interrupted attempt.
+   */
+  private void sendBuildResult(BuildContext context, Result buildResult)
+    throws IOException, JSONException, InterruptedException {
+    URL callbackUrl = new URL(context.getCallbackUrl());
+    boolean chunked = true;
+    long retryDelayMs = INITIAL_CALLBACK_RETRY_DELAY_MS;
+    for (int attempt = 1; ; attempt++) {
+      String failure;
+      try {
+        int responseCode = postBuildResult(callbackUrl, context, buildResult, chunked);
+        if (responseCode == HttpURLConnection.HTTP_OK) {
+          return;
+        }
+        failure = "Bad Response Code!: " + responseCode;
+        if (responseCode == HttpURLConnection.HTTP_LENGTH_REQUIRED && chunked) {
+          // The server doesn't accept chunked requests. Send the length up front instead.
+          LOG.warning(failure + ". Sending build results with a Content-Length.");
+          chunked = false;
+          attempt--;
+          continue;
+        }
+        if (!isRetryableResponseCode(responseCode)) {
+          LOG.severe(failure);
+          failedCallbacks.incrementAndGet();
+          return;
+        }
+      } catch (IOException e) {
+        failure = "Exception: " + e.getMessage();
+      }
+      if (attempt >= MAX_CALLBACK_ATTEMPTS) {
+        LOG.severe("Unable to send build results after " + attempt + " attempts. " + failure);
+        failedCallbacks.incrementAndGet();
+        return;
+      }
+      LOG.warning(failure + ". Sending build results again in " + retryDelayMs + " ms.");
+      callbackRetries.incrementAndGet();
+      Thread.sleep(retryDelayMs);
+      retryDelayMs *= 2;
+    }
+  }
+
+  private static boolean isRetryableResponseCode(int responseCode) {
+    return responseCode >= 500 || responseCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT
+      || responseCode == 429;  // Too Many Requests
+  }
+
+  /*
+   * POSTs the zip of the build results to the given URL and returns the response code. With
+   * chunked transfer encoding, the zip is sent as it's written. Otherwise, it is written once to
+   * compute its length, and then written again to the connection; HttpURLConnection would
+   * otherwise buffer the whole request to compute the length itself.
+   */
+  private int postBuildResult(URL callbackUrl, BuildContext context, Result buildResult,
+    boolean chunked) throws IOException, JSONException {
+    HttpURLConnection connection = (HttpURLConnection) callbackUrl.openConnection();
+    connection.setDoOutput(true);
+    connection.setRequestMethod("POST");
+    // Make sure we aren't misinterpreted as
+    // form-url-encoded
+    connection.addRequestProperty("Content-Type","application/zip; charset=utf-8");
+    connection.setConnectTimeout(60000);
+    connection.setReadTimeout(60000);
+    if (chunked) {
+      connection.setChunkedStreamingMode(CALLBACK_CHUNK_SIZE);
+    } else {
+      CountingOutputStream countingOutputStream =
+        new CountingOutputStream(ByteStreams.nullOutputStream());
+      writeBuildResultZip(context, buildResult, countingOutputStream);
+      connection.setFixedLengthStreamingMode(countingOutputStream.getCount());
+    }
+    BufferedOutputStream bufferedOutputStream =
+      new BufferedOutputStream(connection.getOutputStream(), CALLBACK_CHUNK_SIZE);
+    try {
+      writeBuildResultZip(context, buildResult, bufferedOutputStream);
+    } finally {
+      bufferedOutputStream.close();
+    }
+    return connection.getResponseCode();
   }
 
   private String genBuildOutput(Result buildResult) throws JSONException {
@@ -482,57 +885,115 @@ public class BuildServer {
     if (buildResult.getFormName() != null) {
       buildOutputJsonObj.put("formName", buildResult.getFormName());
     }
+    if (buildResult.getTrace() != null) {
+      buildOutputJsonObj.put("trace", new JSONObject(buildResult.getTrace()));
+    }
     return buildOutputJsonObj.toString();
   }
 
-  private Result build(String userName, File zipFile) throws IOException {
-    outputDir = Files.createTempDir();
-    // We call outputDir.deleteOnExit() here, in case build server is killed before cleanUp
-    // executes. However, it is likely that the directory won't be empty and therefore, won't
-    // actually be deleted. That's only if the build server is killed (via ctrl+c) while a build
-    // is happening, so we should be careful about that.
-    outputDir.deleteOnExit();
-    Result buildResult = projectBuilder.build(userName, new ZipFile(zipFile), outputDir, false,
-      commandLineOptions.childProcessRamMb, commandLineOptions.dexCacheDir);
+  /*
+   * Builds the project, unless its result is in the build result cache.
+   */
+  private Result build(BuildContext context) throws IOException {
+    String cacheKey = null;
+    if (buildResultCache != null) {
+      ZipFile zipFile = new ZipFile(context.getInputZip());
+      try {
+        cacheKey = BuildResultCache.computeKey(zipFile, context.isForCompanion());
+      } finally {
+        zipFile.close();
+      }
+    }
+    Result cachedResult = buildFromCache(context, cacheKey);
+    return (cachedResult != null) ? cachedResult : build(context, cacheKey);
+  }
+
+  /*
+   * Returns the cached result of the build with the given cache key, with its APK copied to the
+   * build's output directory, or null if the result isn't in the cache.
+   */
+  private static Result buildFromCache(BuildContext context, String cacheKey) {
+    if (cacheKey == null) {
+      return null;
+    }
+    BuildResultCache.Entry cached = buildResultCache.lookup(cacheKey, createOutputDir(context));
+    if (cached == null) {
+      return null;
+    }
+    LOG.info("Build " + context.getBuildId() + " found in build cache: " + cacheKey);
+    File outputApk = cached.getApk();
+    outputApk.deleteOnExit();  // In case build server is killed before cleanUp executes.
+    context.setOutputApk(outputApk);
+    context.setOutputKeystore(null);
+    return Result.createSuccessfulResult(cached.getOutput(), "");
+  }
+
+  /*
+   * Builds the project and, if cacheKey isn't null, adds the result to the build result cache.
+   */
+  private Result build(BuildContext context, String cacheKey) throws IOException {
+    createOutputDir(context);
+    ZipFile inputZipFile = new ZipFile(context.getInputZip());
+    Result buildResult = projectBuilder.build(inputZipFile, context);
     String buildOutput = buildResult.getOutput();
     LOG.info("Build output: " + buildOutput);
     String buildError = buildResult.getError();
     LOG.info("Build error output: " + buildError);
-    outputApk = projectBuilder.getOutputApk();
+    File outputApk = context.getOutputApk();
     if (outputApk != null) {
       outputApk.deleteOnExit();  // In case build server is killed before cleanUp executes.
     }
-    outputKeystore = projectBuilder.getOutputKeystore();
+    File outputKeystore = context.getOutputKeystore();
     if (outputKeystore != null) {
       outputKeystore.deleteOnExit();  // In case build server is killed before cleanUp executes.
     }
-    checkMemory();
+    if (cacheKey != null && buildResult.succeeded() && outputApk != null) {
+      buildResultCache.store(cacheKey, outputApk, buildOutput);
+    }
     return buildResult;
   }
 
-  private void cleanUp() {
-    if (inputZip != null) {
-      inputZip.delete();
-    }
-    if (outputKeystore != null) {
-      outputKeystore.delete();
-    }
-    if (outputApk != null) {
-      outputApk.delete();
-    }
-    if (outputZip != null) {
-      outputZip.delete();
+  private static File createOutputDir(BuildContext context) {
+    File outputDir = context.getOutputDir();
+    if (outputDir == null) {
+      outputDir = Files.createTempDir();
+      context.setOutputDir(outputDir);
+      // We call outputDir.deleteOnExit() here, in case build server is killed before cleanUp
+      // executes. However, it is likely that the directory won't be empty and therefore, won't
+      // actually be deleted. That's only if the build server is killed (via ctrl+c) while a build
+      // is happening, so we should be careful about that.
+      outputDir.deleteOnExit();
     }
-    if (outputDir != null) {
-      outputDir.delete();
+    return outputDir;
+  }
+
+  private static void cleanUp(BuildContext context) {
+    deleteIfNotNull(context.getInputZip());
+    deleteIfNotNull(context.getOutputKeystore());
+    deleteIfNotNull(context.getOutputApk());
+    deleteIfNotNull(context.getOutputDir());
+  }
+
+  private static void deleteIfNotNull(File file) {
+    if (file != null) {
+      file.delete();
     }
   }
 
-  private static void checkMemory() {
-    MemoryMXBean mBean = ManagementFactory.getMemoryMXBean();
-    mBean.gc();
-    LOG.info("Build " + buildCount + " current used memory: "
-      + mBean.getHeapMemoryUsage().getUsed() + " bytes");
+  /*
+   * Records and logs the memory used by a build. This must not trigger a garbage collection, which
+   * would stop every other build running at the time.
+   */
+  private static void logMemoryUsage(int count, long allocatedBytesAtStart) {
+    MemoryTelemetry memoryTelemetry = MemoryTelemetry.getInstance();
+    if (allocatedBytesAtStart >= 0) {
+      long allocatedBytes =
+        MemoryTelemetry.getCurrentThreadAllocatedBytes() - allocatedBytesAtStart;
+      memoryTelemetry.recordBuildAllocation(allocatedBytes);
+      LOG.info("Build " + count + " allocated: " + allocatedBytes + " bytes");
+    }
+    LOG.info("Build " + count + " current used memory: "
+      + ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() + " bytes");
   }
 
   public static void main(String[] args) throws IOException {
@@ -548,8 +1009,27 @@ public class BuildServer {
       System.exit(1);
     }
 
-    // Now that the command line options have been processed, we can create the buildExecutor.
-    buildExecutor = new NonQueuingExecutor(commandLineOptions.maxSimultaneousBuilds);
+    // Now that the command line options have been processed, we can create the buildQueue.
+    buildQueue = new BuildQueue(commandLineOptions.maxSimultaneousBuilds,
+      commandLineOptions.maxQueuedBuilds, commandLineOptions.maxBuildsPerUser);
+    MemoryTelemetry.getInstance().start(commandLineOptions.memorySampleIntervalMs);
+    Compiler.setStageLimits(commandLineOptions.maxSimultaneousKawaCompiles,
+      commandLineOptions.maxSimultaneousDxRuns, commandLineOptions.childProcessRamMb);
+    DexExecTask.setMaxPreDexJobs(commandLineOptions.maxSimultaneousPreDexJobs,
+      commandLineOptions.childProcessRamMb);
+    Compiler.setShrinkRuntime(commandLineOptions.shrinkRuntime);
+    Compiler.setFormCacheMaxBytes(commandLineOptions.formCacheMaxMb * 1024L * 1024L);
+    Compiler.setAaptCacheMaxBytes(commandLineOptions.aaptCacheMaxMb * 1024L * 1024L);
+    CompilerWorkerPool.configure(commandLineOptions.compilerWorkers,
+      commandLineOptions.compilerWorkerMaxJobs, commandLineOptions.compilerWorkerJobTimeoutSec);
+    KeyStoreGenerator.configure(commandLineOptions.keyPairPoolSize);
+    if (commandLineOptions.buildCacheDir != null) {
+      buildResultCache = new BuildResultCache(new File(commandLineOptions.buildCacheDir),
+        commandLineOptions.buildCacheMaxMb * 1024L * 1024L);
+    }
+    if (commandLineOptions.traceDir != null) {
+      new File(commandLineOptions.traceDir).mkdirs();
+    }
 
     int port = commandLineOptions.port;
     SelectorThread threadSelector = GrizzlyServerFactory.create("http://localhost:" + port + "/");
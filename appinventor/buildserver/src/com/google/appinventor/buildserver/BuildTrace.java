@@ -0,0 +1,298 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2014 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The spans of one build: when each stage of the build started and ended, and how much CPU time
+ * and memory the child processes or compiler worker jobs it ran used.
+ *
+ * <p>A span is started on the thread that runs the stage and becomes that thread's current span
+ * until it ends, so child processes started by the stage (see {@link Execution} and
+ * {@link CompilerWorkerPool}) are charged to it without being passed the span. Spans nest: a span
+ * started while another is current is a child of it.</p>
+ *
+ * <p>The duration of every span, of every build, is also recorded in a histogram for its stage
+ * (see {@link #getStageHistograms}).</p>
+ */
+final class BuildTrace {
+
+  /**
+   * A timed stage of a build.
+   */
+  static final class Span {
+    private final BuildTrace trace;
+    private final Span parent;
+    // The current span of the thread when this one started, which is current again once it ends.
+    private final Span previous;
+    private final String name;
+    private final long startMs;
+    private long endMs;
+    private long childCpuTimeMs = -1;
+    private long childPeakRssBytes = -1;
+
+    private Span(BuildTrace trace, Span previous, String name) {
+      this.trace = trace;
+      this.parent = (previous != null && previous.trace == trace) ? previous : null;
+      this.previous = previous;
+      this.name = name;
+      this.startMs = System.currentTimeMillis();
+    }
+
+    String getName() {
+      return name;
+    }
+
+    synchronized long getDurationMs() {
+      return ((endMs == 0) ? System.currentTimeMillis() : endMs) - startMs;
+    }
+
+    synchronized long getChildCpuTimeMs() {
+      return childCpuTimeMs;
+    }
+
+    synchronized long getChildPeakRssBytes() {
+      return childPeakRssBytes;
+    }
+
+    /*
+     * Adds the resources used by a child process or a compiler worker job. Either may be -1 if
+     * it is unknown.
+     */
+    private synchronized void addChildUsage(long cpuTimeMs, long peakRssBytes) {
+      if (cpuTimeMs >= 0) {
+        childCpuTimeMs = Math.max(childCpuTimeMs, 0) + cpuTimeMs;
+      }
+      childPeakRssBytes = Math.max(childPeakRssBytes, peakRssBytes);
+    }
+
+    /**
+     * Ends the span. This must be called, once, on the thread that started it.
+     */
+    void end() {
+      synchronized (this) {
+        endMs = System.currentTimeMillis();
+      }
+      currentSpan.set(previous);
+      getStageHistogram(name).record(getDurationMs());
+    }
+
+    private synchronized JSONObject toJson() throws JSONException {
+      JSONObject json = new JSONObject();
+      json.put("name", name);
+      if (parent != null) {
+        json.put("parent", parent.name);
+      }
+      json.put("startMs", startMs - trace.startMs);
+      json.put("durationMs", getDurationMs());
+      if (childCpuTimeMs >= 0) {
+        json.put("childCpuTimeMs", childCpuTimeMs);
+      }
+      if (childPeakRssBytes >= 0) {
+        json.put("childPeakRssBytes", childPeakRssBytes);
+      }
+      return json;
+    }
+  }
+
+  private static final ThreadLocal<Span> currentSpan = new ThreadLocal<Span>();
+
+  private static final ConcurrentMap<String, Histogram> stageHistograms =
+      new ConcurrentHashMap<String, Histogram>();
+
+  private final String buildId;
+  private final long startMs;
+  private final List<Span> spans = Lists.newArrayList();
+
+  BuildTrace(String buildId) {
+    this.buildId = buildId;
+    this.startMs = System.currentTimeMillis();
+  }
+
+  /**
+   * Starts a span of this build on the current thread.
+   *
+   * @param name  the name of the stage, such as "kawa"
+   * @return  the span, which must be ended with {@link Span#end}
+   */
+  Span startSpan(String name) {
+    Span span = new Span(this, currentSpan.get(), name);
+    synchronized (spans) {
+      spans.add(span);
+    }
+    currentSpan.set(span);
+    return span;
+  }
+
+  /**
+   * Starts a span of the build that the current thread is working on. Code that doesn't know
+   * which build it's part of (such as {@link DexExecTask}) uses this. If the thread isn't working
+   * on a build, the span is only recorded in the stage's histogram.
+   */
+  static Span startSpanOfCurrentBuild(String name) {
+    Span previous = currentSpan.get();
+    if (previous != null && previous.trace != null) {
+      return previous.trace.startSpan(name);
+    }
+    Span span = new Span(null, previous, name);
+    currentSpan.set(span);
+    return span;
+  }
+
+  /**
+   * Returns the current thread's span, or {@code null} if it has none.
+   */
+  static Span getCurrentSpan() {
+    return currentSpan.get();
+  }
+
+  /**
+   * Returns the id of the build that the current thread is working on, or {@code null} if it
+   * isn't working on one.
+   */
+  static String getCurrentBuildId() {
+    Span span = currentSpan.get();
+    return (span == null || span.trace == null) ? null : span.trace.buildId;
+  }
+
+  /**
+   * Makes {@code span} the current thread's span, so that work done by this thread on behalf of
+   * another thread's stage is charged to that stage.
+   *
+   * @return  the previous span of the current thread, to be restored afterwards
+   */
+  static Span setCurrentSpan(Span span) {
+    Span previous = currentSpan.get();
+    currentSpan.set(span);
+    return previous;
+  }
+
+  /**
+   * Charges the resources used by a child process or compiler worker job to the current thread's
+   * span, if it has one.
+   *
+   * @param cpuTimeMs  the CPU time used, or -1 if unknown
+   * @param peakRssBytes  the peak resident set size, or -1 if unknown
+   */
+  static void recordChildUsage(long cpuTimeMs, long peakRssBytes) {
+    Span span = currentSpan.get();
+    if (span != null) {
+      span.addChildUsage(cpuTimeMs, peakRssBytes);
+    }
+  }
+
+  /**
+   * Returns the histogram of the durations of the given stage, over all builds.
+   */
+  static Histogram getStageHistogram(String name) {
+    Histogram histogram = stageHistograms.get(name);
+    if (histogram == null) {
+      Histogram newHistogram = new Histogram();
+      histogram = stageHistograms.putIfAbsent(name, newHistogram);
+      if (histogram == null) {
+        histogram = newHistogram;
+      }
+    }
+    return histogram;
+  }
+
+  /**
+   * Returns the histograms of the durations of every stage seen so far, by stage name.
+   */
+  static SortedMap<String, Histogram> getStageHistograms() {
+    return new TreeMap<String, Histogram>(stageHistograms);
+  }
+
+  /**
+   * Returns how long each stage of the build took, in milliseconds, in the order the stages
+   * started. A stage that ran more than once is the sum of its spans.
+   */
+  Map<String, Long> getStageTimesMs() {
+    Map<String, Long> stageTimesMs = new LinkedHashMap<String, Long>();
+    synchronized (spans) {
+      for (Span span : spans) {
+        Long timeMs = stageTimesMs.get(span.getName());
+        stageTimesMs.put(span.getName(), ((timeMs == null) ? 0 : timeMs) + span.getDurationMs());
+      }
+    }
+    return stageTimesMs;
+  }
+
+  /**
+   * Returns the CPU time used by the child processes and compiler worker jobs of the build, in
+   * milliseconds, or -1 if none was recorded.
+   */
+  long getChildCpuTimeMs() {
+    long cpuTimeMs = -1;
+    synchronized (spans) {
+      for (Span span : spans) {
+        long spanCpuTimeMs = span.getChildCpuTimeMs();
+        if (spanCpuTimeMs >= 0) {
+          cpuTimeMs = Math.max(cpuTimeMs, 0) + spanCpuTimeMs;
+        }
+      }
+    }
+    return cpuTimeMs;
+  }
+
+  /**
+   * Returns the largest peak resident set size of the child processes and compiler worker jobs of
+   * the build, in bytes, or -1 if none was recorded.
+   */
+  long getChildPeakRssBytes() {
+    long peakRssBytes = -1;
+    synchronized (spans) {
+      for (Span span : spans) {
+        peakRssBytes = Math.max(peakRssBytes, span.getChildPeakRssBytes());
+      }
+    }
+    return peakRssBytes;
+  }
+
+  /**
+   * Returns the trace as JSON, with the start of each span relative to the start of the build.
+   */
+  JSONObject toJson() throws JSONException {
+    JSONObject json = new JSONObject();
+    json.put("buildId", buildId);
+    json.put("startTimeMs", startMs);
+    JSONArray spansJson = new JSONArray();
+    synchronized (spans) {
+      for (Span span : spans) {
+        spansJson.put(span.toJson());
+      }
+    }
+    json.put("spans", spansJson);
+    return json;
+  }
+
+  /**
+   * Writes the trace, as JSON, to {@code <traceDir>/<buildId>.json}.
+   */
+  void writeTo(File traceDir) throws IOException {
+    try {
+      Files.write(toJson().toString(), new File(traceDir, buildId + ".json"), Charsets.UTF_8);
+    } catch (JSONException e) {
+      throw new IOException(e);
+    }
+  }
+}
@@ -0,0 +1,215 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2014 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.logging.Logger;
+
+/**
+ * Utility methods shared by the build server's on-disk caches.
+ *
+ * <p>Cache entries are named by a hash of their inputs, are written to a temporary file in the
+ * cache directory first and are then published with an atomic rename, so concurrent builds never
+ * see a partially written entry.</p>
+ */
+final class CacheUtil {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(CacheUtil.class.getName());
+
+  // Timestamp used for every entry of a generated jar so that identical classes always produce
+  // byte-identical jars (and therefore identical hashes in the dex cache). 1980-01-01 is the
+  // earliest time that can be represented in a zip file.
+  static final long FIXED_ENTRY_TIME = 315532800000L;
+
+  private CacheUtil() {
+  }
+
+  /**
+   * Returns a hex SHA-1 hash of the contents of the given files, in order. The files are read in a
+   * streaming fashion.
+   */
+  static String hashFiles(List<File> files) throws IOException {
+    Hasher hasher = Hashing.sha1().newHasher();
+    for (File file : files) {
+      hasher.putBytes(Files.hash(file, Hashing.sha1()).asBytes());
+    }
+    return hasher.hash().toString();
+  }
+
+  /**
+   * Returns a hex SHA-1 hash of the given strings, in order.
+   */
+  static String hashStrings(Iterable<String> strings) {
+    Hasher hasher = Hashing.sha1().newHasher();
+    for (String string : strings) {
+      hasher.putString(string, Charsets.UTF_8).putByte((byte) 0);
+    }
+    return hasher.hash().toString();
+  }
+
+  /**
+   * Returns a hex SHA-1 hash of the relative paths and contents of all the files below
+   * {@code dir}. A directory that doesn't exist has the same hash as an empty one.
+   */
+  static String hashDirectory(File dir) throws IOException {
+    SortedMap<String, File> files = new TreeMap<String, File>();
+    collectFiles(dir, "", Predicates.<String>alwaysTrue(), files);
+    Hasher hasher = Hashing.sha1().newHasher();
+    for (SortedMap.Entry<String, File> file : files.entrySet()) {
+      hasher.putString(file.getKey(), Charsets.UTF_8).putByte((byte) 0);
+      hasher.putBytes(Files.hash(file.getValue(), Hashing.sha1()).asBytes());
+    }
+    return hasher.hash().toString();
+  }
+
+  /**
+   * Writes the files below {@code dir} whose relative paths (using '/' as the separator) are
+   * accepted by {@code filter} to a jar file. Entries are sorted and have a fixed timestamp, so
+   * the same input files always produce the same jar.
+   *
+   * @return the number of entries written
+   */
+  static int jarDirectory(File dir, Predicate<String> filter, File jarFile) throws IOException {
+    SortedMap<String, File> entries = new TreeMap<String, File>();
+    collectFiles(dir, "", filter, entries);
+    JarOutputStream jarOutputStream =
+        new JarOutputStream(new BufferedOutputStream(new FileOutputStream(jarFile)));
+    try {
+      for (SortedMap.Entry<String, File> entry : entries.entrySet()) {
+        JarEntry jarEntry = new JarEntry(entry.getKey());
+        jarEntry.setTime(FIXED_ENTRY_TIME);
+        jarOutputStream.putNextEntry(jarEntry);
+        Files.copy(entry.getValue(), jarOutputStream);
+        jarOutputStream.closeEntry();
+      }
+    } finally {
+      jarOutputStream.close();
+    }
+    return entries.size();
+  }
+
+  private static void collectFiles(File dir, String prefix, Predicate<String> filter,
+      SortedMap<String, File> entries) {
+    File[] children = dir.listFiles();
+    if (children == null) {
+      return;
+    }
+    for (File child : children) {
+      String relativePath = prefix + child.getName();
+      if (child.isDirectory()) {
+        collectFiles(child, relativePath + "/", filter, entries);
+      } else if (filter.apply(relativePath)) {
+        entries.put(relativePath, child);
+      }
+    }
+  }
+
+  /**
+   * Creates a temporary file in the same directory as {@code target}, suitable for passing to
+   * {@link #publish(File, File)} once it has been written.
+   */
+  static File createTempFileFor(File target) throws IOException {
+    File dir = target.getParentFile();
+    dir.mkdirs();
+    return File.createTempFile(target.getName() + ".", ".tmp", dir);
+  }
+
+  /**
+   * Atomically renames {@code temp} to {@code target}. If another build published the same entry
+   * first, the existing entry is kept and {@code temp} is deleted.
+   *
+   * @return {@code true} if {@code target} exists when this method returns
+   */
+  static boolean publish(File temp, File target) {
+    try {
+      try {
+        java.nio.file.Files.move(temp.toPath(), target.toPath(),
+            StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        java.nio.file.Files.move(temp.toPath(), target.toPath());
+      }
+    } catch (FileAlreadyExistsException e) {
+      // Another build got there first; the contents are the same.
+      temp.delete();
+    } catch (IOException e) {
+      LOG.warning("Unable to publish cache entry " + target + ": " + e.getMessage());
+      temp.delete();
+    }
+    return target.isFile();
+  }
+
+  /**
+   * Deletes the least recently modified entries in {@code dir}, which may be files or
+   * directories, until their total size is no more than {@code maxBytes}. Temporary files that
+   * haven't been {@linkplain #publish published} yet are neither counted nor deleted. A cache that
+   * touches an entry whenever it uses it thereby evicts the least recently used entries first.
+   *
+   * <p>Callers must hold the lock under which the cache's entries are read, so that an entry
+   * can't be deleted while it is being read.</p>
+   *
+   * @return the number of entries deleted
+   */
+  static int evictLeastRecentlyUsed(File dir, long maxBytes) {
+    File[] children = dir.listFiles();
+    if (children == null) {
+      return 0;
+    }
+    List<File> entries = Lists.newArrayList();
+    long totalBytes = 0;
+    for (File child : children) {
+      if (!child.getName().endsWith(".tmp")) {
+        entries.add(child);
+        totalBytes += FileUtils.sizeOf(child);
+      }
+    }
+    if (totalBytes <= maxBytes) {
+      return 0;
+    }
+    Collections.sort(entries, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        long aTime = a.lastModified();
+        long bTime = b.lastModified();
+        return (aTime < bTime) ? -1 : ((aTime == bTime) ? 0 : 1);
+      }
+    });
+    int evicted = 0;
+    for (File entry : entries) {
+      if (totalBytes <= maxBytes) {
+        break;
+      }
+      long size = FileUtils.sizeOf(entry);
+      if (FileUtils.deleteQuietly(entry)) {
+        totalBytes -= size;
+        evicted++;
+      }
+    }
+    return evicted;
+  }
+}
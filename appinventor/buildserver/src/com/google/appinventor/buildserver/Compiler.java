@@ -6,8 +6,10 @@
 
 package com.google.appinventor.buildserver;
 
+import com.google.appinventor.common.version.GitBuildId;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
+import com.google.common.base.Predicate;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
@@ -16,6 +18,7 @@ import com.google.common.io.Resources;
 
 import com.android.sdklib.build.ApkBuilder;
 
+import org.apache.commons.io.FileUtils;
 import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
@@ -24,21 +27,24 @@ import java.awt.image.BufferedImage;
 import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -53,10 +59,26 @@ import javax.imageio.ImageIO;
  * @author lizlooney@google.com (Liz Looney)
  */
 public final class Compiler {
-  public static int currentProgress = 10;
-
-  // Kawa and DX processes can use a lot of memory. We only launch one Kawa or DX process at a time.
-  private static final Object SYNC_KAWA_OR_DX = new Object();
+  // Kawa and DX processes can use a lot of memory. Each of those stages limits the number of
+  // builds that may run it at once, independently of the other stage, so that the Kawa stage of
+  // one build can overlap with the DX stage of another. By default each stage is limited to the
+  // number of processors.
+  private static volatile StageLimiter kawaLimiter =
+      new StageLimiter("kawa", Runtime.getRuntime().availableProcessors());
+  private static volatile StageLimiter dxLimiter =
+      new StageLimiter("dx", Runtime.getRuntime().availableProcessors());
+
+  // Whether to remove the classes of unused components from the runtime before dexing it.
+  private static volatile boolean shrinkRuntime = false;
+
+  // The maximum total size of the compiled forms in the dex cache directory.
+  private static volatile long formCacheMaxBytes = 256L * 1024 * 1024;
+  // The maximum total size of the resource packages in the dex cache directory.
+  private static volatile long aaptCacheMaxBytes = 512L * 1024 * 1024;
+
+  // Held while an entry of the form or AAPT cache is copied and while entries are evicted from
+  // them, so that an entry can't be deleted while a build is copying it.
+  private static final Object CACHE_LOCK = new Object();
 
   // TODO(sharon): temporary until we add support for new activities
   private static final String LIST_ACTIVITY_CLASS =
@@ -121,12 +143,14 @@ public final class Compiler {
   @VisibleForTesting
   static final String YAIL_RUNTIME =
       RUNTIME_FILES_DIR + "runtime.scm";
-  private static final String MAC_ZIPALIGN_TOOL =
-      "/tools/mac/zipalign";
-  private static final String WINDOWS_ZIPALIGN_TOOL =
-      "/tools/windows/zipalign";
-  private static final String LINUX_ZIPALIGN_TOOL =
-      "/tools/linux/zipalign";
+  private static final String KAWA_MAIN_CLASS = "kawa.repl";
+  // Must match the module-name declared in runtime.scm
+  private static final String YAIL_RUNTIME_MODULE = "com.google.youngandroid.runtime";
+
+  // The subdirectory of the dex cache directory that holds the compiled classes of each form.
+  private static final String FORM_CACHE_DIR_NAME = "forms";
+  // The subdirectory of the dex cache directory that holds the resource packages made by aapt.
+  private static final String AAPT_CACHE_DIR_NAME = "aapt";
 
   // Logging support
   private static final Logger LOG = Logger.getLogger(Compiler.class.getName());
@@ -152,6 +176,34 @@ public final class Compiler {
   private static final ConcurrentMap<String, File> resources =
       new ConcurrentHashMap<String, File>();
 
+  /**
+   * The YAIL runtime compiled to class files, packaged as a jar. It is compiled once, the first
+   * time it is needed, and reused by every build after that. Don't use this field directly. Please
+   * call getPrecompiledYailRuntime().
+   */
+  private static volatile File precompiledYailRuntime;
+
+  /**
+   * The compiles of the YAIL runtime in progress, by the path of the jar they make. A build that
+   * needs a jar that is being made waits for that compile rather than starting its own.
+   */
+  private static final ConcurrentMap<String, FutureTask<Boolean>> yailRuntimeCompiles =
+      new ConcurrentHashMap<String, FutureTask<Boolean>>();
+
+  // After the YAIL runtime fails to precompile, builds compile runtime.scm themselves until this
+  // time, and the delay before the next attempt doubles, up to the maximum.
+  private static final long MIN_PRECOMPILE_RETRY_DELAY_MS = 60 * 1000;
+  private static final long MAX_PRECOMPILE_RETRY_DELAY_MS = 60 * 60 * 1000;
+  private static long precompileRetryAtMs;
+  private static long precompileRetryDelayMs = MIN_PRECOMPILE_RETRY_DELAY_MS;
+
+  /**
+   * The runtime of the companion app, that is everything it is built from except its own forms,
+   * dexed and merged into one jar in the dex cache, by the paths of the files it was made from.
+   * Don't use this map directly. Please call getCompanionRuntimeDex().
+   */
+  private static final Map<String, File> companionRuntimeDexes = new HashMap<String, File>();
+
   // TODO(user,lizlooney): i18n here and in lines below that call String.format(...)
   private static final String ERROR_IN_STAGE =
       "Error: Your build failed due to an error in the %s stage, " +
@@ -168,6 +220,7 @@ public final class Compiler {
   private final PrintStream out;
   private final PrintStream err;
   private final PrintStream userErrors;
+  private final BuildContext context;
   private final boolean isForCompanion;
   // Maximum ram that can be used by a child processes, in MB.
   private final int childProcessRamMb;
@@ -176,6 +229,8 @@ public final class Compiler {
   private Set<String> assetsNeeded; // Set of component assets
   private File libsDir; // The directory that will contain any native libraries for packaging
   private String dexCacheDir;
+  private File yailRuntimeJar; // The precompiled YAIL runtime used by this build, if any
+  private List<File> formJars; // The compiled classes of each form, if they are cached
 
   /*
    * Generate the set of Android permissions needed by this project.
@@ -489,142 +544,146 @@ public final class Compiler {
    * @param err  stderr stream for compiler messages
    * @param userErrors stream to write user-visible error messages
    * @param keystoreFilePath
-   * @param childProcessRam   maximum RAM for child processes, in MBs.
+   * @param context  the build being compiled, which receives its progress and stage times
    * @return  {@code true} if the compilation succeeds, {@code false} otherwise
    * @throws JSONException
    * @throws IOException
    */
   public static boolean compile(Project project, Set<String> componentTypes,
                                 PrintStream out, PrintStream err, PrintStream userErrors,
-                                boolean isForCompanion, String keystoreFilePath,
-                                int childProcessRam, String dexCacheDir) throws IOException, JSONException {
-    long start = System.currentTimeMillis();
-
-    // Create a new compiler instance for the compilation
-    Compiler compiler = new Compiler(project, componentTypes, out, err, userErrors, isForCompanion,
-                                     childProcessRam, dexCacheDir);
-
-    // Get names of component-required libraries and assets.
-    compiler.generateLibraryNames();
-    compiler.generateNativeLibraryNames();
-    compiler.generateAssets();
-
-    // Create build directory.
-    File buildDir = createDirectory(project.getBuildDirectory());
-
-    // Prepare application icon.
-    out.println("________Preparing application icon");
-    File resDir = createDirectory(buildDir, "res");
-    File drawableDir = createDirectory(resDir, "drawable");
-    if (!compiler.prepareApplicationIcon(new File(drawableDir, "ya.png"))) {
-      return false;
-    }
-    setProgress(10);
-
-    // Create anim directory and animation xml files
-    out.println("________Creating animation xml");
-    File animDir = createDirectory(resDir, "anim");
-    if (!compiler.createAnimationXml(animDir)) {
-      return false;
-    }
+                                String keystoreFilePath, BuildContext context)
+      throws IOException, JSONException {
+    BuildTrace.Span span = context.startStage("compile");
+    try {
+      // Create a new compiler instance for the compilation
+      Compiler compiler = new Compiler(project, componentTypes, out, err, userErrors, context);
+
+      // Get names of component-required libraries and assets.
+      compiler.generateLibraryNames();
+      compiler.generateNativeLibraryNames();
+      compiler.generateAssets();
+
+      // Create build directory.
+      File buildDir = createDirectory(project.getBuildDirectory());
+
+      // Prepare application icon.
+      out.println("________Preparing application icon");
+      File resDir = createDirectory(buildDir, "res");
+      File drawableDir = createDirectory(resDir, "drawable");
+      if (!compiler.prepareApplicationIcon(new File(drawableDir, "ya.png"))) {
+        return false;
+      }
+      compiler.setProgress(10);
 
-    // Determine android permissions.
-    out.println("________Determining permissions");
-    Set<String> permissionsNeeded = compiler.generatePermissions();
-    if (permissionsNeeded == null) {
-      return false;
-    }
-    setProgress(15);
+      // Create anim directory and animation xml files
+      out.println("________Creating animation xml");
+      File animDir = createDirectory(resDir, "anim");
+      if (!compiler.createAnimationXml(animDir)) {
+        return false;
+      }
 
-    // Generate AndroidManifest.xml
-    out.println("________Generating manifest file");
-    File manifestFile = new File(buildDir, "AndroidManifest.xml");
-    if (!compiler.writeAndroidManifest(manifestFile, permissionsNeeded)) {
-      return false;
-    }
-    setProgress(20);
+      // Determine android permissions.
+      out.println("________Determining permissions");
+      Set<String> permissionsNeeded = compiler.generatePermissions();
+      if (permissionsNeeded == null) {
+        return false;
+      }
+      compiler.setProgress(15);
 
-    // Insert native libraries
-    out.println("________Attaching native libraries");
-    if (!compiler.insertNativeLibraries(buildDir)) {
-      return false;
-    }
+      // Generate AndroidManifest.xml
+      out.println("________Generating manifest file");
+      File manifestFile = new File(buildDir, "AndroidManifest.xml");
+      if (!compiler.writeAndroidManifest(manifestFile, permissionsNeeded)) {
+        return false;
+      }
+      compiler.setProgress(20);
 
-    // Add raw assets to sub-directory of project assets.
-    out.println("________Attaching component assets");
-    if (!compiler.attachComponentAssets()) {
-      return false;
-    }
+      // Insert native libraries
+      out.println("________Attaching native libraries");
+      if (!compiler.insertNativeLibraries(buildDir)) {
+        return false;
+      }
 
-    // Create class files.
-    out.println("________Compiling source files");
-    File classesDir = createDirectory(buildDir, "classes");
-    if (!compiler.generateClasses(classesDir)) {
-      return false;
-    }
-    setProgress(35);
-
-    // Invoke dx on class files
-    out.println("________Invoking DX");
-    // TODO(markf): Running DX is now pretty slow (~25 sec overhead the first time and ~15 sec
-    // overhead for subsequent runs).  I think it's because of the need to dx the entire
-    // kawa runtime every time.  We should probably only do that once and then copy all the
-    // kawa runtime dx files into the generated classes.dex (which would only contain the
-    // files compiled for this project).
-    // Aargh.  It turns out that there's no way to manipulate .dex files to do the above.  An
-    // Android guy suggested an alternate approach of shipping the kawa runtime .dex file as
-    // data with the application and then creating a new DexClassLoader using that .dex file
-    // and with the original app class loader as the parent of the new one.
-    // TODONE(zhuowei): Now using the new Android DX tool to merge dex files
-    // Needs to specify a writable cache dir on the command line that persists after shutdown
-    // Each pre-dexed file is identified via its MD5 hash (since the standard Android SDK's
-    // method of identifying via a hash of the path won't work when files
-    // are copied into temporary storage) and processed via a hacked up version of
-    // Android SDK's Dex Ant task
-    File tmpDir = createDirectory(buildDir, "tmp");
-    String dexedClasses = tmpDir.getAbsolutePath() + File.separator + "classes.dex";
-    if (!compiler.runDx(classesDir, dexedClasses)) {
-      return false;
-    }
-    setProgress(85);
-
-    // Invoke aapt to package everything up
-    out.println("________Invoking AAPT");
-    File deployDir = createDirectory(buildDir, "deploy");
-    String tmpPackageName = deployDir.getAbsolutePath() + File.separatorChar +
-        project.getProjectName() + ".ap_";
-    if (!compiler.runAaptPackage(manifestFile, resDir, tmpPackageName)) {
-      return false;
-    }
-    setProgress(90);
+      // Add raw assets to sub-directory of project assets.
+      out.println("________Attaching component assets");
+      if (!compiler.attachComponentAssets()) {
+        return false;
+      }
 
-    // Seal the apk with ApkBuilder
-    out.println("________Invoking ApkBuilder");
-    String apkAbsolutePath = deployDir.getAbsolutePath() + File.separatorChar +
-        project.getProjectName() + ".apk";
-    if (!compiler.runApkBuilder(apkAbsolutePath, tmpPackageName, dexedClasses)) {
-      return false;
-    }
-    setProgress(95);
+      // Create class files.
+      out.println("________Compiling source files");
+      File classesDir = createDirectory(buildDir, "classes");
+      if (!compiler.generateClasses(classesDir)) {
+        return false;
+      }
+      compiler.setProgress(35);
+
+      // Invoke dx on class files
+      out.println("________Invoking DX");
+      // TODO(markf): Running DX is now pretty slow (~25 sec overhead the first time and ~15 sec
+      // overhead for subsequent runs).  I think it's because of the need to dx the entire
+      // kawa runtime every time.  We should probably only do that once and then copy all the
+      // kawa runtime dx files into the generated classes.dex (which would only contain the
+      // files compiled for this project).
+      // Aargh.  It turns out that there's no way to manipulate .dex files to do the above.  An
+      // Android guy suggested an alternate approach of shipping the kawa runtime .dex file as
+      // data with the application and then creating a new DexClassLoader using that .dex file
+      // and with the original app class loader as the parent of the new one.
+      // TODONE(zhuowei): Now using the new Android DX tool to merge dex files
+      // Needs to specify a writable cache dir on the command line that persists after shutdown
+      // Each pre-dexed file is identified via its MD5 hash (since the standard Android SDK's
+      // method of identifying via a hash of the path won't work when files
+      // are copied into temporary storage) and processed via a hacked up version of
+      // Android SDK's Dex Ant task
+      File tmpDir = createDirectory(buildDir, "tmp");
+      String dexedClasses = tmpDir.getAbsolutePath() + File.separator + "classes.dex";
+      if (!compiler.runDx(classesDir, dexedClasses, manifestFile)) {
+        return false;
+      }
+      compiler.setProgress(85);
+
+      // Invoke aapt to package everything up, unless the same resources have been packaged before
+      File deployDir = createDirectory(buildDir, "deploy");
+      String tmpPackageName = deployDir.getAbsolutePath() + File.separatorChar +
+          project.getProjectName() + ".ap_";
+      File cachedPackage = compiler.getCachedResourcePackage(manifestFile, resDir);
+      if (cachedPackage != null && copyFromCache(cachedPackage, new File(tmpPackageName))) {
+        out.println("________Using cached AAPT package");
+      } else {
+        out.println("________Invoking AAPT");
+        if (!compiler.runAaptPackage(manifestFile, resDir, tmpPackageName)) {
+          return false;
+        }
+        if (cachedPackage != null) {
+          storeInCache(new File(tmpPackageName), cachedPackage, aaptCacheMaxBytes);
+        }
+      }
+      compiler.setProgress(90);
 
-    // Sign the apk file
-    out.println("________Signing the apk file");
-    if (!compiler.runJarSigner(apkAbsolutePath, keystoreFilePath)) {
-      return false;
-    }
+      // Seal the apk with ApkBuilder
+      out.println("________Invoking ApkBuilder");
+      File unsignedApk = new File(tmpDir, "unsigned.apk");
+      if (!compiler.runApkBuilder(unsignedApk.getAbsolutePath(), tmpPackageName, dexedClasses)) {
+        return false;
+      }
+      compiler.setProgress(95);
 
-    // ZipAlign the apk file
-    out.println("________ZipAligning the apk file");
-    if (!compiler.runZipAlign(apkAbsolutePath, tmpDir)) {
-      return false;
-    }
+      // Sign and align the apk file
+      out.println("________Signing and aligning the apk file");
+      File apk = new File(deployDir, project.getProjectName() + ".apk");
+      if (!compiler.runApkSigner(unsignedApk, new File(keystoreFilePath), apk)) {
+        return false;
+      }
 
-    setProgress(100);
+      compiler.setProgress(100);
 
-    out.println("Build finished in " +
-        ((System.currentTimeMillis() - start) / 1000.0) + " seconds");
+      long compileTimeMs = span.getDurationMs();
+      out.println("Build finished in " + (compileTimeMs / 1000.0) + " seconds");
 
-    return true;
+      return true;
+    } finally {
+      span.end();
+    }
   }
 
   /*
@@ -680,6 +739,7 @@ public final class Compiler {
    * can call System.exit(1), which will bring down our server.
    */
   private boolean runApkBuilder(String apkAbsolutePath, String zipArchive, String dexedClasses) {
+    BuildTrace.Span span = context.startStage("apkbuilder");
     try {
       ApkBuilder apkBuilder =
           new ApkBuilder(apkAbsolutePath, zipArchive, dexedClasses, null, System.out);
@@ -692,6 +752,8 @@ public final class Compiler {
       err.println("YAIL compiler - ApkBuilder failed.");
       userErrors.print(String.format(ERROR_IN_STAGE, "ApkBuilder"));
       return false;
+    } finally {
+      span.end();
     }
   }
 
@@ -703,20 +765,20 @@ public final class Compiler {
    * @param out  stdout stream for compiler messages
    * @param err  stderr stream for compiler messages
    * @param userErrors stream to write user-visible error messages
-   * @param childProcessMaxRam  maximum RAM for child processes, in MBs.
+   * @param context  the build being compiled
    */
   @VisibleForTesting
   Compiler(Project project, Set<String> componentTypes, PrintStream out, PrintStream err,
-           PrintStream userErrors, boolean isForCompanion,
-           int childProcessMaxRam, String dexCacheDir) {
+           PrintStream userErrors, BuildContext context) {
     this.project = project;
     this.componentTypes = componentTypes;
     this.out = out;
     this.err = err;
     this.userErrors = userErrors;
-    this.isForCompanion = isForCompanion;
-    this.childProcessRamMb = childProcessMaxRam;
-    this.dexCacheDir = dexCacheDir;
+    this.context = context;
+    this.isForCompanion = context.isForCompanion();
+    this.childProcessRamMb = context.getChildProcessRamMb();
+    this.dexCacheDir = context.getDexCacheDir();
   }
 
   /*
@@ -725,6 +787,25 @@ public final class Compiler {
    */
   private boolean generateClasses(File classesDir) {
     try {
+      // If the YAIL runtime has been precompiled, the user's forms are compiled against it and
+      // only need to require its module. Otherwise runtime.scm is loaded and compiled along with
+      // the user's forms, as it always used to be.
+      yailRuntimeJar = getPrecompiledYailRuntime();
+      String yailRuntime = getResource(YAIL_RUNTIME);
+
+      // Forms don't depend on each other when they are compiled, so, when each of them is compiled
+      // on its own against the precompiled runtime, the classes of each form can be cached and
+      // only the forms that have changed need to be compiled again.
+      // Each build works on copies of the cached jars, which can't be evicted from under it.
+      File formCacheDir = (yailRuntimeJar != null && dexCacheDir != null)
+          ? createDirectory(new File(dexCacheDir), FORM_CACHE_DIR_NAME)
+          : null;
+      File formJarsDir = (formCacheDir != null)
+          ? createDirectory(classesDir.getParentFile(), "formJars")
+          : null;
+      formJars = (formCacheDir != null) ? Lists.<File>newArrayList() : null;
+      Map<String, String> formJarsToStore = new HashMap<String, String>();
+
       List<Project.SourceDescriptor> sources = project.getSources();
       List<String> sourceFileNames = Lists.newArrayListWithCapacity(sources.size());
       List<String> classFileNames = Lists.newArrayListWithCapacity(sources.size());
@@ -758,6 +839,17 @@ public final class Compiler {
             fileReader.close();
           }
         }
+        if (formCacheDir != null) {
+          String formJarName = "form-" + getFormHash(source.getFile(), sourceFileRelativePath,
+              yailRuntimeJar, librariesNeeded) + ".jar";
+          File formJar = new File(formJarsDir, formJarName);
+          if (copyFromCache(new File(formCacheDir, formJarName), formJar)) {
+            LOG.log(Level.INFO, "Using cached classes for " + sourceFileRelativePath);
+            formJars.add(formJar);
+            continue;
+          }
+          formJarsToStore.put(sourceFileRelativePath, formJarName);
+        }
         sourceFileNames.add(sourceFileName);
         classFileNames.add(classFileName);
       }
@@ -767,11 +859,13 @@ public final class Compiler {
         return false;
       }
 
+      if (sourceFileNames.isEmpty()) {
+        out.println("All forms are unchanged. Using cached classes.");
+        return true;
+      }
+
       // Construct the class path including component libraries (jars)
-      String classpath =
-        getResource(KAWA_RUNTIME) + File.pathSeparator +
-        getResource(ACRA_RUNTIME) + File.pathSeparator +
-        getResource(SIMPLE_ANDROID_RUNTIME_JAR) + File.pathSeparator;
+      String classpath = getRuntimeClasspath();
 
       // Add component library names to classpath
       System.out.println("Libraries Classpath, n " + librariesNeeded.size());
@@ -784,15 +878,17 @@ public final class Compiler {
 
       System.out.println("Libraries Classpath = " + classpath);
 
-      String yailRuntime = getResource(YAIL_RUNTIME);
-      List<String> kawaCommandArgs = Lists.newArrayList();
-      int mx = childProcessRamMb - 200;
-      Collections.addAll(kawaCommandArgs,
-          System.getProperty("java.home") + "/bin/java",
-          "-mx" + mx + "M",
-          "-cp", classpath,
-          "kawa.repl",
-          "-f", yailRuntime,
+      if (yailRuntimeJar != null) {
+        classpath += File.pathSeparator + yailRuntimeJar.getAbsolutePath();
+      }
+
+      List<String> kawaArgs = Lists.newArrayList();
+      if (yailRuntimeJar != null) {
+        Collections.addAll(kawaArgs, "-e", "(require <" + YAIL_RUNTIME_MODULE + ">)");
+      } else {
+        Collections.addAll(kawaArgs, "-f", yailRuntime);
+      }
+      Collections.addAll(kawaArgs,
           "-d", classesDir.getAbsolutePath(),
           "-P", Signatures.getPackageName(project.getMainClass()) + ".",
           "-C");
@@ -801,27 +897,29 @@ public final class Compiler {
       // including the name of the tmp directory that contains them. We may be able to avoid that
       // by using source file names that are relative to the project root and using the project
       // root as the working directory for the Kawa compiler process.
-      kawaCommandArgs.addAll(sourceFileNames);
-      kawaCommandArgs.add(yailRuntime);
-      String[] kawaCommandLine = kawaCommandArgs.toArray(new String[kawaCommandArgs.size()]);
+      kawaArgs.addAll(sourceFileNames);
+      if (yailRuntimeJar == null) {
+        kawaArgs.add(yailRuntime);
+      }
 
-      long start = System.currentTimeMillis();
       // Capture Kawa compiler stderr. The ODE server parses out the warnings and errors and adds
       // them to the protocol buffer for logging purposes. (See
       // buildserver/ProjectBuilder.processCompilerOutout.
       ByteArrayOutputStream kawaOutputStream = new ByteArrayOutputStream();
       boolean kawaSuccess;
-      synchronized (SYNC_KAWA_OR_DX) {
-        kawaSuccess = Execution.execute(null, kawaCommandLine,
-            System.out, new PrintStream(kawaOutputStream));
+      BuildTrace.Span kawaSpan = context.startStage("kawa");
+      try {
+        kawaSuccess = runKawa(classpath, kawaArgs, new PrintStream(kawaOutputStream));
+      } finally {
+        kawaSpan.end();
       }
       if (!kawaSuccess) {
         LOG.log(Level.SEVERE, "Kawa compile has failed.");
       }
       String kawaOutput = kawaOutputStream.toString();
       out.print(kawaOutput);
-      String kawaCompileTimeMessage = "Kawa compile time: " +
-          ((System.currentTimeMillis() - start) / 1000.0) + " seconds";
+      long kawaTimeMs = kawaSpan.getDurationMs();
+      String kawaCompileTimeMessage = "Kawa compile time: " + (kawaTimeMs / 1000.0) + " seconds";
       out.println(kawaCompileTimeMessage);
       LOG.info(kawaCompileTimeMessage);
 
@@ -837,103 +935,348 @@ public final class Compiler {
           return false;
         }
       }
+
+      for (Map.Entry<String, String> entry : formJarsToStore.entrySet()) {
+        storeFormClasses(classesDir, entry.getKey(), new File(formJarsDir, entry.getValue()),
+            new File(formCacheDir, entry.getValue()));
+      }
     } catch (IOException e) {
       e.printStackTrace();
       userErrors.print(String.format(ERROR_IN_STAGE, "compile"));
       return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      userErrors.print(String.format(ERROR_IN_STAGE, "compile"));
+      return false;
     }
 
     return true;
   }
 
-  private boolean runJarSigner(String apkAbsolutePath, String keystoreAbsolutePath) {
-    // TODO(user): maybe make a command line flag for the jarsigner location
-    String javaHome = System.getProperty("java.home");
-    // This works on Mac OS X.
-    File jarsignerFile = new File(javaHome + File.separator + "bin" +
-        File.separator + "jarsigner");
-    if (!jarsignerFile.exists()) {
-      // This works when a JDK is installed with the JRE.
-      jarsignerFile = new File(javaHome + File.separator + ".." + File.separator + "bin" +
-          File.separator + "jarsigner");
-      if (System.getProperty("os.name").startsWith("Windows")) {
-        jarsignerFile = new File(javaHome + File.separator + ".." + File.separator + "bin" +
-            File.separator + "jarsigner.exe");
+  /*
+   * Returns the hash that identifies the compiled classes of a form: a hash of its YAIL, of where
+   * it is in the project (which determines its class name), of the runtimes it is compiled
+   * against, and of the build server version (which determines the Kawa compiler).
+   */
+  @VisibleForTesting
+  static String getFormHash(File sourceFile, String sourceFileRelativePath, File yailRuntimeJar,
+      Set<String> librariesNeeded) throws IOException {
+    List<String> libraries = Lists.newArrayList(librariesNeeded);
+    Collections.sort(libraries);
+    List<String> parts = Lists.newArrayList(
+        CacheUtil.hashFiles(Lists.newArrayList(sourceFile)),
+        sourceFileRelativePath,
+        yailRuntimeJar.getName(),
+        GitBuildId.getVersion());
+    parts.addAll(libraries);
+    return CacheUtil.hashStrings(parts);
+  }
+
+  /*
+   * Moves the classes that Kawa generated for one form from classesDir into formJar, which is
+   * dexed in their place, and stores a copy of formJar in the form cache.
+   */
+  private void storeFormClasses(File classesDir, String sourceFileRelativePath, File formJar,
+      File cachedFormJar) throws IOException {
+    // A form's classes are the module class itself and the classes Kawa generates for its
+    // lambdas, which are named <form>$<something>.class.
+    final String formClassPath = sourceFileRelativePath.substring(0,
+        sourceFileRelativePath.length() - YoungAndroidConstants.YAIL_EXTENSION.length());
+    Predicate<String> isFormClass = new Predicate<String>() {
+      @Override
+      public boolean apply(String path) {
+        return path.equals(formClassPath + ".class") ||
+            (path.startsWith(formClassPath + "$") && path.endsWith(".class"));
       }
-      if (!jarsignerFile.exists()) {
-        LOG.warning("YAIL compiler - could not find jarsigner.");
-        err.println("YAIL compiler - could not find jarsigner.");
-        userErrors.print(String.format(ERROR_IN_STAGE, "JarSigner"));
+    };
+    CacheUtil.jarDirectory(classesDir, isFormClass, formJar);
+    formJars.add(formJar);
+    // The form's classes are all in one package, so they are all in one directory.
+    String formClassDirPath = formClassPath.substring(0, formClassPath.lastIndexOf('/') + 1);
+    File[] classFiles = new File(classesDir, formClassDirPath).listFiles();
+    if (classFiles != null) {
+      for (File classFile : classFiles) {
+        if (isFormClass.apply(formClassDirPath + classFile.getName())) {
+          classFile.delete();
+        }
+      }
+    }
+    storeInCache(formJar, cachedFormJar, formCacheMaxBytes);
+  }
+
+  /*
+   * Copies cachedFile, an entry of one of the caches in the dex cache directory, to copy and
+   * records the use of the entry. Returns false if the entry doesn't exist or can't be copied.
+   */
+  @VisibleForTesting
+  static boolean copyFromCache(File cachedFile, File copy) {
+    synchronized (CACHE_LOCK) {
+      if (!cachedFile.isFile()) {
+        return false;
+      }
+      try {
+        Files.copy(cachedFile, copy);
+        // Record the use, so that this entry is evicted last.
+        cachedFile.setLastModified(System.currentTimeMillis());
+        return true;
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Unable to copy cached " + cachedFile, e);
+        copy.delete();
         return false;
       }
     }
+  }
 
-    String[] jarsignerCommandLine = {
-        jarsignerFile.getAbsolutePath(),
-        "-digestalg", "SHA1",
-        "-sigalg", "MD5withRSA",
-        "-keystore", keystoreAbsolutePath,
-        "-storepass", "android",
-        apkAbsolutePath,
-        "AndroidKey"
-    };
-    if (!Execution.execute(null, jarsignerCommandLine, System.out, System.err)) {
-      LOG.warning("YAIL compiler - jarsigner execution failed.");
-      err.println("YAIL compiler - jarsigner execution failed.");
-      userErrors.print(String.format(ERROR_IN_STAGE, "JarSigner"));
-      return false;
+  /*
+   * Stores a copy of file in a cache in the dex cache directory as cachedFile, then evicts the
+   * least recently used entries of that cache until it is no larger than maxBytes.
+   */
+  @VisibleForTesting
+  static void storeInCache(File file, File cachedFile, long maxBytes) {
+    File tempFile = null;
+    try {
+      tempFile = CacheUtil.createTempFileFor(cachedFile);
+      Files.copy(file, tempFile);
+      CacheUtil.publish(tempFile, cachedFile);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to cache " + file, e);
+      if (tempFile != null) {
+        tempFile.delete();
+      }
+    }
+    synchronized (CACHE_LOCK) {
+      CacheUtil.evictLeastRecentlyUsed(cachedFile.getParentFile(), maxBytes);
     }
+  }
 
-    return true;
+  /*
+   * Returns the class path used to compile YAIL: the Kawa, ACRA and App Inventor component
+   * runtimes, followed by a trailing path separator.
+   */
+  private static String getRuntimeClasspath() {
+    return getResource(KAWA_RUNTIME) + File.pathSeparator +
+        getResource(ACRA_RUNTIME) + File.pathSeparator +
+        getResource(SIMPLE_ANDROID_RUNTIME_JAR) + File.pathSeparator;
   }
 
-  private boolean runZipAlign(String apkAbsolutePath, File tmpDir) {
-    // TODO(user): add zipalign tool appinventor->lib->android->tools->linux and windows
-    // Need to make sure assets directory exists otherwise zipalign will fail.
-    createDirectory(project.getAssetsDirectory());
-    String zipAlignTool;
-    String osName = System.getProperty("os.name");
-    if (osName.equals("Mac OS X")) {
-      zipAlignTool = MAC_ZIPALIGN_TOOL;
-    } else if (osName.equals("Linux")) {
-      zipAlignTool = LINUX_ZIPALIGN_TOOL;
-    } else if (osName.startsWith("Windows")) {
-      zipAlignTool = WINDOWS_ZIPALIGN_TOOL;
+  /*
+   * Returns a jar containing the YAIL runtime compiled to class files, compiling it first if this
+   * is the first build that needs it. The jar is named by a hash of runtime.scm, of the Kawa and
+   * component runtimes it is compiled with, and of the build server version, and is kept in the
+   * dex cache directory so that it survives restarts of the build server. Returns null if there is
+   * no dex cache directory or the runtime can't be compiled, in which case the caller should
+   * compile runtime.scm itself.
+   */
+  private File getPrecompiledYailRuntime() {
+    if (dexCacheDir == null) {
+      return null;
+    }
+    File runtimeJar = precompiledYailRuntime;
+    if (runtimeJar != null && runtimeJar.isFile()) {
+      return runtimeJar;
+    }
+    synchronized (yailRuntimeCompiles) {
+      if (System.currentTimeMillis() < precompileRetryAtMs) {
+        return null;
+      }
+    }
+    final String yailRuntime;
+    try {
+      yailRuntime = getResource(YAIL_RUNTIME);
+      String hash = CacheUtil.hashStrings(Lists.newArrayList(
+          GitBuildId.getVersion(),
+          CacheUtil.hashFiles(Lists.newArrayList(new File(yailRuntime),
+              new File(getResource(KAWA_RUNTIME)),
+              new File(getResource(SIMPLE_ANDROID_RUNTIME_JAR))))));
+      runtimeJar = new File(createDirectory(new File(dexCacheDir)),
+          "yail-runtime-" + hash + ".jar");
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to precompile the YAIL runtime", e);
+      recordPrecompileFailure(System.currentTimeMillis());
+      return null;
+    }
+
+    final File jar = runtimeJar;
+    return getPrecompiledYailRuntime(jar, new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws IOException {
+        // The runtime is shared by every build, so it is compiled outside of this one. If this
+        // build were cancelled, it would otherwise kill the compile for all of them.
+        BuildTrace.Span previous = BuildTrace.setCurrentSpan(null);
+        try {
+          return compileYailRuntime(yailRuntime, jar);
+        } finally {
+          BuildTrace.setCurrentSpan(previous);
+        }
+      }
+    }, System.currentTimeMillis());
+  }
+
+  /*
+   * Returns jar, running compile to make it unless it exists already. Builds that need the same
+   * jar at the same time share one compile. Returns null if compile fails, after which the runtime
+   * isn't compiled again until a delay has passed.
+   */
+  @VisibleForTesting
+  static File getPrecompiledYailRuntime(final File jar, final Callable<Boolean> compile,
+      long nowMs) {
+    if (jar.equals(precompiledYailRuntime) && jar.isFile()) {
+      return jar;
+    }
+    synchronized (yailRuntimeCompiles) {
+      if (nowMs < precompileRetryAtMs) {
+        return null;
+      }
+    }
+    FutureTask<Boolean> compileTask = new FutureTask<Boolean>(new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        return jar.isFile() || compile.call();
+      }
+    });
+    String key = jar.getAbsolutePath();
+    FutureTask<Boolean> runningCompile = yailRuntimeCompiles.putIfAbsent(key, compileTask);
+    if (runningCompile == null) {
+      try {
+        compileTask.run();
+      } finally {
+        yailRuntimeCompiles.remove(key, compileTask);
+      }
     } else {
-      LOG.warning("YAIL compiler - cannot run ZIPALIGN on OS " + osName);
-      err.println("YAIL compiler - cannot run ZIPALIGN on OS " + osName);
-      userErrors.print(String.format(ERROR_IN_STAGE, "ZIPALIGN"));
-      return false;
+      compileTask = runningCompile;
     }
-    // TODO: create tmp file for zipaling result
-    String zipAlignedPath = tmpDir.getAbsolutePath() + File.separator + "zipaligned.apk";
-    // zipalign -f -v 4 infile.zip outfile.zip
-    String[] zipAlignCommandLine = {
-        getResource(zipAlignTool),
-        "-f",
-        "4",
-        apkAbsolutePath,
-        zipAlignedPath
-    };
-    long startAapt = System.currentTimeMillis();
-    // Using System.err and System.out on purpose. Don't want to pollute build messages with
-    // tools output
-    if (!Execution.execute(null, zipAlignCommandLine, System.out, System.err)) {
-      LOG.warning("YAIL compiler - ZIPALIGN execution failed.");
-      err.println("YAIL compiler - ZIPALIGN execution failed.");
-      userErrors.print(String.format(ERROR_IN_STAGE, "ZIPALIGN"));
-      return false;
+
+    boolean compiled;
+    try {
+      compiled = compileTask.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (ExecutionException e) {
+      LOG.log(Level.WARNING, "Unable to precompile the YAIL runtime", e.getCause());
+      compiled = false;
+    }
+    if (!compiled) {
+      recordPrecompileFailure(nowMs);
+      return null;
+    }
+    synchronized (yailRuntimeCompiles) {
+      precompileRetryDelayMs = MIN_PRECOMPILE_RETRY_DELAY_MS;
+    }
+    precompiledYailRuntime = jar;
+    return jar;
+  }
+
+  /*
+   * Puts off the next attempt to precompile the YAIL runtime. Builds that waited for the same
+   * failed compile put it off only once.
+   */
+  private static void recordPrecompileFailure(long nowMs) {
+    synchronized (yailRuntimeCompiles) {
+      if (nowMs < precompileRetryAtMs) {
+        return;
+      }
+      precompileRetryAtMs = nowMs + precompileRetryDelayMs;
+      LOG.warning("Not precompiling the YAIL runtime again for " + (precompileRetryDelayMs / 1000)
+          + " seconds");
+      precompileRetryDelayMs = Math.min(precompileRetryDelayMs * 2, MAX_PRECOMPILE_RETRY_DELAY_MS);
+    }
+  }
+
+  /*
+   * Runs the Kawa compiler on runtime.scm alone and packages the resulting classes in runtimeJar.
+   */
+  private boolean compileYailRuntime(String yailRuntime, File runtimeJar) throws IOException {
+    File runtimeClassesDir = Files.createTempDir();
+    try {
+      String classpath = getRuntimeClasspath() + getResource(ANDROID_RUNTIME);
+      List<String> kawaArgs = Lists.newArrayList(
+          "-d", runtimeClassesDir.getAbsolutePath(),
+          "-C", yailRuntime);
+      long start = System.currentTimeMillis();
+      boolean kawaSuccess;
+      try {
+        kawaSuccess = runKawa(classpath, kawaArgs, System.err);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+      String runtimeClass = YAIL_RUNTIME_MODULE.replace('.', '/') + ".class";
+      if (!kawaSuccess || !new File(runtimeClassesDir, runtimeClass).isFile()) {
+        LOG.warning("YAIL compiler - unable to precompile " + YAIL_RUNTIME);
+        return false;
+      }
+      File tempJar = CacheUtil.createTempFileFor(runtimeJar);
+      CacheUtil.jarDirectory(runtimeClassesDir, new Predicate<String>() {
+        @Override
+        public boolean apply(String path) {
+          return path.endsWith(".class");
+        }
+      }, tempJar);
+      boolean published = CacheUtil.publish(tempJar, runtimeJar);
+      LOG.info("YAIL runtime precompiled to " + runtimeJar + " in " +
+          ((System.currentTimeMillis() - start) / 1000.0) + " seconds");
+      return published;
+    } finally {
+      FileUtils.deleteDirectory(runtimeClassesDir);
+    }
+  }
+
+  /*
+   * Runs the Kawa compiler with the given arguments and class path. If there is a pool of warm
+   * compiler workers, one of them runs the compile. Otherwise, or if no worker is able to, Kawa is
+   * run in a new process. Kawa's standard output goes to System.out and its standard error to
+   * kawaErrors.
+   */
+  private boolean runKawa(String classpath, List<String> kawaArgs, PrintStream kawaErrors)
+      throws InterruptedException {
+    int mx = childProcessRamMb - 200;
+    StageLimiter limiter = kawaLimiter;
+    limiter.acquire();
+    try {
+      CompilerWorkerPool workerPool = CompilerWorkerPool.getInstance();
+      if (workerPool != null) {
+        CompilerWorkerPool.JobResult result =
+            workerPool.run(classpath, mx, KAWA_MAIN_CLASS, kawaArgs);
+        if (result != null) {
+          System.out.print(result.getOutput());
+          kawaErrors.print(result.getError());
+          kawaErrors.flush();
+          return result.getExitCode() == 0;
+        }
+      }
+      List<String> kawaCommandArgs = Lists.newArrayList(
+          System.getProperty("java.home") + "/bin/java",
+          "-mx" + mx + "M",
+          "-cp", classpath,
+          KAWA_MAIN_CLASS);
+      kawaCommandArgs.addAll(kawaArgs);
+      String[] kawaCommandLine = kawaCommandArgs.toArray(new String[kawaCommandArgs.size()]);
+      return Execution.execute(null, kawaCommandLine, System.out, kawaErrors);
+    } finally {
+      limiter.release();
     }
-    if (!copyFile(zipAlignedPath, apkAbsolutePath)) {
-      LOG.warning("YAIL compiler - ZIPALIGN file copy failed.");
-      err.println("YAIL compiler - ZIPALIGN file copy failed.");
-      userErrors.print(String.format(ERROR_IN_STAGE, "ZIPALIGN"));
+  }
+
+  /*
+   * Signs the apk with the project keystore and aligns its uncompressed entries, in one pass.
+   */
+  private boolean runApkSigner(File unsignedApk, File keystoreFile, File apk) {
+    BuildTrace.Span span = context.startStage("sign");
+    try {
+      ApkSigner.signAndAlign(unsignedApk, keystoreFile, apk);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "YAIL compiler - signing the apk failed.", e);
+      err.println("YAIL compiler - signing the apk failed.");
+      userErrors.print(String.format(ERROR_IN_STAGE, "JarSigner"));
       return false;
+    } finally {
+      span.end();
     }
-    String zipALignTimeMessage = "ZIPALIGN time: " +
-        ((System.currentTimeMillis() - startAapt) / 1000.0) + " seconds";
-    out.println(zipALignTimeMessage);
-    LOG.info(zipALignTimeMessage);
+    long signTimeMs = span.getDurationMs();
+    String signTimeMessage = "Signing time: " + (signTimeMs / 1000.0) + " seconds";
+    out.println(signTimeMessage);
+    LOG.info(signTimeMessage);
     return true;
   }
 
@@ -971,38 +1314,64 @@ public final class Compiler {
     return true;
   }
 
-  private boolean runDx(File classesDir, String dexedClasses) {
+  private boolean runDx(File classesDir, String dexedClasses, File manifestFile) {
     List<File> inputList = new ArrayList<File>();
-    inputList.add(classesDir); //this is a directory, and won't be cached into the dex cache
-    inputList.add(new File(getResource(SIMPLE_ANDROID_RUNTIME_JAR)));
-    inputList.add(new File(getResource(KAWA_RUNTIME)));
-    inputList.add(new File(getResource(ACRA_RUNTIME)));
+    if (formJars == null || !FileUtils.listFiles(classesDir, null, true).isEmpty()) {
+      inputList.add(classesDir); //this is a directory, and won't be cached into the dex cache
+    }
+    if (formJars != null) {
+      // Each form's classes are in a jar of their own, so each form is pre-dexed (and its dex
+      // cached) separately, and an unchanged form is never dexed again.
+      inputList.addAll(formJars);
+    }
+    List<File> runtimeInputs = new ArrayList<File>();
+    runtimeInputs.add(getRuntimeJarToDex(classesDir, manifestFile));
+    runtimeInputs.add(new File(getResource(KAWA_RUNTIME)));
+    runtimeInputs.add(new File(getResource(ACRA_RUNTIME)));
+    if (yailRuntimeJar != null) {
+      // The precompiled runtime isn't in classesDir, so it has to be dexed separately. Being a
+      // jar, its dexed form is cached along with the other libraries.
+      runtimeInputs.add(yailRuntimeJar);
+    }
 
     // Add libraries to command line arguments
     System.out.println("Libraries needed command line n = " + librariesNeeded.size());
     for (String library : librariesNeeded) {
-      inputList.add(new File(getResource(RUNTIME_FILES_DIR + library)));
+      runtimeInputs.add(new File(getResource(RUNTIME_FILES_DIR + library)));
     }
 
-    DexExecTask dexTask = new DexExecTask();
-    dexTask.setExecutable(getResource(DX_JAR));
-    dexTask.setOutput(dexedClasses);
-    dexTask.setChildProcessRamMb(childProcessRamMb);
-    if (dexCacheDir == null) {
-      dexTask.setDisableDexMerger(true);
-    } else {
-      createDirectory(new File(dexCacheDir));
-      dexTask.setDexedLibs(dexCacheDir);
-    }
+    DexExecTask dexTask = newDexTask(dexedClasses);
 
-    long startDx = System.currentTimeMillis();
     // Using System.err and System.out on purpose. Don't want to pollute build messages with
     // tools output
     boolean dxSuccess;
-    synchronized (SYNC_KAWA_OR_DX) {
-      setProgress(50);
-      dxSuccess = dexTask.execute(inputList);
-      setProgress(75);
+    StageLimiter limiter = dxLimiter;
+    BuildTrace.Span span = context.startStage("dx");
+    try {
+      try {
+        limiter.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        userErrors.print(String.format(ERROR_IN_STAGE, "DX"));
+        return false;
+      }
+      try {
+        // The companion is always built from the same runtime, so that is dexed and merged once
+        // and only the companion's own classes are merged with it on each build.
+        File companionRuntimeDex = isForCompanion ? getCompanionRuntimeDex(runtimeInputs) : null;
+        if (companionRuntimeDex != null) {
+          inputList.add(companionRuntimeDex);
+        } else {
+          inputList.addAll(runtimeInputs);
+        }
+        setProgress(50);
+        dxSuccess = dexTask.execute(inputList);
+        setProgress(75);
+      } finally {
+        limiter.release();
+      }
+    } finally {
+      span.end();
     }
     if (!dxSuccess) {
       LOG.warning("YAIL compiler - DX execution failed.");
@@ -1010,14 +1379,110 @@ public final class Compiler {
       userErrors.print(String.format(ERROR_IN_STAGE, "DX"));
       return false;
     }
-    String dxTimeMessage = "DX time: " +
-        ((System.currentTimeMillis() - startDx) / 1000.0) + " seconds";
+    long dxTimeMs = span.getDurationMs();
+    String dxTimeMessage = "DX time: " + (dxTimeMs / 1000.0) + " seconds";
     out.println(dxTimeMessage);
     LOG.info(dxTimeMessage);
 
     return true;
   }
 
+  private DexExecTask newDexTask(String output) {
+    DexExecTask dexTask = new DexExecTask();
+    dexTask.setExecutable(getResource(DX_JAR));
+    dexTask.setOutput(output);
+    dexTask.setChildProcessRamMb(childProcessRamMb);
+    if (dexCacheDir == null) {
+      dexTask.setDisableDexMerger(true);
+    } else {
+      createDirectory(new File(dexCacheDir));
+      dexTask.setDexedLibs(dexCacheDir);
+    }
+    return dexTask;
+  }
+
+  /*
+   * Returns a jar in the dex cache holding the given runtime inputs dexed and merged into one,
+   * making it first if no build has yet. The jar is named by a hash of the inputs and of the build
+   * server version, so it is made once per version and survives restarts of the build server.
+   * Returns null if there is no dex cache or the jar can't be made, in which case the caller
+   * should dex the inputs themselves.
+   */
+  private File getCompanionRuntimeDex(List<File> runtimeInputs) {
+    if (dexCacheDir == null) {
+      return null;
+    }
+    StringBuilder paths = new StringBuilder();
+    for (File input : runtimeInputs) {
+      paths.append(input.getAbsolutePath()).append(File.pathSeparator);
+    }
+    // Builds of the companion wait here for the one that is making the jar.
+    synchronized (companionRuntimeDexes) {
+      File runtimeDex = companionRuntimeDexes.get(paths.toString());
+      if (runtimeDex != null && runtimeDex.isFile()) {
+        return runtimeDex;
+      }
+      BuildTrace.Span span = context.startStage("companion-runtime");
+      try {
+        String hash = CacheUtil.hashStrings(Lists.newArrayList(
+            GitBuildId.getVersion(), CacheUtil.hashFiles(runtimeInputs)));
+        // The jar has to be directly in the dex cache directory, so it isn't pre-dexed again.
+        runtimeDex = new File(createDirectory(new File(dexCacheDir)),
+            "companion-runtime-" + hash + ".jar");
+        if (!runtimeDex.isFile()) {
+          LOG.info("Dexing the companion runtime to " + runtimeDex);
+          // dx decides from the extension whether to write a jar, so the temp file must end in
+          // .jar too.
+          File tempDex = File.createTempFile(runtimeDex.getName() + ".", ".tmp.jar",
+              runtimeDex.getParentFile());
+          if (!newDexTask(tempDex.getAbsolutePath()).execute(new ArrayList<File>(runtimeInputs))
+              || !CacheUtil.publish(tempDex, runtimeDex)) {
+            tempDex.delete();
+            LOG.warning("YAIL compiler - unable to dex the companion runtime");
+            return null;
+          }
+        }
+        companionRuntimeDexes.put(paths.toString(), runtimeDex);
+        return runtimeDex;
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Unable to dex the companion runtime", e);
+        return null;
+      } finally {
+        span.end();
+      }
+    }
+  }
+
+  /*
+   * Returns the App Inventor runtime jar to dex: if possible, one without the classes of the
+   * components this project doesn't use.
+   */
+  private File getRuntimeJarToDex(File classesDir, File manifestFile) {
+    File runtimeJar = new File(getResource(SIMPLE_ANDROID_RUNTIME_JAR));
+    // The precompiled YAIL runtime is needed as a root. Without it, the runtime is compiled with
+    // the forms and so isn't the same for every project with the same components.
+    if (!shrinkRuntime || isForCompanion || dexCacheDir == null || yailRuntimeJar == null) {
+      return runtimeJar;
+    }
+    // The forms' classes are roots too, since they may use runtime classes that aren't components
+    // and that no component uses.
+    List<File> extraRoots = Lists.newArrayList(yailRuntimeJar, manifestFile, classesDir);
+    if (formJars != null) {
+      extraRoots.addAll(formJars);
+    }
+    BuildTrace.Span span = context.startStage("shrink");
+    try {
+      return RuntimeShrinker.shrink(runtimeJar, componentTypes, extraRoots,
+          new File(dexCacheDir));
+    } catch (IOException e) {
+      // The whole runtime still works.
+      LOG.log(Level.WARNING, "Unable to shrink " + runtimeJar, e);
+      return runtimeJar;
+    } finally {
+      span.end();
+    }
+  }
+
   private boolean runAaptPackage(File manifestFile, File resDir, String tmpPackageName) {
     // Need to make sure assets directory exists otherwise aapt will fail.
     createDirectory(project.getAssetsDirectory());
@@ -1047,23 +1512,67 @@ public final class Compiler {
         "-F", tmpPackageName,
         libsDir.getAbsolutePath()
     };
-    long startAapt = System.currentTimeMillis();
     // Using System.err and System.out on purpose. Don't want to pollute build messages with
     // tools output
-    if (!Execution.execute(null, aaptPackageCommandLine, System.out, System.err)) {
+    BuildTrace.Span span = context.startStage("aapt");
+    boolean aaptSuccess;
+    try {
+      aaptSuccess = Execution.execute(null, aaptPackageCommandLine, System.out, System.err);
+    } finally {
+      span.end();
+    }
+    if (!aaptSuccess) {
       LOG.warning("YAIL compiler - AAPT execution failed.");
       err.println("YAIL compiler - AAPT execution failed.");
       userErrors.print(String.format(ERROR_IN_STAGE, "AAPT"));
       return false;
     }
-    String aaptTimeMessage = "AAPT time: " +
-        ((System.currentTimeMillis() - startAapt) / 1000.0) + " seconds";
+    String aaptTimeMessage = "AAPT time: " + (span.getDurationMs() / 1000.0) + " seconds";
     out.println(aaptTimeMessage);
     LOG.info(aaptTimeMessage);
 
     return true;
   }
 
+  /*
+   * Returns the file where the resource package made by aapt for the current manifest, resources,
+   * assets and native libraries is cached, which may not exist yet, or null if resource packages
+   * aren't cached.
+   */
+  private File getCachedResourcePackage(File manifestFile, File resDir) {
+    if (dexCacheDir == null) {
+      return null;
+    }
+    try {
+      // Make sure the assets directory exists, as it does when aapt runs.
+      createDirectory(project.getAssetsDirectory());
+      String hash = getResourcePackageHash(manifestFile, resDir, project.getAssetsDirectory(),
+          libsDir);
+      return new File(createDirectory(new File(dexCacheDir), AAPT_CACHE_DIR_NAME),
+          "resources-" + hash + ".ap_");
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to hash resources, not using the AAPT cache", e);
+      return null;
+    }
+  }
+
+  /*
+   * Returns the hash that identifies a resource package made by aapt: a hash of the manifest, of
+   * the resources, assets and native libraries that are packaged, and of the build server version
+   * (which determines aapt).
+   */
+  @VisibleForTesting
+  static String getResourcePackageHash(File manifestFile, File resDir, File assetsDir,
+      File libsDir) throws IOException {
+    return CacheUtil.hashStrings(Lists.newArrayList(
+        GitBuildId.getVersion(),
+        CacheUtil.hashFiles(Lists.newArrayList(manifestFile)),
+        CacheUtil.hashDirectory(resDir),
+        CacheUtil.hashDirectory(assetsDir),
+        CacheUtil.hashDirectory(libsDir)));
+  }
+
+
   private boolean insertNativeLibraries(File buildDir){
     out.println("________Copying native libraries");
     libsDir = createDirectory(buildDir, LIBS_DIR_NAME);
@@ -1182,32 +1691,6 @@ public final class Compiler {
     }
   }
 
-  /**
-   * Copy one file to another. If destination file does not exist, it is created.
-   *
-   * @param srcPath absolute path to source file
-   * @param dstPath absolute path to destination file
-   * @return  {@code true} if the copy succeeds, {@code false} otherwise
-   */
-  private static Boolean copyFile(String srcPath, String dstPath) {
-    try {
-      FileInputStream in = new FileInputStream(srcPath);
-      FileOutputStream out = new FileOutputStream(dstPath);
-      byte[] buf = new byte[1024];
-      int len;
-      while ((len = in.read(buf)) > 0) {
-        out.write(buf, 0, len);
-      }
-      in.close();
-      out.close();
-    }
-    catch (IOException e) {
-      e.printStackTrace();
-      return false;
-    }
-    return true;
-  }
-
   /**
    * Creates a new directory (if it doesn't exist already).
    *
@@ -1236,19 +1719,68 @@ public final class Compiler {
     return dir;
   }
 
-  private static int setProgress(int increments) {
-    Compiler.currentProgress = increments;
-    LOG.info("The current progress is "
-              + Compiler.currentProgress + "%");
-    return Compiler.currentProgress;
+  /**
+   * Sets the maximum number of builds that may run the Kawa and DX stages at the same time.
+   *
+   * @param maxKawa  maximum number of simultaneous Kawa compiles, 0 means the
+   *                 {@linkplain #getDefaultStageLimit default}
+   * @param maxDx  maximum number of simultaneous DX runs, 0 means the default
+   * @param childProcessRamMb  maximum ram that can be used by a child process, in MB
+   */
+  static void setStageLimits(int maxKawa, int maxDx, int childProcessRamMb) {
+    int defaultLimit = getDefaultStageLimit(childProcessRamMb);
+    kawaLimiter = new StageLimiter("kawa", (maxKawa > 0) ? maxKawa : defaultLimit);
+    dxLimiter = new StageLimiter("dx", (maxDx > 0) ? maxDx : defaultLimit);
   }
 
-  public static int getProgress() {
-    if (Compiler.currentProgress==100) {
-      Compiler.currentProgress = 10;
-      return 100;
-    } else {
-      return Compiler.currentProgress;
+  /**
+   * Returns the default limit on the number of builds in the Kawa or DX stage: the number of
+   * processors, or fewer if that many child processes of childProcessRamMb wouldn't fit in the
+   * physical memory of the machine.
+   */
+  static int getDefaultStageLimit(int childProcessRamMb) {
+    int limit = Runtime.getRuntime().availableProcessors();
+    OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+    if (childProcessRamMb > 0 && bean instanceof com.sun.management.OperatingSystemMXBean) {
+      long physicalMemoryMb = ((com.sun.management.OperatingSystemMXBean) bean)
+          .getTotalPhysicalMemorySize() / (1024 * 1024);
+      limit = (int) Math.min(limit, physicalMemoryMb / childProcessRamMb);
     }
+    return Math.max(1, limit);
+  }
+
+  /**
+   * Sets whether the classes of components a project doesn't use are removed from the runtime
+   * that is dexed and packaged into its APK. This needs a dex cache directory, in which the
+   * shrunk runtimes are cached, and is never done for the companion, which uses every component.
+   */
+  static void setShrinkRuntime(boolean shrink) {
+    shrinkRuntime = shrink;
+  }
+
+  /**
+   * Sets the maximum total size of the compiled forms cached in the dex cache directory.
+   */
+  static void setFormCacheMaxBytes(long maxBytes) {
+    formCacheMaxBytes = maxBytes;
+  }
+
+  /**
+   * Sets the maximum total size of the resource packages cached in the dex cache directory.
+   */
+  static void setAaptCacheMaxBytes(long maxBytes) {
+    aaptCacheMaxBytes = maxBytes;
+  }
+
+  static StageLimiter getKawaLimiter() {
+    return kawaLimiter;
+  }
+
+  static StageLimiter getDxLimiter() {
+    return dxLimiter;
+  }
+
+  private void setProgress(int progress) {
+    context.setProgress(progress);
   }
 }
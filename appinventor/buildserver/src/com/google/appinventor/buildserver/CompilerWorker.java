@@ -0,0 +1,322 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2014 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Main entry point of a long-lived compiler worker process.
+ *
+ * <p>A worker is started by {@link CompilerWorkerPool} with the class path needed by the jobs it
+ * will run (for example, Kawa and the App Inventor runtimes). It then reads jobs from its standard
+ * input, one at a time. Each job names a main class and its arguments. The worker calls that main
+ * method in its own, already warmed up, JVM and writes the exit code and the captured standard
+ * output and standard error of the job, and the CPU time and peak memory it used, back to its
+ * standard output.</p>
+ *
+ * <p>Kawa calls {@link System#exit(int)} when it is done, or when it fails, so a job may end the
+ * worker. The worker then sends the job's output from a shutdown hook, marked with
+ * {@link #JOB_EXITED}, and the job's exit code is the worker's.</p>
+ *
+ * <p>This class runs in the child process, so it must not depend on anything but the JDK.</p>
+ *
+ * @see CompilerWorkerPool
+ */
+public final class CompilerWorker {
+
+  // Written by the worker once it is ready to accept jobs.
+  static final int READY = 0x41493257;
+
+  // Written at the start of the response to a job, to say how the job ended.
+  static final int JOB_RETURNED = 0;
+  static final int JOB_EXITED = 1;
+
+  private static final String KAWA_MAIN_CLASS = "kawa.repl";
+
+  private static final String STATUS = "/proc/self/status";
+  private static final String CLEAR_REFS = "/proc/self/clear_refs";
+  // Written to clear_refs to reset the peak resident set size.
+  private static final String CLEAR_REFS_RESET_PEAK_RSS = "5";
+
+  private CompilerWorker() {
+  }
+
+  /*
+   * Sends everything written to it to whichever stream is current, so that output written through
+   * a PrintStream that a job captured before the job started still ends up in the right place.
+   */
+  private static class SwitchableOutputStream extends OutputStream {
+    private volatile OutputStream current;
+
+    SwitchableOutputStream(OutputStream initial) {
+      current = initial;
+    }
+
+    void setCurrent(OutputStream stream) {
+      current = stream;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      current.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      current.write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      current.flush();
+    }
+  }
+
+  // The worker's own standard error, which is logged by the pool.
+  private static final PrintStream workerErr = System.err;
+
+  // Where the standard output and standard error of the current job go.
+  private static final SwitchableOutputStream jobOut = new SwitchableOutputStream(workerErr);
+  private static final SwitchableOutputStream jobErr = new SwitchableOutputStream(workerErr);
+  private static final PrintStream jobOutPrintStream = new PrintStream(jobOut, true);
+  private static final PrintStream jobErrPrintStream = new PrintStream(jobErr, true);
+
+  // Kawa's default output ports for the current job, if the job runs Kawa.
+  private static volatile PrintWriter kawaOut;
+  private static volatile PrintWriter kawaErr;
+
+  // The state of the current job, which is finished either by the main loop or, if the job calls
+  // System.exit, by the shutdown hook. Guarded by jobLock.
+  private static final Object jobLock = new Object();
+  private static DataOutputStream responses;
+  private static boolean jobRunning;
+  private static ByteArrayOutputStream jobOutBytes;
+  private static ByteArrayOutputStream jobErrBytes;
+  private static long cpuTimeNsAtStart;
+
+  public static void main(String[] args) throws IOException {
+    DataInputStream requests = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(FileDescriptor.in)));
+    synchronized (jobLock) {
+      responses = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+    }
+
+    // From now on, anything printed by a job is captured rather than mixed into the responses.
+    System.setOut(jobOutPrintStream);
+    System.setErr(jobErrPrintStream);
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        try {
+          finishJob(JOB_EXITED, -1);
+        } catch (IOException e) {
+          // The pool has gone away.
+        }
+      }
+    });
+
+    synchronized (jobLock) {
+      responses.writeInt(READY);
+      responses.flush();
+    }
+
+    while (true) {
+      String mainClassName;
+      String[] jobArgs;
+      try {
+        mainClassName = requests.readUTF();
+        jobArgs = new String[requests.readInt()];
+        for (int i = 0; i < jobArgs.length; i++) {
+          jobArgs[i] = requests.readUTF();
+        }
+      } catch (EOFException e) {
+        // The pool closed our input. We're done.
+        return;
+      }
+
+      synchronized (jobLock) {
+        jobOutBytes = new ByteArrayOutputStream();
+        jobErrBytes = new ByteArrayOutputStream();
+        jobOut.setCurrent(jobOutBytes);
+        jobErr.setCurrent(jobErrBytes);
+        resetPeakRss();
+        cpuTimeNsAtStart = getCpuTimeNs();
+        jobRunning = true;
+      }
+      int exitCode = runJob(mainClassName, jobArgs);
+      finishJob(JOB_RETURNED, exitCode);
+    }
+  }
+
+  /*
+   * Sends the response to the current job, if there is one: how it ended, its exit code (unknown
+   * if it called System.exit), its output, and the memory and CPU time it used.
+   */
+  private static void finishJob(int status, int exitCode) throws IOException {
+    synchronized (jobLock) {
+      if (!jobRunning) {
+        return;
+      }
+      jobRunning = false;
+      long cpuTimeNs = getCpuTimeNs();
+      flushJobStreams();
+      jobOut.setCurrent(workerErr);
+      jobErr.setCurrent(workerErr);
+      kawaOut = null;
+      kawaErr = null;
+
+      Runtime runtime = Runtime.getRuntime();
+      responses.writeInt(status);
+      responses.writeInt(exitCode);
+      writeBytes(responses, jobOutBytes.toByteArray());
+      writeBytes(responses, jobErrBytes.toByteArray());
+      responses.writeLong(runtime.totalMemory() - runtime.freeMemory());
+      responses.writeLong(runtime.maxMemory());
+      responses.writeLong((cpuTimeNs < 0) ? -1 : (cpuTimeNs - cpuTimeNsAtStart) / 1000000);
+      responses.writeLong(getPeakRss());
+      responses.flush();
+    }
+  }
+
+  private static void writeBytes(DataOutputStream stream, byte[] bytes) throws IOException {
+    stream.writeInt(bytes.length);
+    stream.write(bytes);
+  }
+
+  /*
+   * Calls the main method of the given class and returns the exit code that the job would have
+   * had if it had run in a process of its own. If the job calls System.exit, this doesn't return.
+   */
+  private static int runJob(String mainClassName, String[] args) {
+    try {
+      if (KAWA_MAIN_CLASS.equals(mainClassName)) {
+        resetKawa();
+      }
+      Class<?> mainClass = Class.forName(mainClassName);
+      Method main = mainClass.getMethod("main", String[].class);
+      main.invoke(null, (Object) args);
+      return 0;
+    } catch (InvocationTargetException e) {
+      e.getCause().printStackTrace(jobErrPrintStream);
+      return 1;
+    } catch (Exception e) {
+      e.printStackTrace(jobErrPrintStream);
+      return 1;
+    }
+  }
+
+  /*
+   * Kawa keeps information about the modules it has compiled in static state. Forget all of it so
+   * that each job compiles exactly as it would in a fresh process, and point Kawa's default output
+   * ports at the (captured) System.out and System.err. Kawa is only on the worker's class path,
+   * not the build server's, so this is done reflectively.
+   */
+  private static void resetKawa() throws Exception {
+    Class<?> moduleManager = Class.forName("gnu.expr.ModuleManager");
+    Object instance = moduleManager.getMethod("getInstance").invoke(null);
+    moduleManager.getMethod("clear").invoke(instance);
+
+    // OutPort is a PrintWriter.
+    Class<?> outPort = Class.forName("gnu.mapping.OutPort");
+    Constructor<?> constructor =
+        outPort.getConstructor(Writer.class, boolean.class, boolean.class);
+    kawaOut = (PrintWriter) constructor.newInstance(
+        new OutputStreamWriter(jobOutPrintStream), true, true);
+    kawaErr = (PrintWriter) constructor.newInstance(
+        new OutputStreamWriter(jobErrPrintStream), true, true);
+    outPort.getMethod("setOutDefault", outPort).invoke(null, kawaOut);
+    outPort.getMethod("setErrDefault", outPort).invoke(null, kawaErr);
+  }
+
+  /*
+   * Returns the CPU time used by this process so far, in nanoseconds, or -1 if the JVM can't tell.
+   */
+  private static long getCpuTimeNs() {
+    OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+    if (bean instanceof com.sun.management.OperatingSystemMXBean) {
+      return ((com.sun.management.OperatingSystemMXBean) bean).getProcessCpuTime();
+    }
+    return -1;
+  }
+
+  /*
+   * Resets the peak resident set size of this process to its current size, so that the peak after
+   * a job is the job's own. This only works on Linux.
+   */
+  private static void resetPeakRss() {
+    try {
+      Writer writer = new FileWriter(CLEAR_REFS);
+      try {
+        writer.write(CLEAR_REFS_RESET_PEAK_RSS);
+      } finally {
+        writer.close();
+      }
+    } catch (IOException e) {
+      // Not Linux, or a kernel that can't do this.
+    }
+  }
+
+  /*
+   * Returns the peak resident set size of this process in bytes, or -1 if it can't be determined.
+   */
+  private static long getPeakRss() {
+    try {
+      BufferedReader reader = new BufferedReader(new FileReader(STATUS));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (line.startsWith("VmHWM:")) {
+            // For example, "VmHWM:	  123456 kB".
+            String kb = line.substring("VmHWM:".length()).trim().split("\\s+")[0];
+            return Long.parseLong(kb) * 1024;
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      // Not Linux.
+    } catch (NumberFormatException e) {
+      // Unexpected format.
+    }
+    return -1;
+  }
+
+  private static void flushJobStreams() {
+    PrintWriter writer = kawaOut;
+    if (writer != null) {
+      writer.flush();
+    }
+    writer = kawaErr;
+    if (writer != null) {
+      writer.flush();
+    }
+    jobOutPrintStream.flush();
+    jobErrPrintStream.flush();
+  }
+}
@@ -0,0 +1,429 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2014 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URISyntaxException;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A pool of long-lived {@link CompilerWorker} processes.
+ *
+ * <p>Starting a JVM for every Kawa compile (and for every YAIL generation and DX run) means that
+ * every build pays for JVM startup, class loading and JIT warm-up. The pool keeps worker JVMs
+ * alive between builds and hands each of them one job at a time. Workers are keyed by their class path and
+ * maximum heap, since those are fixed when the worker process starts. A worker is retired after
+ * a configurable number of jobs, when its heap is nearly full, when its job calls System.exit, or
+ * when it fails in any way. A worker whose job takes longer than the job timeout is killed, and
+ * the job fails.</p>
+ *
+ * <p>{@link #run} returns {@code null} when no worker can take the job, in which case the caller
+ * should run the job with {@link Execution#execute} as it always has.</p>
+ *
+ * <p>A worker running a job for a build is one of that build's child processes. If the build is
+ * cancelled, the worker is killed with the job, and a new one is started for the next job.</p>
+ */
+final class CompilerWorkerPool {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(CompilerWorkerPool.class.getName());
+
+  // A worker whose used heap is above this fraction of its maximum heap after a job is retired.
+  private static final double MAX_HEAP_FRACTION = 0.75;
+
+  private static volatile CompilerWorkerPool instance;
+
+  // Kills the workers whose jobs time out.
+  private static final Timer watchdog = new Timer("compiler-worker-watchdog", true);
+
+  /**
+   * The result of a job run by a worker.
+   */
+  static class JobResult {
+    private final int exitCode;
+    private final String output;
+    private final String error;
+    private final long cpuTimeMs;
+    private final long peakRssBytes;
+
+    JobResult(int exitCode, String output, String error, long cpuTimeMs, long peakRssBytes) {
+      this.exitCode = exitCode;
+      this.output = output;
+      this.error = error;
+      this.cpuTimeMs = cpuTimeMs;
+      this.peakRssBytes = peakRssBytes;
+    }
+
+    int getExitCode() {
+      return exitCode;
+    }
+
+    String getOutput() {
+      return output;
+    }
+
+    String getError() {
+      return error;
+    }
+
+    /**
+     * Returns the CPU time the worker used for the job, or -1 if it couldn't tell.
+     */
+    long getCpuTimeMs() {
+      return cpuTimeMs;
+    }
+
+    /**
+     * Returns the peak resident set size of the worker during the job, or -1 if it couldn't tell.
+     */
+    long getPeakRssBytes() {
+      return peakRssBytes;
+    }
+  }
+
+  /*
+   * A single worker process.
+   */
+  private static class Worker {
+    private final String key;
+    private final Process process;
+    private final DataOutputStream requests;
+    private final DataInputStream responses;
+    private int jobCount;
+    private volatile boolean timedOut;
+
+    Worker(String key, Process process) {
+      this.key = key;
+      this.process = process;
+      this.requests = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+      this.responses = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+    }
+
+    void awaitReady() throws IOException {
+      if (responses.readInt() != CompilerWorker.READY) {
+        throw new IOException("Unexpected response from compiler worker");
+      }
+    }
+
+    void destroy() {
+      try {
+        requests.close();
+      } catch (IOException e) {
+        // ignored
+      }
+      process.destroy();
+      MemoryTelemetry.getInstance().unregisterChildProcess(process);
+    }
+  }
+
+  // The maximum number of worker processes, busy or idle.
+  private final int maxWorkers;
+  // The number of jobs after which a worker is retired.
+  private final int maxJobsPerWorker;
+  // How long a job may run before its worker is killed.
+  private final long jobTimeoutMs;
+
+  private final LinkedList<Worker> idleWorkers = new LinkedList<Worker>();
+  private int liveWorkers = 0;
+  private boolean isShutdown = false;
+
+  private final AtomicLong jobsRun = new AtomicLong(0);
+  private final AtomicLong jobsFallenBack = new AtomicLong(0);
+  private final AtomicLong jobsTimedOut = new AtomicLong(0);
+  private final AtomicInteger workersStarted = new AtomicInteger(0);
+  private final AtomicInteger workersRetired = new AtomicInteger(0);
+
+  private CompilerWorkerPool(int maxWorkers, int maxJobsPerWorker, long jobTimeoutMs) {
+    this.maxWorkers = maxWorkers;
+    this.maxJobsPerWorker = maxJobsPerWorker;
+    this.jobTimeoutMs = jobTimeoutMs;
+  }
+
+  /**
+   * Creates the pool used by all builds.
+   *
+   * @param maxWorkers the maximum number of worker processes, 0 disables the pool
+   * @param maxJobsPerWorker the number of jobs after which a worker process is replaced
+   * @param jobTimeoutSec the number of seconds after which a job's worker process is killed
+   */
+  static void configure(int maxWorkers, int maxJobsPerWorker, int jobTimeoutSec) {
+    CompilerWorkerPool oldInstance = instance;
+    instance = (maxWorkers > 0)
+        ? new CompilerWorkerPool(maxWorkers, maxJobsPerWorker, jobTimeoutSec * 1000L)
+        : null;
+    if (oldInstance != null) {
+      oldInstance.shutdown();
+    }
+  }
+
+  /**
+   * Returns the pool used by all builds, or {@code null} if there isn't one.
+   */
+  static CompilerWorkerPool getInstance() {
+    return instance;
+  }
+
+  /**
+   * Runs the main method of {@code mainClass} with the given arguments in a worker process.
+   *
+   * @param classpath  the class path the job needs
+   * @param maxHeapMb  the maximum heap of the worker, in MB
+   * @param mainClass  the class whose main method is called
+   * @param args  the arguments to the main method
+   * @return  the result of the job, or {@code null} if the job could not be run by a worker
+   */
+  JobResult run(String classpath, int maxHeapMb, String mainClass, List<String> args) {
+    String key = maxHeapMb + File.pathSeparator + classpath;
+    final Worker worker = checkOut(key, classpath, maxHeapMb);
+    if (worker == null) {
+      jobsFallenBack.incrementAndGet();
+      return null;
+    }
+    // Cancelling the build kills the worker, which ends the job.
+    BuildContext context = BuildContext.getCurrentBuild();
+    if (context != null) {
+      context.addChildProcess(worker.process);
+    }
+    TimerTask timeout = new TimerTask() {
+      @Override
+      public void run() {
+        worker.timedOut = true;
+        worker.process.destroy();
+      }
+    };
+    watchdog.schedule(timeout, jobTimeoutMs);
+    boolean healthy = false;
+    try {
+      worker.requests.writeUTF(mainClass);
+      worker.requests.writeInt(args.size());
+      for (String arg : args) {
+        worker.requests.writeUTF(arg);
+      }
+      worker.requests.flush();
+
+      int status = worker.responses.readInt();
+      int exitCode = worker.responses.readInt();
+      String output = new String(readBytes(worker.responses));
+      String error = new String(readBytes(worker.responses));
+      long usedHeap = worker.responses.readLong();
+      long maxHeap = worker.responses.readLong();
+      long cpuTimeMs = worker.responses.readLong();
+      long peakRssBytes = worker.responses.readLong();
+      if (status == CompilerWorker.JOB_EXITED) {
+        // The job called System.exit, which ended the worker with the job's exit code.
+        try {
+          exitCode = worker.process.waitFor();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while waiting for the compiler worker to exit");
+        }
+      }
+      worker.jobCount++;
+      jobsRun.incrementAndGet();
+      healthy = status == CompilerWorker.JOB_RETURNED && worker.jobCount < maxJobsPerWorker
+          && usedHeap < maxHeap * MAX_HEAP_FRACTION;
+      BuildTrace.recordChildUsage(cpuTimeMs, peakRssBytes);
+      return new JobResult(exitCode, output, error, cpuTimeMs, peakRssBytes);
+    } catch (IOException e) {
+      if (worker.timedOut) {
+        LOG.warning("Compiler worker killed after its job ran for " + jobTimeoutMs + " ms");
+        jobsTimedOut.incrementAndGet();
+        return new JobResult(1, "", "The compiler timed out after " + (jobTimeoutMs / 1000)
+            + " seconds", -1, -1);
+      }
+      if (context != null && context.isCancelled()) {
+        LOG.info("Compiler worker killed, since build " + context.getBuildId() + " was cancelled");
+        return new JobResult(1, "", "Build " + context.getBuildId() + " was cancelled", -1, -1);
+      }
+      LOG.log(Level.WARNING, "Compiler worker failed", e);
+      jobsFallenBack.incrementAndGet();
+      return null;
+    } finally {
+      timeout.cancel();
+      if (context != null) {
+        context.removeChildProcess(worker.process);
+      }
+      checkIn(worker, healthy);
+    }
+  }
+
+  private static byte[] readBytes(DataInputStream stream) throws IOException {
+    byte[] bytes = new byte[stream.readInt()];
+    stream.readFully(bytes);
+    return bytes;
+  }
+
+  /*
+   * Returns an idle worker with the given key, starting one if necessary, or null if there are
+   * already maxWorkers workers and none of the idle ones can be replaced.
+   */
+  private Worker checkOut(String key, String classpath, int maxHeapMb) {
+    synchronized (this) {
+      if (isShutdown) {
+        return null;
+      }
+      for (Iterator<Worker> iterator = idleWorkers.iterator(); iterator.hasNext(); ) {
+        Worker worker = iterator.next();
+        if (worker.key.equals(key)) {
+          iterator.remove();
+          return worker;
+        }
+      }
+      if (liveWorkers >= maxWorkers) {
+        if (idleWorkers.isEmpty()) {
+          return null;
+        }
+        // Make room by retiring the least recently used idle worker, which has a different key.
+        retire(idleWorkers.removeFirst());
+      }
+      liveWorkers++;
+    }
+    try {
+      return startWorker(key, classpath, maxHeapMb);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to start compiler worker", e);
+      synchronized (this) {
+        liveWorkers--;
+      }
+      return null;
+    }
+  }
+
+  private void checkIn(Worker worker, boolean healthy) {
+    synchronized (this) {
+      if (healthy && !isShutdown) {
+        idleWorkers.addLast(worker);
+        return;
+      }
+      retire(worker);
+    }
+  }
+
+  // Must be called while synchronized on this.
+  private void retire(Worker worker) {
+    liveWorkers--;
+    workersRetired.incrementAndGet();
+    worker.destroy();
+  }
+
+  private Worker startWorker(String key, String classpath, int maxHeapMb) throws IOException {
+    String[] command = {
+        System.getProperty("java.home") + "/bin/java",
+        "-mx" + maxHeapMb + "M",
+        "-cp", getWorkerClasspath() + File.pathSeparator + classpath,
+        CompilerWorker.class.getName()
+    };
+    LOG.info("Starting compiler worker: " + Joiner.on(" ").join(command));
+    Process process = Runtime.getRuntime().exec(command);
+    MemoryTelemetry.getInstance().registerChildProcess(process);
+    drainErrors(process.getErrorStream());
+    Worker worker = new Worker(key, process);
+    try {
+      worker.awaitReady();
+    } catch (IOException e) {
+      worker.destroy();
+      throw e;
+    }
+    workersStarted.incrementAndGet();
+    return worker;
+  }
+
+  /*
+   * Returns the location of the CompilerWorker class (usually BuildServer.jar).
+   */
+  private static String getWorkerClasspath() throws IOException {
+    try {
+      return new File(CompilerWorker.class.getProtectionDomain().getCodeSource().getLocation()
+          .toURI()).getAbsolutePath();
+    } catch (URISyntaxException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /*
+   * Anything a worker writes to its own stderr (rather than a job's) is logged.
+   */
+  private static void drainErrors(final InputStream errorStream) {
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          BufferedReader reader = new BufferedReader(new InputStreamReader(errorStream));
+          String line;
+          while ((line = reader.readLine()) != null) {
+            LOG.info("compiler worker: " + line);
+          }
+        } catch (IOException e) {
+          // The worker is gone.
+        }
+      }
+    });
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Stops all idle workers. Busy workers are stopped when their job finishes.
+   */
+  synchronized void shutdown() {
+    isShutdown = true;
+    List<Worker> workers = Lists.newArrayList(idleWorkers);
+    idleWorkers.clear();
+    for (Worker worker : workers) {
+      retire(worker);
+    }
+  }
+
+  int getMaxWorkers() {
+    return maxWorkers;
+  }
+
+  synchronized int getLiveWorkerCount() {
+    return liveWorkers;
+  }
+
+  synchronized int getIdleWorkerCount() {
+    return idleWorkers.size();
+  }
+
+  long getJobsRun() {
+    return jobsRun.get();
+  }
+
+  long getJobsFallenBack() {
+    return jobsFallenBack.get();
+  }
+
+  long getJobsTimedOut() {
+    return jobsTimedOut.get();
+  }
+
+  int getWorkersStarted() {
+    return workersStarted.get();
+  }
+
+  int getWorkersRetired() {
+    return workersRetired.get();
+  }
+}
@@ -18,22 +18,31 @@ package com.google.appinventor.buildserver;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import com.google.common.hash.HashCode;
-import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
 
 /**
  * Dex task, modified from the Android SDK to run in BuildServer.
  * Custom task to execute dx while handling dependencies.
+ *
+ * Libraries are pre-dexed in parallel, one job per library, by a pool of threads shared by all
+ * builds. When there is a pool of warm compiler workers, dx runs in one of them rather than in
+ * a new JVM. Pre-dexed libraries are published to the dex cache atomically, and a library that is
+ * already being pre-dexed for one build is not pre-dexed again for another.
  */
 public class DexExecTask  {
 
@@ -42,11 +51,58 @@ public class DexExecTask  {
     private String mDexedLibs;
     private boolean mVerbose = false;
     private boolean mNoLocals = false;
-    private int mChildProcessRamMb = 1024;
+    private int mChildProcessRamMb = DEFAULT_CHILD_PROCESS_RAM_MB;
     private boolean mDisableDexMerger = false;
-    private static Map<String, String> alreadyChecked = new HashMap<String, String>();
+    private static final String DX_MAIN_CLASS = "com.android.dx.command.Main";
+    private static final int DEFAULT_CHILD_PROCESS_RAM_MB = 1024;
+
+    // The hashes of the library files seen so far, by path, length and modification time.
+    private static final ConcurrentMap<String, String> alreadyChecked =
+        new ConcurrentHashMap<String, String>();
 
-    private static Object semaphore = new Object(); // Used to protect dex cache creation
+    // The pre-dex jobs that are running or waiting to run, by the path of the pre-dexed library.
+    private static final ConcurrentMap<String, Future<Boolean>> inFlight =
+        new ConcurrentHashMap<String, Future<Boolean>>();
+
+    // Pre-dex jobs don't take a slot in the DX stage: the build that waits for them already holds
+    // one, so builds waiting for each other's pre-dex jobs could fill the stage and never leave
+    // it. Instead, no more pre-dex jobs run at once than there is memory for.
+    private static int maxPreDexJobs = Compiler.getDefaultStageLimit(DEFAULT_CHILD_PROCESS_RAM_MB);
+    private static ExecutorService preDexExecutor;
+
+    /**
+     * Sets the maximum number of libraries that are pre-dexed at the same time, by all builds.
+     * @param max the maximum, 0 means the number of processors, or fewer if that many dx
+     *        processes wouldn't fit in memory.
+     * @param childProcessRamMb the memory of each dx process, in MB.
+     */
+    static synchronized void setMaxPreDexJobs(int max, int childProcessRamMb) {
+        maxPreDexJobs = (max > 0) ? max : Compiler.getDefaultStageLimit(childProcessRamMb);
+        if (preDexExecutor != null) {
+            // Jobs already submitted still run.
+            preDexExecutor.shutdown();
+            preDexExecutor = null;
+        }
+    }
+
+    static synchronized int getMaxPreDexJobs() {
+        return maxPreDexJobs;
+    }
+
+    private static synchronized ExecutorService getPreDexExecutor() {
+        if (preDexExecutor == null) {
+            final AtomicInteger threadCount = new AtomicInteger(0);
+            preDexExecutor = Executors.newFixedThreadPool(maxPreDexJobs, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "pre-dex-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return preDexExecutor;
+    }
 
 
     /**
@@ -100,68 +156,120 @@ public class DexExecTask  {
             return true;
         }
 
-        synchronized(semaphore) {
-
-            final int count = inputs.size();
-            boolean allSuccessful = true;
-            for (int i = 0 ; i < count; i++) {
-                File input = inputs.get(i);
-                if (input.isFile()) {
-                    // check if this libs needs to be pre-dexed
-                    String fileName = getDexFileName(input);
-                    File dexedLib = new File(mDexedLibs, fileName);
-                    String dexedLibPath = dexedLib.getAbsolutePath();
-
-                    if (dexedLib.isFile() == false/*||
-                                                    dexedLib.lastModified() < input.lastModified()*/) {
-
-                        System.out.println(
-                            String.format("Pre-Dexing %1$s -> %2$s",
-                              input.getAbsolutePath(), fileName));
-
-                        if (dexedLib.isFile()) {
-                            dexedLib.delete();
-                        }
-
-                        boolean dexSuccess = runDx(input, dexedLibPath, false /*showInput*/);
-                        allSuccessful = allSuccessful && dexSuccess;
-                    } else {
-                        System.out.println(
-                            String.format("Using Pre-Dexed %1$s <- %2$s",
-                              fileName, input.getAbsolutePath()));
-                    }
-
-                    // replace the input with the pre-dex libs.
-                    inputs.set(i, dexedLib);
+        final int count = inputs.size();
+        List<Future<Boolean>> jobs = new ArrayList<Future<Boolean>>();
+        for (int i = 0 ; i < count; i++) {
+            File input = inputs.get(i);
+            // A jar that is already in the dex cache, such as the companion runtime, is dexed.
+            if (input.isFile() && !isInDexedLibs(input)) {
+                // check if this libs needs to be pre-dexed
+                String fileName = getDexFileName(input);
+                File dexedLib = new File(mDexedLibs, fileName);
+
+                if (dexedLib.isFile() == false) {
+                    jobs.add(preDexLibrary(input, dexedLib));
+                } else {
+                    System.out.println(
+                        String.format("Using Pre-Dexed %1$s <- %2$s",
+                          fileName, input.getAbsolutePath()));
                 }
+
+                // replace the input with the pre-dex libs.
+                inputs.set(i, dexedLib);
             }
-            return allSuccessful;
         }
+
+        boolean allSuccessful = true;
+        for (Future<Boolean> job : jobs) {
+            try {
+                allSuccessful = job.get() && allSuccessful;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+                allSuccessful = false;
+            }
+        }
+        return allSuccessful;
     }
 
-    private String getDexFileName(File inputFile) {
-        // get the filename
-        String name = inputFile.getName();
-        // remove the extension
-        int pos = name.lastIndexOf('.');
-        if (pos != -1) {
-            name = name.substring(0, pos);
+    private boolean isInDexedLibs(File input) {
+        return new File(mDexedLibs).getAbsoluteFile().equals(
+            input.getAbsoluteFile().getParentFile());
+    }
+
+    /*
+     * Returns the job that pre-dexes the given library into the dex cache. If the library is
+     * already being pre-dexed, for this build or another, that job is returned instead of
+     * starting a new one.
+     */
+    private Future<Boolean> preDexLibrary(final File input, final File dexedLib) {
+        final String key = dexedLib.getAbsolutePath();
+        Future<Boolean> job = inFlight.get(key);
+        if (job != null) {
+            return job;
         }
+        final FutureTask<Boolean> newJob = new FutureTask<Boolean>(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws IOException {
+                if (dexedLib.isFile()) {
+                    // Another build published it after we checked.
+                    return true;
+                }
+                System.out.println(
+                    String.format("Pre-Dexing %1$s -> %2$s",
+                      input.getAbsolutePath(), dexedLib.getName()));
+                // dx decides from the extension whether to write a jar, so the temp file must
+                // end in .jar too.
+                File tempLib = File.createTempFile(dexedLib.getName() + ".", ".tmp.jar",
+                    dexedLib.getParentFile());
+                if (!runDx(input, tempLib.getAbsolutePath(), false /*showInput*/)) {
+                    tempLib.delete();
+                    return false;
+                }
+                // Moves the pre-dexed library into place, so that other builds never see a partly
+                // written one.
+                return CacheUtil.publish(tempLib, dexedLib);
+            }
+        });
+        job = inFlight.putIfAbsent(key, newJob);
+        if (job != null) {
+            return job;
+        }
+        // The job is shared by every build that needs the library, so it runs outside of any
+        // build. Cancelling the build that started it must not kill the dx process that the
+        // others are waiting for.
+        getPreDexExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                BuildTrace.Span previous = BuildTrace.setCurrentSpan(null);
+                try {
+                    newJob.run();
+                } finally {
+                    BuildTrace.setCurrentSpan(previous);
+                    inFlight.remove(key, newJob);
+                }
+            }
+        });
+        return newJob;
+    }
 
+    private String getDexFileName(File inputFile) {
         String hashed = getHashFor(inputFile);
 
         return "dex-cached-" + hashed + ".jar";
     }
 
     private String getHashFor(File inputFile) {
-        String retval = alreadyChecked.get(inputFile.getAbsolutePath());
+        String key = inputFile.getAbsolutePath() + File.pathSeparator + inputFile.length()
+            + File.pathSeparator + inputFile.lastModified();
+        String retval = alreadyChecked.get(key);
         if (retval != null) return retval;
-        // add a hash of the original file path
         try {
-            HashFunction hashFunction = Hashing.md5();
-            HashCode hashCode = hashFunction.hashBytes(Files.readAllBytes(inputFile.toPath()));
-            retval = hashCode.toString();
-            alreadyChecked.put(inputFile.getAbsolutePath(), retval);
+            // Hash the file as it's read, rather than reading all of it into memory first.
+            retval = com.google.common.io.Files.hash(inputFile, Hashing.md5()).toString();
+            alreadyChecked.put(key, retval);
             return retval;
         } catch (IOException e) {
             e.printStackTrace();
@@ -171,7 +279,13 @@ public class DexExecTask  {
 
     public boolean execute(List<File> paths) {
         // pre dex libraries if needed
-        boolean successPredex = preDexLibraries(paths);
+        boolean successPredex;
+        BuildTrace.Span span = BuildTrace.startSpanOfCurrentBuild("pre-dex");
+        try {
+            successPredex = preDexLibraries(paths);
+        } finally {
+            span.end();
+        }
         if (!successPredex) return false;
 
         System.out.println(String.format(
@@ -188,11 +302,6 @@ public class DexExecTask  {
         int mx = mChildProcessRamMb - 200;
 
         List<String> commandLineList = new ArrayList<String>();
-        commandLineList.add(System.getProperty("java.home") + "/bin/java");
-        commandLineList.add("-mx" + mx + "M");
-        commandLineList.add("-jar");
-        commandLineList.add(mExecutable);
-
         commandLineList.add("--dex");
         commandLineList.add("--positions=lines");
 
@@ -214,6 +323,22 @@ public class DexExecTask  {
             commandLineList.add(absPath);
         }
 
+        CompilerWorkerPool workerPool = CompilerWorkerPool.getInstance();
+        if (workerPool != null) {
+            CompilerWorkerPool.JobResult result =
+                workerPool.run(mExecutable, mx, DX_MAIN_CLASS, commandLineList);
+            if (result != null) {
+                System.out.print(result.getOutput());
+                System.err.print(result.getError());
+                return result.getExitCode() == 0;
+            }
+        }
+
+        commandLineList.add(0, System.getProperty("java.home") + "/bin/java");
+        commandLineList.add(1, "-mx" + mx + "M");
+        commandLineList.add(2, "-jar");
+        commandLineList.add(3, mExecutable);
+
         // Convert command line to an array
         String[] dxCommandLine = new String[commandLineList.size()];
         commandLineList.toArray(dxCommandLine);
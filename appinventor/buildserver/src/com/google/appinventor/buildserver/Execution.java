@@ -108,10 +108,14 @@ public final class Execution {
     	}
     }
     try {
-      Process process = Runtime.getRuntime().exec(command, null, workingDir);
-      new RedirectStreamHandler(new PrintWriter(out, true), process.getInputStream());
-      new RedirectStreamHandler(new PrintWriter(err, true), process.getErrorStream());
-      return process.waitFor() == 0;
+      Process process = startProcess(workingDir, command);
+      try {
+        new RedirectStreamHandler(new PrintWriter(out, true), process.getInputStream());
+        new RedirectStreamHandler(new PrintWriter(err, true), process.getErrorStream());
+        return process.waitFor() == 0;
+      } finally {
+        finishProcess(process);
+      }
     } catch (Exception e) {
       LOG.log(Level.WARNING, "____Execution failure: ", e);
       return false;
@@ -131,7 +135,7 @@ public final class Execution {
   public static int execute(File workingDir, String[] command, StringBuffer out,
       StringBuffer err) throws IOException {
     LOG.log(Level.INFO, "____Executing " + joiner.join(command));
-    Process process = Runtime.getRuntime().exec(command, null, workingDir);
+    Process process = startProcess(workingDir, command);
     Thread outThread = new RedirectStreamToStringBuffer(out, process.getInputStream());
     Thread errThread = new RedirectStreamToStringBuffer(err, process.getErrorStream());
     try {
@@ -140,7 +144,42 @@ public final class Execution {
       errThread.join();
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
+    } finally {
+      finishProcess(process);
     }
     return process.exitValue();
   }
+
+  /*
+   * Starts a child process for the build that the current thread is working on, so that it is
+   * killed if the build is cancelled. No process is started for a cancelled build.
+   */
+  private static Process startProcess(File workingDir, String[] command) throws IOException {
+    BuildContext context = BuildContext.getCurrentBuild();
+    if (context != null && context.isCancelled()) {
+      throw new IOException("Build " + context.getBuildId() + " was cancelled");
+    }
+    Process process = Runtime.getRuntime().exec(command, null, workingDir);
+    MemoryTelemetry.getInstance().registerChildProcess(process);
+    if (context != null) {
+      context.addChildProcess(process);
+    }
+    return process;
+  }
+
+  /*
+   * Forgets a child process that has exited, and charges the resources it used to the current
+   * stage of the build.
+   */
+  private static void finishProcess(Process process) {
+    BuildContext context = BuildContext.getCurrentBuild();
+    if (context != null) {
+      context.removeChildProcess(process);
+    }
+    MemoryTelemetry.ChildProcessUsage usage =
+        MemoryTelemetry.getInstance().unregisterChildProcess(process);
+    if (usage != null) {
+      BuildTrace.recordChildUsage(usage.getCpuTimeMs(), usage.getPeakRssBytes());
+    }
+  }
 }
@@ -0,0 +1,92 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2014 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+/**
+ * A histogram of durations, with fixed buckets suited to the time builds and their stages take.
+ *
+ * <p>This class is thread-safe.</p>
+ */
+final class Histogram {
+  // The upper bound (inclusive) of each bucket but the last, in milliseconds.
+  private static final long[] BUCKET_LIMITS_MS = {
+    100, 1000, 5000, 15000, 30000, 60000, 120000, 300000, 600000
+  };
+
+  private final long[] bucketCounts = new long[BUCKET_LIMITS_MS.length + 1];
+  private long count;
+  private long totalMs;
+  private long maxMs;
+
+  /**
+   * Records one duration.
+   *
+   * @param durationMs the duration, in milliseconds
+   */
+  synchronized void record(long durationMs) {
+    int bucket = 0;
+    while (bucket < BUCKET_LIMITS_MS.length && durationMs > BUCKET_LIMITS_MS[bucket]) {
+      bucket++;
+    }
+    bucketCounts[bucket]++;
+    count++;
+    totalMs += durationMs;
+    maxMs = Math.max(maxMs, durationMs);
+  }
+
+  synchronized long getCount() {
+    return count;
+  }
+
+  synchronized long getMeanMs() {
+    return (count == 0) ? 0 : totalMs / count;
+  }
+
+  synchronized long getMaxMs() {
+    return maxMs;
+  }
+
+  /**
+   * Returns an upper bound on the duration that the given fraction of the recorded durations do
+   * not exceed: the upper bound of the bucket it falls in, or the maximum recorded duration if
+   * that is smaller.
+   */
+  synchronized long getPercentileMs(double fraction) {
+    long target = (long) Math.ceil(count * fraction);
+    long seen = 0;
+    for (int bucket = 0; bucket < BUCKET_LIMITS_MS.length; bucket++) {
+      seen += bucketCounts[bucket];
+      if (seen >= target) {
+        return Math.min(BUCKET_LIMITS_MS[bucket], maxMs);
+      }
+    }
+    return maxMs;
+  }
+
+  /**
+   * Returns the bucket counts, for example "&lt;=100ms:0 &lt;=1s:4 ... &gt;10m:0".
+   */
+  @Override
+  public synchronized String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (int bucket = 0; bucket < BUCKET_LIMITS_MS.length; bucket++) {
+      sb.append("<=").append(formatMs(BUCKET_LIMITS_MS[bucket])).append(':')
+          .append(bucketCounts[bucket]).append(' ');
+    }
+    sb.append('>').append(formatMs(BUCKET_LIMITS_MS[BUCKET_LIMITS_MS.length - 1])).append(':')
+        .append(bucketCounts[BUCKET_LIMITS_MS.length]);
+    return sb.toString();
+  }
+
+  private static String formatMs(long ms) {
+    if (ms < 1000) {
+      return ms + "ms";
+    } else if (ms < 60000) {
+      return (ms / 1000) + "s";
+    } else {
+      return (ms / 60000) + "m";
+    }
+  }
+}
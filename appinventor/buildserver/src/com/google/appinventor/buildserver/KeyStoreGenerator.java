@@ -0,0 +1,200 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2014 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x500.X500NameBuilder;
+import org.bouncycastle.asn1.x500.style.BCStyle;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the android.keystore files used to sign the APKs of projects that don't have one yet,
+ * without starting keytool.
+ *
+ * <p>The keystores are the same as the ones made by
+ * {@code keytool -genkey -keyalg RSA -alias AndroidKey -validity 10000}: a JKS keystore holding
+ * an RSA key and a self-signed certificate, with "android" as the store and key password.</p>
+ *
+ * <p>Generating an RSA key pair can take a noticeable fraction of a second, so a background
+ * thread can keep a number of key pairs ready (see {@link #configure}). When none are ready, the
+ * key pair is generated by the calling thread.</p>
+ */
+final class KeyStoreGenerator {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(KeyStoreGenerator.class.getName());
+
+  static final String KEY_ALIAS = "AndroidKey";
+  static final String KEYSTORE_TYPE = "JKS";
+  static final char[] PASSWORD = "android".toCharArray();
+
+  private static final String KEY_ALGORITHM = "RSA";
+  private static final int KEY_SIZE = 2048;
+  private static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+
+  // Note: must expire after October 22, 2033, to be in the Android marketplace. Android docs
+  // recommend 10000 as the expiration # of days.
+  private static final long VALIDITY_DAYS = 10000;
+
+  private static final SecureRandom random = new SecureRandom();
+
+  // The pool of key pairs kept ready by the background thread, or null if there isn't one.
+  private static volatile BlockingQueue<KeyPair> pool;
+  private static Thread poolThread;
+
+  private static final AtomicLong pooledKeyPairsUsed = new AtomicLong(0);
+  private static final AtomicLong keyPairsGeneratedOnDemand = new AtomicLong(0);
+
+  private KeyStoreGenerator() {
+  }
+
+  /**
+   * Starts or stops keeping key pairs ready.
+   *
+   * @param poolSize the number of key pairs to keep ready, 0 disables the pool
+   */
+  static synchronized void configure(int poolSize) {
+    if (poolThread != null) {
+      poolThread.interrupt();
+      poolThread = null;
+    }
+    if (poolSize <= 0) {
+      pool = null;
+      return;
+    }
+    final BlockingQueue<KeyPair> newPool = new ArrayBlockingQueue<KeyPair>(poolSize);
+    poolThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (!Thread.currentThread().isInterrupted()) {
+            // put blocks until a key pair has been taken from the full pool.
+            newPool.put(generateKeyPair());
+          }
+        } catch (InterruptedException e) {
+          // The pool has been replaced or disabled.
+        } catch (GeneralSecurityException e) {
+          LOG.log(Level.SEVERE, "Unable to generate key pairs for the pool", e);
+        }
+      }
+    }, "keystore-key-pool");
+    poolThread.setDaemon(true);
+    // Generating keys shouldn't slow down builds that are running.
+    poolThread.setPriority(Thread.MIN_PRIORITY);
+    pool = newPool;
+    poolThread.start();
+  }
+
+  /**
+   * Writes a new keystore for the given user to the given file.
+   *
+   * @param userName  the user name used in the CN entry of the certificate
+   * @param keyStoreFile  the file to write
+   * @throws IOException if the keystore can't be created or written
+   */
+  static void createKeyStore(String userName, File keyStoreFile) throws IOException {
+    try {
+      KeyPair keyPair = takeKeyPair();
+      X509Certificate certificate = createCertificate(userName, keyPair);
+      KeyStore keyStore = KeyStore.getInstance(KEYSTORE_TYPE);
+      keyStore.load(null, null);
+      keyStore.setKeyEntry(KEY_ALIAS, keyPair.getPrivate(), PASSWORD,
+          new Certificate[] { certificate });
+      OutputStream out = new BufferedOutputStream(new FileOutputStream(keyStoreFile));
+      try {
+        keyStore.store(out, PASSWORD);
+      } finally {
+        out.close();
+      }
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Unable to create keystore " + keyStoreFile, e);
+    } catch (OperatorCreationException e) {
+      throw new IOException("Unable to create keystore " + keyStoreFile, e);
+    }
+  }
+
+  /*
+   * Returns a key pair from the pool if one is ready, otherwise generates one.
+   */
+  private static KeyPair takeKeyPair() throws GeneralSecurityException {
+    BlockingQueue<KeyPair> currentPool = pool;
+    if (currentPool != null) {
+      KeyPair keyPair = currentPool.poll();
+      if (keyPair != null) {
+        pooledKeyPairsUsed.incrementAndGet();
+        return keyPair;
+      }
+    }
+    keyPairsGeneratedOnDemand.incrementAndGet();
+    return generateKeyPair();
+  }
+
+  private static KeyPair generateKeyPair() throws GeneralSecurityException {
+    KeyPairGenerator generator = KeyPairGenerator.getInstance(KEY_ALGORITHM);
+    generator.initialize(KEY_SIZE, random);
+    return generator.generateKeyPair();
+  }
+
+  private static X509Certificate createCertificate(String userName, KeyPair keyPair)
+      throws GeneralSecurityException, OperatorCreationException {
+    // US may not be the right country to assign it to.
+    X500Name name = new X500NameBuilder(BCStyle.INSTANCE)
+        .addRDN(BCStyle.CN, userName)
+        .addRDN(BCStyle.O, "AppInventor for Android")
+        .addRDN(BCStyle.C, "US")
+        .build();
+    long now = System.currentTimeMillis();
+    Date notBefore = new Date(now);
+    Date notAfter = new Date(now + TimeUnit.DAYS.toMillis(VALIDITY_DAYS));
+    BigInteger serialNumber = BigInteger.valueOf(random.nextInt() & Integer.MAX_VALUE);
+    X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(
+        name, serialNumber, notBefore, notAfter, name, keyPair.getPublic());
+    ContentSigner signer = new JcaContentSignerBuilder(SIGNATURE_ALGORITHM)
+        .build(keyPair.getPrivate());
+    return new JcaX509CertificateConverter().getCertificate(builder.build(signer));
+  }
+
+  /**
+   * Returns the number of key pairs ready in the pool.
+   */
+  static int getPooledKeyPairCount() {
+    BlockingQueue<KeyPair> currentPool = pool;
+    return (currentPool == null) ? 0 : currentPool.size();
+  }
+
+  static long getPooledKeyPairsUsed() {
+    return pooledKeyPairsUsed.get();
+  }
+
+  static long getKeyPairsGeneratedOnDemand() {
+    return keyPairsGeneratedOnDemand.get();
+  }
+}
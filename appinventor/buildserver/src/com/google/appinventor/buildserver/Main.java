@@ -79,12 +79,13 @@ public final class Main {
       LOG.severe("Problem opening inout zip file: " + commandLineOptions.inputZipFile.getName());
       System.exit(1);
     }
-    Result result = projectBuilder.build(commandLineOptions.userName,
-                                         zip,
-                                         commandLineOptions.outputDir,
-                                         commandLineOptions.isForCompanion,
-                                         commandLineOptions.childProcessRamMb,
-                                         commandLineOptions.dexCacheDir);
+    BuildContext context = new BuildContext(commandLineOptions.userName,
+                                            commandLineOptions.isForCompanion,
+                                            commandLineOptions.childProcessRamMb,
+                                            commandLineOptions.dexCacheDir,
+                                            null);
+    context.setOutputDir(commandLineOptions.outputDir);
+    Result result = projectBuilder.build(zip, context);
     System.exit(result.getResult());
   }
 
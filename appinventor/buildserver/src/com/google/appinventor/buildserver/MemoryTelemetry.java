@@ -0,0 +1,362 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2014 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Field;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Low-overhead memory statistics for the build server.
+ *
+ * <p>The heap and non-heap usage of the build server and the resident set size of its child
+ * processes (Kawa, DX, aapt and so on) are sampled periodically by a background thread. The bytes
+ * allocated by each build's thread are measured with the JVM's per-thread allocation counter.
+ * The CPU time and peak memory of each child process are sampled too, so that they can be charged
+ * to the stage of the build that started it (see {@link BuildTrace}). Nothing here ever triggers
+ * a garbage collection.</p>
+ */
+final class MemoryTelemetry {
+
+  // Logging support
+  private static final Logger LOG = Logger.getLogger(MemoryTelemetry.class.getName());
+
+  private static final MemoryTelemetry instance = new MemoryTelemetry();
+
+  // How often the CPU time and peak memory of each child process is sampled, for build traces.
+  private static final long CHILD_PROCESS_SAMPLE_INTERVAL_MS = 100;
+
+  // The length of a clock tick in /proc/<pid>/stat, which is 1/100 s on every Linux platform.
+  private static final long MS_PER_CLOCK_TICK = 10;
+
+  /**
+   * The CPU time and peak resident set size of a child process, as of the last time they were
+   * sampled. Either is -1 if it couldn't be sampled, for example because the process was too
+   * short-lived or this isn't Linux.
+   */
+  static final class ChildProcessUsage {
+    private final long pid;
+    private volatile long cpuTimeMs = -1;
+    private volatile long peakRssBytes = -1;
+    private volatile ScheduledFuture<?> sampling;
+
+    private ChildProcessUsage(long pid) {
+      this.pid = pid;
+    }
+
+    private void sample() {
+      long cpu = getProcessCpuTimeMs(pid);
+      if (cpu >= 0) {
+        cpuTimeMs = cpu;
+      }
+      long peakRss = getStatusValue(pid, "VmHWM:");
+      if (peakRss >= 0) {
+        peakRssBytes = peakRss;
+      }
+    }
+
+    long getCpuTimeMs() {
+      return cpuTimeMs;
+    }
+
+    long getPeakRssBytes() {
+      return peakRssBytes;
+    }
+  }
+
+  private final ConcurrentMap<Process, ChildProcessUsage> childProcesses =
+      new ConcurrentHashMap<Process, ChildProcessUsage>();
+
+  private ScheduledExecutorService sampler;
+  private ScheduledExecutorService childProcessSampler;
+
+  // The most recent sample.
+  private volatile long heapUsed;
+  private volatile long heapCommitted;
+  private volatile long nonHeapUsed;
+  private volatile long childProcessRss;
+  private volatile int childProcessCount;
+
+  private final AtomicLong samples = new AtomicLong(0);
+  private volatile long maxHeapUsed;
+  private volatile long maxChildProcessRss;
+
+  private final AtomicLong builds = new AtomicLong(0);
+  private final AtomicLong totalBuildAllocatedBytes = new AtomicLong(0);
+  private volatile long maxBuildAllocatedBytes;
+
+  private MemoryTelemetry() {
+  }
+
+  static MemoryTelemetry getInstance() {
+    return instance;
+  }
+
+  /**
+   * Starts sampling memory usage every {@code intervalMs} milliseconds.
+   */
+  synchronized void start(long intervalMs) {
+    if (sampler != null) {
+      return;
+    }
+    sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "memory-telemetry");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    sampler.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          sample();
+        } catch (RuntimeException e) {
+          // Don't let one bad sample stop the sampling.
+          LOG.log(Level.WARNING, "Unable to sample memory usage", e);
+        }
+      }
+    }, 0, intervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Takes a sample now. This is cheap: it reads counters the JVM and the kernel already keep.
+   */
+  void sample() {
+    MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+    MemoryUsage heap = memoryBean.getHeapMemoryUsage();
+    heapUsed = heap.getUsed();
+    heapCommitted = heap.getCommitted();
+    nonHeapUsed = memoryBean.getNonHeapMemoryUsage().getUsed();
+    maxHeapUsed = Math.max(maxHeapUsed, heapUsed);
+
+    long rss = 0;
+    int count = 0;
+    for (Process process : childProcesses.keySet()) {
+      long processRss = getResidentSetSize(process);
+      if (processRss >= 0) {
+        rss += processRss;
+        count++;
+      }
+    }
+    childProcessRss = rss;
+    childProcessCount = count;
+    maxChildProcessRss = Math.max(maxChildProcessRss, rss);
+    samples.incrementAndGet();
+  }
+
+  /**
+   * Registers a child process whose memory use should be included in the samples until
+   * {@link #unregisterChildProcess} is called. Until then, its CPU time and peak memory are also
+   * sampled every {@value #CHILD_PROCESS_SAMPLE_INTERVAL_MS} ms.
+   */
+  void registerChildProcess(Process process) {
+    final ChildProcessUsage usage = new ChildProcessUsage(getPid(process));
+    childProcesses.put(process, usage);
+    if (usage.pid >= 0) {
+      usage.sampling = getChildProcessSampler().scheduleAtFixedRate(new Runnable() {
+        @Override
+        public void run() {
+          usage.sample();
+        }
+      }, 0, CHILD_PROCESS_SAMPLE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Unregisters a child process.
+   *
+   * @return  the CPU time and peak memory of the process, as last sampled, or {@code null} if it
+   *     wasn't registered
+   */
+  ChildProcessUsage unregisterChildProcess(Process process) {
+    ChildProcessUsage usage = childProcesses.remove(process);
+    if (usage != null && usage.sampling != null) {
+      usage.sampling.cancel(false);
+      // In case the process is still around, for example because it was destroyed.
+      usage.sample();
+    }
+    return usage;
+  }
+
+  private synchronized ScheduledExecutorService getChildProcessSampler() {
+    if (childProcessSampler == null) {
+      childProcessSampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "child-process-telemetry");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return childProcessSampler;
+  }
+
+  /**
+   * Returns the number of bytes allocated so far by the current thread, or -1 if the JVM doesn't
+   * keep track of that.
+   */
+  static long getCurrentThreadAllocatedBytes() {
+    ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    if (threadBean instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean allocationBean =
+          (com.sun.management.ThreadMXBean) threadBean;
+      if (allocationBean.isThreadAllocatedMemorySupported() &&
+          allocationBean.isThreadAllocatedMemoryEnabled()) {
+        return allocationBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Records the number of bytes a build allocated, as measured with
+   * {@link #getCurrentThreadAllocatedBytes} on the thread that ran the build.
+   */
+  void recordBuildAllocation(long allocatedBytes) {
+    builds.incrementAndGet();
+    totalBuildAllocatedBytes.addAndGet(allocatedBytes);
+    synchronized (this) {
+      maxBuildAllocatedBytes = Math.max(maxBuildAllocatedBytes, allocatedBytes);
+    }
+  }
+
+  /*
+   * Returns the resident set size of the given process in bytes, or -1 if it can't be determined
+   * (for example, because the process has exited or this isn't Linux).
+   */
+  private static long getResidentSetSize(Process process) {
+    long pid = getPid(process);
+    if (pid < 0) {
+      return -1;
+    }
+    return getStatusValue(pid, "VmRSS:");
+  }
+
+  /*
+   * Returns a memory size from /proc/<pid>/status in bytes, such as the current (VmRSS) or peak
+   * (VmHWM) resident set size, or -1 if it can't be determined.
+   */
+  private static long getStatusValue(long pid, String field) {
+    File status = new File("/proc/" + pid + "/status");
+    try {
+      for (String line : Files.readLines(status, Charsets.US_ASCII)) {
+        if (line.startsWith(field)) {
+          // For example, "VmRSS:	  123456 kB".
+          String kb = line.substring(field.length()).trim().split("\\s+")[0];
+          return Long.parseLong(kb) * 1024;
+        }
+      }
+    } catch (IOException e) {
+      // The process has exited.
+    } catch (NumberFormatException e) {
+      // Unexpected format.
+    }
+    return -1;
+  }
+
+  /*
+   * Returns the user and system CPU time used by a process so far, from /proc/<pid>/stat, or -1
+   * if it can't be determined.
+   */
+  private static long getProcessCpuTimeMs(long pid) {
+    File stat = new File("/proc/" + pid + "/stat");
+    try {
+      String line = Files.toString(stat, Charsets.US_ASCII);
+      // The fields after the command name, which is in parentheses and may contain spaces, start
+      // with the state (field 3). utime and stime are fields 14 and 15.
+      String[] fields = line.substring(line.lastIndexOf(')') + 2).split(" ");
+      return (Long.parseLong(fields[11]) + Long.parseLong(fields[12])) * MS_PER_CLOCK_TICK;
+    } catch (IOException e) {
+      // The process has exited.
+    } catch (RuntimeException e) {
+      // Unexpected format.
+    }
+    return -1;
+  }
+
+  /*
+   * Returns the process id of the given process, or -1 if it isn't available. Before Java 9,
+   * Process has no public way to get the pid, but on Unix systems the implementation keeps it in
+   * a field.
+   */
+  private static long getPid(Process process) {
+    try {
+      return ((Number) Process.class.getMethod("pid").invoke(process)).longValue();
+    } catch (Exception e) {
+      // Not Java 9 or later.
+    }
+    try {
+      Field pidField = process.getClass().getDeclaredField("pid");
+      pidField.setAccessible(true);
+      return pidField.getInt(process);
+    } catch (Exception e) {
+      return -1;
+    }
+  }
+
+  long getHeapUsed() {
+    return heapUsed;
+  }
+
+  long getHeapCommitted() {
+    return heapCommitted;
+  }
+
+  long getNonHeapUsed() {
+    return nonHeapUsed;
+  }
+
+  long getMaxHeapUsed() {
+    return maxHeapUsed;
+  }
+
+  long getChildProcessRss() {
+    return childProcessRss;
+  }
+
+  int getChildProcessCount() {
+    return childProcessCount;
+  }
+
+  long getMaxChildProcessRss() {
+    return maxChildProcessRss;
+  }
+
+  long getSampleCount() {
+    return samples.get();
+  }
+
+  long getBuildCount() {
+    return builds.get();
+  }
+
+  long getTotalBuildAllocatedBytes() {
+    return totalBuildAllocatedBytes.get();
+  }
+
+  long getMaxBuildAllocatedBytes() {
+    return maxBuildAllocatedBytes;
+  }
+}
@@ -9,7 +9,6 @@ package com.google.appinventor.buildserver;
 import com.google.appinventor.common.utils.StringUtils;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
-import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.Lists;
@@ -26,9 +25,14 @@ import java.io.PrintStream;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -44,10 +48,6 @@ import org.apache.commons.io.FileUtils;
  */
 public final class ProjectBuilder {
 
-  private File outputApk;
-  private File outputKeystore;
-  private boolean saveKeystore;
-
   // Logging support
   private static final Logger LOG = Logger.getLogger(ProjectBuilder.class.getName());
 
@@ -72,13 +72,12 @@ public final class ProjectBuilder {
   private static final String ALL_COMPONENT_TYPES =
       Compiler.RUNTIME_FILES_DIR + "simple_components.txt";
 
-  public File getOutputApk() {
-    return outputApk;
-  }
+  // The types of all the components. Don't use this field directly. Please call
+  // getAllComponentTypes().
+  private static Set<String> allComponentTypes;
 
-  public File getOutputKeystore() {
-    return outputKeystore;
-  }
+  // Maximum ram used by the YAIL generator, in MB.
+  private static final int YAIL_GENERATOR_RAM_MB = 1024;
 
   /**
    * Creates a new directory beneath the system's temporary directory (as
@@ -112,21 +111,32 @@ public final class ProjectBuilder {
         + baseNamePrefix + "0 to " + baseNamePrefix + (TEMP_DIR_ATTEMPTS - 1) + ')');
   }
 
-  Result build(String userName, ZipFile inputZip, File outputDir, boolean isForCompanion,
-               int childProcessRam, String dexCachePath) {
+  /**
+   * Builds the project in the given zip file. The built APK, and the keystore if one had to be
+   * generated, are copied to the context's output directory and recorded in the context.
+   *
+   * @param inputZip  the project source zip
+   * @param context  the build
+   * @return  the result of the build
+   */
+  Result build(ZipFile inputZip, BuildContext context) {
     try {
       // Download project files into a temporary directory
       File projectRoot = createNewTempDir();
       LOG.info("temporary project root: " + projectRoot.getAbsolutePath());
       try {
         List<String> sourceFiles;
+        BuildTrace.Span span = context.startStage("extract");
         try {
           sourceFiles = extractProjectFiles(inputZip, projectRoot);
         } catch (IOException e) {
           LOG.severe("unexpected problem extracting project file from zip");
           return Result.createFailingResult("", "Problems processing zip file.");
+        } finally {
+          span.end();
         }
 
+        span = context.startStage("yail");
         try {
           genYailFilesIfNecessary(sourceFiles);
         } catch (YailGenerationException e) {
@@ -136,15 +146,27 @@ public final class ProjectBuilder {
           LOG.severe("Unknown exception signalled by genYailFilesIf Necessary");
           e.printStackTrace();
           return Result.createFailingResult("", "Unexpected problems generating YAIL.");
+        } finally {
+          span.end();
         }
 
         File keyStoreFile = new File(projectRoot, KEYSTORE_FILE_NAME);
         String keyStorePath = keyStoreFile.getPath();
+        boolean saveKeystore = false;
         if (!keyStoreFile.exists()) {
-          keyStorePath = createKeyStore(userName, projectRoot, KEYSTORE_FILE_NAME);
+          span = context.startStage("keystore");
+          try {
+            keyStorePath = createKeyStore(context.getUserName(), projectRoot, KEYSTORE_FILE_NAME);
+          } finally {
+            span.end();
+          }
           saveKeystore = true;
         }
 
+        if (context.isCancelled()) {
+          return Result.createFailingResult("", "The build was cancelled.");
+        }
+
         // Create project object from project properties file.
         Project project = getProjectProperties(projectRoot);
 
@@ -158,12 +180,12 @@ public final class ProjectBuilder {
         PrintStream userErrors = new PrintStream(errors);
 
         Set<String> componentTypes =
-          isForCompanion ? getAllComponentTypes() : getComponentTypes(sourceFiles);
+          context.isForCompanion() ? getAllComponentTypes() : getComponentTypes(sourceFiles);
 
         // Invoke YoungAndroid compiler
         boolean success =
-            Compiler.compile(project, componentTypes, console, console, userErrors, isForCompanion,
-                             keyStorePath, childProcessRam, dexCachePath);
+            Compiler.compile(project, componentTypes, console, console, userErrors, keyStorePath,
+                             context);
         console.close();
         userErrors.close();
 
@@ -179,11 +201,13 @@ public final class ProjectBuilder {
           if (!outputFile.exists()) {
             LOG.warning("Young Android build - " + outputFile + " does not exist");
           } else {
-            outputApk = new File(outputDir, outputFile.getName());
+            File outputApk = new File(context.getOutputDir(), outputFile.getName());
             Files.copy(outputFile, outputApk);
+            context.setOutputApk(outputApk);
             if (saveKeystore) {
-              outputKeystore = new File(outputDir, KEYSTORE_FILE_NAME);
+              File outputKeystore = new File(context.getOutputDir(), KEYSTORE_FILE_NAME);
               Files.copy(keyStoreFile, outputKeystore);
+              context.setOutputKeystore(outputKeystore);
             }
           }
         }
@@ -227,14 +251,21 @@ public final class ProjectBuilder {
     }
   }
 
-  private static Set<String> getAllComponentTypes() throws IOException {
-    Set<String> compSet = Sets.newHashSet();
-    String[] components = Resources.toString(
-        ProjectBuilder.class.getResource(ALL_COMPONENT_TYPES), Charsets.UTF_8).split("\n");
-    for (String component : components) {
-      compSet.add(component);
+  /*
+   * Returns the types of all the components, which the companion is built with. They are read
+   * once and shared by every companion build.
+   */
+  private static synchronized Set<String> getAllComponentTypes() throws IOException {
+    if (allComponentTypes == null) {
+      Set<String> compSet = Sets.newHashSet();
+      String[] components = Resources.toString(
+          ProjectBuilder.class.getResource(ALL_COMPONENT_TYPES), Charsets.UTF_8).split("\n");
+      for (String component : components) {
+        compSet.add(component);
+      }
+      allComponentTypes = Collections.unmodifiableSet(compSet);
     }
-    return compSet;
+    return allComponentTypes;
   }
 
   private ArrayList<String> extractProjectFiles(ZipFile inputZip, File projectRoot)
@@ -275,29 +306,14 @@ public final class ProjectBuilder {
   static String createKeyStore(String userName, File projectRoot, String keystoreFileName)
       throws IOException {
     File keyStoreFile = new File(projectRoot.getPath(), keystoreFileName);
-
-    /* Note: must expire after October 22, 2033, to be in the Android
-    * marketplace.  Android docs recommend "10000" as the expiration # of
-    * days.
-    *
-    * For DNAME, US may not the right country to assign it to.
-    */
-    String[] keytoolCommandline = {
-        System.getProperty("java.home") + "/bin/keytool",
-        "-genkey",
-        "-keystore", keyStoreFile.getAbsolutePath(),
-        "-alias", "AndroidKey",
-        "-keyalg", "RSA",
-        "-dname", "CN=" + quotifyUserName(userName) + ", O=AppInventor for Android, C=US",
-        "-validity", "10000",
-        "-storepass", "android",
-        "-keypass", "android"
-    };
-
-    if (Execution.execute(null, keytoolCommandline, System.out, System.err)) {
-      if (keyStoreFile.length() > 0) {
-        return keyStoreFile.getAbsolutePath();
-      }
+    try {
+      KeyStoreGenerator.createKeyStore(userName, keyStoreFile);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to create keystore for " + userName, e);
+      return null;
+    }
+    if (keyStoreFile.length() > 0) {
+      return keyStoreFile.getAbsolutePath();
     }
     return null;
   }
@@ -386,26 +402,6 @@ public final class ProjectBuilder {
     return messages;
   }
 
-  /*
-   * Adds quotes around the given userName and encodes embedded quotes as \".
-   */
-  private static String quotifyUserName(String userName) {
-    Preconditions.checkNotNull(userName);
-    int length = userName.length();
-    StringBuilder sb = new StringBuilder(length + 2);
-    sb.append('"');
-    for (int i = 0; i < length; i++) {
-      char ch = userName.charAt(i);
-      if (ch == '"') {
-        sb.append('\\').append(ch);
-      } else {
-        sb.append(ch);
-      }
-    }
-    sb.append('"');
-    return sb.toString();
-  }
-
   /*
    * Loads the project properties file of a Young Android project.
    */
@@ -418,18 +414,38 @@ public final class ProjectBuilder {
     String codeblocksSourcePath = rootName + CODEBLOCKS_SOURCE_EXTENSION;
     String yailPath = rootName + YAIL_EXTENSION;
 
-    String[] commandLine = {
-      System.getProperty("java.home") + "/bin/java",
-      "-mx1024M",
-      "-jar",
-      Compiler.getResource(Compiler.RUNTIME_FILES_DIR + "YailGenerator.jar"),
+    String yailGeneratorJar = Compiler.getResource(Compiler.RUNTIME_FILES_DIR + "YailGenerator.jar");
+    List<String> args = Lists.newArrayList(
       new File(formPropertiesPath).getAbsolutePath(),
       new File(codeblocksSourcePath).getAbsolutePath(),
-      yailPath
-    };
+      yailPath);
     StringBuffer out = new StringBuffer();
     StringBuffer err = new StringBuffer();
-    int exitValue = Execution.execute(null, commandLine, out, err);
+    int exitValue;
+
+    // Use a warm compiler worker if there is one, otherwise start a new JVM.
+    CompilerWorkerPool workerPool = CompilerWorkerPool.getInstance();
+    CompilerWorkerPool.JobResult result = null;
+    if (workerPool != null) {
+      String mainClass = getMainClass(yailGeneratorJar);
+      if (mainClass != null) {
+        result = workerPool.run(yailGeneratorJar, YAIL_GENERATOR_RAM_MB, mainClass, args);
+      }
+    }
+    if (result != null) {
+      out.append(result.getOutput());
+      err.append(result.getError());
+      exitValue = result.getExitCode();
+    } else {
+      List<String> commandLine = Lists.newArrayList(
+        System.getProperty("java.home") + "/bin/java",
+        "-mx" + YAIL_GENERATOR_RAM_MB + "M",
+        "-jar",
+        yailGeneratorJar);
+      commandLine.addAll(args);
+      exitValue = Execution.execute(null, commandLine.toArray(new String[commandLine.size()]),
+          out, err);
+    }
     if (exitValue == 0) {
       String generatedYailString = out.toString();
       File generatedYailFile = new File(yailPath);
@@ -453,6 +469,20 @@ public final class ProjectBuilder {
     }
   }
 
+  /*
+   * Returns the Main-Class named in the manifest of the given jar, or null if there isn't one.
+   */
+  private static String getMainClass(String jarPath) throws IOException {
+    JarFile jarFile = new JarFile(jarPath);
+    try {
+      Manifest manifest = jarFile.getManifest();
+      return (manifest == null) ? null
+          : manifest.getMainAttributes().getValue(Attributes.Name.MAIN_CLASS);
+    } finally {
+      jarFile.close();
+    }
+  }
+
   private static class YailGenerationException extends Exception {
     // The name of the form being built when an error occurred
     private final String formName;
@@ -469,8 +499,4 @@ public final class ProjectBuilder {
       return formName;
     }
   }
-
-  public int getProgress() {
-    return Compiler.getProgress();
-  }
 }
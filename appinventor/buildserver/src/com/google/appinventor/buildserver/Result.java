@@ -43,6 +43,8 @@ public class Result {
   private String error;
   // The name of the form being built when an error occurred
   private String formName;
+  // The JSON trace of the build's stages, or null if there is none
+  private String trace;
   
   // Logging support
   private static final Logger LOG = Logger.getLogger(Result.class.getName());
@@ -152,6 +154,20 @@ public class Result {
     return formName;
   }
 
+  /**
+   * Returns the JSON trace of the stages of the build, or {@code null} if there is none.
+   */
+  public String getTrace() {
+    return trace;
+  }
+
+  /**
+   * Sets the JSON trace of the stages of the build.
+   */
+  public void setTrace(String trace) {
+    this.trace = trace;
+  }
+
   /**
    * Indicates whether this succeeded
    *
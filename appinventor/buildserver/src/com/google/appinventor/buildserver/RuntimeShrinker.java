@@ -0,0 +1,300 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2014 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.appinventor.common.version.GitBuildId;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Removes the classes of unused components from the App Inventor runtime jar before it is dexed.
+ *
+ * <p>The classes directly in the runtime package (where the components are) are kept only if they
+ * can be reached from a root. The roots are the components the project uses, every class outside
+ * the runtime package, and every class named by the extra root files (the project's compiled
+ * form classes, the precompiled YAIL runtime and the AndroidManifest.xml). A class reaches every
+ * class whose name appears anywhere in its constant pool: class references, descriptors,
+ * signatures, annotations and string constants, so classes that are loaded by name are kept
+ * too.</p>
+ *
+ * <p>Shrunk jars are cached by the set of roots, which for most projects is decided by the
+ * components they use, so the shrinking (and, since the jar is then pre-dexed like any other
+ * library, the dexing) happens once per component set.</p>
+ */
+final class RuntimeShrinker {
+
+  private static final String RUNTIME_PACKAGE = "com/google/appinventor/components/runtime/";
+
+  // Sequences of characters that can make up a class name, in internal or binary form.
+  private static final Pattern NAME_PATTERN = Pattern.compile("[\\w$/.]+");
+
+  private static final int CLASS_FILE_MAGIC = 0xCAFEBABE;
+
+  private RuntimeShrinker() {
+  }
+
+  /**
+   * Returns a copy of {@code runtimeJar} without the classes of the components that aren't used,
+   * creating it in {@code cacheDir} if necessary.
+   *
+   * @param runtimeJar  the App Inventor runtime jar
+   * @param componentTypes  the types of the components used, such as "Button"
+   * @param extraRoots  jars and directories of classes, and text files, naming runtime classes
+   *     that must be kept
+   * @param cacheDir  the directory where shrunk jars are cached
+   * @return the shrunk jar
+   * @throws IOException if the jar can't be read or the shrunk jar can't be written
+   */
+  static File shrink(File runtimeJar, Set<String> componentTypes, List<File> extraRoots,
+      File cacheDir) throws IOException {
+    ZipFile zipFile = new ZipFile(runtimeJar);
+    try {
+      Map<String, byte[]> classes = readClasses(zipFile);
+      Set<String> roots = Sets.newTreeSet();
+      for (String componentType : componentTypes) {
+        roots.add(RUNTIME_PACKAGE + componentType);
+      }
+      roots.add(RUNTIME_PACKAGE + "Form");
+      for (File extraRoot : extraRoots) {
+        roots.addAll(getReferencedClasses(extraRoot, classes.keySet()));
+      }
+      roots.retainAll(classes.keySet());
+
+      // The roots found in the extra files depend on the project's forms, not only on its
+      // components, so they are all part of the key.
+      List<String> keyParts = Lists.newArrayList(GitBuildId.getVersion(),
+          CacheUtil.hashFiles(Lists.newArrayList(runtimeJar)));
+      keyParts.addAll(roots);
+      File shrunkJar = new File(cacheDir, "runtime-" + CacheUtil.hashStrings(keyParts) + ".jar");
+      if (shrunkJar.isFile()) {
+        return shrunkJar;
+      }
+
+      Set<String> kept = getReachableClasses(classes, roots);
+      File tempJar = CacheUtil.createTempFileFor(shrunkJar);
+      writeJar(zipFile, kept, tempJar);
+      if (!CacheUtil.publish(tempJar, shrunkJar)) {
+        throw new IOException("Unable to write " + shrunkJar);
+      }
+      return shrunkJar;
+    } finally {
+      zipFile.close();
+    }
+  }
+
+  /*
+   * Returns the internal names of the classes reachable from the roots. Classes outside the
+   * runtime package are always reachable.
+   */
+  static Set<String> getReachableClasses(Map<String, byte[]> classes, Collection<String> roots)
+      throws IOException {
+    Set<String> reachable = Sets.newHashSet();
+    Deque<String> toVisit = new ArrayDeque<String>(roots);
+    for (String className : classes.keySet()) {
+      if (!isInRuntimePackage(className)) {
+        toVisit.add(className);
+      }
+    }
+    while (!toVisit.isEmpty()) {
+      String className = toVisit.removeFirst();
+      if (reachable.add(className)) {
+        for (String referenced : getReferencedClasses(classes.get(className), classes.keySet())) {
+          if (!reachable.contains(referenced)) {
+            toVisit.add(referenced);
+          }
+        }
+      }
+    }
+    return reachable;
+  }
+
+  private static boolean isInRuntimePackage(String className) {
+    return className.startsWith(RUNTIME_PACKAGE)
+        && className.indexOf('/', RUNTIME_PACKAGE.length()) == -1;
+  }
+
+  /*
+   * Reads the classes in a jar, by internal name.
+   */
+  private static Map<String, byte[]> readClasses(ZipFile zipFile) throws IOException {
+    Map<String, byte[]> classes = new TreeMap<String, byte[]>();
+    Enumeration<? extends ZipEntry> entries = zipFile.entries();
+    while (entries.hasMoreElements()) {
+      ZipEntry entry = entries.nextElement();
+      String name = entry.getName();
+      if (name.endsWith(".class")) {
+        InputStream in = zipFile.getInputStream(entry);
+        try {
+          classes.put(name.substring(0, name.length() - ".class".length()),
+              ByteStreams.toByteArray(in));
+        } finally {
+          in.close();
+        }
+      }
+    }
+    return classes;
+  }
+
+  /*
+   * Returns the known classes named in a file, which may be a jar or a directory of classes, or a
+   * text file.
+   */
+  private static Set<String> getReferencedClasses(File file, Set<String> knownClasses)
+      throws IOException {
+    Set<String> referenced = Sets.newHashSet();
+    if (file.isDirectory()) {
+      for (File classFile : FileUtils.listFiles(file, new String[] { "class" }, true)) {
+        referenced.addAll(getReferencedClasses(Files.toByteArray(classFile), knownClasses));
+      }
+    } else if (file.getName().endsWith(".jar")) {
+      ZipFile zipFile = new ZipFile(file);
+      try {
+        for (byte[] classFile : readClasses(zipFile).values()) {
+          referenced.addAll(getReferencedClasses(classFile, knownClasses));
+        }
+      } finally {
+        zipFile.close();
+      }
+    } else {
+      addNames(Files.toString(file, Charsets.UTF_8), knownClasses, referenced);
+    }
+    return referenced;
+  }
+
+  /*
+   * Returns the known classes named anywhere in the constant pool of a class file.
+   */
+  static Set<String> getReferencedClasses(byte[] classFile, Set<String> knownClasses)
+      throws IOException {
+    Set<String> referenced = Sets.newHashSet();
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(classFile));
+    if (in.readInt() != CLASS_FILE_MAGIC) {
+      throw new IOException("Not a class file");
+    }
+    in.readUnsignedShort();  // minor version
+    in.readUnsignedShort();  // major version
+    int constantPoolCount = in.readUnsignedShort();
+    for (int i = 1; i < constantPoolCount; i++) {
+      int tag = in.readUnsignedByte();
+      switch (tag) {
+        case 1:  // Utf8. Class names, descriptors and strings are all stored in these.
+          addNames(in.readUTF(), knownClasses, referenced);
+          break;
+        case 7:  // Class
+        case 8:  // String
+        case 16:  // MethodType
+        case 19:  // Module
+        case 20:  // Package
+          in.skipBytes(2);
+          break;
+        case 15:  // MethodHandle
+          in.skipBytes(3);
+          break;
+        case 3:  // Integer
+        case 4:  // Float
+        case 9:  // Fieldref
+        case 10:  // Methodref
+        case 11:  // InterfaceMethodref
+        case 12:  // NameAndType
+        case 17:  // Dynamic
+        case 18:  // InvokeDynamic
+          in.skipBytes(4);
+          break;
+        case 5:  // Long
+        case 6:  // Double
+          in.skipBytes(8);
+          i++;  // These take two constant pool entries.
+          break;
+        default:
+          throw new IOException("Unknown constant pool tag " + tag);
+      }
+    }
+    return referenced;
+  }
+
+  /*
+   * Adds the known classes named in a string, whether as an internal name (a/b/C), a binary name
+   * (a.b.C) or a descriptor (La/b/C;).
+   */
+  private static void addNames(String string, Set<String> knownClasses, Set<String> names) {
+    Matcher matcher = NAME_PATTERN.matcher(string);
+    while (matcher.find()) {
+      String name = matcher.group().replace('.', '/');
+      if (knownClasses.contains(name)) {
+        names.add(name);
+      } else if (name.startsWith("L") && knownClasses.contains(name.substring(1))) {
+        names.add(name.substring(1));
+      }
+    }
+  }
+
+  /*
+   * Writes the kept classes and all other entries of the jar, in order and with a fixed
+   * timestamp, so the same input always produces the same jar.
+   */
+  private static void writeJar(ZipFile zipFile, Set<String> keptClasses, File jarFile)
+      throws IOException {
+    SortedMap<String, ZipEntry> entries = new TreeMap<String, ZipEntry>();
+    Enumeration<? extends ZipEntry> enumeration = zipFile.entries();
+    while (enumeration.hasMoreElements()) {
+      ZipEntry entry = enumeration.nextElement();
+      String name = entry.getName();
+      if (entry.isDirectory()) {
+        continue;
+      }
+      if (name.endsWith(".class")
+          && !keptClasses.contains(name.substring(0, name.length() - ".class".length()))) {
+        continue;
+      }
+      entries.put(name, entry);
+    }
+    JarOutputStream jarOutputStream =
+        new JarOutputStream(new BufferedOutputStream(new FileOutputStream(jarFile)));
+    try {
+      for (ZipEntry entry : entries.values()) {
+        JarEntry jarEntry = new JarEntry(entry.getName());
+        jarEntry.setTime(CacheUtil.FIXED_ENTRY_TIME);
+        jarOutputStream.putNextEntry(jarEntry);
+        InputStream in = zipFile.getInputStream(entry);
+        try {
+          ByteStreams.copy(in, jarOutputStream);
+        } finally {
+          in.close();
+        }
+        jarOutputStream.closeEntry();
+      }
+    } finally {
+      jarOutputStream.close();
+    }
+  }
+}
@@ -0,0 +1,99 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2014 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of builds that may be in a particular stage (e.g. Kawa or DX) at once.
+ *
+ * <p>Builds that arrive when the stage is full wait, in arrival order, until another build leaves
+ * the stage. The number of waiting and active builds is exposed so that the build server can
+ * report per-stage queue depth.</p>
+ */
+final class StageLimiter {
+  private final String name;
+  // The maximum number of builds in the stage. O means unlimited.
+  private final int maxActive;
+  private final Semaphore permits;
+
+  private final AtomicInteger waiting = new AtomicInteger(0);
+  private final AtomicInteger active = new AtomicInteger(0);
+  private final AtomicInteger maxWaitingOccurred = new AtomicInteger(0);
+  private final AtomicLong completed = new AtomicLong(0);
+
+  /**
+   * Creates a StageLimiter.
+   *
+   * @param name the name of the stage, used for reporting
+   * @param maxActive the maximum number of builds in the stage, 0 means unlimited
+   */
+  StageLimiter(String name, int maxActive) {
+    this.name = name;
+    this.maxActive = maxActive;
+    this.permits = (maxActive > 0) ? new Semaphore(maxActive, true) : null;
+  }
+
+  /**
+   * Waits until the calling build may enter the stage. Every successful call must be paired with
+   * a call to {@link #release()}.
+   */
+  void acquire() throws InterruptedException {
+    if (permits != null) {
+      int depth = waiting.incrementAndGet();
+      updateMaxWaiting(depth);
+      try {
+        permits.acquire();
+      } finally {
+        waiting.decrementAndGet();
+      }
+    }
+    active.incrementAndGet();
+  }
+
+  /**
+   * Marks the calling build as having left the stage.
+   */
+  void release() {
+    active.decrementAndGet();
+    completed.incrementAndGet();
+    if (permits != null) {
+      permits.release();
+    }
+  }
+
+  private void updateMaxWaiting(int depth) {
+    int max;
+    do {
+      max = maxWaitingOccurred.get();
+    } while (depth > max && !maxWaitingOccurred.compareAndSet(max, depth));
+  }
+
+  String getName() {
+    return name;
+  }
+
+  int getMaxActive() {
+    return maxActive;
+  }
+
+  int getActiveCount() {
+    return active.get();
+  }
+
+  int getQueueDepth() {
+    return waiting.get();
+  }
+
+  int getMaxQueueDepthOccurred() {
+    return maxWaitingOccurred.get();
+  }
+
+  long getCompletedCount() {
+    return completed.get();
+  }
+}
@@ -0,0 +1,214 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2014 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.util.encoders.Base64;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests ApkSigner class.
+ *
+ */
+public class ApkSignerTest extends TestCase {
+
+  private static final String LONG_NAME = "assets/" + Strings.repeat("long", 30) + ".png";
+
+  private File tempDir;
+  private File keyStoreFile;
+  private File unsignedApk;
+  private File signedApk;
+
+  @Override
+  protected void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+    keyStoreFile = new File(tempDir, "android.keystore");
+    KeyStoreGenerator.createKeyStore("user", keyStoreFile);
+    unsignedApk = new File(tempDir, "unsigned.apk");
+    signedApk = new File(tempDir, "signed.apk");
+
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(unsignedApk));
+    try {
+      addEntry(out, "AndroidManifest.xml", "<manifest />", ZipEntry.DEFLATED);
+      addEntry(out, "resources.arsc", "resources", ZipEntry.STORED);
+      addEntry(out, "res/drawable/ya.png", "icon", ZipEntry.STORED);
+      addEntry(out, "a.png", "x", ZipEntry.STORED);
+      addEntry(out, LONG_NAME, "long", ZipEntry.STORED);
+      addEntry(out, "classes.dex", Strings.repeat("dex", 1000), ZipEntry.DEFLATED);
+    } finally {
+      out.close();
+    }
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tempDir);
+  }
+
+  public void testEntriesAreCopied() throws Exception {
+    ApkSigner.signAndAlign(unsignedApk, keyStoreFile, signedApk);
+
+    ZipFile unsigned = new ZipFile(unsignedApk);
+    ZipFile signed = new ZipFile(signedApk);
+    try {
+      assertEquals(unsigned.size() + 3, signed.size());
+      Enumeration<? extends ZipEntry> entries = unsigned.entries();
+      while (entries.hasMoreElements()) {
+        ZipEntry entry = entries.nextElement();
+        ZipEntry signedEntry = signed.getEntry(entry.getName());
+        assertEquals(entry.getMethod(), signedEntry.getMethod());
+        assertTrue(Arrays.equals(read(unsigned, entry), read(signed, signedEntry)));
+      }
+    } finally {
+      unsigned.close();
+      signed.close();
+    }
+  }
+
+  public void testStoredEntriesAreAligned() throws Exception {
+    ApkSigner.signAndAlign(unsignedApk, keyStoreFile, signedApk);
+
+    // Find the data of each entry from the central directory and the local headers.
+    ByteBuffer apk = ByteBuffer.wrap(Files.toByteArray(signedApk)).order(ByteOrder.LITTLE_ENDIAN);
+    int endOfCentralDirectory = apk.capacity() - 22;
+    assertEquals(0x06054b50, apk.getInt(endOfCentralDirectory));
+    int entryCount = apk.getShort(endOfCentralDirectory + 10);
+    int offset = apk.getInt(endOfCentralDirectory + 16);
+    int storedEntries = 0;
+    for (int i = 0; i < entryCount; i++) {
+      assertEquals(0x02014b50, apk.getInt(offset));
+      int method = apk.getShort(offset + 10);
+      int nameLength = apk.getShort(offset + 28);
+      int extraLength = apk.getShort(offset + 30);
+      int commentLength = apk.getShort(offset + 32);
+      int localHeaderOffset = apk.getInt(offset + 42);
+      if (method == ZipEntry.STORED) {
+        int dataOffset = localHeaderOffset + 30 + apk.getShort(localHeaderOffset + 26)
+            + apk.getShort(localHeaderOffset + 28);
+        assertEquals(0, dataOffset % ApkSigner.ALIGNMENT);
+        storedEntries++;
+      }
+      offset += 46 + nameLength + extraLength + commentLength;
+    }
+    assertEquals(4, storedEntries);
+  }
+
+  public void testApkIsSigned() throws Exception {
+    ApkSigner.signAndAlign(unsignedApk, keyStoreFile, signedApk);
+
+    ZipFile signed = new ZipFile(signedApk);
+    try {
+      byte[] manifestBytes = read(signed, signed.getEntry("META-INF/MANIFEST.MF"));
+      byte[] signatureFileBytes = read(signed, signed.getEntry("META-INF/CERT.SF"));
+      byte[] signatureBlock = read(signed, signed.getEntry("META-INF/CERT.RSA"));
+
+      // The manifest has the digest of every entry.
+      Manifest manifest = new Manifest(new ByteArrayInputStream(manifestBytes));
+      assertEquals(6, manifest.getEntries().size());
+      for (String name : manifest.getEntries().keySet()) {
+        assertEquals(digest(read(signed, signed.getEntry(name))),
+            manifest.getAttributes(name).getValue("SHA1-Digest"));
+      }
+      assertNotNull(manifest.getAttributes(LONG_NAME));
+
+      // The .SF file has the digest of the manifest.
+      Manifest signatureFile = new Manifest(new ByteArrayInputStream(signatureFileBytes));
+      assertEquals(digest(manifestBytes),
+          signatureFile.getMainAttributes().getValue("SHA1-Digest-Manifest"));
+      assertEquals(6, signatureFile.getEntries().size());
+      Attributes attributes = signatureFile.getAttributes("classes.dex");
+      assertNotNull(attributes.getValue("SHA1-Digest"));
+
+      // The signature block is a signature of the .SF file by the key in the keystore.
+      CMSSignedData signedData =
+          new CMSSignedData(new CMSProcessableByteArray(signatureFileBytes), signatureBlock);
+      SignerInformation signer =
+          (SignerInformation) signedData.getSignerInfos().getSigners().iterator().next();
+      assertTrue(signer.verify(new JcaSimpleSignerInfoVerifierBuilder().build(getCertificate())));
+    } finally {
+      signed.close();
+    }
+  }
+
+  public void testMissingKeyStore() throws Exception {
+    try {
+      ApkSigner.signAndAlign(unsignedApk, new File(tempDir, "missing.keystore"), signedApk);
+      fail();
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  private X509Certificate getCertificate() throws Exception {
+    KeyStore keyStore = KeyStore.getInstance(KeyStoreGenerator.KEYSTORE_TYPE);
+    InputStream in = new FileInputStream(keyStoreFile);
+    try {
+      keyStore.load(in, KeyStoreGenerator.PASSWORD);
+    } finally {
+      in.close();
+    }
+    return (X509Certificate) keyStore.getCertificate(KeyStoreGenerator.KEY_ALIAS);
+  }
+
+  private static void addEntry(ZipOutputStream out, String name, String contents, int method)
+      throws Exception {
+    byte[] bytes = contents.getBytes(Charsets.UTF_8);
+    ZipEntry entry = new ZipEntry(name);
+    entry.setMethod(method);
+    if (method == ZipEntry.STORED) {
+      CRC32 crc = new CRC32();
+      crc.update(bytes);
+      entry.setSize(bytes.length);
+      entry.setCompressedSize(bytes.length);
+      entry.setCrc(crc.getValue());
+    }
+    out.putNextEntry(entry);
+    out.write(bytes);
+    out.closeEntry();
+  }
+
+  private static byte[] read(ZipFile zipFile, ZipEntry entry) throws Exception {
+    InputStream in = zipFile.getInputStream(entry);
+    try {
+      return ByteStreams.toByteArray(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static String digest(byte[] bytes) throws Exception {
+    return Base64.toBase64String(MessageDigest.getInstance("SHA1").digest(bytes));
+  }
+}
@@ -0,0 +1,125 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2014 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.codehaus.jettison.json.JSONObject;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.List;
+import java.util.zip.ZipFile;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests BuildBenchmark class.
+ *
+ */
+public class BuildBenchmarkTest extends TestCase {
+
+  private File tempDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tempDir);
+  }
+
+  public void testFixtureIsPackagedAsProject() throws Exception {
+    File fixtureDir = new File(tempDir, "helloPurr");
+    fixtureDir.mkdir();
+    Files.write("#|\n$JSON\n{}\n|#", new File(fixtureDir, "Screen1.scm"), Charsets.UTF_8);
+    Files.write("<xml />", new File(fixtureDir, "Screen1.bky"), Charsets.UTF_8);
+    Files.write("(define-form fakepackagename Screen1)\n",
+        new File(fixtureDir, "helloPurrExpected.yail"), Charsets.UTF_8);
+    File zip = new File(tempDir, "helloPurr.aia");
+
+    assertTrue(BuildBenchmark.createFixtureProject(fixtureDir, zip));
+
+    ZipFile zipFile = new ZipFile(zip);
+    try {
+      String properties = read(zipFile, "youngandroidproject/project.properties");
+      assertTrue(properties.contains("main=appinventor.benchmark.helloPurr.Screen1\n"));
+      assertTrue(properties.contains("name=helloPurr\n"));
+      assertEquals("(define-form appinventor.benchmark.helloPurr.Screen1 Screen1)\n",
+          read(zipFile, "src/appinventor/benchmark/helloPurr/Screen1.yail"));
+      assertNotNull(zipFile.getEntry("src/appinventor/benchmark/helloPurr/Screen1.scm"));
+      assertNotNull(zipFile.getEntry("src/appinventor/benchmark/helloPurr/Screen1.bky"));
+    } finally {
+      zipFile.close();
+    }
+  }
+
+  public void testCorpusSkipsNonProjects() throws Exception {
+    File corpusDir = new File(tempDir, "corpus");
+    corpusDir.mkdir();
+    Files.write("not a zip", new File(corpusDir, "Buggy.zip"), Charsets.UTF_8);
+    File noYailDir = new File(corpusDir, "noYail");
+    noYailDir.mkdir();
+    Files.write("#|\n|#", new File(noYailDir, "Screen1.scm"), Charsets.UTF_8);
+    File workDir = new File(tempDir, "work");
+    workDir.mkdir();
+
+    List<File> projects = Lists.newArrayList();
+    BuildBenchmark.addToCorpus(corpusDir, workDir, projects);
+    assertTrue(projects.isEmpty());
+  }
+
+  public void testPercentile() {
+    List<Long> sorted = Lists.newArrayList();
+    assertEquals(0, BuildBenchmark.percentile(sorted, 0.5));
+    for (long i = 1; i <= 100; i++) {
+      sorted.add(i);
+    }
+    assertEquals(50, BuildBenchmark.percentile(sorted, 0.50));
+    assertEquals(95, BuildBenchmark.percentile(sorted, 0.95));
+    assertEquals(99, BuildBenchmark.percentile(sorted, 0.99));
+    assertEquals(1, BuildBenchmark.percentile(sorted, 0));
+    assertEquals(7, BuildBenchmark.percentile(Lists.newArrayList(7L), 0.99));
+  }
+
+  public void testReport() throws Exception {
+    List<BuildBenchmark.BuildSample> samples = Lists.newArrayList(
+        new BuildBenchmark.BuildSample("a", true, 1000,
+            ImmutableMap.of("kawa", 400L, "dx", 300L), 1500, 200000000),
+        new BuildBenchmark.BuildSample("b", false, 3000,
+            ImmutableMap.of("kawa", 600L), 2500, -1));
+
+    JSONObject report = BuildBenchmark.createReport(samples, 2, 30000);
+
+    assertEquals(2, report.getInt("concurrency"));
+    assertEquals(2, report.getInt("builds"));
+    assertEquals(1, report.getInt("failures"));
+    assertEquals(4.0, report.getDouble("buildsPerMinute"), 0.001);
+    assertEquals(2000, report.getJSONObject("buildTimeMs").getLong("mean"));
+    assertEquals(3000, report.getJSONObject("buildTimeMs").getLong("p99"));
+    assertEquals(1, report.getJSONObject("peakRssBytes").getInt("count"));
+    JSONObject stages = report.getJSONObject("stageTimesMs");
+    assertEquals(2, stages.getJSONObject("kawa").getInt("count"));
+    assertEquals(300, stages.getJSONObject("dx").getLong("p50"));
+    assertEquals(3000, report.getJSONObject("projectBuildTimesMs").getJSONObject("b")
+        .getLong("max"));
+  }
+
+  private static String read(ZipFile zipFile, String name) throws Exception {
+    InputStream in = zipFile.getInputStream(zipFile.getEntry(name));
+    try {
+      return new String(ByteStreams.toByteArray(in), Charsets.UTF_8);
+    } finally {
+      in.close();
+    }
+  }
+}
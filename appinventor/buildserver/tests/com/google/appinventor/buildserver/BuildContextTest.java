@@ -0,0 +1,181 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2014 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests BuildContext class.
+ *
+ */
+public class BuildContextTest extends TestCase {
+
+  private static BuildContext newContext() {
+    return new BuildContext("user", false, 1024, null, "http://localhost/callback");
+  }
+
+  public void testSameSourcesJoinRunningBuild() {
+    BuildContext first = newContext();
+    assertNull(first.registerForProject("project-join", "hash"));
+    try {
+      BuildContext second = newContext();
+      assertSame(first, second.registerForProject("project-join", "hash"));
+      assertNull(BuildContext.getActiveBuild(second.getBuildId()));
+      assertFalse(first.isCancelled());
+    } finally {
+      first.unregister();
+    }
+  }
+
+  public void testNewerSourcesCancelOlderBuild() {
+    BuildContext first = newContext();
+    assertNull(first.registerForProject("project-cancel", "hash1"));
+    BuildContext second = newContext();
+    try {
+      assertNull(second.registerForProject("project-cancel", "hash2"));
+      assertFalse(first.isCancelled());
+      second.cancelReplacedBuild();
+      assertTrue(first.isCancelled());
+      assertFalse(second.isCancelled());
+      assertSame(second, BuildContext.getActiveBuild(second.getBuildId()));
+
+      // The cancelled build unregistering doesn't unregister its replacement.
+      first.unregister();
+      BuildContext third = newContext();
+      assertSame(second, third.registerForProject("project-cancel", "hash2"));
+    } finally {
+      second.unregister();
+    }
+  }
+
+  public void testRejectedBuildDoesNotCancelOlderBuild() {
+    BuildContext first = newContext();
+    assertNull(first.registerForProject("project-rejected", "hash1"));
+    try {
+      BuildContext second = newContext();
+      assertNull(second.registerForProject("project-rejected", "hash2"));
+      // The build queue rejects the second build, which never cancels the first.
+      second.unregister();
+      assertFalse(first.isCancelled());
+      BuildContext third = newContext();
+      assertSame(first, third.registerForProject("project-rejected", "hash1"));
+    } finally {
+      first.unregister();
+    }
+  }
+
+  public void testCancelTakesBuildOutOfQueue() throws Exception {
+    BuildQueue queue = new BuildQueue(1, 10, 2);
+    final CountDownLatch signal = new CountDownLatch(1);
+    final List<String> ran = Collections.synchronizedList(Lists.<String>newArrayList());
+    try {
+      queue.submit("user", false, new Runnable() {
+        @Override
+        public void run() {
+          try {
+            signal.await(10, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            // ignored
+          }
+        }
+      });
+      final BuildContext waiting = newContext();
+      Runnable task = new Runnable() {
+        @Override
+        public void run() {
+          ran.add(waiting.isCancelled() ? "cancelled" : "built");
+        }
+      };
+      waiting.setQueuedTask(queue, task);
+      assertEquals(1, queue.submit("user", false, task));
+      waiting.cancel();
+      // The task ran straight away to clean up, and the user's place in the queue is free.
+      assertEquals(Lists.newArrayList("cancelled"), ran);
+      assertEquals(0, queue.getQueuedBuildCount());
+      queue.submit("user", false, new Runnable() {
+        @Override
+        public void run() {
+        }
+      });
+    } finally {
+      signal.countDown();
+    }
+    long deadline = System.currentTimeMillis() + 10000;
+    while (queue.getCompletedBuildCount() < 2 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(2, queue.getCompletedBuildCount());
+    assertEquals(1, ran.size());
+  }
+
+  public void testFinishedBuildIsNotJoined() {
+    BuildContext first = newContext();
+    assertNull(first.registerForProject("project-finished", "hash"));
+    first.unregister();
+    BuildContext second = newContext();
+    assertNull(second.registerForProject("project-finished", "hash"));
+    second.unregister();
+    assertFalse(first.isCancelled());
+  }
+
+  public void testCancelKillsChildProcesses() throws Exception {
+    final BuildContext context = newContext();
+    context.register();
+    try {
+      final boolean[] succeeded = new boolean[1];
+      Thread build = new Thread() {
+        @Override
+        public void run() {
+          BuildTrace.Span span = context.startStage("dx");
+          try {
+            succeeded[0] = Execution.execute(new File("."), new String[] { "sleep", "30" },
+                System.out, System.err);
+          } finally {
+            span.end();
+          }
+        }
+      };
+      long startMs = System.currentTimeMillis();
+      build.start();
+      while (context.getTrace().getStageTimesMs().isEmpty()) {
+        Thread.sleep(10);
+      }
+      Thread.sleep(200);
+      context.cancel();
+      build.join(10000);
+      assertFalse(build.isAlive());
+      assertFalse(succeeded[0]);
+      assertTrue(System.currentTimeMillis() - startMs < 10000);
+    } finally {
+      context.unregister();
+    }
+  }
+
+  public void testCancelledBuildStartsNoProcesses() throws Exception {
+    BuildContext context = newContext();
+    context.register();
+    context.cancel();
+    BuildTrace.Span span = context.startStage("aapt");
+    try {
+      Execution.execute(new File("."), new String[] { "true" }, new StringBuffer(),
+          new StringBuffer());
+      fail();
+    } catch (IOException e) {
+      // expected
+    } finally {
+      span.end();
+      context.unregister();
+    }
+  }
+}
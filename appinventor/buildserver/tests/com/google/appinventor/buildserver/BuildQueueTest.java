@@ -0,0 +1,127 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2014 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests BuildQueue class.
+ *
+ */
+public class BuildQueueTest extends TestCase {
+
+  private final CountDownLatch signal = new CountDownLatch(1);
+
+  public void testAdditionalBuildIsQueuedThenRejected() throws Exception {
+    BuildQueue queue = new BuildQueue(2, 3, 0);
+    try {
+      assertEquals(0, queue.submit("a", false, new BuildThatWaitsForSignal()));
+      assertEquals(0, queue.submit("b", false, new BuildThatWaitsForSignal()));
+      assertEquals(1, queue.submit("c", false, new BuildThatWaitsForSignal()));
+      assertEquals(2, queue.submit("d", false, new BuildThatWaitsForSignal()));
+      assertEquals(3, queue.submit("e", false, new BuildThatWaitsForSignal()));
+      try {
+        queue.submit("f", false, new BuildThatWaitsForSignal());
+        fail();
+      } catch (RejectedExecutionException e) {
+        // expected
+      }
+      assertEquals(1, queue.getRejectedBuildCount());
+    } finally {
+      signal.countDown();
+    }
+    awaitCompleted(queue, 5);
+    assertEquals(5, queue.getQueueWaitHistogram().getCount());
+  }
+
+  public void testBuildsPerUserAreLimited() throws Exception {
+    BuildQueue queue = new BuildQueue(1, 10, 2);
+    try {
+      queue.submit("a", false, new BuildThatWaitsForSignal());
+      queue.submit("a", false, new BuildThatWaitsForSignal());
+      try {
+        queue.submit("a", false, new BuildThatWaitsForSignal());
+        fail();
+      } catch (RejectedExecutionException e) {
+        // expected
+      }
+      queue.submit("b", false, new BuildThatWaitsForSignal());
+      assertEquals(1, queue.getRejectedBuildForUserCount());
+    } finally {
+      signal.countDown();
+    }
+    awaitCompleted(queue, 3);
+  }
+
+  public void testUsersTakeTurnsAndCompanionGoesFirst() throws Exception {
+    BuildQueue queue = new BuildQueue(1, 10, 0);
+    List<String> order = Collections.synchronizedList(Lists.<String>newArrayList());
+    try {
+      // Occupy the only build thread so that everything after this waits.
+      queue.submit("x", false, new BuildThatWaitsForSignal());
+      awaitActive(queue, 1);
+      assertEquals(1, queue.submit("a", false, new RecordingBuild(order, "a1")));
+      assertEquals(2, queue.submit("a", false, new RecordingBuild(order, "a2")));
+      assertEquals(3, queue.submit("a", false, new RecordingBuild(order, "a3")));
+      // b1 goes ahead of a2 and a3, since a has already had a turn.
+      assertEquals(2, queue.submit("b", false, new RecordingBuild(order, "b1")));
+      assertEquals(1, queue.submit("c", true, new RecordingBuild(order, "companion")));
+    } finally {
+      signal.countDown();
+    }
+    awaitCompleted(queue, 6);
+    assertEquals(Lists.newArrayList("companion", "a1", "b1", "a2", "a3"), order);
+  }
+
+  private static void awaitActive(BuildQueue queue, int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (queue.getActiveBuildCount() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(count, queue.getActiveBuildCount());
+  }
+
+  private static void awaitCompleted(BuildQueue queue, int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (queue.getCompletedBuildCount() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(count, queue.getCompletedBuildCount());
+  }
+
+  private class BuildThatWaitsForSignal implements Runnable {
+    @Override
+    public void run() {
+      try {
+        signal.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        // ignored
+      }
+    }
+  }
+
+  private static class RecordingBuild implements Runnable {
+    private final List<String> order;
+    private final String name;
+
+    RecordingBuild(List<String> order, String name) {
+      this.order = order;
+      this.name = name;
+    }
+
+    @Override
+    public void run() {
+      order.add(name);
+    }
+  }
+}
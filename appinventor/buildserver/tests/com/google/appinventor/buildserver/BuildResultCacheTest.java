@@ -0,0 +1,121 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2014 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests BuildResultCache class.
+ *
+ */
+public class BuildResultCacheTest extends TestCase {
+
+  private File tempDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tempDir);
+  }
+
+  private ZipFile createZip(String name, String... namesAndContents) throws IOException {
+    File file = new File(tempDir, name);
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+    try {
+      for (int i = 0; i < namesAndContents.length; i += 2) {
+        ZipEntry entry = new ZipEntry(namesAndContents[i]);
+        // The key must not depend on entry timestamps.
+        entry.setTime(System.currentTimeMillis() - i * 100000L);
+        out.putNextEntry(entry);
+        out.write(namesAndContents[i + 1].getBytes(Charsets.UTF_8));
+      }
+    } finally {
+      out.close();
+    }
+    return new ZipFile(file);
+  }
+
+  public void testKeyIgnoresEntryOrder() throws Exception {
+    ZipFile a = createZip("a.zip", "src/Screen1.scm", "form",
+        YoungAndroidConstants.PROJECT_KEYSTORE_LOCATION, "key");
+    ZipFile b = createZip("b.zip", YoungAndroidConstants.PROJECT_KEYSTORE_LOCATION, "key",
+        "src/Screen1.scm", "form");
+    ZipFile c = createZip("c.zip", "src/Screen1.scm", "changed form",
+        YoungAndroidConstants.PROJECT_KEYSTORE_LOCATION, "key");
+    String key = BuildResultCache.computeKey(a, false);
+    assertNotNull(key);
+    assertEquals(key, BuildResultCache.computeKey(b, false));
+    assertFalse(key.equals(BuildResultCache.computeKey(c, false)));
+    assertFalse(key.equals(BuildResultCache.computeKey(a, true)));
+  }
+
+  public void testProjectWithoutKeystoreIsNotCached() throws Exception {
+    ZipFile zip = createZip("a.zip", "src/Screen1.scm", "form");
+    assertNull(BuildResultCache.computeKey(zip, false));
+  }
+
+  public void testStoreAndLookup() throws Exception {
+    BuildResultCache cache = new BuildResultCache(new File(tempDir, "cache"), 1024 * 1024);
+    File apk = new File(tempDir, "HelloPurr.apk");
+    Files.write("apk", apk, Charsets.UTF_8);
+
+    File outputDir = new File(tempDir, "output");
+    outputDir.mkdirs();
+
+    assertNull(cache.lookup("k1", outputDir));
+    cache.store("k1", apk, "messages");
+    BuildResultCache.Entry entry = cache.lookup("k1", outputDir);
+    assertNotNull(entry);
+    assertEquals(new File(outputDir, "HelloPurr.apk"), entry.getApk());
+    assertEquals("apk", Files.toString(entry.getApk(), Charsets.UTF_8));
+    assertEquals("messages", entry.getOutput());
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  public void testLeastRecentlyUsedEntryIsEvicted() throws Exception {
+    BuildResultCache cache = new BuildResultCache(new File(tempDir, "cache"), 2500);
+    File apk = new File(tempDir, "App.apk");
+    Files.write(new byte[1000], apk);
+
+    cache.store("k1", apk, "");
+    cache.store("k2", apk, "");
+    new File(tempDir, "cache/k1").setLastModified(System.currentTimeMillis() - 60000);
+    new File(tempDir, "cache/k2").setLastModified(System.currentTimeMillis() - 30000);
+    cache.store("k3", apk, "");
+
+    assertNull(cache.lookup("k1", tempDir));
+    assertNotNull(cache.lookup("k2", tempDir));
+    assertNotNull(cache.lookup("k3", tempDir));
+    assertEquals(1, cache.getEvictionCount());
+  }
+
+  public void testFailedCopyIsMiss() throws Exception {
+    BuildResultCache cache = new BuildResultCache(new File(tempDir, "cache"), 1024 * 1024);
+    File apk = new File(tempDir, "App.apk");
+    Files.write("apk", apk, Charsets.UTF_8);
+    cache.store("k1", apk, "");
+
+    assertNull(cache.lookup("k1", new File(tempDir, "missing")));
+    assertEquals(0, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+}
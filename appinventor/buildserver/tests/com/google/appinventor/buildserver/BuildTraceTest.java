@@ -0,0 +1,123 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2014 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONObject;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests BuildTrace class.
+ *
+ */
+public class BuildTraceTest extends TestCase {
+
+  @Override
+  protected void tearDown() throws Exception {
+    // Don't leave a current span behind for other tests run on this thread.
+    BuildTrace.setCurrentSpan(null);
+  }
+
+  public void testSpansNest() throws Exception {
+    BuildTrace trace = new BuildTrace("build");
+    BuildTrace.Span compile = trace.startSpan("compile");
+    assertSame(compile, BuildTrace.getCurrentSpan());
+    BuildTrace.Span kawa = trace.startSpan("kawa");
+    assertSame(kawa, BuildTrace.getCurrentSpan());
+    kawa.end();
+    assertSame(compile, BuildTrace.getCurrentSpan());
+    BuildTrace.Span dx = BuildTrace.startSpanOfCurrentBuild("dx");
+    dx.end();
+    compile.end();
+    assertNull(BuildTrace.getCurrentSpan());
+
+    assertEquals(Lists.newArrayList("compile", "kawa", "dx"),
+        Lists.newArrayList(trace.getStageTimesMs().keySet()));
+    JSONArray spans = trace.toJson().getJSONArray("spans");
+    assertEquals(3, spans.length());
+    assertFalse(spans.getJSONObject(0).has("parent"));
+    assertEquals("compile", spans.getJSONObject(1).getString("parent"));
+    assertEquals("compile", spans.getJSONObject(2).getString("parent"));
+  }
+
+  public void testStageTimesAreSummed() throws Exception {
+    BuildTrace trace = new BuildTrace("build");
+    BuildTrace.Span first = trace.startSpan("dx");
+    Thread.sleep(10);
+    first.end();
+    BuildTrace.Span second = trace.startSpan("dx");
+    Thread.sleep(10);
+    second.end();
+    assertEquals(1, trace.getStageTimesMs().size());
+    assertEquals(first.getDurationMs() + second.getDurationMs(),
+        (long) trace.getStageTimesMs().get("dx"));
+  }
+
+  public void testChildUsageIsChargedToCurrentSpan() throws Exception {
+    BuildTrace trace = new BuildTrace("build");
+    BuildTrace.Span aapt = trace.startSpan("aapt");
+    BuildTrace.recordChildUsage(100, 2000);
+    BuildTrace.recordChildUsage(50, 1000);
+    BuildTrace.recordChildUsage(-1, -1);
+    aapt.end();
+    BuildTrace.Span sign = trace.startSpan("sign");
+    sign.end();
+
+    assertEquals(150, aapt.getChildCpuTimeMs());
+    assertEquals(2000, aapt.getChildPeakRssBytes());
+    assertEquals(-1, sign.getChildCpuTimeMs());
+    JSONArray spans = trace.toJson().getJSONArray("spans");
+    assertEquals(150, spans.getJSONObject(0).getLong("childCpuTimeMs"));
+    assertFalse(spans.getJSONObject(1).has("childCpuTimeMs"));
+  }
+
+  public void testWorkOnAnotherThreadIsCharged() throws Exception {
+    BuildTrace trace = new BuildTrace("build");
+    final BuildTrace.Span preDex = trace.startSpan("pre-dex");
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        BuildTrace.setCurrentSpan(preDex);
+        BuildTrace.recordChildUsage(10, 100);
+      }
+    };
+    thread.start();
+    thread.join();
+    preDex.end();
+    assertEquals(10, preDex.getChildCpuTimeMs());
+  }
+
+  public void testSpanWithoutBuildIsOnlyRecordedInHistogram() throws Exception {
+    long count = BuildTrace.getStageHistogram("no-build").getCount();
+    BuildTrace.Span span = BuildTrace.startSpanOfCurrentBuild("no-build");
+    span.end();
+    assertNull(BuildTrace.getCurrentSpan());
+    assertEquals(count + 1, BuildTrace.getStageHistogram("no-build").getCount());
+    assertTrue(BuildTrace.getStageHistograms().containsKey("no-build"));
+  }
+
+  public void testWriteTo() throws Exception {
+    File traceDir = Files.createTempDir();
+    try {
+      BuildTrace trace = new BuildTrace("1234");
+      trace.startSpan("extract").end();
+      trace.writeTo(traceDir);
+      JSONObject json =
+          new JSONObject(Files.toString(new File(traceDir, "1234.json"), Charsets.UTF_8));
+      assertEquals("1234", json.getString("buildId"));
+      assertEquals("extract", json.getJSONArray("spans").getJSONObject(0).getString("name"));
+    } finally {
+      FileUtils.deleteDirectory(traceDir);
+    }
+  }
+}
@@ -6,11 +6,18 @@
 
 package com.google.appinventor.buildserver;
 
+import com.google.common.base.Charsets;
 import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
 
 import junit.framework.TestCase;
 
+import java.io.File;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Tests Compiler class.
@@ -18,15 +25,30 @@ import java.util.Set;
  */
 public class CompilerTest extends TestCase {
 
+  private static final String FORM_PATH = "com/example/HelloPurr/Screen1.yail";
+
+  private File tempDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tempDir);
+  }
+
   public void testGeneratePermissions() throws Exception {
     Set<String> noComponents = Sets.newHashSet();
-    Compiler compiler = new Compiler(null, noComponents, System.out, System.err, System.err, false,
-                                     2048, null);
+    Compiler compiler = new Compiler(null, noComponents, System.out, System.err, System.err,
+                                     new BuildContext("test", false, 2048, null, null));
     assertTrue("Permissions for no components not empty. (It should be empty!)",
         compiler.generatePermissions().isEmpty());
 
     Set<String> componentTypes = Sets.newHashSet("LocationSensor");
-    compiler = new Compiler(null, componentTypes, System.out, System.err, System.err, false, 2048, null);
+    compiler = new Compiler(null, componentTypes, System.out, System.err, System.err,
+                            new BuildContext("test", false, 2048, null, null));
     Set<String> permissions = compiler.generatePermissions();
     assertEquals(4, permissions.size());
     assertTrue(permissions.contains(
@@ -38,4 +60,168 @@ public class CompilerTest extends TestCase {
     assertTrue(permissions.contains(
         "android.permission.ACCESS_LOCATION_EXTRA_COMMANDS"));
   }
+
+  public void testFormCache() throws Exception {
+    File form = new File(tempDir, "Screen1.yail");
+    Files.write("(define-form Screen1)", form, Charsets.UTF_8);
+    File runtimeJar = new File(tempDir, "yail-runtime-1.jar");
+    Set<String> libraries = Sets.newHashSet("twitter4j.jar");
+    File formCacheDir = new File(tempDir, "forms");
+
+    // The first build compiles the form and stores its classes.
+    String formJarName = "form-" + Compiler.getFormHash(form, FORM_PATH, runtimeJar, libraries)
+        + ".jar";
+    File firstBuildJar = new File(tempDir, "first.jar");
+    assertFalse(Compiler.copyFromCache(new File(formCacheDir, formJarName), firstBuildJar));
+    Files.write("classes", firstBuildJar, Charsets.UTF_8);
+    Compiler.storeInCache(firstBuildJar, new File(formCacheDir, formJarName), 1024);
+
+    // The second build of the same form reuses them.
+    assertEquals(formJarName,
+        "form-" + Compiler.getFormHash(form, FORM_PATH, runtimeJar, libraries) + ".jar");
+    File secondBuildJar = new File(tempDir, "second.jar");
+    assertTrue(Compiler.copyFromCache(new File(formCacheDir, formJarName), secondBuildJar));
+    assertEquals("classes", Files.toString(secondBuildJar, Charsets.UTF_8));
+
+    // A changed form, or a form compiled against other libraries, misses.
+    assertFalse(formJarName.equals("form-"
+        + Compiler.getFormHash(form, FORM_PATH, runtimeJar, Sets.<String>newHashSet()) + ".jar"));
+    Files.write("(define-form Screen1) (def x 1)", form, Charsets.UTF_8);
+    String changedFormJarName = "form-"
+        + Compiler.getFormHash(form, FORM_PATH, runtimeJar, libraries) + ".jar";
+    assertFalse(formJarName.equals(changedFormJarName));
+    assertFalse(Compiler.copyFromCache(new File(formCacheDir, changedFormJarName),
+        new File(tempDir, "third.jar")));
+  }
+
+  public void testFormCacheIsBounded() throws Exception {
+    File formCacheDir = new File(tempDir, "forms");
+    File formJar = new File(tempDir, "form.jar");
+    Files.write("0123456789", formJar, Charsets.UTF_8);
+    File oldJar = new File(formCacheDir, "form-old.jar");
+    File usedJar = new File(formCacheDir, "form-used.jar");
+    Compiler.storeInCache(formJar, oldJar, 25);
+    Compiler.storeInCache(formJar, usedJar, 25);
+    oldJar.setLastModified(System.currentTimeMillis() - 20000);
+    usedJar.setLastModified(System.currentTimeMillis() - 30000);
+    // Using an entry makes it the most recently used one.
+    assertTrue(Compiler.copyFromCache(usedJar, new File(tempDir, "copy.jar")));
+
+    File newJar = new File(formCacheDir, "form-new.jar");
+    Compiler.storeInCache(formJar, newJar, 25);
+    assertFalse(oldJar.exists());
+    assertTrue(usedJar.isFile());
+    assertTrue(newJar.isFile());
+  }
+
+  public void testResourcePackageCache() throws Exception {
+    File manifest = new File(tempDir, "AndroidManifest.xml");
+    Files.write("<manifest/>", manifest, Charsets.UTF_8);
+    File resDir = new File(tempDir, "res");
+    File icon = new File(resDir, "drawable/ya.png");
+    icon.getParentFile().mkdirs();
+    Files.write("icon", icon, Charsets.UTF_8);
+    File assetsDir = new File(tempDir, "assets");
+    File asset = new File(assetsDir, "kitty.png");
+    assetsDir.mkdirs();
+    Files.write("kitty", asset, Charsets.UTF_8);
+    File libsDir = new File(tempDir, "libs");
+    File aaptCacheDir = new File(tempDir, "aapt");
+
+    String hash = Compiler.getResourcePackageHash(manifest, resDir, assetsDir, libsDir);
+    File cachedPackage = new File(aaptCacheDir, "resources-" + hash + ".ap_");
+    File firstBuildPackage = new File(tempDir, "first.ap_");
+    assertFalse(Compiler.copyFromCache(cachedPackage, firstBuildPackage));
+    Files.write("package", firstBuildPackage, Charsets.UTF_8);
+    Compiler.storeInCache(firstBuildPackage, cachedPackage, 1024);
+
+    // The same manifest, resources and assets hit.
+    assertEquals(hash, Compiler.getResourcePackageHash(manifest, resDir, assetsDir, libsDir));
+    File secondBuildPackage = new File(tempDir, "second.ap_");
+    assertTrue(Compiler.copyFromCache(cachedPackage, secondBuildPackage));
+    assertEquals("package", Files.toString(secondBuildPackage, Charsets.UTF_8));
+
+    // A change to any of them misses.
+    Files.write("<manifest package=\"x\"/>", manifest, Charsets.UTF_8);
+    String manifestChangedHash =
+        Compiler.getResourcePackageHash(manifest, resDir, assetsDir, libsDir);
+    assertFalse(hash.equals(manifestChangedHash));
+    Files.write("new icon", icon, Charsets.UTF_8);
+    String resourceChangedHash =
+        Compiler.getResourcePackageHash(manifest, resDir, assetsDir, libsDir);
+    assertFalse(manifestChangedHash.equals(resourceChangedHash));
+    Files.write("puppy", new File(assetsDir, "puppy.png"), Charsets.UTF_8);
+    String assetAddedHash = Compiler.getResourcePackageHash(manifest, resDir, assetsDir, libsDir);
+    assertFalse(resourceChangedHash.equals(assetAddedHash));
+    Files.write("kitten", asset, Charsets.UTF_8);
+    String assetChangedHash =
+        Compiler.getResourcePackageHash(manifest, resDir, assetsDir, libsDir);
+    assertFalse(assetAddedHash.equals(assetChangedHash));
+    assertFalse(Compiler.copyFromCache(
+        new File(aaptCacheDir, "resources-" + assetChangedHash + ".ap_"),
+        new File(tempDir, "third.ap_")));
+  }
+
+  public void testResourcePackageCacheIsBounded() throws Exception {
+    File aaptCacheDir = new File(tempDir, "aapt");
+    File resourcePackage = new File(tempDir, "HelloPurr.ap_");
+    Files.write("0123456789", resourcePackage, Charsets.UTF_8);
+    File[] cachedPackages = new File[4];
+    for (int i = 0; i < cachedPackages.length; i++) {
+      cachedPackages[i] = new File(aaptCacheDir, "resources-" + i + ".ap_");
+      Compiler.storeInCache(resourcePackage, cachedPackages[i], 30);
+      cachedPackages[i].setLastModified(System.currentTimeMillis() - (10 - i) * 10000L);
+    }
+    // Only the three most recently stored packages fit.
+    assertFalse(cachedPackages[0].exists());
+    for (int i = 1; i < cachedPackages.length; i++) {
+      assertTrue(cachedPackages[i].isFile());
+    }
+  }
+
+  /*
+   * Returns a compile of the YAIL runtime that counts its runs and makes the jar if succeed is
+   * true.
+   */
+  private static Callable<Boolean> runtimeCompile(final File jar, final AtomicInteger runs,
+      final boolean succeed) {
+    return new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        runs.incrementAndGet();
+        if (succeed) {
+          Files.write("runtime", jar, Charsets.UTF_8);
+        }
+        return succeed;
+      }
+    };
+  }
+
+  public void testYailRuntimeIsPrecompiledOnce() throws Exception {
+    File jar = new File(tempDir, "yail-runtime-once.jar");
+    AtomicInteger runs = new AtomicInteger(0);
+    long now = System.currentTimeMillis();
+    assertEquals(jar,
+        Compiler.getPrecompiledYailRuntime(jar, runtimeCompile(jar, runs, true), now));
+    assertEquals(jar,
+        Compiler.getPrecompiledYailRuntime(jar, runtimeCompile(jar, runs, true), now));
+    assertEquals(1, runs.get());
+  }
+
+  public void testFailedYailRuntimePrecompileIsRetried() throws Exception {
+    File jar = new File(tempDir, "yail-runtime-retried.jar");
+    AtomicInteger runs = new AtomicInteger(0);
+    // Times long past, so that the delay after the failure doesn't hold up other tests.
+    assertNull(Compiler.getPrecompiledYailRuntime(jar, runtimeCompile(jar, runs, false), 0));
+    assertEquals(1, runs.get());
+
+    // Until the delay has passed, builds compile the runtime themselves.
+    assertNull(Compiler.getPrecompiledYailRuntime(jar, runtimeCompile(jar, runs, true), 1000));
+    assertEquals(1, runs.get());
+
+    long afterDelay = 60 * 60 * 1000 + 1;
+    assertEquals(jar,
+        Compiler.getPrecompiledYailRuntime(jar, runtimeCompile(jar, runs, true), afterDelay));
+    assertEquals(2, runs.get());
+  }
 }
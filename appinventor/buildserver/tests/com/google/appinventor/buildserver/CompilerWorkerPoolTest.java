@@ -0,0 +1,164 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2014 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.collect.Lists;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests CompilerWorkerPool class.
+ *
+ */
+public class CompilerWorkerPoolTest extends TestCase {
+
+  /**
+   * A stand-in for a compiler: prints its arguments and exits with the code given as the first
+   * argument.
+   */
+  public static class EchoMain {
+    public static void main(String[] args) {
+      System.out.println("out: " + args[1]);
+      System.err.println("err: " + args[1]);
+      int exitCode = Integer.parseInt(args[0]);
+      if (exitCode != 0) {
+        System.exit(exitCode);
+      }
+    }
+  }
+
+  /**
+   * A stand-in for a compiler that never finishes.
+   */
+  public static class SleepMain {
+    public static void main(String[] args) throws InterruptedException {
+      Thread.sleep(60000);
+    }
+  }
+
+  private String testClasspath;
+
+  @Override
+  protected void setUp() throws Exception {
+    testClasspath = new File(EchoMain.class.getProtectionDomain().getCodeSource().getLocation()
+        .toURI()).getAbsolutePath();
+  }
+
+  public void testWorkerIsReused() throws Exception {
+    CompilerWorkerPool.configure(1, 10, 60);
+    CompilerWorkerPool pool = CompilerWorkerPool.getInstance();
+    try {
+      for (int i = 0; i < 3; i++) {
+        CompilerWorkerPool.JobResult result = pool.run(testClasspath, 64,
+            EchoMain.class.getName(), Lists.newArrayList("0", "job" + i));
+        assertNotNull(result);
+        assertEquals(0, result.getExitCode());
+        assertEquals("out: job" + i, result.getOutput().trim());
+        assertEquals("err: job" + i, result.getError().trim());
+      }
+      assertEquals(1, pool.getWorkersStarted());
+      assertEquals(3, pool.getJobsRun());
+    } finally {
+      CompilerWorkerPool.configure(0, 0, 0);
+    }
+  }
+
+  public void testExitCodeIsReturned() throws Exception {
+    CompilerWorkerPool.configure(1, 10, 60);
+    CompilerWorkerPool pool = CompilerWorkerPool.getInstance();
+    try {
+      CompilerWorkerPool.JobResult result = pool.run(testClasspath, 64,
+          EchoMain.class.getName(), Lists.newArrayList("3", "failing"));
+      assertNotNull(result);
+      assertEquals(3, result.getExitCode());
+      assertEquals("out: failing", result.getOutput().trim());
+      assertEquals("err: failing", result.getError().trim());
+      assertEquals(0, pool.getJobsFallenBack());
+
+      // The job's System.exit ended the worker, so the next job gets a new one.
+      assertNotNull(pool.run(testClasspath, 64, EchoMain.class.getName(),
+          Lists.newArrayList("0", "next")));
+      assertEquals(2, pool.getWorkersStarted());
+    } finally {
+      CompilerWorkerPool.configure(0, 0, 0);
+    }
+  }
+
+  public void testWorkerIsRetiredAfterMaxJobs() throws Exception {
+    CompilerWorkerPool.configure(1, 2, 60);
+    CompilerWorkerPool pool = CompilerWorkerPool.getInstance();
+    try {
+      for (int i = 0; i < 4; i++) {
+        assertNotNull(pool.run(testClasspath, 64, EchoMain.class.getName(),
+            Lists.newArrayList("0", "job" + i)));
+      }
+      assertEquals(2, pool.getWorkersStarted());
+      assertEquals(2, pool.getWorkersRetired());
+    } finally {
+      CompilerWorkerPool.configure(0, 0, 0);
+    }
+  }
+
+  public void testHungJobTimesOut() throws Exception {
+    CompilerWorkerPool.configure(1, 10, 1);
+    CompilerWorkerPool pool = CompilerWorkerPool.getInstance();
+    try {
+      long startMs = System.currentTimeMillis();
+      CompilerWorkerPool.JobResult result = pool.run(testClasspath, 64,
+          SleepMain.class.getName(), Lists.<String>newArrayList());
+      assertTrue(System.currentTimeMillis() - startMs < 30000);
+      assertNotNull(result);
+      assertTrue(result.getExitCode() != 0);
+      assertEquals(1, pool.getJobsTimedOut());
+      assertEquals(1, pool.getWorkersRetired());
+    } finally {
+      CompilerWorkerPool.configure(0, 0, 0);
+    }
+  }
+
+    public void testCancellingBuildKillsWorkerJob() throws Exception {
+    CompilerWorkerPool.configure(1, 10, 60);
+    final CompilerWorkerPool pool = CompilerWorkerPool.getInstance();
+    final BuildContext context =
+        new BuildContext("user", false, 1024, null, "http://localhost/callback");
+    context.register();
+    try {
+      final CompilerWorkerPool.JobResult[] result = new CompilerWorkerPool.JobResult[1];
+      Thread build = new Thread() {
+        @Override
+        public void run() {
+          BuildTrace.Span span = context.startStage("kawa");
+          try {
+            result[0] = pool.run(testClasspath, 64, SleepMain.class.getName(),
+                Lists.<String>newArrayList());
+          } finally {
+            span.end();
+          }
+        }
+      };
+      build.start();
+      while (pool.getLiveWorkerCount() == 0 || pool.getIdleWorkerCount() > 0) {
+        Thread.sleep(10);
+      }
+      Thread.sleep(200);
+      context.cancel();
+      build.join(10000);
+      assertFalse(build.isAlive());
+      assertNotNull(result[0]);
+      assertTrue(result[0].getExitCode() != 0);
+      assertEquals(1, pool.getWorkersRetired());
+
+      // The next job gets a new worker.
+      assertNotNull(pool.run(testClasspath, 64, EchoMain.class.getName(),
+          Lists.newArrayList("0", "next")));
+      assertEquals(2, pool.getWorkersStarted());
+    } finally {
+      context.unregister();
+      CompilerWorkerPool.configure(0, 0, 0);
+    }
+  }
+}
@@ -0,0 +1,149 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2014 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.Assert;
+import junit.framework.ComparisonFailure;
+import junit.framework.TestCase;
+
+/**
+ * Tests DexExecTask class.
+ *
+ */
+public class DexExecTaskTest extends TestCase {
+
+  private static final String DX_JAR = "lib/android/tools/dx.jar";
+
+  private File tempDir;
+  private File dexCacheDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+    dexCacheDir = new File(tempDir, "dexcache");
+    dexCacheDir.mkdir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tempDir);
+  }
+
+  public void testLibrariesArePreDexedOnceByConcurrentBuilds() throws Exception {
+    File dxJar = findDxJar();
+    if (dxJar == null) {
+      // dx isn't available where the test is running.
+      return;
+    }
+    // This version of dx only reads class files compiled for Java 6 or earlier, like JUnit's.
+    final File library1 = createLibrary("library1.jar", Assert.class);
+    final File library2 = createLibrary("library2.jar", ComparisonFailure.class);
+
+    ExecutorService builds = Executors.newFixedThreadPool(2);
+    try {
+      List<Future<Boolean>> results = Lists.newArrayList();
+      for (int i = 0; i < 2; i++) {
+        final DexExecTask dexTask = new DexExecTask();
+        dexTask.setExecutable(dxJar.getAbsolutePath());
+        dexTask.setOutput(new File(tempDir, "classes" + i + ".dex").getAbsolutePath());
+        dexTask.setDexedLibs(dexCacheDir.getAbsolutePath());
+        results.add(builds.submit(new Callable<Boolean>() {
+          @Override
+          public Boolean call() {
+            return dexTask.execute(Lists.newArrayList(library1, library2));
+          }
+        }));
+      }
+      for (Future<Boolean> result : results) {
+        assertTrue(result.get());
+      }
+    } finally {
+      builds.shutdown();
+    }
+
+    // Each library was pre-dexed once, and no temporary files were left behind.
+    String[] cached = dexCacheDir.list();
+    assertEquals(2, cached.length);
+    for (String name : cached) {
+      assertTrue(name, name.matches("dex-cached-[0-9a-f]+\\.jar"));
+    }
+    assertTrue(new File(tempDir, "classes0.dex").length() > 0);
+    assertTrue(new File(tempDir, "classes1.dex").length() > 0);
+  }
+
+  public void testDexedJarInDexCacheIsNotPreDexedAgain() throws Exception {
+    File dxJar = findDxJar();
+    if (dxJar == null) {
+      // dx isn't available where the test is running.
+      return;
+    }
+    File library1 = createLibrary("library1.jar", Assert.class);
+    File library2 = createLibrary("library2.jar", ComparisonFailure.class);
+    File runtimeDex = new File(dexCacheDir, "companion-runtime-0.jar");
+    DexExecTask runtimeTask = new DexExecTask();
+    runtimeTask.setExecutable(dxJar.getAbsolutePath());
+    runtimeTask.setOutput(runtimeDex.getAbsolutePath());
+    runtimeTask.setDisableDexMerger(true);
+    assertTrue(runtimeTask.execute(Lists.newArrayList(library1)));
+
+    DexExecTask dexTask = new DexExecTask();
+    dexTask.setExecutable(dxJar.getAbsolutePath());
+    dexTask.setOutput(new File(tempDir, "classes.dex").getAbsolutePath());
+    dexTask.setDexedLibs(dexCacheDir.getAbsolutePath());
+    assertTrue(dexTask.execute(Lists.newArrayList(runtimeDex, library2)));
+
+    // Only library2 was pre-dexed.
+    assertEquals(2, dexCacheDir.list().length);
+    assertTrue(new File(tempDir, "classes.dex").length() > 0);
+  }
+
+  private File createLibrary(String name, Class<?> contents) throws Exception {
+    File library = new File(tempDir, name);
+    String entryName = contents.getName().replace('.', '/') + ".class";
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(library));
+    try {
+      out.putNextEntry(new ZipEntry(entryName));
+      InputStream in = contents.getClassLoader().getResourceAsStream(entryName);
+      try {
+        ByteStreams.copy(in, out);
+      } finally {
+        in.close();
+      }
+    } finally {
+      out.close();
+    }
+    return library;
+  }
+
+  /*
+   * Returns the dx jar, looking upwards from the current directory, or null if it isn't found.
+   */
+  private static File findDxJar() {
+    for (File dir = new File("").getAbsoluteFile(); dir != null; dir = dir.getParentFile()) {
+      File dxJar = new File(dir, DX_JAR);
+      if (dxJar.isFile()) {
+        return dxJar;
+      }
+    }
+    return null;
+  }
+}
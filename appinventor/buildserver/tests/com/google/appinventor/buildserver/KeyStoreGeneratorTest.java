@@ -0,0 +1,84 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2014 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests KeyStoreGenerator class.
+ *
+ */
+public class KeyStoreGeneratorTest extends TestCase {
+
+  private File tempDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    KeyStoreGenerator.configure(0);
+    FileUtils.deleteDirectory(tempDir);
+  }
+
+  public void testCreateKeyStore() throws Exception {
+    File keyStoreFile = new File(tempDir, "android.keystore");
+    KeyStoreGenerator.createKeyStore("Joe \"The User\", Jr.", keyStoreFile);
+
+    KeyStore keyStore = load(keyStoreFile);
+    PrivateKey key = (PrivateKey) keyStore.getKey(KeyStoreGenerator.KEY_ALIAS,
+        KeyStoreGenerator.PASSWORD);
+    assertEquals("RSA", key.getAlgorithm());
+    X509Certificate certificate =
+        (X509Certificate) keyStore.getCertificate(KeyStoreGenerator.KEY_ALIAS);
+    certificate.verify(certificate.getPublicKey());
+    String subject = certificate.getSubjectX500Principal().getName();
+    assertTrue(subject, subject.contains("Joe \\\"The User\\\"\\, Jr."));
+    assertTrue(subject, subject.contains("O=AppInventor for Android"));
+    // Apps on the Android marketplace must be signed with a key that expires after October 22,
+    // 2033.
+    assertTrue(certificate.getNotAfter().after(
+        new GregorianCalendar(2033, Calendar.OCTOBER, 23).getTime()));
+  }
+
+  public void testCreateKeyStoreUsesPool() throws Exception {
+    KeyStoreGenerator.configure(1);
+    long deadline = System.currentTimeMillis() + 30000;
+    while (KeyStoreGenerator.getPooledKeyPairCount() == 0 &&
+        System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(1, KeyStoreGenerator.getPooledKeyPairCount());
+    long used = KeyStoreGenerator.getPooledKeyPairsUsed();
+    KeyStoreGenerator.createKeyStore("user", new File(tempDir, "android.keystore"));
+    assertEquals(used + 1, KeyStoreGenerator.getPooledKeyPairsUsed());
+  }
+
+  private static KeyStore load(File keyStoreFile) throws Exception {
+    KeyStore keyStore = KeyStore.getInstance(KeyStoreGenerator.KEYSTORE_TYPE);
+    InputStream in = new FileInputStream(keyStoreFile);
+    try {
+      keyStore.load(in, KeyStoreGenerator.PASSWORD);
+    } finally {
+      in.close();
+    }
+    return keyStore;
+  }
+}
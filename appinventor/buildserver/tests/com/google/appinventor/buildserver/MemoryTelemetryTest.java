@@ -0,0 +1,52 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2014 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests MemoryTelemetry class.
+ *
+ */
+public class MemoryTelemetryTest extends TestCase {
+
+  public void testSampleIncludesChildProcesses() throws Exception {
+    if (!new File("/proc/self/status").exists()) {
+      // Child process memory is only available on Linux.
+      return;
+    }
+    MemoryTelemetry memoryTelemetry = MemoryTelemetry.getInstance();
+    Process process = Runtime.getRuntime().exec(new String[] { "sleep", "30" });
+    memoryTelemetry.registerChildProcess(process);
+    try {
+      memoryTelemetry.sample();
+      assertTrue(memoryTelemetry.getHeapUsed() > 0);
+      assertTrue(memoryTelemetry.getMaxHeapUsed() >= memoryTelemetry.getHeapUsed());
+      assertEquals(1, memoryTelemetry.getChildProcessCount());
+      assertTrue(memoryTelemetry.getChildProcessRss() > 0);
+    } finally {
+      memoryTelemetry.unregisterChildProcess(process);
+      process.destroy();
+    }
+    memoryTelemetry.sample();
+    assertEquals(0, memoryTelemetry.getChildProcessCount());
+    assertEquals(0, memoryTelemetry.getChildProcessRss());
+  }
+
+  public void testCurrentThreadAllocatedBytesIncreases() throws Exception {
+    long before = MemoryTelemetry.getCurrentThreadAllocatedBytes();
+    if (before < 0) {
+      // Not supported by this JVM.
+      return;
+    }
+    byte[][] garbage = new byte[16][];
+    for (int i = 0; i < garbage.length; i++) {
+      garbage[i] = new byte[64 * 1024];
+    }
+    assertTrue(MemoryTelemetry.getCurrentThreadAllocatedBytes() - before >= 16 * 64 * 1024);
+  }
+}
@@ -0,0 +1,175 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2014 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests RuntimeShrinker class.
+ *
+ */
+public class RuntimeShrinkerTest extends TestCase {
+
+  private static final String RUNTIME = "com/google/appinventor/components/runtime/";
+
+  private File tempDir;
+  private File runtimeJar;
+
+  @Override
+  protected void setUp() throws Exception {
+    tempDir = Files.createTempDir();
+    runtimeJar = new File(tempDir, "AndroidRuntime.jar");
+    ZipOutputStream out = new ZipOutputStream(new FileOutputStream(runtimeJar));
+    try {
+      addClass(out, RUNTIME + "Form", "java/lang/Object", null, null);
+      addClass(out, RUNTIME + "ButtonBase", "java/lang/Object", null, null);
+      addClass(out, RUNTIME + "Button", RUNTIME + "ButtonBase", null, null);
+      // Twitter refers to WebViewActivity by type, and to Canvas by name only.
+      addClass(out, RUNTIME + "Twitter", "java/lang/Object", RUNTIME + "WebViewActivity",
+          "com.google.appinventor.components.runtime.Canvas");
+      addClass(out, RUNTIME + "WebViewActivity", "java/lang/Object", null, null);
+      addClass(out, RUNTIME + "Canvas", "java/lang/Object", null, null);
+      // Classes outside the runtime package are always kept, along with what they refer to.
+      addClass(out, RUNTIME + "util/Helper", "java/lang/Object", RUNTIME + "Clock", null);
+      addClass(out, RUNTIME + "Clock", "java/lang/Object", null, null);
+      addClass(out, RUNTIME + "Ball", "java/lang/Object", null, null);
+      addClass(out, RUNTIME + "Sound", "java/lang/Object", RUNTIME + "Form", null);
+      // Used by forms, but by no component.
+      addClass(out, RUNTIME + "EventDispatcher", "java/lang/Object", null, null);
+      out.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+      out.write("Manifest-Version: 1.0\n".getBytes(Charsets.UTF_8));
+    } finally {
+      out.close();
+    }
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtils.deleteDirectory(tempDir);
+  }
+
+  public void testUnusedComponentsAreRemoved() throws Exception {
+    File manifest = new File(tempDir, "AndroidManifest.xml");
+    Files.write("<activity android:name=\"com.google.appinventor.components.runtime.Ball\" />",
+        manifest, Charsets.UTF_8);
+    File cacheDir = new File(tempDir, "cache");
+    cacheDir.mkdir();
+
+    File shrunkJar = RuntimeShrinker.shrink(runtimeJar, Sets.newHashSet("Button", "Twitter"),
+        Lists.newArrayList(manifest), cacheDir);
+
+    assertEquals(Lists.newArrayList(
+        "META-INF/MANIFEST.MF",
+        RUNTIME + "Ball.class",
+        RUNTIME + "Button.class",
+        RUNTIME + "ButtonBase.class",
+        RUNTIME + "Canvas.class",
+        RUNTIME + "Clock.class",
+        RUNTIME + "Form.class",
+        RUNTIME + "Twitter.class",
+        RUNTIME + "WebViewActivity.class",
+        RUNTIME + "util/Helper.class"),
+        getEntryNames(shrunkJar));
+
+    // The same components give the same, cached, jar.
+    long lastModified = shrunkJar.lastModified();
+    File again = RuntimeShrinker.shrink(runtimeJar, Sets.newHashSet("Twitter", "Button"),
+        Lists.newArrayList(manifest), cacheDir);
+    assertEquals(shrunkJar, again);
+    assertEquals(lastModified, again.lastModified());
+    assertEquals(1, cacheDir.list().length);
+  }
+
+  public void testUsedComponentsAreKept() throws Exception {
+    File shrunkJar = RuntimeShrinker.shrink(runtimeJar, Sets.newHashSet("Sound"),
+        Lists.<File>newArrayList(), tempDir);
+    List<String> entries = getEntryNames(shrunkJar);
+    assertTrue(entries.contains(RUNTIME + "Sound.class"));
+    assertTrue(entries.contains(RUNTIME + "Form.class"));
+    assertFalse(entries.contains(RUNTIME + "Button.class"));
+    assertFalse(entries.contains(RUNTIME + "Twitter.class"));
+  }
+
+  public void testClassesUsedByFormsAreKept() throws Exception {
+    File classesDir = new File(tempDir, "classes");
+    File formClass = new File(classesDir, "appinventor/ai_user/Project/Screen1.class");
+    formClass.getParentFile().mkdirs();
+    Files.write(createClass("appinventor/ai_user/Project/Screen1", RUNTIME + "Form",
+        RUNTIME + "EventDispatcher", null), formClass);
+
+    File withoutForms = RuntimeShrinker.shrink(runtimeJar, Sets.newHashSet("Button"),
+        Lists.<File>newArrayList(), tempDir);
+    assertFalse(getEntryNames(withoutForms).contains(RUNTIME + "EventDispatcher.class"));
+    File withForms = RuntimeShrinker.shrink(runtimeJar, Sets.newHashSet("Button"),
+        Lists.newArrayList(classesDir), tempDir);
+    assertTrue(getEntryNames(withForms).contains(RUNTIME + "EventDispatcher.class"));
+    assertFalse(withForms.equals(withoutForms));
+  }
+
+  public void testReferencedClassesIncludeDescriptorsAndStrings() throws Exception {
+    Set<String> known = Sets.newHashSet("a/B", "a/C", "a/D");
+    byte[] classFile = createClass("a/A", "java/lang/Object", "a/B", "a.C");
+    assertEquals(Sets.newHashSet("a/B", "a/C"),
+        RuntimeShrinker.getReferencedClasses(classFile, known));
+  }
+
+  private static void addClass(ZipOutputStream out, String name, String superName,
+      String fieldType, String stringConstant) throws Exception {
+    out.putNextEntry(new ZipEntry(name + ".class"));
+    out.write(createClass(name, superName, fieldType, stringConstant));
+  }
+
+  /*
+   * Creates a class with the given super class, and optionally a field of the given type and a
+   * field whose constant value is the given string.
+   */
+  private static byte[] createClass(String name, String superName, String fieldType,
+      String stringConstant) {
+    ClassWriter classWriter = new ClassWriter(0);
+    classWriter.visit(Opcodes.V1_5, Opcodes.ACC_PUBLIC, name, null, superName, null);
+    if (fieldType != null) {
+      classWriter.visitField(Opcodes.ACC_PRIVATE, "field", "L" + fieldType + ";", null, null)
+          .visitEnd();
+    }
+    if (stringConstant != null) {
+      classWriter.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL,
+          "NAME", "Ljava/lang/String;", null, stringConstant).visitEnd();
+    }
+    classWriter.visitEnd();
+    return classWriter.toByteArray();
+  }
+
+  private static List<String> getEntryNames(File jar) throws Exception {
+    List<String> names = Lists.newArrayList();
+    ZipFile zipFile = new ZipFile(jar);
+    try {
+      Enumeration<? extends ZipEntry> entries = zipFile.entries();
+      while (entries.hasMoreElements()) {
+        names.add(entries.nextElement().getName());
+      }
+    } finally {
+      zipFile.close();
+    }
+    return names;
+  }
+}
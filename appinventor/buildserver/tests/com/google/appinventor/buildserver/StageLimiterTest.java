@@ -0,0 +1,66 @@
+// -*- mode: java; c-basic-offset: 2; -*-
+// Copyright 2014 MIT, All rights reserved
+// Released under the Apache License, Version 2.0
+// http://www.apache.org/licenses/LICENSE-2.0
+package com.google.appinventor.buildserver;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests StageLimiter class.
+ *
+ */
+public class StageLimiterTest extends TestCase {
+  public void testAdditionalBuildWaits() throws Exception {
+    final StageLimiter limiter = new StageLimiter("kawa", 1);
+    limiter.acquire();
+    assertEquals(1, limiter.getActiveCount());
+
+    // A second build has to wait until the first one leaves the stage.
+    final CountDownLatch entered = new CountDownLatch(1);
+    Thread second = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          limiter.acquire();
+          entered.countDown();
+          limiter.release();
+        } catch (InterruptedException e) {
+          // ignored
+        }
+      }
+    });
+    second.start();
+    assertFalse(entered.await(200, TimeUnit.MILLISECONDS));
+    assertEquals(1, limiter.getQueueDepth());
+
+    limiter.release();
+    assertTrue(entered.await(5, TimeUnit.SECONDS));
+    second.join();
+    assertEquals(0, limiter.getQueueDepth());
+    assertEquals(0, limiter.getActiveCount());
+    assertEquals(1, limiter.getMaxQueueDepthOccurred());
+    assertEquals(2, limiter.getCompletedCount());
+  }
+
+  public void testUnlimitedNeverWaits() throws Exception {
+    StageLimiter limiter = new StageLimiter("dx", 0);
+    for (int i = 0; i < 10; i++) {
+      limiter.acquire();
+    }
+    assertEquals(10, limiter.getActiveCount());
+    assertEquals(0, limiter.getQueueDepth());
+  }
+
+  public void testDefaultStageLimitIsBounded() {
+    int processors = Runtime.getRuntime().availableProcessors();
+    int limit = Compiler.getDefaultStageLimit(2048);
+    assertTrue(limit >= 1);
+    assertTrue(limit <= processors);
+    // No more than one child process fits when each would take all the memory there is.
+    assertEquals(1, Compiler.getDefaultStageLimit(Integer.MAX_VALUE));
+  }
+}
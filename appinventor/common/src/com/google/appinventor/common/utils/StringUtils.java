@@ -78,6 +78,23 @@ public final class StringUtils {
     return str;
   }
 
+  /**
+   * Replaces the entities that {@link #escape} creates with the characters
+   * they stand for. Line breaks aren't restored.
+   *
+   * @param str string to unescape
+   * @return unescaped string or {@code null} if {@code str} was {@code null}
+   */
+  public static String unescape(String str) {
+    if (str != null) {
+      str = str.replaceAll("&quot;", "\"").
+          replaceAll("&gt;", ">").
+          replaceAll("&lt;", "<").
+          replaceAll("&amp;", "&");
+    }
+    return str;
+  }
+
   /**
    * Indicates whether an array contains the given string.
    *
@@ -95,6 +95,17 @@ public class StringUtilsTest extends TestCase {
     assertEquals("&amp;&lt;&gt;&quot;<br>", StringUtils.escape("&<>\"\n"));
   }
 
+  /**
+   * Tests unescaping of strings escaped for HTML.
+   *
+   * @see StringUtils#unescape(String)
+   */
+  public void testUnescape() {
+    assertEquals(null, StringUtils.unescape(null));
+    assertEquals("&<>\"", StringUtils.unescape("&amp;&lt;&gt;&quot;"));
+    assertEquals("&lt;", StringUtils.unescape(StringUtils.escape("&lt;")));
+  }
+
   /**
    * Tests whether a string is contained in an array.
    *